@@ -0,0 +1,445 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gui.spatialtoolbox.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jgrasstools.gears.libs.logging.JGTLogger;
+
+import oms3.CLIWorker;
+
+/**
+ * Pool of warm vms running the scripts of the spatial toolbox.
+ *
+ * <p>
+ * Every worker is a {@link CLIWorker} started with the vm arguments of the
+ * runs it serves (heap, encoding, classpath). A run takes an idle worker with
+ * the same arguments or starts a new one, so that several scripts can run at the
+ * same time, and gives it back when finished. Only startup, classloading and jit
+ * warm-up of the first run of a worker are paid.
+ * </p>
+ *
+ * <p>
+ * A run is seen as a {@link Process}: its output and error streams carry the
+ * lines of the script, encoded as {@link #STREAMS_ENCODING}, {@link Process#destroy()} cancels it. If the script does
+ * not stop within {@link #CANCEL_GRACE_MILLIS}, the worker vm is killed.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class ScriptWorkerPool {
+
+    /**
+     * The time a cancelled script has to stop before its worker is killed.
+     */
+    public static final long CANCEL_GRACE_MILLIS = 3000;
+
+    /**
+     * The runs after which a worker is retired, to release what scripts leak.
+     */
+    public static final int MAX_RUNS_PER_WORKER = 25;
+
+    /**
+     * The encoding of the output and error streams of the runs.
+     */
+    public static final String STREAMS_ENCODING = "UTF-8";
+
+    private static ScriptWorkerPool pool;
+
+    private final List<Worker> idleWorkers = new ArrayList<Worker>();
+    private int maxIdleWorkers = 2;
+
+    private ScriptWorkerPool() {
+        Runtime.getRuntime().addShutdownHook(new Thread(){
+            public void run() {
+                shutdown();
+            }
+        });
+    }
+
+    public synchronized static ScriptWorkerPool getInstance() {
+        if (pool == null) {
+            pool = new ScriptWorkerPool();
+        }
+        return pool;
+    }
+
+    /**
+     * @param maxIdleWorkers the number of finished workers kept warm for the next runs.
+     */
+    public synchronized void setMaxIdleWorkers( int maxIdleWorkers ) {
+        this.maxIdleWorkers = Math.max(0, maxIdleWorkers);
+        trimIdle();
+    }
+
+    /**
+     * Run a script on a worker.
+     *
+     * @param vmArguments the command to start a worker vm, up to and excluding the main class.
+     * @param logLevel the oms log level of the run.
+     * @param scriptFile the script to run.
+     * @return the process of the run.
+     * @throws IOException if no worker could be started.
+     */
+    public Process run( List<String> vmArguments, String logLevel, File scriptFile ) throws IOException {
+        Worker worker = take(vmArguments);
+        try {
+            return worker.run(logLevel, scriptFile);
+        } catch (IOException e) {
+            // the worker died while idle, try with a new one
+            worker.kill();
+            worker = new Worker(vmArguments);
+            return worker.run(logLevel, scriptFile);
+        }
+    }
+
+    private Worker take( List<String> vmArguments ) throws IOException {
+        synchronized (this) {
+            for( Iterator<Worker> iterator = idleWorkers.iterator(); iterator.hasNext(); ) {
+                Worker worker = iterator.next();
+                if (worker.vmArguments.equals(vmArguments)) {
+                    iterator.remove();
+                    return worker;
+                }
+            }
+        }
+        return new Worker(vmArguments);
+    }
+
+    private synchronized void release( Worker worker ) {
+        if (worker.runs >= MAX_RUNS_PER_WORKER || !worker.isAlive() || pool != this) {
+            worker.shutdown();
+            return;
+        }
+        idleWorkers.add(0, worker);
+        trimIdle();
+    }
+
+    private void trimIdle() {
+        while( idleWorkers.size() > maxIdleWorkers ) {
+            // the least recently used
+            idleWorkers.remove(idleWorkers.size() - 1).shutdown();
+        }
+    }
+
+    /**
+     * Stop the idle workers. Running scripts finish on their workers, which are then stopped.
+     */
+    public void shutdown() {
+        synchronized (ScriptWorkerPool.class) {
+            if (pool == this) {
+                pool = null;
+            }
+        }
+        synchronized (this) {
+            for( Worker worker : idleWorkers ) {
+                worker.shutdown();
+            }
+            idleWorkers.clear();
+        }
+    }
+
+    /**
+     * A worker vm and its message channel.
+     */
+    private class Worker {
+        private final List<String> vmArguments;
+        private final java.lang.Process vm;
+        private final Writer toWorker;
+        private final BufferedReader fromWorker;
+        private int runs = 0;
+
+        Worker( List<String> vmArguments ) throws IOException {
+            this.vmArguments = new ArrayList<String>(vmArguments);
+            List<String> command = new ArrayList<String>(vmArguments);
+            command.add(CLIWorker.class.getCanonicalName());
+            JGTLogger.logDebug(this, "Starting worker: " + command);
+            vm = new ProcessBuilder(command).redirectErrorStream(true).start();
+            toWorker = new OutputStreamWriter(vm.getOutputStream(), "UTF-8");
+            fromWorker = new BufferedReader(new InputStreamReader(vm.getInputStream(), "UTF-8"));
+            // anything before the ready message is vm noise, not protocol
+            String line;
+            while( (line = fromWorker.readLine()) != null && !line.equals(CLIWorker.READY) ) {
+                JGTLogger.logDebug(this, line);
+            }
+            if (line == null) {
+                kill();
+                throw new IOException("The script worker could not be started.");
+            }
+        }
+
+        boolean isAlive() {
+            try {
+                vm.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        WorkerProcess run( String logLevel, File scriptFile ) throws IOException {
+            if (!isAlive()) {
+                throw new IOException("The script worker is not running.");
+            }
+            runs++;
+            WorkerProcess process = new WorkerProcess(this);
+            send(CLIWorker.RUN + "\t" + logLevel + "\t" + scriptFile.getAbsolutePath());
+            process.startReading();
+            return process;
+        }
+
+        synchronized void send( String message ) throws IOException {
+            toWorker.write(message);
+            toWorker.write('\n');
+            toWorker.flush();
+        }
+
+        void shutdown() {
+            try {
+                // the worker exits at the end of its input
+                toWorker.close();
+            } catch (IOException e) {
+                kill();
+            }
+        }
+
+        void kill() {
+            vm.destroy();
+        }
+    }
+
+    /**
+     * A script run on a worker.
+     */
+    private class WorkerProcess extends Process {
+        private final Worker worker;
+        private final LineInputStream out = new LineInputStream();
+        private final LineInputStream err = new LineInputStream();
+        private Integer exitCode = null;
+
+        WorkerProcess( Worker worker ) {
+            this.worker = worker;
+        }
+
+        void startReading() {
+            new Thread("script-worker-reader"){
+                public void run() {
+                    int code = 1;
+                    boolean done = false;
+                    try {
+                        String line;
+                        while( (line = worker.fromWorker.readLine()) != null ) {
+                            String[] msg = line.split("\t", 2);
+                            String text = msg.length > 1 ? msg[1] : "";
+                            if (msg[0].equals(CLIWorker.OUT)) {
+                                out.addLine(text);
+                            } else if (msg[0].equals(CLIWorker.ERR)) {
+                                err.addLine(text);
+                            } else if (msg[0].equals(CLIWorker.DONE)) {
+                                code = Integer.parseInt(text.trim());
+                                done = true;
+                                break;
+                            } else {
+                                // output of the vm outside of the protocol
+                                err.addLine(line);
+                            }
+                        }
+                    } catch (Exception e) {
+                        err.addLine(e.getLocalizedMessage());
+                    } finally {
+                        finish(code);
+                        if (done) {
+                            release(worker);
+                        } else {
+                            // killed or crashed
+                            worker.kill();
+                        }
+                    }
+                }
+            }.start();
+        }
+
+        private synchronized void finish( int code ) {
+            out.close();
+            err.close();
+            exitCode = code;
+            notifyAll();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            // scripts have no input
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return out;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return err;
+        }
+
+        @Override
+        public synchronized int waitFor() throws InterruptedException {
+            while( exitCode == null ) {
+                wait();
+            }
+            return exitCode;
+        }
+
+        private synchronized boolean waitFor( long millis ) throws InterruptedException {
+            long end = System.currentTimeMillis() + millis;
+            long left = millis;
+            while( exitCode == null && left > 0 ) {
+                wait(left);
+                left = end - System.currentTimeMillis();
+            }
+            return exitCode != null;
+        }
+
+        @Override
+        public synchronized int exitValue() {
+            if (exitCode == null) {
+                throw new IllegalThreadStateException("The script is still running.");
+            }
+            return exitCode;
+        }
+
+        @Override
+        public void destroy() {
+            synchronized (this) {
+                if (exitCode != null) {
+                    return;
+                }
+            }
+            try {
+                worker.send(CLIWorker.CANCEL);
+                if (waitFor(CANCEL_GRACE_MILLIS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // the worker is already gone
+            }
+            worker.kill();
+        }
+
+        @Override
+        public boolean waitFor( long timeout, TimeUnit unit ) throws InterruptedException {
+            return waitFor(unit.toMillis(timeout));
+        }
+
+        @Override
+        public synchronized boolean isAlive() {
+            return exitCode == null;
+        }
+    }
+
+    /**
+     * Input stream of the lines received for a run, ending when the run finishes.
+     */
+    private static class LineInputStream extends InputStream {
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private byte[] buffer = new byte[0];
+        private int position = 0;
+        private boolean closed = false;
+
+        synchronized void addLine( String line ) {
+            byte[] bytes;
+            try {
+                bytes = (line + "\n").getBytes(STREAMS_ENCODING);
+            } catch (UnsupportedEncodingException e) {
+                // every vm supports utf-8
+                throw new IllegalStateException(e);
+            }
+            pending.write(bytes, 0, bytes.length);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private boolean fill() throws IOException {
+            while( position >= buffer.length ) {
+                if (pending.size() > 0) {
+                    buffer = pending.toByteArray();
+                    pending.reset();
+                    position = 0;
+                } else if (closed) {
+                    return false;
+                } else {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(e);
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public synchronized int read( byte[] b, int off, int len ) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.length - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffer.length - position + pending.size();
+        }
+    }
+}
@@ -28,6 +28,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -53,6 +54,12 @@ public class StageScriptExecutor {
 
     public static final String ORG_JGRASSTOOLS_MODULES = "org.jgrasstools.modules";
 
+    /**
+     * System property that, set to <code>true</code>, runs the scripts on the warm
+     * vms of the {@link ScriptWorkerPool} instead of a new vm each.
+     */
+    public static final String USE_WORKERS_PROPERTY = "jgt.spatialtoolbox.workers";
+
     private List<IProcessListener> listeners = new ArrayList<IProcessListener>();
 
     private String classPath;
@@ -65,6 +72,8 @@ public class StageScriptExecutor {
 
     private StringBuilder logBuilder = new StringBuilder();
 
+    private boolean useWorkers = Boolean.getBoolean(USE_WORKERS_PROPERTY);
+
     public StageScriptExecutor( File jgtLibsFolder ) throws Exception {
         /*
          * get java exec
@@ -218,10 +227,13 @@ public class StageScriptExecutor {
         // all the arguments
         arguments.add("-cp");
         arguments.add(classPath);
+        List<String> vmArguments = new ArrayList<String>(arguments);
+        String omsLogLevel = "OFF";
         arguments.add(CLI.class.getCanonicalName());
         if (loggerLevelGui.equals(SpatialToolboxConstants.LOGLEVEL_GUI_ON)) {
+            omsLogLevel = "FINEST";
             arguments.add("-l");
-            arguments.add("FINEST");
+            arguments.add(omsLogLevel);
         }
         arguments.add("-r");
         arguments.add(scriptFile.getAbsolutePath());
@@ -261,7 +273,15 @@ public class StageScriptExecutor {
         // Map<String, String> environment = processBuilder.environment();
         // environment.put("CLASSPATH", classPath);
 
-        final Process process = processBuilder.start();
+        final Process process;
+        final Charset streamsCharset;
+        if (useWorkers) {
+            process = ScriptWorkerPool.getInstance().run(vmArguments, omsLogLevel, scriptFile);
+            streamsCharset = Charset.forName(ScriptWorkerPool.STREAMS_ENCODING);
+        } else {
+            process = processBuilder.start();
+            streamsCharset = Charset.defaultCharset();
+        }
         logBuilder.setLength(0);
 
         StringBuilder preCommentsBuilder = new StringBuilder();
@@ -315,7 +335,7 @@ public class StageScriptExecutor {
                 BufferedReader br = null;
                 try {
                     InputStream is = process.getInputStream();
-                    InputStreamReader isr = new InputStreamReader(is);
+                    InputStreamReader isr = new InputStreamReader(is, streamsCharset);
                     br = new BufferedReader(isr);
                     String line;
                     while( (line = br.readLine()) != null ) {
@@ -347,7 +367,7 @@ public class StageScriptExecutor {
                 try {
                     String userCanceled = ModelsUserCancelException.class.getCanonicalName();
                     InputStream is = process.getErrorStream();
-                    InputStreamReader isr = new InputStreamReader(is);
+                    InputStreamReader isr = new InputStreamReader(is, streamsCharset);
                     br = new BufferedReader(isr);
                     String line;
                     while( (line = br.readLine()) != null ) {
@@ -380,6 +400,14 @@ public class StageScriptExecutor {
         return process;
     }
 
+    /**
+     * @param useWorkers if <code>true</code>, the scripts are run on the warm vms of the
+     *            {@link ScriptWorkerPool} instead of a new vm each.
+     */
+    public void setUseWorkers( boolean useWorkers ) {
+        this.useWorkers = useWorkers;
+    }
+
     public boolean isRunning() {
         return isRunning;
     }
@@ -0,0 +1,115 @@
+package org.jgrasstools.gui.spatialtoolbox.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the runs of scripts on the warm vms of the {@link ScriptWorkerPool}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestScriptWorkerPool extends TestCase {
+
+    private ScriptWorkerPool pool;
+    private List<String> vmArguments;
+    private List<File> scripts = new ArrayList<File>();
+
+    protected void setUp() throws Exception {
+        pool = ScriptWorkerPool.getInstance();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        vmArguments = Arrays.asList(java, "-cp", System.getProperty("java.class.path"));
+    }
+
+    protected void tearDown() throws Exception {
+        pool.shutdown();
+        for( File script : scripts ) {
+            script.delete();
+        }
+    }
+
+    public void testOutputAndExitCode() throws Exception {
+        // the script is read with the platform encoding, so the non ascii text is escaped
+        File script = script("println 'first line'\n" + "println '\\u00e8\\u00fc'\n" + "System.err.println 'warning'\n");
+        Process process = pool.run(vmArguments, "OFF", script);
+        List<String> out = readLines(process.getInputStream());
+        List<String> err = readLines(process.getErrorStream());
+        assertEquals(0, process.waitFor());
+        assertFalse(process.isAlive());
+        assertEquals(Arrays.asList("first line", "\u00e8\u00fc"), out);
+        assertEquals(Arrays.asList("warning"), err);
+
+        File failing = script("throw new IllegalStateException('boom')\n");
+        process = pool.run(vmArguments, "OFF", failing);
+        readLines(process.getInputStream());
+        err = readLines(process.getErrorStream());
+        assertEquals(1, process.waitFor());
+        assertTrue(err.toString(), err.contains("ERROR"));
+    }
+
+    public void testConcurrentRuns() throws Exception {
+        File script = script("Thread.sleep(500)\nprintln 'done'\n");
+        Process first = pool.run(vmArguments, "OFF", script);
+        Process second = pool.run(vmArguments, "OFF", script);
+        assertTrue(first.isAlive());
+        assertTrue(second.isAlive());
+        assertEquals(Arrays.asList("done"), readLines(first.getInputStream()));
+        assertEquals(Arrays.asList("done"), readLines(second.getInputStream()));
+        assertEquals(0, first.waitFor());
+        assertEquals(0, second.waitFor());
+    }
+
+    public void testCancel() throws Exception {
+        File script = script("println 'started'\nThread.sleep(60000)\nprintln 'not cancelled'\n");
+        Process process = pool.run(vmArguments, "OFF", script);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                ScriptWorkerPool.STREAMS_ENCODING));
+        assertEquals("started", reader.readLine());
+
+        long start = System.currentTimeMillis();
+        process.destroy();
+        assertFalse(process.isAlive());
+        assertTrue(System.currentTimeMillis() - start < ScriptWorkerPool.CANCEL_GRACE_MILLIS);
+        assertEquals(1, process.exitValue());
+        assertNull(reader.readLine());
+
+        // the worker is given back and runs the next script
+        process = pool.run(vmArguments, "OFF", script("println 'next'\n"));
+        assertEquals(Arrays.asList("next"), readLines(process.getInputStream()));
+        assertEquals(0, process.waitFor());
+    }
+
+    private File script( String content ) throws IOException {
+        File script = File.createTempFile("jgt-worker", ".groovy");
+        scripts.add(script);
+        FileWriter writer = new FileWriter(script);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return script;
+    }
+
+    private List<String> readLines( InputStream stream ) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, ScriptWorkerPool.STREAMS_ENCODING));
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while( (line = reader.readLine()) != null ) {
+            // the error output of a failure starts with an empty line
+            if (line.length() > 0) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
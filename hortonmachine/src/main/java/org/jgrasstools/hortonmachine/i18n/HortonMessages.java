@@ -126,6 +126,9 @@ public class HortonMessages {
     public static final String OMSKRIGING_pA_DESCRIPTION = "The range if the models runs with the gaussian variogram.";
     public static final String OMSKRIGING_pS_DESCRIPTION = "The sill if the models runs with the gaussian variogram.";
     public static final String OMSKRIGING_pNug_DESCRIPTION = "Is the nugget if the models runs with the gaussian variogram.";
+    public static final String OMSKRIGING_pMaxThreads_DESCRIPTION = "Max threads to use to interpolate the points (default 1).";
+    public static final String OMSKRIGING_pMaxNeighbours_DESCRIPTION = "The max number of nearest stations used for every point (0 = all).";
+    public static final String OMSKRIGING_pMaxDistance_DESCRIPTION = "The max distance of the stations used for every point (0 = no limit).";
     public static final String OMSKRIGING_outGrid_DESCRIPTION = "The interpolated gridded data (for mode 2 and 3.";
     public static final String OMSKRIGING_outData_DESCRIPTION = "The interpolated data (for mode 0 and 1).";
 
@@ -173,6 +176,8 @@ public class HortonMessages {
     public static final String OMSPITFILLER_AUTHORNAMES = "David Tarboton, Andrea Antonello";
     public static final String OMSPITFILLER_AUTHORCONTACTS = "http://www.neng.usu.edu/cee/faculty/dtarb/tardem.html#programs, http://www.hydrologis.com";
     public static final String OMSPITFILLER_inElev_DESCRIPTION = "The map of digital elevation model (DEM).";
+    public static final String OMSPITFILLER_doPriorityFlood_DESCRIPTION = "Use the priority-flood algorithm instead of the iterative pool detection.";
+    public static final String OMSPITFILLER_doEpsilon_DESCRIPTION = "In priority-flood mode, give filled areas a minimal gradient instead of making them flat.";
     public static final String OMSPITFILLER_outPit_DESCRIPTION = "The depitted elevation map.";
 
     public static final String OMSSKYVIEW_DESCRIPTION = "Calculates the skyview factor.";
@@ -186,6 +191,8 @@ public class HortonMessages {
     public static final String OMSSKYVIEW_AUTHORCONTACTS = "http://www.ing.unitn.it/dica/hp/?user=rigon";
     public static final String OMSSKYVIEW_inElev_DESCRIPTION = "The map of the elevation.";
     public static final String OMSSKYVIEW_outSky_DESCRIPTION = "The map of skyview factor.";
+    public static final String OMSSKYVIEW_pHorizonSectors_DESCRIPTION = "The number of azimuth sectors of the precomputed horizons (default 0, trace the rays for every direction and elevation).";
+    public static final String OMSSKYVIEW_pMaxThreads_DESCRIPTION = "Max threads to use to compute the horizons (default 1).";
 
     public static final String OMSSHALSTAB_DESCRIPTION = "A version of the OmsShalstab stability model.";
     public static final String OMSSHALSTAB_DOCUMENTATION = "OmsShalstab.html";
@@ -427,6 +434,8 @@ public class HortonMessages {
     public static final String OMSSUMDOWNSTREAM_pUpperThres_DESCRIPTION = "The upper threshold.";
     public static final String OMSSUMDOWNSTREAM_pLowerThres_DESCRIPTION = "The lower threshold.";
     public static final String OMSSUMDOWNSTREAM_outSummed_DESCRIPTION = "The map of summed values.";
+    public static final String OMSSUMDOWNSTREAM_doTopological_DESCRIPTION = "Use the topological accumulation engine, which visits every cell only once.";
+    public static final String OMSSUMDOWNSTREAM_pMaxThreads_DESCRIPTION = "Max threads to use with the topological engine (default 1).";
 
     public static final String OMSSLOPE_DESCRIPTION = "Calculates the slope in each point of the map.";
     public static final String OMSSLOPE_DOCUMENTATION = "OmsSlope.html";
@@ -549,6 +558,8 @@ public class HortonMessages {
     public static final String OMSINSOLATION_tStartDate_DESCRIPTION = "The first day of the simulation.";
     public static final String OMSINSOLATION_tEndDate_DESCRIPTION = "The last day of the simulation.";
     public static final String OMSINSOLATION_outIns_DESCRIPTION = "The map of total insolation.";
+    public static final String OMSINSOLATION_pMaxThreads_DESCRIPTION = "Max threads to use to sweep the sun positions (default 1).";
+    public static final String OMSINSOLATION_pHorizonSectors_DESCRIPTION = "The number of azimuth sectors of the precomputed horizons used for the shadows (default 0, trace the shadows at every sun position).";
 
     public static final String OMSMELTONNUMBER_DESCRIPTION = "Melton number calculator";
     public static final String OMSMELTONNUMBER_DOCUMENTATION = "";
@@ -856,6 +867,10 @@ public class HortonMessages {
     public static final String OMSADIGE_pRainduration_DESCRIPTION = "The duration of the constant rain in minutes.";
     public static final String OMSADIGE_outDischarge_DESCRIPTION = "The superficial discharge for every basin id.";
     public static final String OMSADIGE_outSubdischarge_DESCRIPTION = "The sub-superficial discharge for every basin id.";
+    public static final String OMSADIGE_inRainEnsemble_DESCRIPTION = "The rainfall data of every member of an ensemble. If set, one simulation per member is run on the same network and the discharges, states and final conditions are the mean of the members.";
+    public static final String OMSADIGE_pMaxThreads_DESCRIPTION = "Max threads to use to run the ensemble members (default 1). The engine of each member runs single threaded.";
+    public static final String OMSADIGE_outEnsembleDischarge_DESCRIPTION = "The superficial discharge of every ensemble member (one value per member) for every basin id.";
+    public static final String OMSADIGE_outEnsembleSubdischarge_DESCRIPTION = "The sub-superficial discharge of every ensemble member (one value per member) for every basin id.";
 
     public static final String OMSKERNELDENSITY_DESCRIPTION = "Kernel Density Estimator (based on the Jaitools project).";
     public static final String OMSKERNELDENSITY_DOCUMENTATION = "";
@@ -1006,6 +1021,8 @@ public class HortonMessages {
     public static final String OMSTCA_inFlow_DESCRIPTION = "The map of flowdirections.";
     public static final String OMSTCA_outTca_DESCRIPTION = "The map of total contributing areas.";
     public static final String OMSTCA_outLoop_DESCRIPTION = "The vector containing loops, if there are any.";
+    public static final String OMSTCA_doTopological_DESCRIPTION = "Use the topological accumulation engine, which visits every cell only once.";
+    public static final String OMSTCA_pMaxThreads_DESCRIPTION = "Max threads to use with the topological engine (default 1).";
 
     public static final String OMSENERGYBALANCE_DESCRIPTION = "The module for calculating the energybalance";
     public static final String OMSENERGYBALANCE_DOCUMENTATION = "";
@@ -27,6 +27,8 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_LAB
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_LICENSE;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_STATUS;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_doEpsilon_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_doPriorityFlood_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_inElev_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_outPit_DESCRIPTION;
 
@@ -65,6 +67,14 @@ public class OmsPitfiller extends JGTModel {
     @In
     public GridCoverage2D inElev;
 
+    @Description(OMSPITFILLER_doPriorityFlood_DESCRIPTION)
+    @In
+    public boolean doPriorityFlood = false;
+
+    @Description(OMSPITFILLER_doEpsilon_DESCRIPTION)
+    @In
+    public boolean doEpsilon = false;
+
     @Description(OMSPITFILLER_outPit_DESCRIPTION)
     @Out
     public GridCoverage2D outPit = null;
@@ -151,6 +161,11 @@ public class OmsPitfiller extends JGTModel {
 
         elevationIter = CoverageUtilities.getRandomIterator(inElev);
 
+        if (doPriorityFlood) {
+            outPit = priorityFlood(regionMap);
+            return;
+        }
+
         // output raster
         WritableRaster pitRaster = CoverageUtilities.createDoubleWritableRaster(nCols, nRows, null, null, null);
         pitIter = CoverageUtilities.getWritableRandomIterator(pitRaster);
@@ -193,6 +208,43 @@ public class OmsPitfiller extends JGTModel {
         outPit = CoverageUtilities.buildCoverage("pitfiller", pitRaster, regionMap, inElev.getCoordinateReferenceSystem());
     }
 
+    /**
+     * Fills the pits with the {@link PriorityFloodFiller} working on a packed array.
+     * 
+     * @param regionMap the region of the elevation model.
+     * @return the depitted elevation coverage.
+     */
+    private GridCoverage2D priorityFlood( HashMap<String, Double> regionMap ) {
+        // the novalues are kept, so that valid elevations can't clash with PITNOVALUE
+        double[] elev = new double[nCols * nRows];
+        int index = 0;
+        for( int r = 0; r < nRows; r++ ) {
+            for( int c = 0; c < nCols; c++ ) {
+                elev[index++] = elevationIter.getSampleDouble(c, r, 0);
+            }
+        }
+        elevationIter.done();
+
+        PriorityFloodFiller filler = new PriorityFloodFiller(elev, nCols, nRows);
+        int raised = filler.fill(doEpsilon, pm);
+        pm.message("Raised cells: " + raised);
+
+        WritableRaster pitRaster = CoverageUtilities.createDoubleWritableRaster(nCols, nRows, null, null, null);
+        WritableRandomIter outIter = CoverageUtilities.getWritableRandomIterator(pitRaster);
+        index = 0;
+        for( int r = 0; r < nRows; r++ ) {
+            for( int c = 0; c < nCols; c++ ) {
+                double value = elev[index++];
+                if (isNovalue(value)) {
+                    value = doubleNovalue;
+                }
+                outIter.setSample(c, r, 0, value);
+            }
+        }
+        outIter.done();
+        return CoverageUtilities.buildCoverage("pitfiller", pitRaster, regionMap, inElev.getCoordinateReferenceSystem());
+    }
+
     /**
      * Takes the elevation matrix and calculate a matrix with pits filled, using the flooding
      * algorithm.
@@ -0,0 +1,261 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.hortonmachine.modules.demmanipulation.pitfiller;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * Priority-flood depression filling on a packed elevation array.
+ *
+ * <p>
+ * The cells on the border of the region are the seeds of the flood. Cells are
+ * then processed from the lowest to the highest through a min-heap of packed
+ * cell indexes (<code>index = row * cols + col</code>). Every neighbour that is
+ * reached for the first time and is not higher than the cell it is reached
+ * from is part of a depression and is raised to that level.
+ * </p>
+ *
+ * <p>
+ * In pure fill mode depressions become flat areas. In epsilon mode every
+ * raised cell gets the next representable value above the cell it has been
+ * reached from, so that the filled surface always drains towards the border.
+ * </p>
+ *
+ * <p>
+ * Novalues are the {@link JGTConstants#doubleNovalue} and are flooded as if they
+ * were lower than any valid elevation. Novalue areas touching the border
+ * are kept as they are, while novalue holes inside the region are filled like
+ * any other depression.
+ * </p>
+ *
+ * <p>
+ * The memory footprint is the elevation array, one byte per cell for the
+ * closed flags and the heap, which holds only the front of the flood.
+ * </p>
+ *
+ * @see "R. Barnes, C. Lehman, D. Mulla, Priority-flood: An optimal depression-filling
+ *      and watershed-labeling algorithm for digital elevation models, 2014."
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class PriorityFloodFiller {
+
+    private static final int[] DCOL = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DROW = {0, -1, -1, -1, 0, 1, 1, 1};
+
+    private final double[] elev;
+    private final int cols;
+    private final int rows;
+
+    private int[] heap;
+    private int heapSize;
+
+    /*
+     * fifo ring queue of the cells that are inside depressions (pure mode)
+     */
+    private int[] pit;
+    private int pitHead;
+    private int pitSize;
+
+    /**
+     * Constructor.
+     *
+     * @param elev the elevations in row major order. The array is filled in place.
+     * @param cols the columns of the region.
+     * @param rows the rows of the region.
+     */
+    public PriorityFloodFiller( double[] elev, int cols, int rows ) {
+        if (elev.length != cols * rows) {
+            throw new IllegalArgumentException("The elevation array doesn't match the region size.");
+        }
+        this.elev = elev;
+        this.cols = cols;
+        this.rows = rows;
+    }
+
+    /**
+     * Fill the depressions.
+     *
+     * @param doEpsilon if <code>true</code>, filled areas get a minimal gradient instead of being flat.
+     * @param pm the progress monitor.
+     * @return the number of cells that have been raised.
+     */
+    public int fill( boolean doEpsilon, IJGTProgressMonitor pm ) {
+        int n = cols * rows;
+        boolean[] closed = new boolean[n];
+        heap = new int[Math.max(16, 2 * (cols + rows))];
+        heapSize = 0;
+        pit = new int[Math.max(16, cols + rows)];
+        pitHead = 0;
+        pitSize = 0;
+
+        for( int c = 0; c < cols; c++ ) {
+            seed(c, closed);
+            seed((rows - 1) * cols + c, closed);
+        }
+        for( int r = 1; r < rows - 1; r++ ) {
+            seed(r * cols, closed);
+            seed(r * cols + cols - 1, closed);
+        }
+
+        int raised = 0;
+        int processed = 0;
+        int step = Math.max(1, n / 100);
+        pm.beginTask("Flooding the elevation model...", 100);
+        while( heapSize > 0 || pitSize > 0 ) {
+            int current;
+            if (pitSize > 0) {
+                current = pit[pitHead];
+                pitHead = (pitHead + 1) % pit.length;
+                pitSize--;
+            } else {
+                current = heapPop();
+            }
+            double currentElev = level(current);
+            int col = current % cols;
+            int row = current / cols;
+            for( int k = 0; k < 8; k++ ) {
+                int nCol = col + DCOL[k];
+                int nRow = row + DROW[k];
+                if (nCol < 0 || nCol >= cols || nRow < 0 || nRow >= rows) {
+                    continue;
+                }
+                int neighbour = nRow * cols + nCol;
+                if (closed[neighbour]) {
+                    continue;
+                }
+                closed[neighbour] = true;
+                double neighbourElev = level(neighbour);
+                if (doEpsilon) {
+                    // novalues are not raised by novalues
+                    double level = currentElev == Double.NEGATIVE_INFINITY ? currentElev : Math.nextUp(currentElev);
+                    if (neighbourElev < level) {
+                        elev[neighbour] = level;
+                        raised++;
+                    }
+                    heapPush(neighbour);
+                } else if (neighbourElev <= currentElev) {
+                    if (neighbourElev < currentElev) {
+                        elev[neighbour] = currentElev;
+                        raised++;
+                    }
+                    pitPush(neighbour);
+                } else {
+                    heapPush(neighbour);
+                }
+            }
+            if (++processed % step == 0) {
+                pm.worked(1);
+            }
+        }
+        pm.done();
+
+        heap = null;
+        pit = null;
+        return raised;
+    }
+
+    /**
+     * @return the elevation of the cell, with novalues below any valid elevation.
+     */
+    private double level( int index ) {
+        double value = elev[index];
+        if (isNovalue(value)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return value;
+    }
+
+    private void seed( int index, boolean[] closed ) {
+        if (!closed[index]) {
+            closed[index] = true;
+            heapPush(index);
+        }
+    }
+
+    private void pitPush( int index ) {
+        if (pitSize == pit.length) {
+            int[] tmp = new int[pit.length * 2];
+            for( int i = 0; i < pitSize; i++ ) {
+                tmp[i] = pit[(pitHead + i) % pit.length];
+            }
+            pit = tmp;
+            pitHead = 0;
+        }
+        pit[(pitHead + pitSize) % pit.length] = index;
+        pitSize++;
+    }
+
+    /**
+     * Heap ordering: lower elevation first, lower index on equal elevation,
+     * which keeps the result independent of the insertion order.
+     */
+    private boolean lower( int a, int b ) {
+        double ea = level(a);
+        double eb = level(b);
+        if (ea < eb) {
+            return true;
+        }
+        if (ea > eb) {
+            return false;
+        }
+        return a < b;
+    }
+
+    private void heapPush( int index ) {
+        if (heapSize == heap.length) {
+            int[] tmp = new int[heap.length * 2];
+            System.arraycopy(heap, 0, tmp, 0, heapSize);
+            heap = tmp;
+        }
+        int pos = heapSize++;
+        while( pos > 0 ) {
+            int parent = (pos - 1) >>> 1;
+            if (!lower(index, heap[parent])) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = index;
+    }
+
+    private int heapPop() {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        int pos = 0;
+        int half = heapSize >>> 1;
+        while( pos < half ) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < heapSize && lower(heap[right], heap[child])) {
+                child = right;
+            }
+            if (!lower(heap[child], last)) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = last;
+        return top;
+    }
+
+}
@@ -101,13 +101,13 @@ public class OmsAspectIM extends JGTModelIM {
     }
 
     @Override
-    protected void processCell( int readCol, int readRow, int writeCol, int writeRow, int readCols, int readRows, int writeCols,
-            int writeRows ) {
+    protected void processCell( TileContext tile, int readCol, int readRow, int writeCol, int writeRow, int readCols,
+            int readRows, int writeCols, int writeRows ) {
 
-        RandomIter elevIter = inRasterIterators.get(0);
+        RandomIter elevIter = tile.getInRasterIterators().get(0);
         GridNode node = new GridNode(elevIter, readCols, readRows, xRes, yRes, readCol, readRow);
         double aspect = OmsAspect.calculateAspect(node, radtodeg, doRound);
-        WritableRandomIter outDataIter = outRasters.get(0);
+        WritableRandomIter outDataIter = tile.getOutRasters().get(0);
         outDataIter.setSample(writeCol, writeRow, 0, aspect);
     }
 
@@ -76,7 +76,6 @@ public class OmsCurvaturesIM extends JGTModelIM {
     @Out
     public String outProf = null;
 
-    private double[] planTangProf = new double[3];
     private double disXX;
     private double disYY;
 
@@ -103,17 +102,18 @@ public class OmsCurvaturesIM extends JGTModelIM {
     }
 
     @Override
-    protected void processCell( int readCol, int readRow, int writeCol, int writeRow, int readCols, int readRows, int writeCols,
-            int writeRows ) {
+    protected void processCell( TileContext tile, int readCol, int readRow, int writeCol, int writeRow, int readCols,
+            int readRows, int writeCols, int writeRows ) {
 
-        RandomIter elevIter = inRasterIterators.get(0);
+        RandomIter elevIter = tile.getInRasterIterators().get(0);
+        double[] planTangProf = new double[3];
         OmsCurvatures.calculateCurvatures(elevIter, planTangProf, readCol, readRow, xRes, yRes, disXX, disYY);
         if (outPlan != null)
-            outRasters.get(0).setSample(writeCol, writeRow, 0, planTangProf[0]);
+            tile.getOutRasters().get(0).setSample(writeCol, writeRow, 0, planTangProf[0]);
         if (outTang != null)
-            outRasters.get(1).setSample(writeCol, writeRow, 0, planTangProf[1]);
+            tile.getOutRasters().get(1).setSample(writeCol, writeRow, 0, planTangProf[1]);
         if (outProf != null)
-            outRasters.get(2).setSample(writeCol, writeRow, 0, planTangProf[2]);
+            tile.getOutRasters().get(2).setSample(writeCol, writeRow, 0, planTangProf[2]);
 
     }
 }
@@ -94,13 +94,13 @@ public class OmsGeomorphonIM extends JGTModelIM {
     }
 
     @Override
-    protected void processCell( int readCol, int readRow, int writeCol, int writeRow, int readCols, int readRows, int writeCols,
-            int writeRows ) {
+    protected void processCell( TileContext tile, int readCol, int readRow, int writeCol, int writeRow, int readCols,
+            int readRows, int writeCols, int writeRows ) {
         try {
-            RandomIter elevIter = inRasterIterators.get(0);
-            double classification = OmsGeomorphon.calculateGeomorphon(elevIter, readGridGeometry, pRadius, pThreshold,
+            RandomIter elevIter = tile.getInRasterIterators().get(0);
+            double classification = OmsGeomorphon.calculateGeomorphon(elevIter, tile.getReadGridGeometry(), pRadius, pThreshold,
                     diagonalDelta, readCol, readRow);
-            WritableRandomIter outDataIter = outRasters.get(0);
+            WritableRandomIter outDataIter = tile.getOutRasters().get(0);
             outDataIter.setSample(writeCol, writeRow, 0, classification);
         } catch (TransformException e) {
             e.printStackTrace();
@@ -28,9 +28,11 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_LABEL;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_LICENSE;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_STATUS;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_doTopological_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_inFlow_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_outLoop_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_outTca_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_pMaxThreads_DESCRIPTION;
 
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
@@ -55,6 +57,7 @@ import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.jgrasstools.gears.libs.modules.FlowNode;
 import org.jgrasstools.gears.libs.modules.JGTModel;
+import org.jgrasstools.gears.libs.modules.TopologicalFlowAccumulator;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 
@@ -71,6 +74,14 @@ public class OmsTca extends JGTModel {
     @In
     public GridCoverage2D inFlow = null;
 
+    @Description(OMSTCA_doTopological_DESCRIPTION)
+    @In
+    public boolean doTopological = false;
+
+    @Description(OMSTCA_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSTCA_outTca_DESCRIPTION)
     @Out
     public GridCoverage2D outTca = null;
@@ -90,6 +101,18 @@ public class OmsTca extends JGTModel {
         int cols = regionMap.getCols();
         int rows = regionMap.getRows();
 
+        if (doTopological) {
+            RandomIter flowIter = CoverageUtilities.getRandomIterator(inFlow);
+            TopologicalFlowAccumulator accumulator = new TopologicalFlowAccumulator(flowIter, cols, rows);
+            flowIter.done();
+            accumulator.setThreads(pMaxThreads);
+            accumulator.setProgressMonitor(pm);
+            double[] tca = accumulator.accumulate();
+            WritableRaster tcaWR = TopologicalFlowAccumulator.toRaster(tca, cols, rows);
+            outTca = CoverageUtilities.buildCoverage("tca", tcaWR, regionMap, inFlow.getCoordinateReferenceSystem());
+            return;
+        }
+
         RenderedImage flowRI = inFlow.getRenderedImage();
         WritableRaster tcaWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, doubleNovalue);
 
@@ -0,0 +1,206 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Library General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option) any
+ * later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Library General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Foundation, Inc., 59
+ * Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.duffy.DuffyAdigeEngine;
+import org.joda.time.DateTime;
+
+/**
+ * The members of an ensemble run of {@link OmsAdige}.
+ *
+ * <p>Every member has its own {@link IAdigeEngine engine} and state, the
+ * members are solved concurrently on a pool that lives as long as the ensemble,
+ * so it has to be {@link #close() closed} at the end of the run.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class AdigeEnsemble {
+
+    private final IAdigeEngine[] engines;
+    private final double[][] conditions;
+    private ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param engines the engines of the members.
+     * @param initialConditions the initial conditions of every member.
+     * @param maxThreads the max number of members to solve at the same time.
+     */
+    public AdigeEnsemble( IAdigeEngine[] engines, double[][] initialConditions, int maxThreads ) {
+        this.engines = engines;
+        this.conditions = initialConditions;
+        int threads = Math.min(maxThreads, engines.length);
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    /**
+     * @return the number of members.
+     */
+    public int getMembersNum() {
+        return engines.length;
+    }
+
+    /**
+     * Solve all the members over a timestep.
+     *
+     * <p>If a member fails, its exception is rethrown and the ensemble closed.</p>
+     *
+     * @param currentTimstamp the current time and date.
+     * @param modelTimestepInMinutes the timestep used in the model.
+     * @param rainArrays the array of rain data per basin of every member.
+     * @param etpArray the array of etp data per basin, the same for all members.
+     * @throws Exception
+     */
+    public void solve( final DateTime currentTimstamp, final int modelTimestepInMinutes, List<double[]> rainArrays,
+            final double[] etpArray ) throws Exception {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(engines.length);
+        for( int m = 0; m < engines.length; m++ ) {
+            final int member = m;
+            final double[] memberRainArray = rainArrays.get(m);
+            tasks.add(new Callable<Object>(){
+                public Object call() throws Exception {
+                    conditions[member] = engines[member].solve(currentTimstamp, modelTimestepInMinutes, 1, conditions[member],
+                            memberRainArray, etpArray);
+                    return null;
+                }
+            });
+        }
+
+        boolean solved = false;
+        try {
+            if (executor == null) {
+                for( Callable<Object> task : tasks ) {
+                    task.call();
+                }
+            } else {
+                ThreadedRunnable.invokeAll(executor, tasks);
+            }
+            solved = true;
+        } finally {
+            if (!solved) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * @return the superficial discharge of the last timestep, one value per member for every basin id.
+     */
+    public HashMap<Integer, double[]> getDischarge() {
+        List<HashMap<Integer, double[]>> membersMaps = new ArrayList<HashMap<Integer, double[]>>(engines.length);
+        for( IAdigeEngine engine : engines ) {
+            membersMaps.add(engine.getDischarge());
+        }
+        return toColumns(membersMaps);
+    }
+
+    /**
+     * @return the sub-superficial discharge of the last timestep, one value per member for every basin id.
+     */
+    public HashMap<Integer, double[]> getSubDischarge() {
+        List<HashMap<Integer, double[]>> membersMaps = new ArrayList<HashMap<Integer, double[]>>(engines.length);
+        for( IAdigeEngine engine : engines ) {
+            membersMaps.add(engine.getSubDischarge());
+        }
+        return toColumns(membersMaps);
+    }
+
+    /**
+     * Collect the values of the members in one column per id.
+     *
+     * @param membersMaps the maps of the members, the first value of every id is used.
+     * @return the map of the columns, with novalues for the members that miss an id.
+     */
+    public static HashMap<Integer, double[]> toColumns( List<HashMap<Integer, double[]>> membersMaps ) {
+        int membersNum = membersMaps.size();
+        HashMap<Integer, double[]> columnsMap = new HashMap<Integer, double[]>();
+        for( int m = 0; m < membersNum; m++ ) {
+            HashMap<Integer, double[]> memberMap = membersMaps.get(m);
+            if (memberMap == null) {
+                continue;
+            }
+            Set<Entry<Integer, double[]>> entries = memberMap.entrySet();
+            for( Entry<Integer, double[]> entry : entries ) {
+                double[] column = columnsMap.get(entry.getKey());
+                if (column == null) {
+                    column = new double[membersNum];
+                    Arrays.fill(column, JGTConstants.doubleNovalue);
+                    columnsMap.put(entry.getKey(), column);
+                }
+                column[m] = entry.getValue()[0];
+            }
+        }
+        return columnsMap;
+    }
+
+    /**
+     * Put the mean of every column in a map.
+     *
+     * @param columnsMap the map of the member values, as created by {@link #toColumns(List)}.
+     * @param meanMap the map to fill.
+     */
+    public static void mean( HashMap<Integer, double[]> columnsMap, HashMap<Integer, double[]> meanMap ) {
+        meanMap.clear();
+        Set<Entry<Integer, double[]>> entries = columnsMap.entrySet();
+        for( Entry<Integer, double[]> entry : entries ) {
+            double sum = 0;
+            int count = 0;
+            for( double value : entry.getValue() ) {
+                if (!JGTConstants.isNovalue(value)) {
+                    sum += value;
+                    count++;
+                }
+            }
+            meanMap.put(entry.getKey(), new double[]{count > 0 ? sum / count : JGTConstants.doubleNovalue});
+        }
+    }
+
+    /**
+     * Release the members engines and the threads.
+     */
+    public void close() {
+        try {
+            for( IAdigeEngine engine : engines ) {
+                if (engine instanceof DuffyAdigeEngine) {
+                    ((DuffyAdigeEngine) engine).close();
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+}
@@ -40,11 +40,15 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_inHymod
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_inNetwork_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_inOfftakes_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_inOfftakesdata_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_inRainEnsemble_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_inRain_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_inTributary_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_inTributarydata_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_outDischarge_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_outEnsembleDischarge_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_outEnsembleSubdischarge_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_outSubdischarge_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_pMaxThreads_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_pPfafids_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_pRainduration_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSADIGE_pRainintensity_DESCRIPTION;
@@ -62,6 +66,7 @@ import java.util.Set;
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Execute;
+import oms3.annotations.Finalize;
 import oms3.annotations.In;
 import oms3.annotations.Keywords;
 import oms3.annotations.Label;
@@ -75,6 +80,7 @@ import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.FeatureIterator;
+import org.jgrasstools.gears.io.adige.AdigeBoundaryCondition;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.exceptions.ModelsRuntimeException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
@@ -133,6 +139,14 @@ public class OmsAdige extends JGTModel {
     @In
     public HashMap<Integer, double[]> inRain;
 
+    @Description(OMSADIGE_inRainEnsemble_DESCRIPTION)
+    @In
+    public List<HashMap<Integer, double[]>> inRainEnsemble;
+
+    @Description(OMSADIGE_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSADIGE_inHydrometers_DESCRIPTION)
     @In
     public SimpleFeatureCollection inHydrometers;
@@ -213,6 +227,14 @@ public class OmsAdige extends JGTModel {
     @Out
     public HashMap<Integer, double[]> outSubdischarge;
 
+    @Description(OMSADIGE_outEnsembleDischarge_DESCRIPTION)
+    @Out
+    public HashMap<Integer, double[]> outEnsembleDischarge;
+
+    @Description(OMSADIGE_outEnsembleSubdischarge_DESCRIPTION)
+    @Out
+    public HashMap<Integer, double[]> outEnsembleSubdischarge;
+
     // public String startDateArg = null;
     // public String endDateArg = null;
     // public double deltaTArg = null;
@@ -231,6 +253,11 @@ public class OmsAdige extends JGTModel {
     private double[] initialConditions = null;
 
     private IAdigeEngine adigeEngine = null;
+
+    /** the ensemble members, all working on the same hillslopes */
+    private AdigeEnsemble ensemble = null;
+    /** the duffy inputs of the ensemble members, which hold their states */
+    private DuffyInputs[] ensembleDuffyInputs = null;
     private List<PfafstetterNumber> netPfaffsList;
 
     // hydrometers
@@ -341,30 +368,15 @@ public class OmsAdige extends JGTModel {
                 }
                 pfaffsList = Arrays.asList(split);
             }
-            if (inDuffyInput != null) {
-                initialConditions = new double[hillsSlopeNum * 4];
-                adigeEngine = new DuffyAdigeEngine(orderedHillslopes, inDuffyInput, pm, doLog, initialConditions, basinid2Index,
-                        index2Basinid, pfaffsList, pfaff2Index, outDischarge, outSubdischarge, startTimestamp, endTimestamp,
-                        tTimestep);
-            } else if (inHymodInput != null) {
-                initialConditions = null;
-                adigeEngine = new HymodAdigeEngine(inHymodInput, orderedHillslopes, index2Basinid, outDischarge, outSubdischarge,
-                        pfaffsList, doLog, doLog, pm);
+            if (inRainEnsemble != null) {
+                createEnsembleEngines();
             } else {
-                throw new ModelsIllegalargumentException("No parameters for any model were defined. Check your syntax.", this, pm);
-            }
-
-            if (hydrometersHandler != null) {
-                adigeEngine.addDischargeContributor(hydrometersHandler);
-            }
-            if (damsHandler != null) {
-                adigeEngine.addDischargeContributor(damsHandler);
-            }
-            if (tributaryHandler != null) {
-                adigeEngine.addDischargeContributor(tributaryHandler);
-            }
-            if (offtakesHandler != null) {
-                adigeEngine.addDischargeContributor(offtakesHandler);
+                if (inDuffyInput != null) {
+                    initialConditions = new double[hillsSlopeNum * 4];
+                } else {
+                    initialConditions = null;
+                }
+                adigeEngine = createEngine(inDuffyInput, initialConditions, outDischarge, outSubdischarge);
             }
 
         } else {
@@ -383,6 +395,10 @@ public class OmsAdige extends JGTModel {
         if (inTributarydata != null) {
             tributaryHandler.setCurrentData(inTributarydata);
         }
+        if (ensemble != null) {
+            solveEnsemble();
+            return;
+        }
         // deal with rain
         if (pRainintensity != -1) {
             /*
@@ -417,6 +433,165 @@ public class OmsAdige extends JGTModel {
 
     }
 
+    @Finalize
+    public void close() {
+        try {
+            if (adigeEngine instanceof DuffyAdigeEngine) {
+                ((DuffyAdigeEngine) adigeEngine).close();
+            }
+        } finally {
+            if (ensemble != null) {
+                ensemble.close();
+            }
+        }
+    }
+
+    private IAdigeEngine createEngine( DuffyInputs duffyInput, double[] initialConditions,
+            HashMap<Integer, double[]> outDischarge, HashMap<Integer, double[]> outSubdischarge ) {
+        IAdigeEngine engine;
+        if (duffyInput != null) {
+            engine = new DuffyAdigeEngine(orderedHillslopes, duffyInput, pm, doLog, initialConditions, basinid2Index,
+                    index2Basinid, pfaffsList, pfaff2Index, outDischarge, outSubdischarge, startTimestamp, endTimestamp,
+                    tTimestep);
+        } else if (inHymodInput != null) {
+            engine = new HymodAdigeEngine(inHymodInput, orderedHillslopes, index2Basinid, outDischarge, outSubdischarge,
+                    pfaffsList, doLog, doLog, pm);
+        } else {
+            throw new ModelsIllegalargumentException("No parameters for any model were defined. Check your syntax.", this, pm);
+        }
+
+        if (hydrometersHandler != null) {
+            engine.addDischargeContributor(hydrometersHandler);
+        }
+        if (damsHandler != null) {
+            engine.addDischargeContributor(damsHandler);
+        }
+        if (tributaryHandler != null) {
+            engine.addDischargeContributor(tributaryHandler);
+        }
+        if (offtakesHandler != null) {
+            engine.addDischargeContributor(offtakesHandler);
+        }
+        return engine;
+    }
+
+    /**
+     * Create one engine per ensemble member.
+     * 
+     * <p>The hillslopes, the network indexes and the monitoring points are 
+     * built once and shared, every member has its own state and outputs.</p>
+     */
+    private void createEnsembleEngines() {
+        if (pRainintensity != -1) {
+            throw new ModelsIllegalargumentException("The ensemble mode needs the rainfall of every member, a constant rain intensity can't be used.",
+                    this, pm);
+        }
+        // the hillslopes cache some properties at first access, fill them before the concurrent runs
+        for( IHillSlope hillSlope : orderedHillslopes ) {
+            hillSlope.getHillslopeArea();
+            hillSlope.getUpstreamArea(null);
+            hillSlope.getLinkLength();
+            hillSlope.getLinkSlope();
+        }
+
+        int membersNum = inRainEnsemble.size();
+        IAdigeEngine[] ensembleEngines = new IAdigeEngine[membersNum];
+        double[][] ensembleConditions = new double[membersNum][];
+        if (inDuffyInput != null) {
+            ensembleDuffyInputs = new DuffyInputs[membersNum];
+        }
+        pm.beginTask("Creating the ensemble engines...", membersNum);
+        for( int m = 0; m < membersNum; m++ ) {
+            DuffyInputs memberDuffyInput = null;
+            if (inDuffyInput != null) {
+                // the duffy engine writes its states in the inputs
+                memberDuffyInput = inDuffyInput.copy();
+                // the members already run in parallel, the flat engine of each member stays serial
+                memberDuffyInput.pMaxThreads = 1;
+                ensembleDuffyInputs[m] = memberDuffyInput;
+                ensembleConditions[m] = new double[hillsSlopeNum * 4];
+            }
+            ensembleEngines[m] = createEngine(memberDuffyInput, ensembleConditions[m], new HashMap<Integer, double[]>(),
+                    new HashMap<Integer, double[]>());
+            pm.worked(1);
+        }
+        pm.done();
+        ensemble = new AdigeEnsemble(ensembleEngines, ensembleConditions, pMaxThreads);
+    }
+
+    /**
+     * Run all the ensemble members over the current timestep and collect their 
+     * discharges in one column per basin id.
+     * 
+     * <p>The discharges and, in the case of duffy, the states and final conditions 
+     * of the inputs are set to the mean of the members.</p>
+     */
+    private void solveEnsemble() throws Exception {
+        int membersNum = ensemble.getMembersNum();
+        if (inRainEnsemble.size() != membersNum) {
+            throw new ModelsIllegalargumentException("The number of ensemble members can't change during the simulation.", this,
+                    pm);
+        }
+
+        // the etp is the same for all the members
+        etpArray = new double[hillsSlopeNum];
+        if (inEtp != null) {
+            setDataArray(inEtp, etpArray);
+        }
+        List<double[]> rainArrays = new ArrayList<double[]>(membersNum);
+        for( int m = 0; m < membersNum; m++ ) {
+            double[] memberRainArray = new double[hillsSlopeNum];
+            setDataArray(inRainEnsemble.get(m), memberRainArray);
+            rainArrays.add(memberRainArray);
+        }
+
+        ensemble.solve(currentTimstamp, tTimestep, rainArrays, etpArray);
+
+        outEnsembleDischarge = ensemble.getDischarge();
+        outEnsembleSubdischarge = ensemble.getSubDischarge();
+        AdigeEnsemble.mean(outEnsembleDischarge, outDischarge);
+        AdigeEnsemble.mean(outEnsembleSubdischarge, outSubdischarge);
+        if (ensembleDuffyInputs != null) {
+            setDuffyMeans();
+        }
+    }
+
+    private void setDuffyMeans() {
+        List<HashMap<Integer, double[]>> s1Maps = new ArrayList<HashMap<Integer, double[]>>();
+        List<HashMap<Integer, double[]>> s2Maps = new ArrayList<HashMap<Integer, double[]>>();
+        for( DuffyInputs memberDuffyInput : ensembleDuffyInputs ) {
+            s1Maps.add(memberDuffyInput.outS1);
+            s2Maps.add(memberDuffyInput.outS2);
+        }
+        inDuffyInput.outS1 = new HashMap<Integer, double[]>();
+        inDuffyInput.outS2 = new HashMap<Integer, double[]>();
+        AdigeEnsemble.mean(AdigeEnsemble.toColumns(s1Maps), inDuffyInput.outS1);
+        AdigeEnsemble.mean(AdigeEnsemble.toColumns(s2Maps), inDuffyInput.outS2);
+
+        if (inDuffyInput.doBoundary) {
+            int membersNum = ensembleDuffyInputs.length;
+            HashMap<Integer, AdigeBoundaryCondition> meanConditions = new HashMap<Integer, AdigeBoundaryCondition>();
+            for( DuffyInputs memberDuffyInput : ensembleDuffyInputs ) {
+                Set<Entry<Integer, AdigeBoundaryCondition>> entries = memberDuffyInput.outFinalconditions.entrySet();
+                for( Entry<Integer, AdigeBoundaryCondition> entry : entries ) {
+                    AdigeBoundaryCondition memberCondition = entry.getValue();
+                    AdigeBoundaryCondition meanCondition = meanConditions.get(entry.getKey());
+                    if (meanCondition == null) {
+                        meanCondition = new AdigeBoundaryCondition();
+                        meanCondition.setBasinId(memberCondition.getBasinId());
+                        meanConditions.put(entry.getKey(), meanCondition);
+                    }
+                    meanCondition.setDischarge(meanCondition.getDischarge() + memberCondition.getDischarge() / membersNum);
+                    meanCondition.setDischargeSub(meanCondition.getDischargeSub() + memberCondition.getDischargeSub()
+                            / membersNum);
+                    meanCondition.setS1(meanCondition.getS1() + memberCondition.getS1() / membersNum);
+                    meanCondition.setS2(meanCondition.getS2() + memberCondition.getS2() / membersNum);
+                }
+            }
+            inDuffyInput.outFinalconditions = meanConditions;
+        }
+    }
+
     private void linkBasinWithNetwork() throws Exception {
         FeatureExtender fExt = new FeatureExtender(inNetwork.getSchema(), new String[]{NetworkChannel.NETNUMNAME},
                 new Class[]{Integer.class});
@@ -44,6 +44,8 @@ public class DuffyAdigeEngine implements IAdigeEngine {
 
     private DuffyModel duffyEvaluator;
     private RungeKuttaFelberg rainRunoffRaining;
+    private FlatDuffyModel flatDuffyEvaluator;
+    private FlatRungeKuttaFelberg flatRainRunoffRaining;
     private final DuffyInputs inDuffyInput;
     private final HashMap<Integer, Integer> index2Basinid;
     private final HashMap<String, Integer> pfaff2Index;
@@ -96,10 +98,14 @@ public class DuffyAdigeEngine implements IAdigeEngine {
         inDuffyInput.outS1 = new HashMap<Integer, double[]>();
         inDuffyInput.outS2 = new HashMap<Integer, double[]>();
 
-        duffyEvaluator = new DuffyModel(orderedHillslopes, inDuffyInput.pRouting, pm, doLog);
-
         hillsSlopeNum = orderedHillslopes.size();
 
+        if (inDuffyInput.doFlatengine) {
+            flatDuffyEvaluator = new FlatDuffyModel(orderedHillslopes, inDuffyInput.pRouting, pm, inDuffyInput.pMaxThreads);
+        } else {
+            duffyEvaluator = new DuffyModel(orderedHillslopes, inDuffyInput.pRouting, pm, doLog);
+        }
+
         createDistributors();
 
         /*
@@ -149,23 +155,43 @@ public class DuffyAdigeEngine implements IAdigeEngine {
             }
         }
 
-        rainRunoffRaining = new RungeKuttaFelberg(duffyEvaluator, 1e-2, 10 / 60., pm, doLog);
+        if (inDuffyInput.doFlatengine) {
+            flatRainRunoffRaining = new FlatRungeKuttaFelberg(flatDuffyEvaluator, initialConditions.length, 1e-2, 10 / 60., pm,
+                    doLog);
+        } else {
+            rainRunoffRaining = new RungeKuttaFelberg(duffyEvaluator, 1e-2, 10 / 60., pm, doLog);
+        }
 
     }
 
     public void addDischargeContributor( IDischargeContributor dischargeContributor ) {
-        duffyEvaluator.addDischargeContributor(dischargeContributor);
+        if (flatDuffyEvaluator != null) {
+            flatDuffyEvaluator.addDischargeContributor(dischargeContributor);
+        } else {
+            duffyEvaluator.addDischargeContributor(dischargeContributor);
+        }
     }
 
     public void addDischargeDistributor( HashMap<Integer, ADischargeDistributor> hillslopeId2DischargeDistributor ) {
-        duffyEvaluator.addDischargeDistributor(hillslopeId2DischargeDistributor);
+        if (flatDuffyEvaluator != null) {
+            flatDuffyEvaluator.addDischargeDistributor(hillslopeId2DischargeDistributor);
+        } else {
+            duffyEvaluator.addDischargeDistributor(hillslopeId2DischargeDistributor);
+        }
     }
 
     public double[] solve( DateTime currentTimstamp, int modelTimestepInMinutes, double internalTimestepInMinutes,
             double[] previousSolution, double[] rainArray, double[] etpArray ) throws IOException {
-        rainRunoffRaining.solve(currentTimstamp, modelTimestepInMinutes, internalTimestepInMinutes, previousSolution, rainArray,
-                etpArray);
-        double[] finalCond = rainRunoffRaining.getFinalCond();
+        double[] finalCond;
+        if (flatRainRunoffRaining != null) {
+            flatRainRunoffRaining.solve(currentTimstamp, modelTimestepInMinutes, internalTimestepInMinutes, previousSolution,
+                    rainArray, etpArray);
+            finalCond = flatRainRunoffRaining.getFinalCond();
+        } else {
+            rainRunoffRaining.solve(currentTimstamp, modelTimestepInMinutes, internalTimestepInMinutes, previousSolution,
+                    rainArray, etpArray);
+            finalCond = rainRunoffRaining.getFinalCond();
+        }
 
         if (inDuffyInput.doBoundary)
             inDuffyInput.outFinalconditions = new HashMap<Integer, AdigeBoundaryCondition>();
@@ -208,6 +234,15 @@ public class DuffyAdigeEngine implements IAdigeEngine {
         return outSubDischarge;
     }
 
+    /**
+     * Release the resources held by the engine, i.e. the threads of the flat model.
+     */
+    public void close() {
+        if (flatDuffyEvaluator != null) {
+            flatDuffyEvaluator.close();
+        }
+    }
+
     private void createDistributors() {
         HashMap<Integer, ADischargeDistributor> hillslopeId2DischargeDistributor = new HashMap<Integer, ADischargeDistributor>();
         for( IHillSlope hillSlope : orderedHillslopes ) {
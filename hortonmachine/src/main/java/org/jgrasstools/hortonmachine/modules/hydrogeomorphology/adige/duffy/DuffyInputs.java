@@ -115,6 +115,14 @@ public class DuffyInputs extends JGTModel {
     @In@Out
     public boolean doBoundary = false;
 
+    @Description("Switch to use the flattened network engine, that integrates without allocations and can evaluate the links in parallel.")
+    @In@Out
+    public boolean doFlatengine = false;
+
+    @Description("The number of threads to use to evaluate the links in the flattened network engine.")
+    @In@Out
+    public int pMaxThreads = 1;
+
     @Description("The initial conditions of the model.")
     @In@Out
     public HashMap<Integer, AdigeBoundaryCondition> inInitialconditions = null;
@@ -151,4 +159,44 @@ public class DuffyInputs extends JGTModel {
     public void process() throws Exception {
     }
 
+    /**
+     * Create a copy of the inputs, without the outputs.
+     * 
+     * <p>Used to run more engines with the same parameters, since the engines 
+     * write their outputs in the inputs object.</p>
+     * 
+     * @return the new inputs.
+     */
+    public DuffyInputs copy() {
+        DuffyInputs copy = new DuffyInputs();
+        copy.fAvg_sub = fAvg_sub;
+        copy.fVar_sub = fVar_sub;
+        copy.fAvg_sup_10 = fAvg_sup_10;
+        copy.fVar_sup_10 = fVar_sup_10;
+        copy.fAvg_sup_30 = fAvg_sup_30;
+        copy.fVar_sup_30 = fVar_sup_30;
+        copy.fAvg_sup_60 = fAvg_sup_60;
+        copy.fVar_sup_60 = fVar_sup_60;
+        copy.pV_sup = pV_sup;
+        copy.pV_sub = pV_sub;
+        copy.pKs = pKs;
+        copy.pMstexp = pMstexp;
+        copy.pDepthmnsat = pDepthmnsat;
+        copy.pSpecyield = pSpecyield;
+        copy.pPorosity = pPorosity;
+        copy.pEtrate = pEtrate;
+        copy.pSatconst = pSatconst;
+        copy.pRouting = pRouting;
+        copy.doBoundary = doBoundary;
+        copy.doFlatengine = doFlatengine;
+        copy.pMaxThreads = pMaxThreads;
+        copy.inInitialconditions = inInitialconditions;
+        copy.pDischargePerUnitArea = pDischargePerUnitArea;
+        copy.pStartSuperficialDischargeFraction = pStartSuperficialDischargeFraction;
+        copy.pMaxSatVolumeS1 = pMaxSatVolumeS1;
+        copy.pMaxSatVolumeS2 = pMaxSatVolumeS2;
+        copy.pm = pm;
+        return copy;
+    }
+
 }
@@ -0,0 +1,461 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.duffy;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.core.HillSlopeDuffy;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.core.HillSlopeDuffy.Parameters;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.core.IDischargeContributor;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.core.IHillSlope;
+
+/**
+ * The duffy model on a flattened network.
+ *
+ * <p>Same equations of the {@link DuffyModel}, but the hillslopes are read once
+ * into arrays indexed like the state vector: parameters, routing constants,
+ * discharge distributors and the upstream links (as index ranges into a single
+ * array). The evaluation writes into a buffer supplied by the caller.</p>
+ *
+ * <p>The state is first brought to its minimum values for all the links, after
+ * which the derivatives of a link only depend on the state, so that the links
+ * can be evaluated in parallel chunks.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class FlatDuffyModel {
+
+    private static final double THRESHOLD_AREA = 500000; // 0.1Km2
+    private static final double MSTMAX = 1;
+
+    private final int linksNum;
+    private final int routingType;
+    private final IJGTProgressMonitor pm;
+
+    private final int[] hillslopeIds;
+    private final String[] pfafstetterNumbers;
+    private final double[] areas;
+    private final double[] minSupDischarges;
+    private final double[] minSubDischarges;
+    private final double[] s1Residuals;
+    private final double[] s2Residuals;
+    private final double[] s2Params;
+    private final double[] s2Maxs;
+    private final double[] ksValues;
+    private final double[] mstExps;
+    private final double[] etRates;
+    private final double[] recParams;
+
+    /** the part of the routing coefficient that doesn't depend on the discharge */
+    private final double[] routingCoefficients;
+    private final double[] linkWidths;
+
+    /** the upstream links of link i are upstreamIndexes[upstreamStarts[i]] to upstreamIndexes[upstreamStarts[i+1]-1] */
+    private final int[] upstreamStarts;
+    private final int[] upstreamIndexes;
+
+    private final ADischargeDistributor[] dischargeDistributors;
+    private List<IDischargeContributor> dischargeContributorList = new ArrayList<IDischargeContributor>();
+
+    private final int threads;
+    private final int[] chunkStarts;
+    private ExecutorService executor;
+
+    /**
+     * Flat duffy model function.
+     *
+     * @param orderedHillslopes the {@link HillSlopeDuffy hillslopes}, outlet first.
+     * @param routingType the type of routing to be used.
+     * @param pm the progress monitor.
+     * @param threads the number of threads to use for the evaluation of the links.
+     */
+    public FlatDuffyModel( List<IHillSlope> orderedHillslopes, int routingType, IJGTProgressMonitor pm, int threads ) {
+        this.routingType = routingType;
+        this.pm = pm;
+        linksNum = orderedHillslopes.size();
+
+        hillslopeIds = new int[linksNum];
+        pfafstetterNumbers = new String[linksNum];
+        areas = new double[linksNum];
+        minSupDischarges = new double[linksNum];
+        minSubDischarges = new double[linksNum];
+        s1Residuals = new double[linksNum];
+        s2Residuals = new double[linksNum];
+        s2Params = new double[linksNum];
+        s2Maxs = new double[linksNum];
+        ksValues = new double[linksNum];
+        mstExps = new double[linksNum];
+        etRates = new double[linksNum];
+        recParams = new double[linksNum];
+        routingCoefficients = new double[linksNum];
+        linkWidths = new double[linksNum];
+        dischargeDistributors = new ADischargeDistributor[linksNum];
+
+        HashMap<String, Integer> pfaff2Index = new HashMap<String, Integer>();
+        for( int i = 0; i < linksNum; i++ ) {
+            HillSlopeDuffy hillslope = (HillSlopeDuffy) orderedHillslopes.get(i);
+            Parameters parameters = hillslope.getParameters();
+            double upstreamArea = hillslope.getUpstreamArea(null);
+
+            hillslopeIds[i] = hillslope.getHillslopeId();
+            pfafstetterNumbers[i] = hillslope.getPfafstetterNumber().toString();
+            pfaff2Index.put(pfafstetterNumbers[i], i);
+            areas[i] = hillslope.getHillslopeArea();
+            minSupDischarges[i] = parameters.getqqsupmin() * upstreamArea / 1E6;
+            minSubDischarges[i] = parameters.getqqsubmin() * upstreamArea / 1E6;
+            s1Residuals[i] = parameters.getS1residual();
+            s2Residuals[i] = parameters.getS2residual();
+            s2Params[i] = parameters.getS2Param();
+            s2Maxs[i] = parameters.getS2max();
+            ksValues[i] = parameters.getKs();
+            mstExps[i] = parameters.getMstExp();
+            Double eTrate = parameters.getETrate();
+            etRates[i] = eTrate != null ? eTrate : Double.NaN;
+            recParams[i] = parameters.getRecParam();
+
+            // same link properties used by AdigeUtilities#doRouting
+            double linkWidth = hillslope.getLinkWidth(8.66, 0.6, 0.0);
+            double linkLength = hillslope.getLinkLength();
+            double linkSlope = hillslope.getLinkSlope();
+            double chezLawExpon = -1. / 3.;
+            double chezLawCoeff = 200. / Math.pow(0.000357911, chezLawExpon);
+            double linkChezy = hillslope.getLinkChezi(chezLawCoeff, chezLawExpon);
+            linkWidths[i] = linkWidth;
+            switch( routingType ) {
+            case DuffyModel.ROUTING_CHEZY_NONEXPL:
+                routingCoefficients[i] = 8.796 * Math.pow(linkWidth, -1 / 3.) * Math.pow(linkLength, -1)
+                        * Math.pow(linkSlope, 2 / 9.);
+                break;
+            case DuffyModel.ROUTING_CHEZY:
+                routingCoefficients[i] = 3 / 2. * Math.pow(linkChezy, 2. / 3.) * Math.pow(linkWidth, -1. / 3.)
+                        * Math.pow(linkLength, -1) * Math.pow(linkSlope, 1. / 3.);
+                break;
+            case DuffyModel.ROUTING_MANNING:
+                routingCoefficients[i] = Math.pow(linkSlope, 1 / 2.) * Math.pow(linkLength, -1);
+                break;
+            default:
+                routingCoefficients[i] = 0;
+                break;
+            }
+        }
+
+        upstreamStarts = new int[linksNum + 1];
+        List<Integer> upstreamList = new ArrayList<Integer>();
+        for( int i = 0; i < linksNum; i++ ) {
+            upstreamStarts[i] = upstreamList.size();
+            List<IHillSlope> connectedUpstreamHillSlopes = orderedHillslopes.get(i).getConnectedUpstreamElements();
+            if (connectedUpstreamHillSlopes != null) {
+                for( IHillSlope hillSlope : connectedUpstreamHillSlopes ) {
+                    Integer index = pfaff2Index.get(hillSlope.getPfafstetterNumber().toString());
+                    if (index != null) {
+                        upstreamList.add(index);
+                    }
+                }
+            }
+        }
+        upstreamStarts[linksNum] = upstreamList.size();
+        upstreamIndexes = new int[upstreamList.size()];
+        for( int i = 0; i < upstreamIndexes.length; i++ ) {
+            upstreamIndexes[i] = upstreamList.get(i);
+        }
+
+        this.threads = Math.max(1, Math.min(threads, linksNum));
+        chunkStarts = new int[this.threads + 1];
+        for( int c = 0; c <= this.threads; c++ ) {
+            chunkStarts[c] = c * linksNum / this.threads;
+        }
+    }
+
+    /**
+     * Duffy function evaluation.
+     *
+     * <p>The input structure is the one of {@link DuffyModel#eval(double, double[], double[], double[], boolean)},
+     * the values below the minimums are set to the minimums in place.</p>
+     *
+     * @param currentTimeInMinutes the time.
+     * @param input the current state.
+     * @param rainArray the array of precipitation (in mm/h) for each hillslope.
+     * @param etpArray the array of evapotranspiration for each hillslope or <code>null</code>.
+     * @param isAtFinalSubtimestep if <code>true</code>, the fluxes are logged.
+     * @param output the array into which the derivatives are written.
+     */
+    public void eval( final double currentTimeInMinutes, final double[] input, final double[] rainArray, final double[] etpArray,
+            final boolean isAtFinalSubtimestep, final double[] output ) {
+        for( int i = 0; i < linksNum; i++ ) {
+            if (input[i] < minSupDischarges[i]) {
+                input[i] = minSupDischarges[i];
+            }
+            if (input[i + linksNum] < minSubDischarges[i]) {
+                input[i + linksNum] = minSubDischarges[i];
+            }
+            if (input[i + 2 * linksNum] < s1Residuals[i]) {
+                input[i + 2 * linksNum] = s1Residuals[i];
+            }
+            if (input[i + 3 * linksNum] < s2Residuals[i]) {
+                input[i + 3 * linksNum] = s2Residuals[i];
+            }
+        }
+
+        if (threads == 1) {
+            evalLinks(0, linksNum, currentTimeInMinutes, input, rainArray, etpArray, isAtFinalSubtimestep, output);
+            return;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(threads);
+        for( int c = 0; c < threads; c++ ) {
+            final int from = chunkStarts[c];
+            final int to = chunkStarts[c + 1];
+            tasks.add(new Callable<Object>(){
+                public Object call() throws Exception {
+                    evalLinks(from, to, currentTimeInMinutes, input, rainArray, etpArray, isAtFinalSubtimestep, output);
+                    return null;
+                }
+            });
+        }
+        try {
+            for( Future<Object> future : getExecutor().invokeAll(tasks) ) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ModelsIllegalargumentException(cause.getLocalizedMessage(), this, pm);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModelsIllegalargumentException("The evaluation of the links has been interrupted.", this, pm);
+        }
+    }
+
+    private void evalLinks( int from, int to, double currentTimeInMinutes, double[] input, double[] rainArray,
+            double[] etpArray, boolean isAtFinalSubtimestep, double[] output ) {
+        long currentTimeInMillis = (long) (currentTimeInMinutes * 60.0 * 1000.0);
+        for( int i = to - 1; i >= from; i-- ) {
+            double prec_mphr = rainArray[i] / 1000.0; // input precipitation is in mm/h
+            double area_m2 = areas[i];
+            double ks = ksValues[i];
+            double s1 = input[i + 2 * linksNum];
+            double s2 = input[i + 3 * linksNum];
+
+            /* HILLSLOPE FLUX CONDITIONS */
+            double satsurf = s2Params[i] * s2; // dimless
+            double mst = s1 / (s2Maxs[i] - s2); // dimless
+            if (Double.isInfinite(mst)) {
+                mst = MSTMAX;
+            }
+
+            /* HILLSLOPE S1-SURFACE FLUX VALUES */
+            double inf;
+            double qdh;
+            if (prec_mphr < ks) {
+                inf = (1.0 - satsurf) * area_m2 * prec_mphr; // m3phr
+                qdh = 0.0; // m3phr
+            } else {
+                inf = (1.0 - satsurf) * area_m2 * ks; // m3phr
+                qdh = (1.0 - satsurf) * area_m2 * (prec_mphr - ks); // m3phr
+            }
+
+            double qe1;
+            if (etpArray != null) {
+                qe1 = etpArray[i];
+            } else if (s1 > s1Residuals[i]) {
+                qe1 = etRates[i] * area_m2 * (1.0 - satsurf) * mst; // m3phr
+            } else {
+                qe1 = 0.0;
+            }
+
+            /* HILLSLOPE S1-S2 FLUX VALUE */
+            double re = ks * area_m2 * (1.0 - satsurf) * (Math.pow(mst, mstExps[i])); // m3phr
+
+            /* HILLSLOPE S2-SURFACE FLUX VALUES */
+            double qds = satsurf * area_m2 * prec_mphr; // m3phr
+            double qe2;
+            if (etpArray != null) {
+                qe2 = etpArray[i];
+            } else {
+                qe2 = etRates[i] * area_m2 * satsurf; // m3phr,
+            }
+            double qs = recParams[i] * s2; // m3phr
+
+            /* HILLSLOPE DIRECT RUNOFF (TOTAL) FLUXES */
+            double qd = qdh + qds; // m3phr
+
+            if (Double.isNaN(qs)) {
+                throw new ModelsIllegalargumentException("Subsuperficial discharge for the hillslope " + hillslopeIds[i] + " "
+                        + i + " is NaN", this.getClass().getSimpleName(), pm);
+            } else if (Double.isNaN(qd)) {
+                throw new ModelsIllegalargumentException("Timestep " + currentTimeInMinutes
+                        + "Superficial discharge for the hillslope " + hillslopeIds[i] + " " + i + " is NaN"
+                        + "\nValue of qdh " + qdh + "\nValue of qds " + qds + "\nPrecipitation " + prec_mphr + "\nSatsurf "
+                        + satsurf, this.getClass().getSimpleName(), pm);
+            }
+
+            if (isAtFinalSubtimestep) {
+                pm.message("timeinmin = " + currentTimeInMinutes + "\tbacino: " + i + "\tqdh = " + qdh + "\tqds = " + qds
+                        + "\tre = " + re + "\tqs = " + qs + "\tmst = " + mst + "\tinf = " + inf + "\tqe1 = " + qe1 + "\tqe2 = "
+                        + qe2);
+            }
+
+            /*
+             * if the area is > 0.1 km2, we consider the delay effect
+             * of the hillslope.
+             */
+            if (area_m2 > THRESHOLD_AREA) {
+                ADischargeDistributor dischargeDistributor = dischargeDistributors[i];
+                qs = dischargeDistributor.calculateSubsuperficialDischarge(qs, satsurf, currentTimeInMillis);
+                qd = dischargeDistributor.calculateSuperficialDischarge(qd, satsurf, currentTimeInMillis);
+            }
+
+            /* LINK FLUX ( Q and Q SUBSURFACE, BASE FLOW ) */
+            double Q_trib = 0.0D;
+            double Qs_trib = 0.0D;
+            for( int u = upstreamStarts[i]; u < upstreamStarts[i + 1]; u++ ) {
+                int index = upstreamIndexes[u];
+                boolean doCalculate = true;
+                for( IDischargeContributor dContributor : dischargeContributorList ) {
+                    Double contributedDischarge;
+                    // contributors keep the last queried pfafstetter number
+                    synchronized (dContributor) {
+                        contributedDischarge = dContributor.getDischarge(pfafstetterNumbers[index]);
+                        contributedDischarge = dContributor.mergeWithDischarge(contributedDischarge, input[index]);
+                    }
+                    if (!isNovalue(contributedDischarge)) {
+                        double dischargeRatio = 0.3;
+                        Q_trib = dischargeRatio * contributedDischarge; // units m^3/s
+                        Qs_trib = contributedDischarge - Q_trib; // units m^3/s
+                        doCalculate = false;
+                    }
+                }
+                if (doCalculate) {
+                    Q_trib += input[index]; // units m^3/s
+                    Qs_trib += input[index + linksNum]; // units m^3/s
+                }
+            }
+
+            double K_Q;
+            if (input[i] == 0.0D) {
+                K_Q = 1e-10;
+            } else {
+                K_Q = routing(i, input[i]);
+            }
+
+            if (Double.isNaN(qs) || Double.isNaN(qd)) {
+                pm.errorMessage("Problems in basin: " + hillslopeIds[i] + " " + i); //$NON-NLS-1$ //$NON-NLS-2$
+                if (area_m2 < THRESHOLD_AREA) {
+                    qd = 0.0;
+                    qs = 0.0;
+                    inf = 0.0;
+                    qe1 = 0.0;
+                    qe2 = 0.0;
+                    re = 0.0;
+                }
+            }
+
+            /* OUTPUT */
+            if (area_m2 > THRESHOLD_AREA) {
+                // LINK dQ/dt; big () term is m^3/s, 60*K_Q is 1/min
+                output[i] = 60.0D * K_Q * ((1.0D / 3600.) * qd + Q_trib - input[i]);
+                // LINK dQs/dt -> (m^3/s)/min
+                output[i + linksNum] = 60.0 * K_Q * (Qs_trib - input[i + linksNum]) + 60.0 * K_Q * (1.0 / 3600.) * (qs);
+                // HILLSLOPE dS1/dt -> m3/min
+                output[i + (2 * linksNum)] = (1.0 / 60.0) * (inf - re - qe1);
+                // HILLSLOPE dS2/dt -> m3/min
+                output[i + (3 * linksNum)] = (1.0 / 60.0) * (re - qs - qe2);
+            } else {
+                output[i] = 60.0D * K_Q * ((1.0D / 3600.) * qd + Q_trib - input[i]);
+                output[i + linksNum] = 60.0D * K_Q * ((1.0D / 3600.) * (qs) + Qs_trib - input[i + linksNum]);
+                output[i + (2 * linksNum)] = (1.0D / 60.0) * (inf - re - qe1);
+                if (output[i + (2 * linksNum)] != output[i + (2 * linksNum)] || output[i + (2 * linksNum)] == 0.0) {
+                    throw new ModelsIllegalargumentException("Invalid value of S1, please check the parameters."
+                            + output[i + (2 * linksNum)], this, pm);
+                }
+                output[i + (3 * linksNum)] = (1.0D / 60.0) * (re - qs - qe2);
+            }
+            if (output[i + (3 * linksNum)] != output[i + (3 * linksNum)] || output[i + (2 * linksNum)] == 0.) {
+                throw new ModelsIllegalargumentException("Invalid value of S2, please check the parameters.", this.getClass()
+                        .getSimpleName(), pm);
+            }
+        }
+    }
+
+    /**
+     * The routing coefficient of a link, as in AdigeUtilities#doRouting.
+     */
+    private double routing( int i, double discharge ) {
+        switch( routingType ) {
+        case DuffyModel.ROUTING_CHEZY_NONEXPL:
+        case DuffyModel.ROUTING_CHEZY:
+            return routingCoefficients[i] * Math.pow(discharge, 1. / 3.);
+        case DuffyModel.ROUTING_MANNING:
+            double flowdepth = (1. / 3.) * Math.pow(discharge, 1. / 3.);
+            double hydrad = (flowdepth * linkWidths[i]) / (2.f * flowdepth + linkWidths[i]);
+            return Math.pow(hydrad, 2. / 3.) * routingCoefficients[i];
+        default:
+            return 0;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+                public Thread newThread( Runnable runnable ) {
+                    Thread thread = new Thread(runnable, "FlatDuffyModel");
+                    // do not keep the jvm alive if the model is not closed
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Release the evaluation threads.
+     * 
+     * <p>The model can still be used afterwards, the threads are then created again.</p>
+     */
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public void addDischargeContributor( IDischargeContributor dischargeContributor ) {
+        dischargeContributorList.add(dischargeContributor);
+    }
+
+    public void addDischargeDistributor( HashMap<Integer, ADischargeDistributor> hillslopeId2DischargeDistributor ) {
+        for( int i = 0; i < linksNum; i++ ) {
+            dischargeDistributors[i] = hillslopeId2DischargeDistributor.get(hillslopeIds[i]);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.duffy;
+
+import java.io.IOException;
+
+import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.math.NumericsUtilities;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.OmsAdige;
+import org.joda.time.DateTime;
+
+/**
+ * The {@link RungeKuttaFelberg} algorithm for the {@link FlatDuffyModel}.
+ *
+ * <p>The stages, the trial solutions and the accepted solutions live in buffers
+ * that are created once for the size of the state, so the integration doesn't
+ * allocate arrays in its steps. The accepted solutions alternate between two
+ * buffers, the one that is not holding the current state is overwritten.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class FlatRungeKuttaFelberg {
+
+    private final FlatDuffyModel duffy;
+    private final double epsilon;
+    private double basicTimeStepInMinutes = 10. / 60.;
+    private final double[][] b = {{0.}, {1. / 5.}, {3. / 40., 9. / 40.}, {3. / 10., -9. / 10., 6. / 5.},
+            {-11. / 54., 5. / 2., -70. / 27., 35. / 27.},
+            {1631. / 55296., 175. / 512., 575. / 13824., 44275. / 110592., 253. / 4096.}};
+    private final double[] c = {37. / 378., 0., 250. / 621., 125. / 594., 0., 512. / 1771.};
+    private final double[] cStar = {2825. / 27648., 0., 18575. / 48384., 13525. / 55296., 277. / 14336., 1. / 4.};
+
+    private final boolean doLog;
+    private final IJGTProgressMonitor outputStream;
+    private boolean isAtFinalSubtimestep = true;
+
+    private final double[] carrier;
+    private final double[] k0;
+    private final double[] k1;
+    private final double[] k2;
+    private final double[] k3;
+    private final double[] k4;
+    private final double[] k5;
+    private final double[] newY;
+    private final double[] newYstar;
+    private final double[] solution1;
+    private final double[] solution2;
+    private final double[] finalCond;
+
+    /** the accepted solution of the last finalized step */
+    private double[] solution;
+    /** the timestep used by the last finalized step */
+    private double newTimeStepInMinutes;
+
+    /**
+     * Creates new RKF.
+     *
+     * @param fu the differential equation to solve.
+     * @param stateSize the size of the state to integrate.
+     * @param eps the value error allowed by the step forward algorithm.
+     * @param basTs the step size.
+     * @param out the progress monitor.
+     * @param doLog if <code>true</code>, the outlet discharge is logged.
+     */
+    public FlatRungeKuttaFelberg( FlatDuffyModel fu, int stateSize, double eps, double basTs, IJGTProgressMonitor out,
+            boolean doLog ) {
+        duffy = fu;
+        epsilon = eps;
+        basicTimeStepInMinutes = basTs;
+        this.outputStream = out;
+        this.doLog = doLog;
+
+        carrier = new double[stateSize];
+        k0 = new double[stateSize];
+        k1 = new double[stateSize];
+        k2 = new double[stateSize];
+        k3 = new double[stateSize];
+        k4 = new double[stateSize];
+        k5 = new double[stateSize];
+        newY = new double[stateSize];
+        newYstar = new double[stateSize];
+        solution1 = new double[stateSize];
+        solution2 = new double[stateSize];
+        finalCond = new double[stateSize];
+    }
+
+    /**
+     * Calculates the state at the next time step, see {@link RungeKuttaFelberg}.
+     *
+     * <p>The accepted solution is copied in the solution buffer that is not
+     * the initial conditions.</p>
+     */
+    private void step( double currentTimeInMinutes, double[] initialConditions, double timeStepInMinutes, boolean finalize,
+            double[] rainArray, double[] etpArray ) {
+        int n = initialConditions.length;
+
+        duffy.eval(currentTimeInMinutes, initialConditions, rainArray, etpArray, false, k0);
+        for( int i = 0; i < n; i++ )
+            carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes * b[1][0] * k0[i]);
+
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false, k1);
+        for( int i = 0; i < n; i++ )
+            carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes * (b[2][0] * k0[i] + b[2][1] * k1[i]));
+
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false, k2);
+        for( int i = 0; i < n; i++ )
+            carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes
+                    * (b[3][0] * k0[i] + b[3][1] * k1[i] + b[3][2] * k2[i]));
+
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false, k3);
+        for( int i = 0; i < n; i++ )
+            carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes
+                    * (b[4][0] * k0[i] + b[4][1] * k1[i] + b[4][2] * k2[i] + b[4][3] * k3[i]));
+
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false, k4);
+        for( int i = 0; i < n; i++ )
+            carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes
+                    * (b[5][0] * k0[i] + b[5][1] * k1[i] + b[5][2] * k2[i] + b[5][3] * k3[i] + b[5][4] * k4[i]));
+
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, isAtFinalSubtimestep, k5);
+
+        double delta = 0;
+        for( int i = 0; i < n; i++ ) {
+            newY[i] = initialConditions[i] + timeStepInMinutes
+                    * (c[0] * k0[i] + c[1] * k1[i] + c[2] * k2[i] + c[3] * k3[i] + c[4] * k4[i] + c[5] * k5[i]);
+            newY[i] = Math.max(0, newY[i]);
+            if (Double.isInfinite(newY[i]) || newY[i] != newY[i]) {
+                throw new ModelsIllegalargumentException("An error occurred during the integration procedure.", this);
+            }
+            newYstar[i] = initialConditions[i]
+                    + timeStepInMinutes
+                    * (cStar[0] * k0[i] + cStar[1] * k1[i] + cStar[2] * k2[i] + cStar[3] * k3[i] + cStar[4] * k4[i] + cStar[5]
+                            * k5[i]);
+            newYstar[i] = Math.max(0, newYstar[i]);
+            if (Double.isInfinite(newYstar[i]) || newYstar[i] != newYstar[i]) {
+                throw new ModelsIllegalargumentException("An error occurred during the integration procedure.", this);
+            }
+            if ((newY[i] + newYstar[i]) > 0)
+                delta = Math.max(delta, Math.abs(2 * (newY[i] - newYstar[i]) / (newY[i] + newYstar[i])));
+        }
+
+        if (finalize) {
+            newTimeStepInMinutes = timeStepInMinutes;
+            solution = initialConditions == solution1 ? solution2 : solution1;
+            System.arraycopy(newY, 0, solution, 0, n);
+        } else {
+            double newTimeStep;
+            if (delta != 0.0) {
+                double factor = epsilon / delta;
+                if (factor >= 1)
+                    newTimeStep = timeStepInMinutes * Math.pow(factor, 0.15);
+                else
+                    newTimeStep = timeStepInMinutes * Math.pow(factor, 0.25);
+            } else {
+                newTimeStep = timeStepInMinutes * Math.pow(1e8, 0.15);
+            }
+            step(currentTimeInMinutes, initialConditions, newTimeStep, true, rainArray, etpArray);
+        }
+    }
+
+    /**
+     * Integrates the model over a model timestep, see {@link RungeKuttaFelberg#solve(DateTime, int, double, double[], double[], double[])}.
+     *
+     * @param currentTimstamp the start of the interval.
+     * @param modelTimestepInMinutes the length of the interval.
+     * @param internalTimestepInMinutes the internal subtimestep.
+     * @param initialConditions the state at the start of the interval.
+     * @param rainArray the rain per basin.
+     * @param etpArray the etp per basin or <code>null</code>.
+     * @throws IOException
+     */
+    @SuppressWarnings("nls")
+    public void solve( DateTime currentTimstamp, int modelTimestepInMinutes, double internalTimestepInMinutes,
+            double[] initialConditions, double[] rainArray, double[] etpArray ) throws IOException {
+        isAtFinalSubtimestep = false;
+
+        double intervalStartTimeInMinutes = currentTimstamp.getMillis() / 1000d / 60d;
+        double intervalEndTimeInMinutes = intervalStartTimeInMinutes + modelTimestepInMinutes;
+
+        // the running time inside the interval
+        double currentTimeInMinutes = intervalStartTimeInMinutes;
+        // the end time inside the interval
+        double targetTimeInMinutes = intervalStartTimeInMinutes;
+
+        while( currentTimeInMinutes < intervalEndTimeInMinutes ) {
+            targetTimeInMinutes = currentTimeInMinutes + internalTimestepInMinutes;
+            while( currentTimeInMinutes < targetTimeInMinutes ) {
+                step(currentTimeInMinutes, initialConditions, basicTimeStepInMinutes, false, rainArray, etpArray);
+                if (currentTimeInMinutes + newTimeStepInMinutes > targetTimeInMinutes) {
+                    break;
+                }
+                basicTimeStepInMinutes = newTimeStepInMinutes;
+                currentTimeInMinutes += basicTimeStepInMinutes;
+                newTimeStepInMinutes = currentTimeInMinutes;
+                initialConditions = solution;
+                checkSolution(initialConditions);
+            }
+
+            if (Math.abs(targetTimeInMinutes - intervalEndTimeInMinutes) < .0000001) {
+                break;
+            }
+
+            step(currentTimeInMinutes, initialConditions, targetTimeInMinutes - currentTimeInMinutes, true, rainArray, etpArray);
+
+            if (currentTimeInMinutes + newTimeStepInMinutes >= intervalEndTimeInMinutes) {
+                break;
+            }
+
+            if (initialConditions[0] < 1e-3) {
+                outputStream.message("Discharge in outlet less than the threshold.");
+                break;
+            }
+
+            basicTimeStepInMinutes = newTimeStepInMinutes;
+            currentTimeInMinutes += basicTimeStepInMinutes;
+            newTimeStepInMinutes = currentTimeInMinutes;
+            initialConditions = solution;
+            checkSolution(initialConditions);
+
+            if (doLog) {
+                outputStream.message("->  "
+                        + new DateTime((long) (currentTimeInMinutes * 60.0 * 1000.0)).toString(OmsAdige.adigeFormatter) + " / "
+                        + new DateTime((long) (intervalEndTimeInMinutes * 60. * 1000.)).toString(OmsAdige.adigeFormatter)
+                        + " Outlet Duffy Discharge: " + initialConditions[0]);
+            }
+        }
+
+        isAtFinalSubtimestep = true;
+        if (NumericsUtilities.dEq(currentTimeInMinutes, intervalEndTimeInMinutes) && initialConditions[0] > 1e-3) {
+            step(currentTimeInMinutes, initialConditions, intervalEndTimeInMinutes - currentTimeInMinutes - 1. / 60., true,
+                    rainArray, etpArray);
+            basicTimeStepInMinutes = newTimeStepInMinutes;
+            currentTimeInMinutes += basicTimeStepInMinutes;
+            newTimeStepInMinutes = currentTimeInMinutes;
+            initialConditions = solution;
+            checkSolution(initialConditions);
+
+            double sum = 0;
+            for( double d : rainArray ) {
+                sum = sum + d;
+            }
+            sum = sum / rainArray.length;
+            int hillslopeNum = rainArray.length;
+            double currentDischarge = initialConditions[0] + initialConditions[hillslopeNum];
+
+            outputStream.message("->  "
+                    + new DateTime((long) (currentTimeInMinutes * 60.0 * 1000.0)).toString(OmsAdige.adigeFormatter) + " / "
+                    + new DateTime((long) (intervalEndTimeInMinutes * 60. * 1000.)).toString(OmsAdige.adigeFormatter) + " "
+                    + currentDischarge + " with avg rain: " + sum);
+        } else {
+            outputStream.errorMessage("WARNING, UNEXPECTED");
+        }
+
+        System.arraycopy(initialConditions, 0, finalCond, 0, finalCond.length);
+    }
+
+    private void checkSolution( double[] initialConditions ) {
+        for( int i = 0; i < initialConditions.length; i++ ) {
+            if (initialConditions[i] != initialConditions[i]) {
+                throw new ModelsIllegalargumentException("Problems occure during the integration procedure.", this.getClass()
+                        .getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * @return the state at the end of the last solved interval. The array is
+     *          reused by the next {@link #solve(DateTime, int, double, double[], double[], double[]) solve}.
+     */
+    public double[] getFinalCond() {
+        return finalCond;
+    }
+
+}
@@ -20,7 +20,6 @@ package org.jgrasstools.hortonmachine.modules.hydrogeomorphology.insolation;
 import static org.jgrasstools.gears.libs.modules.ModelsEngine.calcInverseSunVector;
 import static org.jgrasstools.gears.libs.modules.ModelsEngine.calcNormalSunVector;
 import static org.jgrasstools.gears.libs.modules.ModelsEngine.calculateFactor;
-import static org.jgrasstools.gears.libs.modules.ModelsEngine.scalarProduct;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_AUTHORCONTACTS;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_AUTHORNAMES;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_DESCRIPTION;
@@ -31,13 +30,19 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_NA
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_STATUS;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_inElev_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_outIns_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_pHorizonSectors_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_pMaxThreads_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_tEndDate_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_tStartDate_DESCRIPTION;
 
 import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.jai.RasterFactory;
 import javax.media.jai.iterator.RandomIter;
@@ -57,7 +62,9 @@ import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.jgrasstools.gears.libs.modules.HorizonEngine;
 import org.jgrasstools.gears.libs.modules.JGTModel;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
 import org.jgrasstools.gears.utils.CrsUtilities;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
@@ -92,6 +99,14 @@ public class OmsInsolation extends JGTModel {
     @In
     public String tEndDate = null;
 
+    @Description(OMSINSOLATION_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
+    @Description(OMSINSOLATION_pHorizonSectors_DESCRIPTION)
+    @In
+    public int pHorizonSectors = 0;
+
     @Description(OMSINSOLATION_outIns_DESCRIPTION)
     @Out
     public GridCoverage2D outIns;
@@ -116,9 +131,7 @@ public class OmsInsolation extends JGTModel {
 
     private double lambda;
 
-    private double delta;
-
-    private double omega;
+    private HorizonEngine horizonEngine;
 
     private HortonMessageHandler msg = HortonMessageHandler.getInstance();
 
@@ -167,13 +180,30 @@ public class OmsInsolation extends JGTModel {
 
         WritableRaster gradientWR = normalVector(pitWR, dx);
 
-        pm.beginTask(msg.message("insolation.calculating"), endDay - startDay);
-
+        /*
+         * collect the sun positions of all the days, then sweep them in
+         * parallel, every worker with its own shadow map and accumulator.
+         */
+        List<double[]> sunPositions = new ArrayList<double[]>();
         for( int i = startDay; i <= endDay; i++ ) {
-            calcInsolation(lambda, pitWR, gradientWR, insolationWR, i, dx);
-            pm.worked(i - startDay);
+            addSunPositions(lambda, i, sunPositions);
         }
-        pm.done();
+
+        double[] dem = pitWR.getSamples(0, 0, width, height, 0, (double[]) null);
+        double[][] gradient = new double[3][];
+        for( int b = 0; b < 3; b++ ) {
+            gradient[b] = gradientWR.getSamples(0, 0, width, height, b, (double[]) null);
+        }
+        horizonEngine = null;
+        if (pHorizonSectors > 0) {
+            horizonEngine = new HorizonEngine(dem, width, height, dx, pHorizonSectors);
+            horizonEngine.setThreads(pMaxThreads);
+            horizonEngine.setProgressMonitor(pm);
+            horizonEngine.compute();
+        }
+        double[] insolation = calcInsolation(sunPositions, dem, gradient, width, height, dx);
+        insolationWR.setSamples(0, 0, width, height, 0, insolation);
+
         for( int y = 2; y < height - 2; y++ ) {
             for( int x = 2; x < width - 2; x++ ) {
                 if (pitWR.getSampleDouble(x, y, 0) == -9999.0) {
@@ -187,50 +217,138 @@ public class OmsInsolation extends JGTModel {
     }
 
     /**
-     * Evaluate the radiation.
+     * Add the sun positions of a day, every half hour between sunrise and sunset.
      * 
      * @param lambda
      *            the latitude.
-     * @param demWR
-     *            the raster of elevation
-     * @param gradientWR
-     *            the raster of the gradient value of the dem.
-     * @param insolationWR
-     *            the wr where to store the result.
-     * @param the
-     *            day in the year.
-     * @paradx the resolutiono of the dem.
+     * @param day
+     *            the day in the year.
+     * @param sunPositions
+     *            the list to which the declination and hour angle are added.
      */
-    private void calcInsolation( double lambda, WritableRaster demWR, WritableRaster gradientWR, WritableRaster insolationWR,
-            int day, double dx ) {
+    private void addSunPositions( double lambda, int day, List<double[]> sunPositions ) {
         // calculating the day angle
         // double dayang = 2 * Math.PI * (day - 1) / 365.0;
         double dayangb = (360 / 365.25) * (day - 79.436);
         dayangb = Math.toRadians(dayangb);
         // Evaluate the declination of the sun.
-        delta = getDeclination(dayangb);
+        double delta = getDeclination(dayangb);
         // Evaluate the radiation in this day.
         double ss = Math.acos(-Math.tan(delta) * Math.tan(lambda));
         double hour = -ss + (Math.PI / 48.0);
         while( hour <= ss - (Math.PI / 48) ) {
-            omega = hour;
-            // calculating the vector related to the sun
-            double sunVector[] = calcSunVector();
-            double zenith = calcZenith(sunVector[2]);
-            double[] inverseSunVector = calcInverseSunVector(sunVector);
-            double[] normalSunVector = calcNormalSunVector(sunVector);
-
-            int height = demWR.getHeight();
-            int width = demWR.getWidth();
-            WritableRaster sOmbraWR = calculateFactor(height, width, sunVector, inverseSunVector, normalSunVector, demWR, dx);
-            double mr = 1 / (sunVector[2] + 0.15 * Math.pow((93.885 - zenith), (-1.253)));
-            for( int j = 0; j < height; j++ ) {
-                for( int i = 0; i < width; i++ ) {
-                    // evaluate the radiation.
-                    calcRadiation(i, j, demWR, sOmbraWR, insolationWR, sunVector, gradientWR, mr);
+            sunPositions.add(new double[]{delta, hour});
+            hour = hour + Math.PI / 24.0;
+        }
+    }
+
+    /**
+     * Evaluate the radiation summed over the sun positions.
+     * 
+     * <p>
+     * The positions are taken in turn by pMaxThreads workers. Every worker
+     * reuses a shadow map and sums into its own accumulator, the accumulators
+     * are summed at the end.
+     * </p>
+     * 
+     * @param sunPositions
+     *            the declination and hour angle of the sun positions.
+     * @param dem
+     *            the elevation, row major.
+     * @param gradient
+     *            the three components of the normal vector, row major.
+     * @return the insolation, row major.
+     * @throws Exception
+     */
+    private double[] calcInsolation( final List<double[]> sunPositions, final double[] dem, final double[][] gradient,
+            final int width, final int height, final double dx ) throws Exception {
+        int threads = Math.max(1, Math.min(pMaxThreads, sunPositions.size()));
+        final AtomicInteger nextPosition = new AtomicInteger();
+        final double[][] accumulators = new double[threads][];
+
+        pm.beginTask(msg.message("insolation.calculating"), sunPositions.size());
+        List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+        for( int t = 0; t < threads; t++ ) {
+            final int worker = t;
+            workers.add(new Callable<Void>(){
+                public Void call() throws Exception {
+                    double[] shadowMap = new double[width * height];
+                    double[] accumulator = new double[width * height];
+                    accumulators[worker] = accumulator;
+                    int position;
+                    while( (position = nextPosition.getAndIncrement()) < sunPositions.size() ) {
+                        double[] sunPosition = sunPositions.get(position);
+                        calcInsolation(sunPosition[0], sunPosition[1], dem, gradient, width, height, dx, shadowMap,
+                                accumulator);
+                        worked();
+                    }
+                    return null;
                 }
+            });
+        }
+        if (threads == 1) {
+            workers.get(0).call();
+        } else {
+            ThreadedRunnable.invokeAll(workers, threads);
+        }
+        pm.done();
+
+        double[] insolation = accumulators[0];
+        for( int t = 1; t < threads; t++ ) {
+            double[] accumulator = accumulators[t];
+            for( int k = 0; k < insolation.length; k++ ) {
+                insolation[k] = insolation[k] + accumulator[k];
             }
-            hour = hour + Math.PI / 24.0;
+        }
+        return insolation;
+    }
+
+    private synchronized void worked() {
+        pm.worked(1);
+    }
+
+    /**
+     * Evaluate the radiation of a sun position.
+     * 
+     * @param delta
+     *            the declination of the sun.
+     * @param omega
+     *            the hour angle.
+     * @param dem
+     *            the elevation, row major.
+     * @param gradient
+     *            the three components of the normal vector, row major.
+     * @param dx
+     *            the resolution of the dem.
+     * @param shadowMap
+     *            the reused shadow map, filled from the horizons if they were computed.
+     * @param insolation
+     *            the accumulator to which the radiation is added.
+     */
+    private void calcInsolation( double delta, double omega, double[] dem, double[][] gradient, int width, int height,
+            double dx, double[] shadowMap, double[] insolation ) {
+        // calculating the vector related to the sun
+        double sunVector[] = calcSunVector(lambda, delta, omega);
+        double zenith = calcZenith(sunVector[2]);
+        double[] inverseSunVector = calcInverseSunVector(sunVector);
+        double[] normalSunVector = calcNormalSunVector(sunVector);
+
+        if (horizonEngine != null) {
+            horizonEngine.fillShadowMap(sunVector, shadowMap);
+        } else {
+            calculateFactor(height, width, sunVector, inverseSunVector, normalSunVector, dem, dx, shadowMap);
+        }
+        double mr = 1 / (sunVector[2] + 0.15 * Math.pow((93.885 - zenith), (-1.253)));
+        double[] gx = gradient[0];
+        double[] gy = gradient[1];
+        double[] gz = gradient[2];
+        for( int k = 0; k < insolation.length; k++ ) {
+            // evaluate the radiation.
+            double cosinc = sunVector[0] * gx[k] + sunVector[1] * gy[k] + sunVector[2] * gz[k];
+            if (cosinc < 0) {
+                cosinc = 0;
+            }
+            insolation[k] = calcRadiation(dem[k], mr) * cosinc * shadowMap[k] / 1000 + insolation[k];
         }
     }
 
@@ -244,12 +362,10 @@ public class OmsInsolation extends JGTModel {
     }
 
     /*
-     * evaluate several component of the radiation and then multiply by the
-     * sOmbra factor.
+     * evaluate several component of the radiation, to be multiplied by the
+     * incidence and the sOmbra factor.
      */
-    private void calcRadiation( int i, int j, WritableRaster demWR, WritableRaster sOmbraWR, WritableRaster insolationWR,
-            double[] sunVector, WritableRaster gradientWR, double mr ) {
-        double z = demWR.getSampleDouble(i, j, 0);
+    private double calcRadiation( double z, double mr ) {
         double pressure = ATM * Math.exp(-0.0001184 * z);
         double ma = mr * pressure / ATM;
         double temp = 273 + pLapse * (z - 4000);
@@ -263,18 +379,10 @@ public class OmsInsolation extends JGTModel {
         double tauw = 1 - 2.4959 * (wPrec * mr) / (1.0 + 79.034 * (wPrec * mr) * 0.6828 + 6.385 * (wPrec * mr));
         double taua = Math.pow((0.97 - 1.265 * Math.pow(pVisibility, (-0.66))), Math.pow(ma, 0.9));
 
-        double In = 0.9751 * SOLARCTE * taur * tauo * taug * tauw * taua;
-
-        double cosinc = scalarProduct(sunVector, gradientWR.getPixel(i, j, new double[3]));
-
-        if (cosinc < 0) {
-            cosinc = 0;
-        }
-        double tmp = insolationWR.getSampleDouble(i, j, 0);
-        insolationWR.setSample(i, j, 0, In * cosinc * sOmbraWR.getSampleDouble(i, j, 0) / 1000 + tmp);
+        return 0.9751 * SOLARCTE * taur * tauo * taug * tauw * taua;
     }
 
-    protected double[] calcSunVector() {
+    private static double[] calcSunVector( double lambda, double delta, double omega ) {
         double sunVector[] = new double[3];
         sunVector[0] = -Math.sin(omega) * Math.cos(delta);
         sunVector[1] = Math.sin(lambda) * Math.cos(omega) * Math.cos(delta) - Math.cos(lambda) * Math.sin(delta);
@@ -34,6 +34,8 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_STATUS;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_inElev_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_outSky_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_pHorizonSectors_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_pMaxThreads_DESCRIPTION;
 
 import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
@@ -54,6 +56,7 @@ import oms3.annotations.Out;
 import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.libs.modules.HorizonEngine;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.hortonmachine.i18n.HortonMessageHandler;
@@ -71,6 +74,14 @@ public class OmsSkyview extends JGTModel {
     @In
     public GridCoverage2D inElev = null;
 
+    @Description(OMSSKYVIEW_pHorizonSectors_DESCRIPTION)
+    @In
+    public int pHorizonSectors = 0;
+
+    @Description(OMSSKYVIEW_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSSKYVIEW_outSky_DESCRIPTION)
     @Out
     public GridCoverage2D outSky;
@@ -102,7 +113,12 @@ public class OmsSkyview extends JGTModel {
         rows = pitWR.getHeight();
         cols = pitWR.getWidth();
 
-        WritableRaster skyWR = skyviewfactor(pitWR, dx);
+        WritableRaster skyWR;
+        if (pHorizonSectors > 0) {
+            skyWR = skyviewfactorFromHorizons(pitWR, dx);
+        } else {
+            skyWR = skyviewfactor(pitWR, dx);
+        }
 
         int maxY = minY + rows;
         int maxX = minX + cols;
@@ -269,6 +285,32 @@ public class OmsSkyview extends JGTModel {
         return skyviewFactorWR;
     }
 
+    /**
+     * Calculate the skyview factor from the horizons of {@link #pHorizonSectors} azimuth sectors.
+     * 
+     * @param pitWR
+     *            the dem ( the map of elevation).
+     * @param res the resolution of the map.
+     * @return the map of sky view factor.
+     * @throws Exception
+     */
+    private WritableRaster skyviewfactorFromHorizons( WritableRaster pitWR, double res ) throws Exception {
+        double[] dem = pitWR.getSamples(minX, minY, cols, rows, 0, (double[]) null);
+        HorizonEngine horizonEngine = new HorizonEngine(dem, cols, rows, res, pHorizonSectors);
+        horizonEngine.setThreads(pMaxThreads);
+        horizonEngine.setProgressMonitor(pm);
+        horizonEngine.compute();
+
+        WritableRaster skyviewFactorWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, pitWR.getSampleModel(),
+                0.0);
+        for( int y = 0; y < rows; y++ ) {
+            for( int x = 0; x < cols; x++ ) {
+                skyviewFactorWR.setSample(x, y, 0, horizonEngine.getSkyViewFactor(x, y));
+            }
+        }
+        return skyviewFactorWR;
+    }
+
     /**
      * Calculate the angle.
      * 
@@ -16,6 +16,7 @@
  */
 package org.jgrasstools.hortonmachine.modules.statistics.kriging;
 
+import static org.jgrasstools.gears.libs.modules.JGTConstants.doubleNovalue;
 import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_AUTHORCONTACTS;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_AUTHORNAMES;
@@ -39,6 +40,9 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_outDa
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_outGrid_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pA_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pIntegralscale_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMaxDistance_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMaxNeighbours_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMaxThreads_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMode_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pNug_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pS_DESCRIPTION;
@@ -47,11 +51,13 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pVari
 
 import java.awt.image.WritableRaster;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.jai.iterator.RandomIterFactory;
 import javax.media.jai.iterator.WritableRandomIter;
@@ -78,18 +84,21 @@ import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.exceptions.ModelsRuntimeException;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.modules.ModelsEngine;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
-import org.jgrasstools.gears.utils.math.matrixes.ColumnVector;
+import org.jgrasstools.gears.utils.math.interpolation.NeighbourhoodsCache;
 import org.jgrasstools.gears.utils.math.matrixes.LinearSystem;
+import org.jgrasstools.gears.utils.math.matrixes.MatrixException;
 import org.jgrasstools.hortonmachine.i18n.HortonMessageHandler;
 import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.geometry.DirectPosition;
-import org.opengis.geometry.MismatchedDimensionException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
 
 @Description(OMSKRIGING_DESCRIPTION)
 @Author(name = OMSKRIGING_AUTHORNAMES, contact = OMSKRIGING_AUTHORCONTACTS)
@@ -194,6 +203,18 @@ public class OmsKriging extends JGTModel {
     @In
     public double pNug;
 
+    @Description(OMSKRIGING_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
+    @Description(OMSKRIGING_pMaxNeighbours_DESCRIPTION)
+    @In
+    public int pMaxNeighbours = 0;
+
+    @Description(OMSKRIGING_pMaxDistance_DESCRIPTION)
+    @In
+    public double pMaxDistance = 0;
+
     @Description(OMSKRIGING_outGrid_DESCRIPTION)
     @Out
     public GridCoverage2D outGrid = null;
@@ -207,6 +228,11 @@ public class OmsKriging extends JGTModel {
      */
     private static final double TOLL = 1.0d * 10E-8;
 
+    /**
+     * The number of neighbourhood systems every worker keeps.
+     */
+    private static final int LOCAL_SYSTEMS_CACHE_SIZE = 64;
+
     private HortonMessageHandler msg = HortonMessageHandler.getInstance();
 
     private WritableRaster outWR = null;
@@ -217,6 +243,10 @@ public class OmsKriging extends JGTModel {
     private double xres;
     private double yres;
 
+    private STRtree stationsTree;
+    private Envelope stationsEnvelope;
+    private final AtomicInteger localSystemsCount = new AtomicInteger();
+
     /**
      * Executing ordinary kriging.
      * <p>
@@ -361,27 +391,21 @@ public class OmsKriging extends JGTModel {
         // vecchio int numPointToInterpolate = getNumPoint(inInterpolate);
         int numPointToInterpolate = 0;
 
-        /*
-         * if the isLogarithmic is true then execute the model with log value.
-         */
-        // vecchio double[] result = new double[numPointToInterpolate];
-
         if (pMode == 0) {
             pointsToInterpolateId2Coordinates = getCoordinate(numPointToInterpolate, inInterpolate, fInterpolateid);
         } else if (pMode == 1) {
-            pointsToInterpolateId2Coordinates = getCoordinate(inInterpolationGrid);
-            numPointToInterpolate = pointsToInterpolateId2Coordinates.size();
+            setupGrid(inInterpolationGrid);
         } else {
             throw new ModelsIllegalargumentException("The parameter pMode can only be 0 or 1.", this, pm);
         }
 
-        Set<Integer> pointsToInterpolateIdSet = pointsToInterpolateId2Coordinates.keySet();
-        Iterator<Integer> idIterator = pointsToInterpolateIdSet.iterator();
-        int j = 0;
-        // vecchio int[] idArray = new int[inInterpolate.size()];
-        int[] idArray = new int[pointsToInterpolateId2Coordinates.size()];
-        double[] result = new double[pointsToInterpolateId2Coordinates.size()];
+        LinearSystem linearSystem = null;
+        double constantValue = 0;
+        stationsTree = null;
         if (n1 != 0) {
+            /*
+             * if the isLogarithmic is true then execute the model with log value.
+             */
             if (doLogarithmic) {
                 for( int i = 0; i < nStaz; i++ ) {
                     if (hStation[i] > 0.0) {
@@ -390,93 +414,374 @@ public class OmsKriging extends JGTModel {
                 }
             }
 
-            /*
-             * calculating the covariance matrix.
-             */
-            double[][] covarianceMatrix = covMatrixCalculating(xStation, yStation, zStation, n1);
-            /*
-             * extract the coordinate of the points where interpolated.
-             */
+            if (!areAllEquals && n1 > 1 && (pMaxNeighbours > 0 || pMaxDistance > 0)) {
+                /*
+                 * local kriging, every point uses only the stations around it.
+                 */
+                stationsTree = new STRtree();
+                stationsEnvelope = new Envelope();
+                for( int i = 0; i < n1; i++ ) {
+                    stationsTree.insert(new Envelope(xStation[i], xStation[i], yStation[i], yStation[i]), i);
+                    stationsEnvelope.expandToInclude(xStation[i], yStation[i]);
+                }
+                stationsTree.build();
+                localSystemsCount.set(0);
+            } else if (!areAllEquals && n1 > 1) {
+                /*
+                 * calculating the covariance matrix. It depends only on the
+                 * stations, so it is factorized once for all the points.
+                 */
+                double[][] covarianceMatrix = covMatrixCalculating(xStation, yStation, zStation, n1);
+                linearSystem = new LinearSystem(covarianceMatrix);
+                linearSystem.factorize();
+            } else {
+                pm.message(msg.message("kriging.setequalsvalue"));
+                constantValue = hStation[0];
+            }
+        } else {
+            pm.errorMessage("No rain for this time step");
+            double[] value = inData.values().iterator().next();
+            constantValue = value[0];
+        }
+
+        if (pMode == 0) {
+            int pointsNum = pointsToInterpolateId2Coordinates.size();
+            final int[] idArray = new int[pointsNum];
+            final double[] result = new double[pointsNum];
+            final Coordinate[] coordinates = new Coordinate[pointsNum];
+            int j = 0;
+            for( Entry<Integer, Coordinate> entry : pointsToInterpolateId2Coordinates.entrySet() ) {
+                idArray[j] = entry.getKey();
+                coordinates[j] = entry.getValue();
+                j++;
+            }
+
+            int chunksNum = Math.min(pointsNum, getThreadsNum() * 4);
+            final int chunkSize = chunksNum == 0 ? 0 : (int) Math.ceil(pointsNum / (double) chunksNum);
+            List<KrigingWorker> workers = new ArrayList<KrigingWorker>();
+            for( int c = 0; c < chunksNum; c++ ) {
+                final int from = c * chunkSize;
+                final int to = Math.min(pointsNum, from + chunkSize);
+                workers.add(new KrigingWorker(linearSystem, constantValue, xStation, yStation, zStation, hStation, n1){
+                    protected void work() throws Exception {
+                        for( int i = from; i < to; i++ ) {
+                            Coordinate coordinate = coordinates[i];
+                            result[i] = estimate(coordinate.x, coordinate.y, coordinate.z);
+                        }
+                    }
+                });
+            }
+            runWorkers(workers);
+            storeResult(result, idArray);
+        } else {
+            final MathTransform transf = inInterpolationGrid.getCRSToGrid2D();
+            final CoordinateReferenceSystem crs = inInterpolationGrid.getCoordinateReferenceSystem();
 
             /*
-             * initialize the solution and its variance vector.
+             * every row of points is written to a different raster row, so
+             * the rows are split between the workers.
              */
+            int chunksNum = Math.min(rows, getThreadsNum() * 4);
+            final int chunkSize = chunksNum == 0 ? 0 : (int) Math.ceil(rows / (double) chunksNum);
+            List<KrigingWorker> workers = new ArrayList<KrigingWorker>();
+            for( int c = 0; c < chunksNum; c++ ) {
+                final int fromRow = c * chunkSize;
+                final int toRow = Math.min(rows, fromRow + chunkSize);
+                workers.add(new KrigingWorker(linearSystem, constantValue, xStation, yStation, zStation, hStation, n1){
+                    protected void work() throws Exception {
+                        WritableRandomIter outIter = RandomIterFactory.createWritable(outWR, null);
+                        DirectPosition2D point = new DirectPosition2D(crs);
+                        DirectPosition2D gridPoint = new DirectPosition2D();
+                        for( int j = fromRow; j < toRow; j++ ) {
+                            for( int i = 0; i < cols; i++ ) {
+                                point.x = west + i * xres;
+                                point.y = south + j * yres;
+                                // the grid points have no elevation, the variogram then ignores it
+                                double value = estimate(point.x, point.y, doubleNovalue);
+
+                                transf.transform(point, gridPoint);
+                                int x = (int) gridPoint.x;
+                                int y = (int) gridPoint.y;
+                                outIter.setSample(x, y, 0, checkResultValue(value));
+                            }
+                        }
+                        outIter.done();
+                    }
+                });
+            }
+            runWorkers(workers);
 
-            if (!areAllEquals && n1 > 1) {
-                // pm.beginTask(msg.message("kriging.working"),inInterpolate.size());
-                while( idIterator.hasNext() ) {
-                    double sum = 0.;
-                    int id = idIterator.next();
-                    idArray[j] = id;
-                    Coordinate coordinate = (Coordinate) pointsToInterpolateId2Coordinates.get(id);
-                    xStation[n1] = coordinate.x;
-                    yStation[n1] = coordinate.y;
-                    zStation[n1] = coordinate.z;
-                    /*
-                     * calculating the right hand side of the kriging linear
-                     * system.
-                     */
-                    double[] knownTerm = knownTermsCalculation(xStation, yStation, zStation, n1);
+            RegionMap regionMap = CoverageUtilities.gridGeometry2RegionParamsMap(inInterpolationGrid);
+            outGrid = CoverageUtilities.buildCoverage("gridded", outWR, regionMap, crs);
+        }
+        if (stationsTree != null) {
+            pm.message("Local systems solved: " + localSystemsCount.get());
+        }
+    }
 
-                    /*
-                     * solve the linear system, where the result is the weight.
-                     */
-                    ColumnVector knownTermColumn = new ColumnVector(knownTerm);
-                    LinearSystem linearSystem = new LinearSystem(covarianceMatrix);
-                    ColumnVector solution = linearSystem.solve(knownTermColumn, true);
-                    // Matrix a = new Matrix(covarianceMatrix);
-                    // Matrix b = new Matrix(knownTerm, knownTerm.length);
-                    // Matrix x = a.solve(b);
-                    double[] moltiplicativeFactor = solution.copyValues1D();
-
-                    double h0 = 0.0;
-                    for( int k = 0; k < n1; k++ ) {
-                        h0 = h0 + moltiplicativeFactor[k] * hStation[k];
-                        sum = sum + moltiplicativeFactor[k];
-                    }
+    private int getThreadsNum() {
+        return Math.max(1, pMaxThreads);
+    }
 
-                    if (doLogarithmic) {
-                        h0 = Math.exp(h0);
-                    }
-                    result[j] = h0;
-                    j++;
-                    if (Math.abs(sum - 1) >= TOLL) {
-                        throw new ModelsRuntimeException("Error in the coffeicients calculation", this.getClass().getSimpleName());
-                    }
+    /**
+     * Run the workers, in the current thread if only one thread is allowed.
+     * 
+     * @param workers the workers to run.
+     * @throws Exception the first error of the workers.
+     */
+    private void runWorkers( List<KrigingWorker> workers ) throws Exception {
+        int threads = Math.min(getThreadsNum(), workers.size());
+        if (threads <= 1) {
+            for( KrigingWorker worker : workers ) {
+                worker.call();
+            }
+            return;
+        }
+        ThreadedRunnable.invokeAll(workers, threads);
+    }
 
+    /**
+     * Estimates the values of a set of points.
+     * 
+     * <p>
+     * Every worker keeps its own copy of the stations and its own work arrays,
+     * the factorized system is shared and only read.
+     * </p>
+     * 
+     * <p>
+     * In local mode the stations around every point are searched in the
+     * {@link #stationsTree} and the systems of the last neighbourhoods are
+     * kept, so that near points using the same stations solve the same
+     * factorized system.
+     * </p>
+     */
+    private abstract class KrigingWorker implements Callable<Void> {
+        private final double constantValue;
+        private final StationsSystem globalSystem;
+
+        private final double[] xStation;
+        private final double[] yStation;
+        private final double[] zStation;
+        private final double[] hStation;
+        private NeighbourhoodsCache<StationsSystem> localSystems;
+        private double[] distances;
+        private int[] neighbours;
+
+        /**
+         * @param linearSystem the factorized system or <code>null</code>, if the constant value is to be used.
+         * @param constantValue the value used when there is no system to solve.
+         */
+        KrigingWorker( LinearSystem linearSystem, double constantValue, double[] xStation, double[] yStation,
+                double[] zStation, double[] hStation, int n1 ) {
+            this.constantValue = constantValue;
+            this.xStation = xStation;
+            this.yStation = yStation;
+            this.zStation = zStation;
+            this.hStation = hStation;
+            if (linearSystem != null) {
+                globalSystem = new StationsSystem(xStation.clone(), yStation.clone(), zStation.clone(), hStation, n1,
+                        linearSystem);
+            } else {
+                globalSystem = null;
+            }
+            if (stationsTree != null) {
+                localSystems = new NeighbourhoodsCache<StationsSystem>(LOCAL_SYSTEMS_CACHE_SIZE);
+                distances = new double[n1];
+                neighbours = new int[n1];
+            }
+        }
+
+        public Void call() throws Exception {
+            work();
+            return null;
+        }
+
+        protected abstract void work() throws Exception;
+
+        /**
+         * Estimate the value in a point.
+         * 
+         * @return the interpolated value, not yet checked.
+         * @throws MatrixException
+         */
+        protected double estimate( double x, double y, double z ) throws MatrixException {
+            if (stationsTree != null) {
+                return estimateLocal(x, y, z);
+            }
+            if (globalSystem == null) {
+                return constantValue;
+            }
+            return globalSystem.estimate(x, y, z);
+        }
+
+        private double estimateLocal( double x, double y, double z ) throws MatrixException {
+            int count = findNeighbours(x, y);
+            if (count == 0) {
+                return doubleNovalue;
+            }
+            int[] stations = Arrays.copyOf(neighbours, count);
+            StationsSystem system = localSystems.get(stations);
+            if (system == null) {
+                double[] xLocal = new double[count + 1];
+                double[] yLocal = new double[count + 1];
+                double[] zLocal = new double[count + 1];
+                double[] hLocal = new double[count + 1];
+                for( int i = 0; i < count; i++ ) {
+                    xLocal[i] = xStation[stations[i]];
+                    yLocal[i] = yStation[stations[i]];
+                    zLocal[i] = zStation[stations[i]];
+                    hLocal[i] = hStation[stations[i]];
                 }
-            } else if (n1 == 1 || areAllEquals) {
-                double tmp = hStation[0];
-                int k = 0;
-                pm.message(msg.message("kriging.setequalsvalue"));
-                while( idIterator.hasNext() ) {
-                    int id = idIterator.next();
-                    result[k] = tmp;
-                    idArray[k] = id;
-                    k++;
+                LinearSystem linearSystem = null;
+                if (count > 1) {
+                    linearSystem = new LinearSystem(covMatrixCalculating(xLocal, yLocal, zLocal, count));
+                    linearSystem.factorize();
                 }
+                system = new StationsSystem(xLocal, yLocal, zLocal, hLocal, count, linearSystem);
+                localSystems.put(stations, system);
+                localSystemsCount.incrementAndGet();
+            }
+            return system.estimate(x, y, z);
+        }
 
+        /**
+         * Find the stations to use for a point, ordered by their index.
+         * 
+         * <p>
+         * The search square is enlarged until it holds enough stations in the
+         * circle inside it, which are then the nearest ones.
+         * </p>
+         * 
+         * @return the number of stations found, put in {@link #neighbours}.
+         */
+        private int findNeighbours( double x, double y ) {
+            double maxRadius = pMaxDistance;
+            if (maxRadius <= 0) {
+                // the radius that contains all the stations
+                Envelope allEnvelope = new Envelope(stationsEnvelope);
+                allEnvelope.expandToInclude(x, y);
+                maxRadius = Math.sqrt(allEnvelope.getWidth() * allEnvelope.getWidth() + allEnvelope.getHeight()
+                        * allEnvelope.getHeight());
             }
-            if (pMode == 0) {
-                storeResult(result, idArray);
-            } else {
-                storeResult(result, pointsToInterpolateId2Coordinates);
+            double radius = maxRadius;
+            if (pMaxNeighbours > 0) {
+                double area = Math.max(stationsEnvelope.getArea(), TOLL);
+                radius = Math.min(maxRadius, Math.sqrt(area * pMaxNeighbours / (Math.PI * distances.length)));
             }
-        } else {
-            pm.errorMessage("No rain for this time step");
-            j = 0;
-            double[] value = inData.values().iterator().next();
-            while( idIterator.hasNext() ) {
-                int id = idIterator.next();
-                idArray[j] = id;
-                result[j] = value[0];
-                j++;
+
+            int count;
+            while( true ) {
+                Envelope searchEnvelope = new Envelope(x - radius, x + radius, y - radius, y + radius);
+                List< ? > candidates = stationsTree.query(searchEnvelope);
+                count = 0;
+                for( Object candidate : candidates ) {
+                    int index = (Integer) candidate;
+                    double dx = xStation[index] - x;
+                    double dy = yStation[index] - y;
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    if (distance <= radius) {
+                        neighbours[count] = index;
+                        distances[count] = distance;
+                        count++;
+                    }
+                }
+                if (pMaxNeighbours <= 0 || count >= pMaxNeighbours || radius >= maxRadius) {
+                    break;
+                }
+                radius = Math.min(maxRadius, radius * 2);
             }
-            if (pMode == 0) {
-                storeResult(result, idArray);
+
+            if (pMaxNeighbours > 0 && count > pMaxNeighbours) {
+                // partial selection sort of the nearest stations
+                for( int i = 0; i < pMaxNeighbours; i++ ) {
+                    int min = i;
+                    for( int j = i + 1; j < count; j++ ) {
+                        if (distances[j] < distances[min]) {
+                            min = j;
+                        }
+                    }
+                    double tmpDistance = distances[i];
+                    distances[i] = distances[min];
+                    distances[min] = tmpDistance;
+                    int tmpIndex = neighbours[i];
+                    neighbours[i] = neighbours[min];
+                    neighbours[min] = tmpIndex;
+                }
+                count = pMaxNeighbours;
+            }
+            Arrays.sort(neighbours, 0, count);
+            return count;
+        }
+    }
+
+    /**
+     * A set of stations with their factorized covariance matrix.
+     * 
+     * <p>
+     * The arrays hold the stations and a last slot for the point to estimate,
+     * so an instance must be used by a single thread.
+     * </p>
+     */
+    private class StationsSystem {
+        private final double[] xStation;
+        private final double[] yStation;
+        private final double[] zStation;
+        private final double[] hStation;
+        private final int n1;
+        private final LinearSystem linearSystem;
+
+        private final double[] knownTerm;
+        private final double[] weights;
+        private final double[] residuals;
+        private final double[] correction;
+
+        /**
+         * @param linearSystem the factorized system, can be <code>null</code> if there is a single station.
+         */
+        StationsSystem( double[] xStation, double[] yStation, double[] zStation, double[] hStation, int n1,
+                LinearSystem linearSystem ) {
+            this.xStation = xStation;
+            this.yStation = yStation;
+            this.zStation = zStation;
+            this.hStation = hStation;
+            this.n1 = n1;
+            this.linearSystem = linearSystem;
+            knownTerm = new double[n1 + 1];
+            weights = new double[n1 + 1];
+            residuals = new double[n1 + 1];
+            correction = new double[n1 + 1];
+        }
+
+        double estimate( double x, double y, double z ) throws MatrixException {
+            double h0 = 0.0;
+            if (linearSystem == null) {
+                h0 = hStation[0];
             } else {
-                storeResult(result, pointsToInterpolateId2Coordinates);
+                xStation[n1] = x;
+                yStation[n1] = y;
+                zStation[n1] = z;
+                /*
+                 * calculating the known terms and solving the system with the
+                 * factorized covariance matrix.
+                 */
+                knownTermsCalculation(xStation, yStation, zStation, n1, knownTerm);
+                linearSystem.solve(knownTerm, weights, residuals, correction);
+
+                double sum = 0.;
+                for( int k = 0; k < n1; k++ ) {
+                    h0 = h0 + weights[k] * hStation[k];
+                    sum = sum + weights[k];
+                }
+                if (Math.abs(sum - 1) >= TOLL) {
+                    throw new ModelsRuntimeException("Error in the coffeicients calculation", OmsKriging.this.getClass()
+                            .getSimpleName());
+                }
             }
+
+            if (doLogarithmic) {
+                h0 = Math.exp(h0);
+            }
+            return h0;
         }
     }
 
@@ -539,42 +844,6 @@ public class OmsKriging extends JGTModel {
         }
     }
 
-    private void storeResult( double[] interpolatedValues, HashMap<Integer, Coordinate> interpolatedCoordinatesMap )
-            throws MismatchedDimensionException, Exception {
-
-        WritableRandomIter outIter = RandomIterFactory.createWritable(outWR, null);
-
-        Set<Integer> pointsToInterpolateIdSett = interpolatedCoordinatesMap.keySet();
-        Iterator<Integer> idIterator = pointsToInterpolateIdSett.iterator();
-        int c = 0;
-        MathTransform transf = inInterpolationGrid.getCRSToGrid2D();
-
-        final DirectPosition gridPoint = new DirectPosition2D();
-
-        while( idIterator.hasNext() ) {
-            int id = idIterator.next();
-            Coordinate coordinate = (Coordinate) interpolatedCoordinatesMap.get(id);
-
-            DirectPosition point = new DirectPosition2D(inInterpolationGrid.getCoordinateReferenceSystem(), coordinate.x,
-                    coordinate.y);
-            transf.transform(point, gridPoint);
-
-            double[] gridCoord = gridPoint.getCoordinate();
-            int x = (int) gridCoord[0];
-            int y = (int) gridCoord[1];
-
-            outIter.setSample(x, y, 0, checkResultValue(interpolatedValues[c]));
-            c++;
-
-        }
-
-        RegionMap regionMap = CoverageUtilities.gridGeometry2RegionParamsMap(inInterpolationGrid);
-
-        outGrid = CoverageUtilities
-                .buildCoverage("gridded", outWR, regionMap, inInterpolationGrid.getCoordinateReferenceSystem());
-
-    }
-
     private double checkResultValue( double resultValue ) {
         if (resultValue < 0) {
             return 0.0;
@@ -582,9 +851,11 @@ public class OmsKriging extends JGTModel {
         return resultValue;
     }
 
-    private LinkedHashMap<Integer, Coordinate> getCoordinate( GridGeometry2D grid ) {
-        LinkedHashMap<Integer, Coordinate> out = new LinkedHashMap<Integer, Coordinate>();
-        int count = 0;
+    /**
+     * Read the grid parameters and create the output raster. The points to
+     * interpolate are then <code>west + i * xres, south + j * yres</code>.
+     */
+    private void setupGrid( GridGeometry2D grid ) {
         RegionMap regionMap = CoverageUtilities.gridGeometry2RegionParamsMap(grid);
         cols = regionMap.getCols();
         rows = regionMap.getRows();
@@ -594,22 +865,6 @@ public class OmsKriging extends JGTModel {
         yres = regionMap.getYres();
 
         outWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, null);
-
-        double northing = south;
-        double easting = west;
-        for( int i = 0; i < cols; i++ ) {
-            easting = easting + xres;
-            for( int j = 0; j < rows; j++ ) {
-                northing = northing + yres;
-                Coordinate coordinate = new Coordinate();
-                coordinate.x = west + i * xres;
-                coordinate.y = south + j * yres;
-                out.put(count, coordinate);
-                count++;
-            }
-        }
-
-        return out;
     }
 
     /**
@@ -776,11 +1031,10 @@ public class OmsKriging extends JGTModel {
      *            the z coordinates.
      * @param n
      *            the number of the stations points.
-     * @return
+     * @param gamma
+     *            the array of size n + 1 to fill with the known terms.
      */
-    private double[] knownTermsCalculation( double[] x, double[] y, double[] z, int n ) {
-
-        double[] gamma = new double[n + 1];
+    private void knownTermsCalculation( double[] x, double[] y, double[] z, int n, double[] gamma ) {
         if (defaultVariogramMode == 0) {
             for( int i = 0; i < n; i++ ) {
                 double rx = x[i] - x[n];
@@ -798,7 +1052,6 @@ public class OmsKriging extends JGTModel {
 
         }
         gamma[n] = 1.0;
-        return gamma;
 
     }
 
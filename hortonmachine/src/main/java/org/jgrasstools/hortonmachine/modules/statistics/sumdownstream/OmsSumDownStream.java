@@ -25,10 +25,12 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_LICENSE;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_STATUS;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_doTopological_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_inFlow_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_inToSum_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_outSummed_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_pLowerThres_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_pMaxThreads_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_pUpperThres_DESCRIPTION;
 
 import java.awt.image.WritableRaster;
@@ -77,6 +79,14 @@ public class OmsSumDownStream extends JGTModel {
     @In
     public Double pLowerThres = null;
 
+    @Description(OMSSUMDOWNSTREAM_doTopological_DESCRIPTION)
+    @In
+    public boolean doTopological = false;
+
+    @Description(OMSSUMDOWNSTREAM_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSSUMDOWNSTREAM_outSummed_DESCRIPTION)
     @Out
     public GridCoverage2D outSummed = null;
@@ -94,8 +104,13 @@ public class OmsSumDownStream extends JGTModel {
 
         int[] colsRows = CoverageUtilities.getRegionColsRows(inFlow);
 
-        WritableRaster summedWR = ModelsEngine.sumDownstream(flowIter, toSumIter, colsRows[0], colsRows[1], pUpperThres,
-                pLowerThres, pm);
+        WritableRaster summedWR;
+        if (doTopological) {
+            summedWR = ModelsEngine.sumDownstream(flowIter, toSumIter, colsRows[0], colsRows[1], pUpperThres, pLowerThres,
+                    pMaxThreads, pm);
+        } else {
+            summedWR = ModelsEngine.sumDownstream(flowIter, toSumIter, colsRows[0], colsRows[1], pUpperThres, pLowerThres, pm);
+        }
 
         flowIter.done();
         toSumIter.done();
@@ -0,0 +1,149 @@
+package org.jgrasstools.hortonmachine.models.hm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.AdigeEnsemble;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.IAdigeEngine;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.core.IDischargeContributor;
+import org.jgrasstools.hortonmachine.utils.HMTestCase;
+import org.joda.time.DateTime;
+/**
+ * Test the ensemble runs of adige.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestAdigeEnsemble extends HMTestCase {
+
+    private static final int BASINS_NUM = 5;
+    private static final int MEMBERS_NUM = 7;
+
+    private final DateTime start = new DateTime(2000, 1, 1, 0, 0, 0, 0);
+
+    public void testParallelMembersMatchSerial() throws Exception {
+        AdigeEnsemble serial = createEnsemble(1, -1);
+        AdigeEnsemble parallel = createEnsemble(4, -1);
+        try {
+            for( int step = 0; step < 10; step++ ) {
+                List<double[]> rainArrays = createRain(step);
+                serial.solve(start.plusMinutes(step * 60), 60, rainArrays, null);
+                parallel.solve(start.plusMinutes(step * 60), 60, rainArrays, null);
+
+                HashMap<Integer, double[]> serialDischarge = serial.getDischarge();
+                HashMap<Integer, double[]> parallelDischarge = parallel.getDischarge();
+                assertEquals(BASINS_NUM, serialDischarge.size());
+                for( int basinId = 0; basinId < BASINS_NUM; basinId++ ) {
+                    double[] serialColumn = serialDischarge.get(basinId);
+                    assertEquals(MEMBERS_NUM, serialColumn.length);
+                    assertTrue(Arrays.equals(serialColumn, parallelDischarge.get(basinId)));
+                    assertTrue(Arrays.equals(serial.getSubDischarge().get(basinId), parallel.getSubDischarge().get(basinId)));
+                }
+            }
+        } finally {
+            serial.close();
+            parallel.close();
+        }
+    }
+
+    public void testMean() throws Exception {
+        List<HashMap<Integer, double[]>> membersMaps = new ArrayList<HashMap<Integer, double[]>>();
+        HashMap<Integer, double[]> member1 = new HashMap<Integer, double[]>();
+        member1.put(1, new double[]{1.0});
+        member1.put(2, new double[]{4.0});
+        HashMap<Integer, double[]> member2 = new HashMap<Integer, double[]>();
+        member2.put(1, new double[]{3.0});
+        membersMaps.add(member1);
+        membersMaps.add(member2);
+
+        HashMap<Integer, double[]> columns = AdigeEnsemble.toColumns(membersMaps);
+        assertEquals(2, columns.get(1).length);
+        assertTrue(Double.isNaN(columns.get(2)[1]));
+
+        HashMap<Integer, double[]> mean = new HashMap<Integer, double[]>();
+        mean.put(3, new double[]{9.0});
+        AdigeEnsemble.mean(columns, mean);
+        assertEquals(2, mean.size());
+        assertEquals(2.0, mean.get(1)[0], DELTA);
+        // the missing member value is not part of the mean
+        assertEquals(4.0, mean.get(2)[0], DELTA);
+    }
+
+    public void testMemberFailure() throws Exception {
+        AdigeEnsemble ensemble = createEnsemble(3, 4);
+        try {
+            ensemble.solve(start, 60, createRain(0), null);
+            fail("The failure of the member should be propagated.");
+        } catch (IOException e) {
+            assertEquals("member 4 failed", e.getMessage());
+        } finally {
+            ensemble.close();
+        }
+    }
+
+    private AdigeEnsemble createEnsemble( int maxThreads, int failingMember ) {
+        IAdigeEngine[] engines = new IAdigeEngine[MEMBERS_NUM];
+        double[][] conditions = new double[MEMBERS_NUM][];
+        for( int m = 0; m < MEMBERS_NUM; m++ ) {
+            engines[m] = new ReservoirEngine(m, m == failingMember);
+            conditions[m] = new double[2 * BASINS_NUM];
+        }
+        return new AdigeEnsemble(engines, conditions, maxThreads);
+    }
+
+    private List<double[]> createRain( int step ) {
+        List<double[]> rainArrays = new ArrayList<double[]>();
+        for( int m = 0; m < MEMBERS_NUM; m++ ) {
+            double[] rain = new double[BASINS_NUM];
+            for( int i = 0; i < BASINS_NUM; i++ ) {
+                rain[i] = (m + 1) * (i + 1) * Math.sin(step + 1.0) * Math.sin(step + 1.0);
+            }
+            rainArrays.add(rain);
+        }
+        return rainArrays;
+    }
+
+    /**
+     * A linear reservoir per basin, which keeps its discharges as the real engines do.
+     */
+    private static class ReservoirEngine implements IAdigeEngine {
+        private final int member;
+        private final boolean fail;
+        private final HashMap<Integer, double[]> discharge = new HashMap<Integer, double[]>();
+        private final HashMap<Integer, double[]> subDischarge = new HashMap<Integer, double[]>();
+
+        public ReservoirEngine( int member, boolean fail ) {
+            this.member = member;
+            this.fail = fail;
+        }
+
+        public void addDischargeContributor( IDischargeContributor dischargeContributor ) {
+        }
+
+        public double[] solve( DateTime currentTimstamp, int modelTimestepInMinutes, double internalTimestepInMinutes,
+                double[] previousSolution, double[] rainArray, double[] etpArray ) throws IOException {
+            if (fail) {
+                throw new IOException("member " + member + " failed");
+            }
+            double[] solution = new double[previousSolution.length];
+            for( int i = 0; i < BASINS_NUM; i++ ) {
+                solution[i] = 0.8 * previousSolution[i] + 0.2 * rainArray[i];
+                solution[i + BASINS_NUM] = 0.95 * previousSolution[i + BASINS_NUM] + 0.05 * solution[i];
+                discharge.put(i, new double[]{solution[i]});
+                subDischarge.put(i, new double[]{solution[i + BASINS_NUM]});
+            }
+            return solution;
+        }
+
+        public HashMap<Integer, double[]> getDischarge() {
+            return discharge;
+        }
+
+        public HashMap<Integer, double[]> getSubDischarge() {
+            return subDischarge;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package org.jgrasstools.hortonmachine.models.hm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.core.HillSlopeDuffy;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.core.IHillSlope;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.core.Tributaries;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.duffy.ADischargeDistributor;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.duffy.DuffyInputs;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.duffy.DuffyModel;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.duffy.FlatDuffyModel;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.duffy.FlatRungeKuttaFelberg;
+import org.jgrasstools.hortonmachine.modules.hydrogeomorphology.adige.duffy.RungeKuttaFelberg;
+import org.jgrasstools.hortonmachine.modules.network.PfafstetterNumber;
+import org.jgrasstools.hortonmachine.utils.HMTestCase;
+import org.joda.time.DateTime;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+/**
+ * Test the flat duffy engine against the object based one.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestAdigeFlatEngine extends HMTestCase {
+
+    private static final int LINKS_NUM = 300;
+    private static final double EPSILON = 1e-15;
+    /** the rounding differences of a single evaluation pile up over the adaptive substeps */
+    private static final double SOLVE_EPSILON = 1e-14;
+
+    private final IJGTProgressMonitor dummyPm = new DummyProgressMonitor();
+    private final long start = new DateTime(2000, 1, 1, 0, 0, 0, 0).getMillis();
+    private final long timestep = 60 * 60000L;
+    private final long end = start + 10 * timestep;
+
+    public void testFlatEngineEval() throws Exception {
+        for( int routing = 2; routing <= 4; routing++ ) {
+            double[] rain = createRain();
+
+            List<IHillSlope> hillslopes = createNetwork();
+            DuffyModel duffyModel = new DuffyModel(hillslopes, routing, dummyPm, false);
+            duffyModel.addDischargeDistributor(createDistributors(hillslopes));
+            double[] input = createInitialConditions(hillslopes);
+            double[] output = duffyModel.eval(start / 60000.0, input, rain, null, false);
+
+            for( int threads : new int[]{1, 4} ) {
+                List<IHillSlope> flatHillslopes = createNetwork();
+                FlatDuffyModel flatModel = new FlatDuffyModel(flatHillslopes, routing, dummyPm, threads);
+                try {
+                    flatModel.addDischargeDistributor(createDistributors(flatHillslopes));
+                    double[] flatInput = createInitialConditions(flatHillslopes);
+                    double[] flatOutput = new double[flatInput.length];
+                    flatModel.eval(start / 60000.0, flatInput, rain, null, false, flatOutput);
+
+                    // the clamped inputs and the derivatives have to be the same
+                    assertParity(input, flatInput, EPSILON);
+                    assertParity(output, flatOutput, EPSILON);
+                } finally {
+                    flatModel.close();
+                }
+            }
+        }
+    }
+
+    public void testFlatEngineSolve() throws Exception {
+        for( int routing = 2; routing <= 4; routing++ ) {
+            for( boolean withTributaries : new boolean[]{false, true} ) {
+                double[] rain = createRain();
+
+                List<IHillSlope> hillslopes = createNetwork();
+                DuffyModel duffyModel = new DuffyModel(hillslopes, routing, dummyPm, false);
+                duffyModel.addDischargeDistributor(createDistributors(hillslopes));
+                if (withTributaries) {
+                    duffyModel.addDischargeContributor(createTributaries());
+                }
+                RungeKuttaFelberg rungeKutta = new RungeKuttaFelberg(duffyModel, 1e-2, 10 / 60., dummyPm, false);
+                double[] conditions = createInitialConditions(hillslopes);
+                for( int i = 0; i < 5; i++ ) {
+                    rungeKutta.solve(new DateTime(start + i * timestep), 60, 1, conditions, rain, null);
+                    conditions = rungeKutta.getFinalCond();
+                }
+
+                for( int threads : new int[]{1, 3} ) {
+                    List<IHillSlope> flatHillslopes = createNetwork();
+                    FlatDuffyModel flatModel = new FlatDuffyModel(flatHillslopes, routing, dummyPm, threads);
+                    try {
+                        flatModel.addDischargeDistributor(createDistributors(flatHillslopes));
+                        if (withTributaries) {
+                            flatModel.addDischargeContributor(createTributaries());
+                        }
+                        FlatRungeKuttaFelberg flatRungeKutta = new FlatRungeKuttaFelberg(flatModel, 4 * LINKS_NUM, 1e-2,
+                                10 / 60., dummyPm, false);
+                        double[] flatConditions = createInitialConditions(flatHillslopes);
+                        for( int i = 0; i < 5; i++ ) {
+                            flatRungeKutta.solve(new DateTime(start + i * timestep), 60, 1, flatConditions, rain, null);
+                            flatConditions = flatRungeKutta.getFinalCond();
+                        }
+
+                        assertParity(conditions, flatConditions, SOLVE_EPSILON);
+                    } finally {
+                        flatModel.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private void assertParity( double[] expected, double[] value, double epsilon ) {
+        assertEquals(expected.length, value.length);
+        for( int i = 0; i < expected.length; i++ ) {
+            double scale = Math.max(1.0, Math.abs(expected[i]));
+            assertEquals("at position " + i, expected[i], value[i], epsilon * scale);
+        }
+    }
+
+    /**
+     * Create a random network of {@link #LINKS_NUM} links, ordered from the outlet
+     * upstream as the adige framework does.
+     */
+    private List<IHillSlope> createNetwork() {
+        Random random = new Random(7);
+        List<TestHillSlope> all = new ArrayList<TestHillSlope>();
+        TestHillSlope outlet = new TestHillSlope(0, random);
+        all.add(outlet);
+        for( int i = 1; i < LINKS_NUM; i++ ) {
+            TestHillSlope hillSlope = new TestHillSlope(i, random);
+            TestHillSlope downstream = all.get(random.nextInt(all.size()));
+            if (downstream.upstreamElements.size() >= 3) {
+                downstream = outlet;
+            }
+            downstream.upstreamElements.add(hillSlope);
+            hillSlope.downstreamElement = downstream;
+            all.add(hillSlope);
+        }
+        outlet.calculateUpstreamArea();
+
+        List<IHillSlope> ordered = new ArrayList<IHillSlope>();
+        DuffyInputs duffyInputs = new DuffyInputs();
+        duffyInputs.pEtrate = 0.0024;
+        addPreOrder(outlet, ordered, duffyInputs);
+        return ordered;
+    }
+
+    private void addPreOrder( TestHillSlope hillSlope, List<IHillSlope> ordered, DuffyInputs duffyInputs ) {
+        ordered.add(new HillSlopeDuffy(hillSlope, duffyInputs));
+        for( IHillSlope upstream : hillSlope.upstreamElements ) {
+            addPreOrder((TestHillSlope) upstream, ordered, duffyInputs);
+        }
+    }
+
+    private double[] createInitialConditions( List<IHillSlope> hillslopes ) {
+        Random random = new Random(11);
+        int linksNum = hillslopes.size();
+        double[] initialConditions = new double[4 * linksNum];
+        for( int i = 0; i < linksNum; i++ ) {
+            HillSlopeDuffy hillSlope = (HillSlopeDuffy) hillslopes.get(i);
+            double discharge = hillSlope.getUpstreamArea(null) / 1E6 * 0.01;
+            double s2max = hillSlope.getParameters().getS2max();
+            initialConditions[i] = 0.3 * discharge * (0.5 + random.nextDouble());
+            initialConditions[i + linksNum] = 0.7 * discharge;
+            initialConditions[i + 2 * linksNum] = 0.2 * s2max * random.nextDouble();
+            initialConditions[i + 3 * linksNum] = 0.25 * s2max * random.nextDouble();
+        }
+        // exercise the clamping to the minimum discharge
+        initialConditions[5] = 0;
+        return initialConditions;
+    }
+
+    private double[] createRain() {
+        Random random = new Random(3);
+        double[] rain = new double[LINKS_NUM];
+        for( int i = 0; i < rain.length; i++ ) {
+            rain[i] = random.nextDouble() * 20;
+        }
+        return rain;
+    }
+
+    private HashMap<Integer, ADischargeDistributor> createDistributors( List<IHillSlope> hillslopes ) {
+        HashMap<Integer, ADischargeDistributor> distributors = new HashMap<Integer, ADischargeDistributor>();
+        for( IHillSlope hillSlope : hillslopes ) {
+            distributors.put(hillSlope.getHillslopeId(), new TestDischargeDistributor(start, end, timestep));
+        }
+        return distributors;
+    }
+
+    private Tributaries createTributaries() {
+        HashMap<String, Integer> pfaff2Id = new HashMap<String, Integer>();
+        pfaff2Id.put("11", 1);
+        pfaff2Id.put("21", 2);
+        Tributaries tributaries = new Tributaries(pfaff2Id);
+        HashMap<Integer, double[]> data = new HashMap<Integer, double[]>();
+        data.put(1, new double[]{2.0});
+        data.put(2, new double[]{0.5});
+        tributaries.setCurrentData(data);
+        return tributaries;
+    }
+
+    /**
+     * A distributor with memory, so that the order of the calls matters.
+     */
+    private static class TestDischargeDistributor extends ADischargeDistributor {
+        public TestDischargeDistributor( long startDateMillis, long endDateMillis, long timeStepMillis ) {
+            super(startDateMillis, endDateMillis, timeStepMillis, new HashMap<Integer, Double>());
+        }
+
+        protected void distributeIncomingSuperficialDischarge( double superficialDischarge, double saturatedAreaPercentage,
+                long currentTimeInMillis ) {
+            int index = indexFromTimeInMillis(currentTimeInMillis);
+            superficialDischargeArray[index] = 0.5 * superficialDischargeArray[index] + 0.5 * superficialDischarge;
+        }
+
+        protected void distributeIncomingSubSuperficialDischarge( double subSuperficialDischarge,
+                double saturatedAreaPercentage, long currentTimeInMillis ) {
+            int index = indexFromTimeInMillis(currentTimeInMillis);
+            subSuperficialDischargeArray[index] = 0.7 * subSuperficialDischargeArray[index] + 0.3 * subSuperficialDischarge;
+        }
+    }
+
+    /**
+     * A synthetic hillslope that doesn't need features.
+     */
+    private static class TestHillSlope implements IHillSlope {
+        private final int id;
+        private final PfafstetterNumber pfafstetterNumber;
+        private final double area;
+        private final double linkLength;
+        private final double linkSlope;
+        private double upstreamArea;
+        private IHillSlope downstreamElement;
+        private final List<IHillSlope> upstreamElements = new ArrayList<IHillSlope>();
+
+        public TestHillSlope( int index, Random random ) {
+            id = 100 + index;
+            pfafstetterNumber = new PfafstetterNumber(String.valueOf(index + 1));
+            area = 1E5 + random.nextDouble() * 2E6;
+            linkLength = 200 + random.nextDouble() * 2000;
+            linkSlope = 0.001 + random.nextDouble() * 0.1;
+        }
+
+        private double calculateUpstreamArea() {
+            upstreamArea = area;
+            for( IHillSlope upstream : upstreamElements ) {
+                upstreamArea += ((TestHillSlope) upstream).calculateUpstreamArea();
+            }
+            return upstreamArea;
+        }
+
+        public int getHillslopeId() {
+            return id;
+        }
+
+        public SimpleFeature getLinkFeature() {
+            return null;
+        }
+
+        public double getLinkLength() {
+            return linkLength;
+        }
+
+        public double getLinkSlope() {
+            return linkSlope;
+        }
+
+        public double getLinkWidth( double coefficient, double exponent, double sdResiduals ) {
+            // no random residuals, the two engines have to see the same widths
+            return coefficient * Math.pow(upstreamArea / 1E6, exponent);
+        }
+
+        public double getLinkChezi( double coefficient, double exponent ) {
+            return coefficient * Math.pow(linkSlope, exponent);
+        }
+
+        public SimpleFeature getHillslopeFeature() {
+            return null;
+        }
+
+        public double getHillslopeArea() {
+            return area;
+        }
+
+        public double getBaricenterElevation() {
+            return 0;
+        }
+
+        public Coordinate getHillslopeClosure() {
+            return null;
+        }
+
+        public Geometry getGeometry( List<PfafstetterNumber> limit, IJGTProgressMonitor pm, boolean doMonitor ) {
+            return null;
+        }
+
+        public double getUpstreamArea( List<PfafstetterNumber> limit ) {
+            return upstreamArea;
+        }
+
+        public PfafstetterNumber getPfafstetterNumber() {
+            return pfafstetterNumber;
+        }
+
+        public IHillSlope getFirstOfMaiorBasinElement() {
+            return null;
+        }
+
+        public boolean addConnectedUpstreamElementWithCheck( IHillSlope element ) {
+            return false;
+        }
+
+        public boolean addConnectedDownstreamElementWithCheck( IHillSlope element ) {
+            return false;
+        }
+
+        public IHillSlope getUpstreamElementAtPfafstetter( PfafstetterNumber pNum ) {
+            return null;
+        }
+
+        public IHillSlope getConnectedDownstreamElement() {
+            return downstreamElement;
+        }
+
+        public List<IHillSlope> getConnectedUpstreamElements() {
+            if (upstreamElements.isEmpty()) {
+                return null;
+            }
+            return upstreamElements;
+        }
+
+        public void getAllUpstreamElements( List<IHillSlope> elems, List<PfafstetterNumber> limit ) {
+            elems.add(this);
+            for( IHillSlope upstream : upstreamElements ) {
+                upstream.getAllUpstreamElements(elems, limit);
+            }
+        }
+
+        public void getAllUpstreamElementsGeometries( List<Geometry> elems, List<PfafstetterNumber> limit,
+                IHillSlope firstOfMaiorBasin ) {
+        }
+
+        public int compare( IHillSlope o1, IHillSlope o2 ) {
+            return o1.getPfafstetterNumber().compareTo(o2.getPfafstetterNumber());
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + pfafstetterNumber.hashCode();
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if (obj instanceof IHillSlope) {
+                IHillSlope other = (IHillSlope) obj;
+                return pfafstetterNumber.compareTo(other.getPfafstetterNumber()) == 0;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return pfafstetterNumber.toString();
+        }
+    }
+}
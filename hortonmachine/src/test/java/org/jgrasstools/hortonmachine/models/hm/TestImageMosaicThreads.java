@@ -0,0 +1,123 @@
+package org.jgrasstools.hortonmachine.models.hm;
+
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.io.rasterreader.OmsRasterReader;
+import org.jgrasstools.gears.io.rasterwriter.OmsRasterWriter;
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.modules.r.imagemosaic.OmsImageMosaicCreator;
+import org.jgrasstools.gears.utils.RegionMap;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+import org.jgrasstools.hortonmachine.modules.geomorphology.aspect.OmsAspectIM;
+import org.jgrasstools.hortonmachine.utils.HMTestCase;
+import org.jgrasstools.hortonmachine.utils.HMTestMaps;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Test that the tiles of an image mosaic module are the same on any number of threads.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestImageMosaicThreads extends HMTestCase {
+
+    private static final int TILE_COLS = 5;
+    private static final int TILE_ROWS = 4;
+
+    private File folder;
+    private File elevMosaic;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = File.createTempFile("jgt-imagemosaic", "");
+        folder.delete();
+        folder.mkdirs();
+
+        // the test dem split into 2x2 tiles
+        File elevFolder = new File(folder, "elev");
+        elevFolder.mkdirs();
+        RegionMap region = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        double xRes = region.getXres();
+        double yRes = region.getYres();
+        for( int tileRow = 0; tileRow < 2; tileRow++ ) {
+            for( int tileCol = 0; tileCol < 2; tileCol++ ) {
+                double[][] tileData = new double[TILE_ROWS][];
+                for( int r = 0; r < TILE_ROWS; r++ ) {
+                    int row = tileRow * TILE_ROWS + r;
+                    tileData[r] = Arrays.copyOfRange(HMTestMaps.mapData[row], tileCol * TILE_COLS, (tileCol + 1) * TILE_COLS);
+                }
+                double north = region.getNorth() - tileRow * TILE_ROWS * yRes;
+                double west = region.getWest() + tileCol * TILE_COLS * xRes;
+                RegionMap tileRegion = CoverageUtilities.makeRegionParamsMap(north, north - TILE_ROWS * yRes, west, west
+                        + TILE_COLS * xRes, xRes, yRes, TILE_COLS, TILE_ROWS);
+                GridCoverage2D tile = CoverageUtilities.buildCoverage("elev", tileData, tileRegion, crs, true);
+                File tileFile = new File(elevFolder, "elev_" + tileRow + "_" + tileCol + ".tiff");
+                OmsRasterWriter.writeRaster(tileFile.getAbsolutePath(), tile);
+            }
+        }
+        OmsImageMosaicCreator mosaicCreator = new OmsImageMosaicCreator();
+        mosaicCreator.pm = pm;
+        mosaicCreator.inFolder = elevFolder.getAbsolutePath();
+        mosaicCreator.process();
+        elevMosaic = new File(elevFolder, "elev.shp");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtilities.deleteFileOrDir(folder);
+    }
+
+    public void testAspectOnThreads() throws Exception {
+        File serialFolder = runAspect("serial", 1);
+        File parallelFolder = runAspect("parallel", 3);
+
+        File[] serialTiles = serialFolder.listFiles(new FilenameFilter(){
+            public boolean accept( File dir, String name ) {
+                return name.endsWith(".tiff");
+            }
+        });
+        assertEquals(4, serialTiles.length);
+        int checked = 0;
+        for( File serialTile : serialTiles ) {
+            File parallelTile = new File(parallelFolder, serialTile.getName());
+            assertTrue(parallelTile.getName(), parallelTile.exists());
+
+            Raster expected = OmsRasterReader.readRaster(serialTile.getAbsolutePath()).getRenderedImage().getData();
+            Raster actual = OmsRasterReader.readRaster(parallelTile.getAbsolutePath()).getRenderedImage().getData();
+            assertEquals(expected.getWidth(), actual.getWidth());
+            assertEquals(expected.getHeight(), actual.getHeight());
+            for( int r = 0; r < expected.getHeight(); r++ ) {
+                for( int c = 0; c < expected.getWidth(); c++ ) {
+                    double expectedValue = expected.getSampleDouble(c, r, 0);
+                    // the bits are compared, so that novalues match too
+                    assertEquals(serialTile.getName() + " " + c + "/" + r, Double.doubleToLongBits(expectedValue),
+                            Double.doubleToLongBits(actual.getSampleDouble(c, r, 0)));
+                    if (!JGTConstants.isNovalue(expectedValue)) {
+                        checked++;
+                    }
+                }
+            }
+        }
+        assertTrue(checked > 0);
+    }
+
+    private File runAspect( String name, int threads ) throws Exception {
+        File outFolder = new File(folder, name);
+        outFolder.mkdirs();
+
+        OmsAspectIM aspect = new OmsAspectIM();
+        aspect.pm = pm;
+        aspect.inElev = elevMosaic.getAbsolutePath();
+        aspect.outAspect = new File(outFolder, "aspect.tiff").getAbsolutePath();
+        aspect.doRound = false;
+        aspect.pMaxThreads = threads;
+        aspect.process();
+        return outFolder;
+    }
+}
@@ -60,4 +60,50 @@ public class TestInsolation extends HMTestCase {
         checkMatrixEqual(insolationCoverage.getRenderedImage(), HMTestMaps.outInsolation, 0.1);
     }
 
+    public void testInsolationMultiThreaded() throws Exception {
+        double[][] elevationData = HMTestMaps.mapData;
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs3004();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", elevationData, envelopeParams, crs, true);
+
+        OmsInsolation insolation = new OmsInsolation();
+        insolation.inElev = elevationCoverage;
+        insolation.tStartDate = START_DATE;
+        insolation.tEndDate = END_DATE;
+        insolation.pMaxThreads = 4;
+        insolation.pm = pm;
+        insolation.process();
+
+        checkMatrixEqual(insolation.outIns.getRenderedImage(), HMTestMaps.outInsolation, 0.1);
+    }
+
+    public void testInsolationFromHorizonSectors() throws Exception {
+        double[][] elevationData = HMTestMaps.mapData;
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs3004();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", elevationData, envelopeParams, crs, true);
+
+        OmsInsolation insolation = new OmsInsolation();
+        insolation.inElev = elevationCoverage;
+        insolation.tStartDate = START_DATE;
+        insolation.tEndDate = END_DATE;
+        insolation.pm = pm;
+        insolation.process();
+        GridCoverage2D rayMarchCoverage = insolation.outIns;
+
+        insolation = new OmsInsolation();
+        insolation.inElev = elevationCoverage;
+        insolation.tStartDate = START_DATE;
+        insolation.tEndDate = END_DATE;
+        insolation.pHorizonSectors = 72;
+        insolation.pMaxThreads = 4;
+        insolation.pm = pm;
+        insolation.process();
+
+        // the interpolated horizons can change the shading of the sun positions that graze them
+        double meanDifference = checkImagesEqual(insolation.outIns.getRenderedImage(), rayMarchCoverage.getRenderedImage(),
+                1.0);
+        assertTrue(meanDifference < 0.3);
+    }
+
 }
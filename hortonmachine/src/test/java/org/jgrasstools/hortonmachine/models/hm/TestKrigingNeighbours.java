@@ -0,0 +1,174 @@
+package org.jgrasstools.hortonmachine.models.hm;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.jgrasstools.gears.io.shapefile.OmsShapefileFeatureReader;
+import org.jgrasstools.gears.io.timedependent.OmsTimeSeriesIteratorReader;
+import org.jgrasstools.hortonmachine.modules.statistics.kriging.OmsKriging;
+import org.jgrasstools.hortonmachine.utils.HMTestCase;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Test the kriging limited to the neighbour stations against the solve of the full system.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestKrigingNeighbours extends HMTestCase {
+
+    private static final String STATION_ID = "ID_PUNTI_M";
+    private static final String POINT_ID = "netnum";
+
+    private SimpleFeatureCollection stationsFC;
+    private SimpleFeatureCollection pointsFC;
+    private HashMap<Integer, double[]> data;
+
+    @Override
+    protected void setUp() throws Exception {
+        URL stationsUrl = this.getClass().getClassLoader().getResource("rainstations.shp");
+        stationsFC = OmsShapefileFeatureReader.readShapefile(new File(stationsUrl.toURI()).getAbsolutePath());
+
+        URL pointsUrl = this.getClass().getClassLoader().getResource("basins_passirio_width0.shp");
+        pointsFC = OmsShapefileFeatureReader.readShapefile(new File(pointsUrl.toURI()).getAbsolutePath());
+
+        URL rainUrl = this.getClass().getClassLoader().getResource("rain_test.csv");
+        OmsTimeSeriesIteratorReader reader = new OmsTimeSeriesIteratorReader();
+        reader.file = new File(rainUrl.toURI()).getAbsolutePath();
+        reader.idfield = "ID";
+        reader.tStart = "2000-01-01 00:00";
+        reader.tTimestep = 60;
+        reader.fileNovalue = "-9999";
+        reader.initProcess();
+        reader.nextRecord();
+        data = reader.outData;
+        reader.close();
+    }
+
+    public void testAllNeighboursMatchTheFullSystem() throws Exception {
+        OmsKriging full = createKriging(stationsFC, pointsFC);
+        full.process();
+
+        // all the stations are the neighbours of every point
+        OmsKriging neighbours = createKriging(stationsFC, pointsFC);
+        neighbours.pMaxNeighbours = stationsFC.size();
+        neighbours.pMaxThreads = 2;
+        neighbours.process();
+
+        OmsKriging distance = createKriging(stationsFC, pointsFC);
+        distance.pMaxDistance = 1E7;
+        distance.process();
+
+        assertEquals(full.outData.keySet(), neighbours.outData.keySet());
+        for( Entry<Integer, double[]> entry : full.outData.entrySet() ) {
+            double expected = entry.getValue()[0];
+            assertEquals(expected, neighbours.outData.get(entry.getKey())[0], 1E-9);
+            assertEquals(expected, distance.outData.get(entry.getKey())[0], 1E-9);
+        }
+    }
+
+    public void testNearestStationsMatchTheirOwnSystem() throws Exception {
+        int maxNeighbours = 5;
+        OmsKriging neighbours = createKriging(stationsFC, pointsFC);
+        neighbours.pMaxNeighbours = maxNeighbours;
+        neighbours.process();
+
+        List<SimpleFeature> stations = stationsWithData();
+        assertTrue(stations.size() > maxNeighbours);
+
+        FeatureIterator<SimpleFeature> pointsIter = pointsFC.features();
+        try {
+            while( pointsIter.hasNext() ) {
+                SimpleFeature point = pointsIter.next();
+                final Coordinate coordinate = centroid(point);
+                Collections.sort(stations, new Comparator<SimpleFeature>(){
+                    public int compare( SimpleFeature f1, SimpleFeature f2 ) {
+                        return Double.compare(centroid(f1).distance(coordinate), centroid(f2).distance(coordinate));
+                    }
+                });
+
+                // the full kriging of the point with only its nearest stations
+                OmsKriging nearest = createKriging(collection(stations.subList(0, maxNeighbours)),
+                        collection(Collections.singletonList(point)));
+                nearest.process();
+
+                int id = ((Number) point.getAttribute(POINT_ID)).intValue();
+                assertEquals("point " + id, nearest.outData.get(id)[0], neighbours.outData.get(id)[0], 1E-9);
+            }
+        } finally {
+            pointsIter.close();
+        }
+    }
+
+    public void testPointsWithoutStationsAreNovalues() throws Exception {
+        OmsKriging distance = createKriging(stationsFC, pointsFC);
+        distance.pMaxDistance = 1.0;
+        distance.process();
+
+        assertEquals(pointsFC.size(), distance.outData.size());
+        for( double[] value : distance.outData.values() ) {
+            assertTrue(isNovalue(value[0]));
+        }
+    }
+
+    private OmsKriging createKriging( SimpleFeatureCollection stations, SimpleFeatureCollection points ) {
+        OmsKriging kriging = new OmsKriging();
+        kriging.pm = pm;
+        kriging.inStations = stations;
+        kriging.fStationsid = STATION_ID;
+        kriging.inData = data;
+        kriging.inInterpolate = points;
+        kriging.fInterpolateid = POINT_ID;
+        kriging.pMode = 0;
+        kriging.defaultVariogramMode = 1;
+        kriging.pSemivariogramType = 1;
+        kriging.pA = 123537.0;
+        kriging.pNug = 0.0;
+        kriging.pS = 1.678383;
+        return kriging;
+    }
+
+    /**
+     * @return the stations the kriging uses, the ones with a value.
+     */
+    private List<SimpleFeature> stationsWithData() {
+        List<SimpleFeature> stations = new ArrayList<SimpleFeature>();
+        FeatureIterator<SimpleFeature> stationsIter = stationsFC.features();
+        try {
+            while( stationsIter.hasNext() ) {
+                SimpleFeature station = stationsIter.next();
+                double[] value = data.get(((Number) station.getAttribute(STATION_ID)).intValue());
+                if (value != null && !isNovalue(value[0])) {
+                    stations.add(station);
+                }
+            }
+        } finally {
+            stationsIter.close();
+        }
+        return stations;
+    }
+
+    private static SimpleFeatureCollection collection( List<SimpleFeature> features ) {
+        DefaultFeatureCollection collection = new DefaultFeatureCollection();
+        collection.addAll(features);
+        return collection;
+    }
+
+    private static Coordinate centroid( SimpleFeature feature ) {
+        return ((Geometry) feature.getDefaultGeometry()).getCentroid().getCoordinate();
+    }
+}
@@ -0,0 +1,229 @@
+package org.jgrasstools.hortonmachine.models.hm;
+
+import java.awt.image.Raster;
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.jgrasstools.gears.io.shapefile.OmsShapefileFeatureReader;
+import org.jgrasstools.gears.io.timedependent.OmsTimeSeriesIteratorReader;
+import org.jgrasstools.gears.utils.RegionMap;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.math.matrixes.ColumnVector;
+import org.jgrasstools.gears.utils.math.matrixes.LinearSystem;
+import org.jgrasstools.hortonmachine.modules.statistics.kriging.OmsKriging;
+import org.jgrasstools.hortonmachine.utils.HMTestCase;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Test that the kriging gives the same values on any number of threads.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestKrigingParallel extends HMTestCase {
+
+    private SimpleFeatureCollection stationsFC;
+    private SimpleFeatureCollection pointsFC;
+    private OmsTimeSeriesIteratorReader reader;
+
+    @Override
+    protected void setUp() throws Exception {
+        URL stationsUrl = this.getClass().getClassLoader().getResource("rainstations.shp");
+        stationsFC = OmsShapefileFeatureReader.readShapefile(new File(stationsUrl.toURI()).getAbsolutePath());
+
+        URL pointsUrl = this.getClass().getClassLoader().getResource("basins_passirio_width0.shp");
+        pointsFC = OmsShapefileFeatureReader.readShapefile(new File(pointsUrl.toURI()).getAbsolutePath());
+
+        URL rainUrl = this.getClass().getClassLoader().getResource("rain_test.csv");
+        reader = new OmsTimeSeriesIteratorReader();
+        reader.file = new File(rainUrl.toURI()).getAbsolutePath();
+        reader.idfield = "ID";
+        reader.tStart = "2000-01-01 00:00";
+        reader.tTimestep = 60;
+        reader.fileNovalue = "-9999";
+        reader.initProcess();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        reader.close();
+    }
+
+    public void testPointsOnThreads() throws Exception {
+        while( reader.doProcess ) {
+            reader.nextRecord();
+            HashMap<Integer, double[]> data = reader.outData;
+
+            OmsKriging serial = createKriging(data, 1);
+            serial.pMode = 0;
+            serial.inInterpolate = pointsFC;
+            serial.fInterpolateid = "netnum";
+            serial.process();
+
+            OmsKriging parallel = createKriging(data, 4);
+            parallel.pMode = 0;
+            parallel.inInterpolate = pointsFC;
+            parallel.fInterpolateid = "netnum";
+            parallel.process();
+
+            assertEquals(pointsFC.size(), serial.outData.size());
+            assertEquals(serial.outData.keySet(), parallel.outData.keySet());
+            for( Entry<Integer, double[]> entry : serial.outData.entrySet() ) {
+                double expected = entry.getValue()[0];
+                double actual = parallel.outData.get(entry.getKey())[0];
+                assertEquals("point " + entry.getKey(), Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+            }
+        }
+    }
+
+    public void testGridOnThreads() throws Exception {
+        ReferencedEnvelope bounds = stationsFC.getBounds();
+        GridGeometry2D grid = CoverageUtilities.gridGeometryFromRegionValues(bounds.getMaxY(), bounds.getMinY(),
+                bounds.getMaxX(), bounds.getMinX(), 37, 23, bounds.getCoordinateReferenceSystem());
+
+        reader.nextRecord();
+        HashMap<Integer, double[]> data = reader.outData;
+
+        OmsKriging serial = createKriging(data, 1);
+        serial.pMode = 1;
+        serial.inInterpolationGrid = grid;
+        serial.process();
+
+        OmsKriging parallel = createKriging(data, 3);
+        parallel.pMode = 1;
+        parallel.inInterpolationGrid = grid;
+        parallel.process();
+
+        Raster expected = serial.outGrid.getRenderedImage().getData();
+        Raster actual = parallel.outGrid.getRenderedImage().getData();
+        assertEquals(37, expected.getWidth());
+        assertEquals(23, expected.getHeight());
+        for( int r = 0; r < expected.getHeight(); r++ ) {
+            for( int c = 0; c < expected.getWidth(); c++ ) {
+                // the bits are compared, so that novalues match too
+                assertEquals(Double.doubleToLongBits(expected.getSampleDouble(c, r, 0)),
+                        Double.doubleToLongBits(actual.getSampleDouble(c, r, 0)));
+            }
+        }
+    }
+
+    public void testGridMatchesTheSerialSolve() throws Exception {
+        ReferencedEnvelope bounds = stationsFC.getBounds();
+        GridGeometry2D grid = CoverageUtilities.gridGeometryFromRegionValues(bounds.getMaxY(), bounds.getMinY(),
+                bounds.getMaxX(), bounds.getMinX(), 19, 13, bounds.getCoordinateReferenceSystem());
+
+        reader.nextRecord();
+        HashMap<Integer, double[]> data = reader.outData;
+
+        // the grid points have no elevation, so the one of the stations must not be used
+        OmsKriging kriging = createKriging(data, 3);
+        kriging.fStationsZ = "QUOTA";
+        kriging.pMode = 1;
+        kriging.inInterpolationGrid = grid;
+        kriging.process();
+
+        Double[][] expected = solvePointByPoint(grid, data);
+        Raster actual = kriging.outGrid.getRenderedImage().getData();
+        int checked = 0;
+        for( int r = 0; r < expected.length; r++ ) {
+            for( int c = 0; c < expected[0].length; c++ ) {
+                if (expected[r][c] != null) {
+                    assertEquals(expected[r][c], actual.getSampleDouble(c, r, 0), 1E-9);
+                    checked++;
+                }
+            }
+        }
+        assertTrue(checked > 19 * 12);
+    }
+
+    /**
+     * The gridded kriging as it was done before the system was factorized once:
+     * a full solve for every point, in the plane.
+     * 
+     * @return the values by row and column, <code>null</code> where no point falls.
+     */
+    private Double[][] solvePointByPoint( GridGeometry2D grid, HashMap<Integer, double[]> data ) throws Exception {
+        List<Coordinate> stations = new ArrayList<Coordinate>();
+        List<Double> values = new ArrayList<Double>();
+        FeatureIterator<SimpleFeature> stationsIter = stationsFC.features();
+        try {
+            while( stationsIter.hasNext() ) {
+                SimpleFeature feature = stationsIter.next();
+                double[] h = data.get(((Number) feature.getAttribute("ID_PUNTI_M")).intValue());
+                if (h != null && !Double.isNaN(h[0])) {
+                    stations.add(((Geometry) feature.getDefaultGeometry()).getCentroid().getCoordinate());
+                    values.add(h[0]);
+                }
+            }
+        } finally {
+            stationsIter.close();
+        }
+
+        int n = stations.size();
+        double[][] covariance = new double[n + 1][n + 1];
+        for( int i = 0; i < n; i++ ) {
+            for( int j = 0; j < n; j++ ) {
+                covariance[i][j] = variogram(stations.get(i).distance(stations.get(j)));
+            }
+            covariance[i][n] = 1.0;
+            covariance[n][i] = 1.0;
+        }
+
+        RegionMap region = CoverageUtilities.gridGeometry2RegionParamsMap(grid);
+        Double[][] result = new Double[region.getRows()][region.getCols()];
+        MathTransform transform = grid.getCRSToGrid2D();
+        DirectPosition2D gridPoint = new DirectPosition2D();
+        for( int i = 0; i < region.getCols(); i++ ) {
+            for( int j = 0; j < region.getRows(); j++ ) {
+                Coordinate point = new Coordinate(region.getWest() + i * region.getXres(), region.getSouth() + j
+                        * region.getYres());
+                double[] knownTerm = new double[n + 1];
+                for( int k = 0; k < n; k++ ) {
+                    knownTerm[k] = variogram(stations.get(k).distance(point));
+                }
+                knownTerm[n] = 1.0;
+                double[] weights = new LinearSystem(covariance).solve(new ColumnVector(knownTerm), true).copyValues1D();
+                double value = 0;
+                for( int k = 0; k < n; k++ ) {
+                    value += weights[k] * values.get(k);
+                }
+
+                transform.transform(new DirectPosition2D(grid.getCoordinateReferenceSystem(), point.x, point.y), gridPoint);
+                result[(int) gridPoint.y][(int) gridPoint.x] = Math.max(0.0, value);
+            }
+        }
+        return result;
+    }
+
+    private double variogram( double distance ) {
+        return 0.0 + 1.678383 * (1 - Math.exp(-distance / 123537.0));
+    }
+
+    private OmsKriging createKriging( HashMap<Integer, double[]> data, int threads ) {
+        OmsKriging kriging = new OmsKriging();
+        kriging.pm = pm;
+        kriging.inStations = stationsFC;
+        kriging.fStationsid = "ID_PUNTI_M";
+        kriging.inData = data;
+        kriging.defaultVariogramMode = 1;
+        kriging.pSemivariogramType = 1;
+        kriging.pA = 123537.0;
+        kriging.pNug = 0.0;
+        kriging.pS = 1.678383;
+        kriging.pMaxThreads = threads;
+        return kriging;
+    }
+}
@@ -49,4 +49,69 @@ public class TestPitfiller extends HMTestCase {
 
         checkMatrixEqual(pitfillerCoverage.getRenderedImage(), HMTestMaps.outPitData, 0);
     }
+
+    public void testPitfillerPriorityFlood() throws Exception {
+        double[][] elevationData = HMTestMaps.mapData;
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", elevationData, envelopeParams, crs, true);
+
+        OmsPitfiller pitfiller = new OmsPitfiller();
+        pitfiller.inElev = elevationCoverage;
+        pitfiller.doPriorityFlood = true;
+        pitfiller.pm = pm;
+        pitfiller.process();
+        checkMatrixEqual(pitfiller.outPit.getRenderedImage(), HMTestMaps.outPitData, 0);
+
+        pitfiller = new OmsPitfiller();
+        pitfiller.inElev = elevationCoverage;
+        pitfiller.doPriorityFlood = true;
+        pitfiller.doEpsilon = true;
+        pitfiller.pm = pm;
+        pitfiller.process();
+        checkMatrixEqual(pitfiller.outPit.getRenderedImage(), HMTestMaps.outPitData, 0.001);
+    }
+
+    public void testPitfillerPriorityFloodNegativeElevations() throws Exception {
+        double N = Double.NaN;
+        // a -1 outlet on the border, a -1 pit and novalues inside and on the border
+        double[][] elevationData = new double[][]{//
+        /*    */{N, 5, 5, 5, 5, 5, 5, 5, 5, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 2, N, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 2, 2, 2, -1, 2, 2, 2, 2, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 5, 5, 5, 5, 5, 5, 5, 4, -1} //
+        };
+        double[][] expectedData = new double[][]{//
+        /*    */{N, 5, 5, 5, 5, 5, 5, 5, 5, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 2, 2, 2, 2, 2, 2, 2, 2, 5}, //
+                {5, 5, 5, 5, 5, 5, 5, 5, 4, -1} //
+        };
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", elevationData, envelopeParams, crs, true);
+
+        OmsPitfiller pitfiller = new OmsPitfiller();
+        pitfiller.inElev = elevationCoverage;
+        pitfiller.doPriorityFlood = true;
+        pitfiller.pm = pm;
+        pitfiller.process();
+        checkMatrixEqual(pitfiller.outPit.getRenderedImage(), expectedData, 0);
+
+        pitfiller = new OmsPitfiller();
+        pitfiller.inElev = elevationCoverage;
+        pitfiller.doPriorityFlood = true;
+        pitfiller.doEpsilon = true;
+        pitfiller.pm = pm;
+        pitfiller.process();
+        checkMatrixEqual(pitfiller.outPit.getRenderedImage(), expectedData, 0.001);
+    }
 }
@@ -49,4 +49,28 @@ public class TestSkyview extends HMTestCase {
         checkMatrixEqual(hillshadeCoverage.getRenderedImage(), HMTestMaps.outSkyview, 0.03);
     }
 
+    public void testSkyviewFromHorizonSectors() throws Exception {
+        double[][] elevationData = HMTestMaps.mapData;
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs3004();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", elevationData, envelopeParams, crs, true);
+
+        OmsSkyview skyview = new OmsSkyview();
+        skyview.inElev = elevationCoverage;
+        skyview.pm = pm;
+        skyview.process();
+        GridCoverage2D rayMarchCoverage = skyview.outSky;
+
+        skyview = new OmsSkyview();
+        skyview.inElev = elevationCoverage;
+        skyview.pHorizonSectors = 72;
+        skyview.pMaxThreads = 4;
+        skyview.pm = pm;
+        skyview.process();
+
+        // the horizons are interpolated between sectors, so they are close to the marched rays
+        double meanDifference = checkImagesEqual(skyview.outSky.getRenderedImage(), rayMarchCoverage.getRenderedImage(), 0.05);
+        assertTrue(meanDifference < 0.02);
+    }
+
 }
@@ -64,4 +64,41 @@ public class TestSumDownStream extends HMTestCase {
         checkMatrixEqual(summedCoverage.getRenderedImage(), HMTestMaps.sumDownstreamThresData, 0.01);
     }
 
+    public void testSumDownstreamTopological() throws Exception {
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+
+        double[][] flowData = HMTestMaps.netFlowData;
+        GridCoverage2D flowCoverage = CoverageUtilities.buildCoverage("flow", flowData, envelopeParams, crs, true); //$NON-NLS-1$
+        double[][] toSumData = HMTestMaps.netOneData;
+        GridCoverage2D toSumCoverage = CoverageUtilities.buildCoverage("tosum", toSumData, envelopeParams, crs, true); //$NON-NLS-1$
+
+        OmsSumDownStream sumDownstream = new OmsSumDownStream();
+        sumDownstream.pm = pm;
+        sumDownstream.inFlow = flowCoverage;
+        sumDownstream.inToSum = toSumCoverage;
+        sumDownstream.doTopological = true;
+        sumDownstream.pMaxThreads = 2;
+        sumDownstream.process();
+        GridCoverage2D summedCoverage = sumDownstream.outSummed;
+        checkMatrixEqual(summedCoverage.getRenderedImage(), HMTestMaps.sumDownstreamData, 0.01);
+
+        // with threshold
+        double[][] toSumThresData = HMTestMaps.netOneThresData;
+        GridCoverage2D toSumThresCoverage = CoverageUtilities.buildCoverage(
+                "tosumthres", toSumThresData, envelopeParams, crs, true); //$NON-NLS-1$
+        sumDownstream = new OmsSumDownStream();
+        sumDownstream.pm = pm;
+        sumDownstream.inFlow = flowCoverage;
+        sumDownstream.inToSum = toSumThresCoverage;
+        sumDownstream.pUpperThres = 2.0;
+        sumDownstream.pLowerThres = 0.0;
+        sumDownstream.doTopological = true;
+        sumDownstream.pMaxThreads = 2;
+        sumDownstream.process();
+        summedCoverage = sumDownstream.outSummed;
+
+        checkMatrixEqual(summedCoverage.getRenderedImage(), HMTestMaps.sumDownstreamThresData, 0.01);
+    }
+
 }
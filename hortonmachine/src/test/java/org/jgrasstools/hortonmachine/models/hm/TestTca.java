@@ -68,4 +68,24 @@ public class TestTca extends HMTestCase {
         checkMatrixEqual(tcaCoverage.getRenderedImage(), HMTestMaps.tcaData);
     }
 
-}
\ No newline at end of file
+    public void testTopologicalTca() throws Exception {
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+
+        double[][] flowData = HMTestMaps.flowData;
+        GridCoverage2D flowCoverage = CoverageUtilities.buildCoverage("flow", flowData, envelopeParams, crs, true);
+
+        for( int threads = 1; threads <= 4; threads++ ) {
+            OmsTca tca = new OmsTca();
+            tca.inFlow = flowCoverage;
+            tca.doTopological = true;
+            tca.pMaxThreads = threads;
+            tca.pm = pm;
+            tca.process();
+            GridCoverage2D tcaCoverage = tca.outTca;
+
+            checkMatrixEqual(tcaCoverage.getRenderedImage(), HMTestMaps.tcaData);
+        }
+    }
+
+}
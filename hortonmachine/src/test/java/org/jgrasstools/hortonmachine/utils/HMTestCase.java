@@ -92,6 +92,39 @@ public class HMTestCase extends TestCase {
         } while( !rectIter.nextLineDone() );
     }
 
+    /**
+     * Compare two images cell by cell.
+     * 
+     * @param image the image to check.
+     * @param expectedImage the expected image.
+     * @param delta the tolerance of every cell.
+     * @return the mean absolute difference of the valid cells.
+     */
+    protected double checkImagesEqual( RenderedImage image, RenderedImage expectedImage, double delta ) {
+        assertEquals(expectedImage.getWidth(), image.getWidth());
+        assertEquals(expectedImage.getHeight(), image.getHeight());
+        RandomIter iter = RandomIterFactory.create(image, null);
+        RandomIter expectedIter = RandomIterFactory.create(expectedImage, null);
+        double differencesSum = 0;
+        int count = 0;
+        for( int y = 0; y < image.getHeight(); y++ ) {
+            for( int x = 0; x < image.getWidth(); x++ ) {
+                double value = iter.getSampleDouble(x + image.getMinX(), y + image.getMinY(), 0);
+                double expectedResult = expectedIter.getSampleDouble(x + expectedImage.getMinX(), y
+                        + expectedImage.getMinY(), 0);
+                if (isNovalue(expectedResult)) {
+                    assertTrue("Difference at position: " + x + " " + y, isNovalue(value));
+                } else {
+                    assertEquals("Difference at position: " + x + " " + y, expectedResult, value, delta);
+                    differencesSum += Math.abs(expectedResult - value);
+                    count++;
+                }
+            }
+        }
+        assertTrue(count > 0);
+        return differencesSum / count;
+    }
+
     protected void checkEqualsSinlgeValue( RenderedImage image, double expectedResult, double delta ) {
         RectIter rectIter = RectIterFactory.create(image, null);
         int y = 0;
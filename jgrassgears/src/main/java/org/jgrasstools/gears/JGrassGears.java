@@ -30,6 +30,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import org.jgrasstools.gears.libs.modules.ClassField;
+import org.jgrasstools.gears.libs.modules.ModulesIndex;
 import org.scannotation.AnnotationDB;
 import org.scannotation.ClasspathUrlFinder;
 import org.slf4j.Logger;
@@ -139,7 +140,30 @@ public class JGrassGears {
         return jgrassGears;
     }
 
+    /**
+     * Fill the registry from the component index written at build time, if available.
+     * 
+     * @return <code>false</code> if the classpath needs to be scanned.
+     */
+    private boolean gatherFromIndex() {
+        List<String> classNames = new ArrayList<String>();
+        List<String> fieldNamesList = new ArrayList<String>();
+        if (!ModulesIndex.gather(JGrassGears.class.getClassLoader(), "org.jgrasstools.gears", moduleName2Class, moduleName2Fields, classNames,
+                fieldNamesList)) {
+            return false;
+        }
+        Collections.sort(fieldNamesList);
+        allFields = (String[]) fieldNamesList.toArray(new String[fieldNamesList.size()]);
+        Collections.sort(classNames);
+        allClasses = (String[]) classNames.toArray(new String[classNames.size()]);
+        return true;
+    }
+
     private void gatherInformations() {
+        // an explicit url is scanned, otherwise the index avoids loading and instantiating all the modules
+        if (baseclassUrl == null && gatherFromIndex()) {
+            return;
+        }
 
         try {
             if (baseclassUrl == null) {
@@ -41,6 +41,7 @@ public class GearsMessages {
     public static final String GENERIC_P_COLS_DESCRIPTION = "The cols of the region to consider";
     public static final String GENERIC_P_X_RES_DESCRIPTION = "The requested resolution in x.";
     public static final String GENERIC_P_Y_RES_DESCRIPTION = "The requested resolution in y.";
+    public static final String JGTMODELIM_P_MAX_THREADS_DESCRIPTION = "The number of tiles to process in parallel (default 1).";
 
     public static final String OMSGEOPAPARAZZICONVERTER_LABEL = JGTConstants.VECTORPROCESSING;
     public static final String OMSGEOPAPARAZZICONVERTER_TAGS = "geopaparazzi, vector";
@@ -1018,6 +1019,7 @@ public class GearsMessages {
     public static final String OMSSURFACEINTERPOLATOR_F_CAT_DESCRIPTION = "Field from which to take the category value.";
     public static final String OMSSURFACEINTERPOLATOR_P_MODE_DESCRIPTION = "Interpolation mode.";
     public static final String OMSSURFACEINTERPOLATOR_P_BUFFER_DESCRIPTION = "The buffer to use for interpolation.";
+    public static final String OMSSURFACEINTERPOLATOR_P_NEIGHBOURS_DESCRIPTION = "The number of nearest control points within the buffer distance to use for every cell. Cells sharing the same points reuse the solved system (0 = all the points in the buffer square).";
     public static final String OMSSURFACEINTERPOLATOR_P_MAX_THREADS_DESCRIPTION = "Max threads to use.";
     public static final String OMSSURFACEINTERPOLATOR_OUT_RASTER_DESCRIPTION = "The interpolated raster";
 
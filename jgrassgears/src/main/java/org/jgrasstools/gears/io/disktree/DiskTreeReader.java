@@ -22,14 +22,32 @@ import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 import com.vividsolutions.jts.JTSVersion;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
 
 /**
  * Reader for the Sort-Tile-Recursive disk index.
  * 
+ * <p>Both versions of the format are supported. For version 2 files the
+ * tree and the geometries are read from memory mapped buffers. Geometries
+ * are read through positional reads, so that {@link #queryGeometries(Envelope)}
+ * and {@link #pickGeometry(long, long)} can be used by several threads
+ * without locking once the reader is open.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  * @see IDiskTree
  */
@@ -41,6 +59,27 @@ public class DiskTreeReader implements IDiskTree {
 
     private RandomAccessFile raf = null;
 
+    /*
+     * set once all the fields below are ready, so that the readers don't need to lock
+     */
+    private volatile boolean isOpen = false;
+
+    private int version;
+
+    private FileChannel channel;
+
+    /*
+     * version 2 packed tree
+     */
+    private ByteBuffer treeBuffer;
+    private int nodesCount;
+    private int itemsCount;
+
+    /*
+     * version 2 geometries, null if the file is too large to be mapped at once
+     */
+    private MappedByteBuffer dataBuffer;
+
     /**
      * Constructor.
      * 
@@ -51,19 +90,90 @@ public class DiskTreeReader implements IDiskTree {
     }
 
     /**
-     * Reads the {@link STRtree} object from the file.
+     * Open the file and read the header.
+     * 
+     * <p>This is done by the other methods if necessary.</p>
      * 
-     * @return the quadtree, holding envelops and geometry positions in the file.
      * @throws Exception
      */
-    public STRtree readIndex() throws Exception {
-
+    public synchronized void open() throws Exception {
+        if (isOpen) {
+            return;
+        }
         File file = new File(path);
         raf = new RandomAccessFile(file, "r");
 
-        raf.seek(6L);
+        byte[] magicBytes = new byte[6];
+        raf.readFully(magicBytes);
+        String magic = new String(magicBytes, StandardCharsets.UTF_16BE);
+        if (magic.equals(MAGIC_V2)) {
+            version = 2;
+        } else if (magic.equals(MAGIC_V1)) {
+            version = 1;
+        } else {
+            raf.close();
+            raf = null;
+            throw new IOException("Not a disktree file: " + path);
+        }
         checkVersions();
 
+        channel = raf.getChannel();
+        if (version == 2) {
+            raf.seek(INDEX_ADDRESS_POSITION);
+            long indexAddress = raf.readLong();
+            long indexSize = raf.readLong();
+
+            treeBuffer = channel.map(MapMode.READ_ONLY, indexAddress, indexSize);
+            nodesCount = treeBuffer.getInt(0);
+            itemsCount = treeBuffer.getInt(4);
+            if (indexAddress <= Integer.MAX_VALUE) {
+                dataBuffer = channel.map(MapMode.READ_ONLY, 0, indexAddress);
+            }
+        }
+        isOpen = true;
+    }
+
+    private void checkOpen() throws Exception {
+        if (!isOpen) {
+            open();
+        }
+    }
+
+    /**
+     * @return the version of the file format.
+     * @throws Exception
+     */
+    public int getVersion() throws Exception {
+        checkOpen();
+        return version;
+    }
+
+    /**
+     * Reads the {@link STRtree} object from the file.
+     * 
+     * <p>For version 2 files the tree is rebuilt from the packed items.</p>
+     * 
+     * @return the quadtree, holding envelops and geometry positions in the file.
+     * @throws Exception
+     */
+    public synchronized STRtree readIndex() throws Exception {
+        open();
+        if (indexObj != null) {
+            return indexObj;
+        }
+        if (version == 2) {
+            STRtree tree = new STRtree();
+            int itemsStart = 8 + nodesCount * NODE_BYTES;
+            for( int i = 0; i < itemsCount; i++ ) {
+                int p = itemsStart + i * ITEM_BYTES;
+                Envelope envelope = new Envelope(treeBuffer.getDouble(p), treeBuffer.getDouble(p + 16),
+                        treeBuffer.getDouble(p + 8), treeBuffer.getDouble(p + 24));
+                tree.insert(envelope, new long[]{treeBuffer.getLong(p + 32), treeBuffer.getLong(p + 40)});
+            }
+            indexObj = tree;
+            return indexObj;
+        }
+
         long position = INDEX_ADDRESS_POSITION;
         raf.seek(position);
         long indexAddress = raf.readLong();
@@ -83,6 +193,89 @@ public class DiskTreeReader implements IDiskTree {
         return indexObj;
     }
 
+    /**
+     * Get all the geometries whose envelope intersects a given envelope.
+     * 
+     * <p>The geometries are read in the order they are stored in the file.</p>
+     * 
+     * @param envelope the envelope to query.
+     * @return the list of geometries.
+     * @throws Exception
+     */
+    @SuppressWarnings("rawtypes")
+    public List<Geometry> queryGeometries( Envelope envelope ) throws Exception {
+        checkOpen();
+        List<long[]> posSizeList = new ArrayList<long[]>();
+        if (version == 2) {
+            queryPacked(envelope, posSizeList);
+        } else {
+            List items = readIndex().query(envelope);
+            for( Object item : items ) {
+                posSizeList.add((long[]) item);
+            }
+        }
+
+        long[][] posSizes = posSizeList.toArray(new long[posSizeList.size()][]);
+        Arrays.sort(posSizes, new Comparator<long[]>(){
+            public int compare( long[] o1, long[] o2 ) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+        List<Geometry> geometries = new ArrayList<Geometry>(posSizes.length);
+        if (version == 2) {
+            WKBReader wkbReader = new WKBReader();
+            for( long[] posSize : posSizes ) {
+                geometries.add(decodeGeometry(readBytes(posSize[0], posSize[1]), wkbReader));
+            }
+        } else {
+            for( long[] posSize : posSizes ) {
+                geometries.add(pickGeometry(posSize[0], posSize[1]));
+            }
+        }
+        return geometries;
+    }
+
+    /**
+     * Walk the packed tree and collect the position and size of the matching items.
+     */
+    private void queryPacked( Envelope envelope, List<long[]> posSizeList ) {
+        if (nodesCount == 0) {
+            return;
+        }
+        int itemsStart = 8 + nodesCount * NODE_BYTES;
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while( stackSize > 0 ) {
+            int node = stack[--stackSize];
+            int p = 8 + node * NODE_BYTES;
+            if (!intersects(p, envelope)) {
+                continue;
+            }
+            int first = treeBuffer.getInt(p + 32);
+            int count = treeBuffer.getInt(p + 36);
+            boolean childrenAreItems = treeBuffer.getInt(p + 40) == 1;
+            for( int i = first; i < first + count; i++ ) {
+                if (childrenAreItems) {
+                    int ip = itemsStart + i * ITEM_BYTES;
+                    if (intersects(ip, envelope)) {
+                        posSizeList.add(new long[]{treeBuffer.getLong(ip + 32), treeBuffer.getLong(ip + 40)});
+                    }
+                } else {
+                    if (stackSize == stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[stackSize++] = i;
+                }
+            }
+        }
+    }
+
+    private boolean intersects( int p, Envelope envelope ) {
+        return !(treeBuffer.getDouble(p) > envelope.getMaxX() || treeBuffer.getDouble(p + 16) < envelope.getMinX()
+                || treeBuffer.getDouble(p + 8) > envelope.getMaxY() || treeBuffer.getDouble(p + 24) < envelope.getMinY());
+    }
+
     private void checkVersions() throws IOException {
         int fileMajor = raf.readInt();
         int fileMinor = raf.readInt();
@@ -105,20 +298,85 @@ public class DiskTreeReader implements IDiskTree {
      * @throws Exception
      */
     public Geometry pickGeometry( long position, long size ) throws Exception {
-        byte[] geomBytes = new byte[(int) size];
-        raf.seek(position);
-        raf.read(geomBytes);
+        checkOpen();
+        if (version == 2) {
+            return decodeGeometry(readBytes(position, size), new WKBReader());
+        }
 
+        // positional reads don't move the file pointer, so no lock is needed
+        byte[] geomBytes = readBytes(position, size);
         ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(geomBytes));
         return (Geometry) in.readObject();
     }
 
+    private byte[] readBytes( long position, long size ) throws IOException {
+        byte[] bytes = new byte[(int) size];
+        if (dataBuffer != null) {
+            ByteBuffer view = dataBuffer.duplicate();
+            view.position((int) position);
+            view.get(bytes);
+        } else {
+            ByteBuffer wrap = ByteBuffer.wrap(bytes);
+            while( wrap.hasRemaining() ) {
+                if (channel.read(wrap, position + wrap.position()) < 0) {
+                    throw new IOException("Unexpected end of file at: " + position);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private Geometry decodeGeometry( byte[] bytes, WKBReader wkbReader ) throws IOException, ParseException,
+            ClassNotFoundException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int wkbLength = buffer.getInt();
+        byte[] wkb = new byte[wkbLength];
+        buffer.get(wkb);
+        Geometry geometry = wkbReader.read(wkb);
+
+        byte type = buffer.get();
+        switch( type ) {
+        case USERDATA_NULL:
+            break;
+        case USERDATA_STRING:
+            byte[] stringBytes = new byte[buffer.getInt()];
+            buffer.get(stringBytes);
+            geometry.setUserData(new String(stringBytes, StandardCharsets.UTF_8));
+            break;
+        case USERDATA_INTEGER:
+            geometry.setUserData(buffer.getInt());
+            break;
+        case USERDATA_LONG:
+            geometry.setUserData(buffer.getLong());
+            break;
+        case USERDATA_DOUBLE:
+            geometry.setUserData(buffer.getDouble());
+            break;
+        case USERDATA_SERIALIZED:
+            int length = buffer.getInt();
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes, buffer.position(), length));
+            geometry.setUserData(in.readObject());
+            break;
+        default:
+            throw new IOException("Unknown user data type: " + type);
+        }
+        return geometry;
+    }
+
     /**
      * Closes the filehandle.
      * 
      * @throws IOException
      */
-    public void close() throws IOException {
-        raf.close();
+    public synchronized void close() throws IOException {
+        isOpen = false;
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+        treeBuffer = null;
+        dataBuffer = null;
+        channel = null;
+        indexObj = null;
     }
 }
@@ -17,16 +17,26 @@
  */
 package org.jgrasstools.gears.io.disktree;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.vividsolutions.jts.JTSVersion;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.AbstractNode;
+import com.vividsolutions.jts.index.strtree.ItemBoundable;
 import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.WKBWriter;
 
 /**
  * Writer for the quadtree disk index.
@@ -38,6 +48,8 @@ public class DiskTreeWriter implements IDiskTree {
 
     private final String path;
 
+    private int version = 1;
+
     /**
      * Constructor.
      * 
@@ -47,6 +59,18 @@ public class DiskTreeWriter implements IDiskTree {
         this.path = path;
     }
 
+    /**
+     * Set the version of the file format to write.
+     * 
+     * @param version 1 (the default, readable by older readers) or 2 for the more compact format.
+     */
+    public void setVersion( int version ) {
+        if (version != 1 && version != 2) {
+            throw new IllegalArgumentException("Unsupported disktree version: " + version);
+        }
+        this.version = version;
+    }
+
     /**
      * Writes an array of {@link Geometry}s to the disk.
      * 
@@ -54,6 +78,14 @@ public class DiskTreeWriter implements IDiskTree {
      * @throws IOException
      */
     public void writeGeometries( Geometry[] geometries ) throws IOException {
+        if (version == 2) {
+            writeGeometriesV2(geometries);
+        } else {
+            writeGeometriesV1(geometries);
+        }
+    }
+
+    private void writeGeometriesV1( Geometry[] geometries ) throws IOException {
         File file = new File(path);
         RandomAccessFile raf = null;
         try {
@@ -62,7 +94,7 @@ public class DiskTreeWriter implements IDiskTree {
             int major = JTSVersion.MAJOR;
             int minor = JTSVersion.MINOR;
 
-            raf.writeChars("jts");
+            raf.writeChars(MAGIC_V1);
             raf.writeInt(major);
             raf.writeInt(minor);
 
@@ -123,6 +155,151 @@ public class DiskTreeWriter implements IDiskTree {
         }
     }
 
+    private void writeGeometriesV2( Geometry[] geometries ) throws IOException {
+        File file = new File(path);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to overwrite the file: " + file);
+        }
+        long geometriesStart = INDEX_ADDRESS_POSITION + INDEX_ADDRESS_SIZE + INDEX_LENGTH_SIZE;
+        STRtree tree = new STRtree();
+        long fileIndex = geometriesStart;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeChars(MAGIC_V2);
+            out.writeInt(JTSVersion.MAJOR);
+            out.writeInt(JTSVersion.MINOR);
+            // index address and size are filled once the geometries are written
+            out.writeLong(0);
+            out.writeLong(0);
+
+            WKBWriter wkbWriter2D = new WKBWriter(2, true);
+            WKBWriter wkbWriter3D = new WKBWriter(3, true);
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            for( int i = 0; i < geometries.length; i++ ) {
+                Geometry geometry = geometries[i];
+                if (geometry.isEmpty()) {
+                    continue;
+                }
+                boolean is3D = !Double.isNaN(geometry.getCoordinate().z);
+                byte[] wkb = is3D ? wkbWriter3D.write(geometry) : wkbWriter2D.write(geometry);
+
+                recordBytes.reset();
+                record.writeInt(wkb.length);
+                record.write(wkb);
+                writeUserData(record, geometry.getUserData());
+                record.flush();
+
+                int size = recordBytes.size();
+                recordBytes.writeTo(out);
+                tree.insert(geometry.getEnvelopeInternal(), new long[]{fileIndex, size});
+                fileIndex = fileIndex + size;
+            }
+
+            long treeSize = writePackedTree(out, tree);
+            out.close();
+            out = null;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(INDEX_ADDRESS_POSITION);
+                raf.writeLong(fileIndex);
+                raf.writeLong(treeSize);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            if (out != null)
+                out.close();
+        }
+    }
+
+    /**
+     * Write the tree as packed arrays of nodes and items.
+     * 
+     * @return the number of bytes written.
+     */
+    private long writePackedTree( DataOutputStream out, STRtree tree ) throws IOException {
+        List<AbstractNode> nodes = new ArrayList<AbstractNode>();
+        List<ItemBoundable> items = new ArrayList<ItemBoundable>();
+        if (tree.size() > 0) {
+            nodes.add(tree.getRoot());
+        }
+        // breadth first, so that the children of every node are contiguous
+        int[] first = new int[16];
+        for( int i = 0; i < nodes.size(); i++ ) {
+            if (i == first.length) {
+                int[] tmp = new int[first.length * 2];
+                System.arraycopy(first, 0, tmp, 0, first.length);
+                first = tmp;
+            }
+            List< ? > children = nodes.get(i).getChildBoundables();
+            if (!children.isEmpty() && children.get(0) instanceof ItemBoundable) {
+                first[i] = items.size();
+                for( Object child : children ) {
+                    items.add((ItemBoundable) child);
+                }
+            } else {
+                first[i] = nodes.size();
+                for( Object child : children ) {
+                    nodes.add((AbstractNode) child);
+                }
+            }
+        }
+
+        out.writeInt(nodes.size());
+        out.writeInt(items.size());
+        for( int i = 0; i < nodes.size(); i++ ) {
+            AbstractNode node = nodes.get(i);
+            List< ? > children = node.getChildBoundables();
+            writeEnvelope(out, (Envelope) node.getBounds());
+            out.writeInt(first[i]);
+            out.writeInt(children.size());
+            out.writeInt(!children.isEmpty() && children.get(0) instanceof ItemBoundable ? 1 : 0);
+        }
+        for( ItemBoundable item : items ) {
+            writeEnvelope(out, (Envelope) item.getBounds());
+            long[] posSize = (long[]) item.getItem();
+            out.writeLong(posSize[0]);
+            out.writeLong(posSize[1]);
+        }
+        return 8L + (long) nodes.size() * NODE_BYTES + (long) items.size() * ITEM_BYTES;
+    }
+
+    private void writeEnvelope( DataOutputStream out, Envelope envelope ) throws IOException {
+        out.writeDouble(envelope.getMinX());
+        out.writeDouble(envelope.getMinY());
+        out.writeDouble(envelope.getMaxX());
+        out.writeDouble(envelope.getMaxY());
+    }
+
+    private void writeUserData( DataOutputStream out, Object userData ) throws IOException {
+        if (userData == null) {
+            out.writeByte(USERDATA_NULL);
+        } else if (userData instanceof String) {
+            byte[] bytes = ((String) userData).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(USERDATA_STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (userData instanceof Integer) {
+            out.writeByte(USERDATA_INTEGER);
+            out.writeInt((Integer) userData);
+        } else if (userData instanceof Long) {
+            out.writeByte(USERDATA_LONG);
+            out.writeLong((Long) userData);
+        } else if (userData instanceof Double) {
+            out.writeByte(USERDATA_DOUBLE);
+            out.writeDouble((Double) userData);
+        } else if (userData instanceof Serializable) {
+            byte[] bytes = serialize(userData);
+            out.writeByte(USERDATA_SERIALIZED);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            throw new IOException("The user data of the geometries need to be serializable: " + userData.getClass());
+        }
+    }
+
     private byte[] serialize( Object obj ) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutputStream out = new ObjectOutputStream(bos);
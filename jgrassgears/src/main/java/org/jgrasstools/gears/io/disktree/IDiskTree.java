@@ -72,9 +72,39 @@ package org.jgrasstools.gears.io.disktree;
  * }
  * </pre>
  * 
+ * <p>
+ * The version 2 of the format, more compact and faster to read, is written
+ * on request through {@link DiskTreeWriter#setVersion(int)}. It keeps the
+ * same header but starts with the chars 'jt2'.
+ * Geometries and tree are stored without java serialization:
+ * 
+ * <ul>
+ *  <li>every geometry is stored as an int with the length of its WKB, the WKB
+ *  (with SRID) and the user data, encoded as one type byte (see the 
+ *  <code>USERDATA_*</code> constants) followed by the value</li>
+ *  <li>the tree is stored as a packed array of nodes. It starts with the number 
+ *  of nodes and of items (2 ints), followed by the nodes in breadth first order
+ *  ({@link #NODE_BYTES} each: minx, miny, maxx, maxy, index of the first child, 
+ *  number of children, 1 if the children are items) and then the items 
+ *  ({@link #ITEM_BYTES} each: minx, miny, maxx, maxy, position and size of the 
+ *  geometry). The first node is the root.</li>
+ * </ul>
+ * 
+ * <p>The {@link DiskTreeReader} reads both versions.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public interface IDiskTree {
+    /**
+     * Chars at the start of a version 1 file.
+     */
+    String MAGIC_V1 = "jts";
+
+    /**
+     * Chars at the start of a version 2 file.
+     */
+    String MAGIC_V2 = "jt2";
+
     /**
      * Position of the index address.
      */
@@ -89,4 +119,24 @@ public interface IDiskTree {
      * Byte size of the index length.
      */
     long INDEX_LENGTH_SIZE = 8;
+
+    /**
+     * Byte size of a packed tree node in version 2 files.
+     */
+    int NODE_BYTES = 4 * 8 + 3 * 4;
+
+    /**
+     * Byte size of a packed tree item in version 2 files.
+     */
+    int ITEM_BYTES = 4 * 8 + 2 * 8;
+
+    /**
+     * User data types of version 2 files.
+     */
+    byte USERDATA_NULL = 0;
+    byte USERDATA_STRING = 1;
+    byte USERDATA_INTEGER = 2;
+    byte USERDATA_LONG = 3;
+    byte USERDATA_DOUBLE = 4;
+    byte USERDATA_SERIALIZED = 5;
 }
@@ -19,6 +19,7 @@ package org.jgrasstools.gears.io.las;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.geotools.coverage.grid.GridCoverage2D;
@@ -28,8 +29,13 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
+import org.jgrasstools.gears.io.las.core.ALasReader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasReaderMapped;
 import org.jgrasstools.gears.io.las.index.LasIndexer;
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
 import org.jgrasstools.gears.utils.math.NumericsUtilities;
 import org.opengis.feature.simple.SimpleFeature;
@@ -42,6 +48,7 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
 
 /**
  * Abstract las data manager class.
@@ -58,6 +65,8 @@ public abstract class ALasDataManager implements AutoCloseable {
     protected int impulsesNum = -1;
     protected double[] classes;
     protected boolean hasConstraint = false;
+    protected boolean useMappedReader = false;
+    protected int readerPoolSize = 1;
 
     protected CoordinateReferenceSystem crs;
 
@@ -93,6 +102,46 @@ public abstract class ALasDataManager implements AutoCloseable {
      */
     public abstract void open() throws Exception;
 
+    /**
+     * Use memory mapped readers instead of the default ones.
+     *
+     * <p>Mapped readers decode the points in place, which allows to skip the
+     * points that are not accepted without creating records for them. This has to be
+     * set before opening the data manager and is ignored for laz files.</p>
+     *
+     * @param useMappedReader if <code>true</code>, {@link LasReaderMapped} is used.
+     */
+    public void setUseMappedReader( boolean useMappedReader ) {
+        this.useMappedReader = useMappedReader;
+    }
+
+    /**
+     * Set the maximum number of readers that are opened on each las file.
+     *
+     * <p>Data managers that support concurrent queries let each thread
+     * read through its own reader, up to this number. Further threads wait
+     * for a reader to be released. Defaults to 1.</p>
+     *
+     * @param readerPoolSize the number of readers per file.
+     */
+    public void setReaderPoolSize( int readerPoolSize ) {
+        this.readerPoolSize = Math.max(1, readerPoolSize);
+    }
+
+    /**
+     * Create the reader for a las file, honoring the mapped reader setting.
+     *
+     * @param lasFile the las file.
+     * @return the reader, not yet opened.
+     * @throws Exception
+     */
+    protected ALasReader createReader( File lasFile ) throws Exception {
+        if (useMappedReader && lasFile.getName().toLowerCase().endsWith(".las")) {
+            return new LasReaderMapped(lasFile, crs);
+        }
+        return ALasReader.getReader(lasFile, crs);
+    }
+
     public void setIntensityConstraint( double[] minMax ) {
         if (minMax == null)
             return;
@@ -129,6 +178,20 @@ public abstract class ALasDataManager implements AutoCloseable {
      */
     public abstract List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception;
 
+    /**
+     * Get points inside a given geometry boundary as a columnar batch.
+     *
+     * <p>This returns the same points as {@link #getPointsInGeometry(Geometry, boolean)},
+     * without creating an object per point. The constraints are applied over the
+     * columns of the batch.</p>
+     *
+     * @param checkGeom the {@link com.vividsolutions.jts.geom.Geometry} to use to check.
+     * @param doOnlyEnvelope check for the geom envelope instead of a intersection with it.
+     * @return the batch of points contained in the supplied geometry.
+     * @throws Exception
+     */
+    public abstract LasPointBatch getPointBatchInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception;
+
     /**
      * Retrieve all the trees envelopes that intersect the geometry.
      *
@@ -261,9 +324,28 @@ public abstract class ALasDataManager implements AutoCloseable {
         if (!hasConstraint) {
             return true;
         }
+        return doAccept(lasDot.intensity, lasDot.returnNumber, lasDot.numberOfReturns, lasDot.classification);
+    }
+
+    /**
+     * Check the point at the cursor of a mapped reader for constraints.
+     *
+     * <p>This allows to discard points before creating a record for them.</p>
+     *
+     * @param reader the reader, with the cursor placed on the point to check.
+     * @return <code>true</code> if the point is accepted.
+     */
+    protected boolean doAccept( LasReaderMapped reader ) {
+        if (!hasConstraint) {
+            return true;
+        }
+        return doAccept(reader.getIntensity(), reader.getReturnNumber(), reader.getNumberOfReturns(),
+                reader.getClassification());
+    }
+
+    private boolean doAccept( short intensity, int impulse, int numOfReturns, int classification ) {
         boolean takeIt = true;
         if (intensityRange != null) {
-            short intensity = lasDot.intensity;
             if (intensity >= intensityRange[0] && intensity <= intensityRange[1]) {
                 takeIt = true;
             } else {
@@ -271,7 +353,6 @@ public abstract class ALasDataManager implements AutoCloseable {
             }
         }
         if (impulses != null) {
-            int impulse = lasDot.returnNumber;
             takeIt = false;
             for( final double imp : impulses ) {
                 if (impulse == (int) imp) {
@@ -283,13 +364,11 @@ public abstract class ALasDataManager implements AutoCloseable {
                 return false;
         }
         if (impulsesNum != -1) {
-            int numOfReturns = lasDot.numberOfReturns;
             if (numOfReturns != (int) impulsesNum) {
                 return false;
             }
         }
         if (classes != null) {
-            int classification = lasDot.classification;
             takeIt = false;
             for( final double classs : classes ) {
                 if (classification == (int) classs) {
@@ -302,6 +381,114 @@ public abstract class ALasDataManager implements AutoCloseable {
         return true;
     }
 
+    /**
+     * Apply the constraints to a range of points of a batch.
+     *
+     * <p>Every constraint is checked in a single pass over its column.</p>
+     *
+     * @param batch the batch to check.
+     * @param from the first point of the range, which extends to the end of the batch.
+     * @param keep the mask of the points of the range, <code>keep[i - from]</code> is set
+     *          to <code>false</code> for the points that are not accepted.
+     */
+    protected void applyConstraints( LasPointBatch batch, int from, boolean[] keep ) {
+        if (!hasConstraint) {
+            return;
+        }
+        int to = batch.size();
+        if (intensityRange != null) {
+            double min = intensityRange[0];
+            double max = intensityRange[1];
+            short[] intensity = batch.intensity;
+            for( int i = from; i < to; i++ ) {
+                keep[i - from] &= intensity[i] >= min && intensity[i] <= max;
+            }
+        }
+        if (impulses != null) {
+            boolean[] accepted = toLookup(impulses);
+            byte[] returnNumber = batch.returnNumber;
+            for( int i = from; i < to; i++ ) {
+                keep[i - from] &= accepted[returnNumber[i] & 0xFF];
+            }
+        }
+        if (impulsesNum != -1) {
+            byte[] numberOfReturns = batch.numberOfReturns;
+            for( int i = from; i < to; i++ ) {
+                keep[i - from] &= numberOfReturns[i] == impulsesNum;
+            }
+        }
+        if (classes != null) {
+            boolean[] accepted = toLookup(classes);
+            byte[] classification = batch.classification;
+            for( int i = from; i < to; i++ ) {
+                keep[i - from] &= accepted[classification[i] & 0xFF];
+            }
+        }
+    }
+
+    private static boolean[] toLookup( double[] values ) {
+        boolean[] lookup = new boolean[256];
+        for( double value : values ) {
+            int v = (int) value;
+            if (v >= 0 && v < lookup.length) {
+                lookup[v] = true;
+            }
+        }
+        return lookup;
+    }
+
+    /**
+     * Filter a range of points of a batch, keeping the ones that are accepted.
+     *
+     * @param batch the batch to filter.
+     * @param from the first point of the range, which extends to the end of the batch.
+     * @param env the envelope the points need to be in.
+     * @param preparedGeometry the geometry the points need to be in or <code>null</code>.
+     * @param dem the dem used to normalize the elevation or <code>null</code>. If available,
+     *          only points higher than the threshold are kept and their ground elevation is set.
+     * @param elevThreshold the threshold to use for the elevation normalization.
+     * @return the number of points kept in the range.
+     */
+    protected int filterBatch( LasPointBatch batch, int from, Envelope env, PreparedGeometry preparedGeometry,
+            GridCoverage2D dem, double elevThreshold ) {
+        int to = batch.size();
+        boolean[] keep = new boolean[to - from];
+        Arrays.fill(keep, true);
+        applyConstraints(batch, from, keep);
+        double[] x = batch.x;
+        double[] y = batch.y;
+        for( int i = from; i < to; i++ ) {
+            keep[i - from] &= env.contains(x[i], y[i]);
+        }
+        if (preparedGeometry != null) {
+            for( int i = from; i < to; i++ ) {
+                if (keep[i - from]) {
+                    keep[i - from] = preparedGeometry.contains(gf.createPoint(new Coordinate(x[i], y[i])));
+                }
+            }
+        }
+        if (dem != null) {
+            batch.enableGroundElevation();
+            for( int i = from; i < to; i++ ) {
+                if (!keep[i - from]) {
+                    continue;
+                }
+                double value = CoverageUtilities.getValue(dem, x[i], y[i]);
+                if (JGTConstants.isNovalue(value)) {
+                    keep[i - from] = false;
+                    continue;
+                }
+                double height = batch.z[i] - value;
+                if (height > elevThreshold) {
+                    batch.groundElevation[i] = height;
+                } else {
+                    keep[i - from] = false;
+                }
+            }
+        }
+        return batch.retain(from, keep);
+    }
+
     /**
      * Extracts the points contained inside a vertical range from the supplied list of points.
      *
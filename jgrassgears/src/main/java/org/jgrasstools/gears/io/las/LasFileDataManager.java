@@ -30,7 +30,9 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasReaderMapped;
 import org.jgrasstools.gears.io.las.index.LasIndexer;
 import org.jgrasstools.gears.io.las.index.OmsLasIndexReader;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
@@ -54,6 +56,11 @@ import com.vividsolutions.jts.index.strtree.STRtree;
  * @author Andrea Antonello (www.hydrologis.com)
  */
 class LasFileDataManager extends ALasDataManager {
+    /**
+     * The number of points read and filtered at once when filling batches.
+     */
+    private static final int BATCH_CHUNK = 100000;
+
     private File lasFile;
     private GridCoverage2D inDem;
     private double elevThreshold;
@@ -110,7 +117,7 @@ class LasFileDataManager extends ALasDataManager {
      */
     @Override
     public void open() throws Exception {
-        lasReader = ALasReader.getReader(lasFile, crs);
+        lasReader = createReader(lasFile);
         lasReader.open();
         lasHeader = lasReader.getHeader();
         isOpen = true;
@@ -137,6 +144,9 @@ class LasFileDataManager extends ALasDataManager {
                 if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
                     continue;
                 }
+                if (!normalizeOnDem(lasDot)) {
+                    continue;
+                }
                 pointsListForTile.add(lasDot);
             }
         } else {
@@ -150,7 +160,9 @@ class LasFileDataManager extends ALasDataManager {
                         continue;
                     }
                     pointsTree.insert(new Envelope(new Coordinate(lasDot.x, lasDot.y)), lasDot);
-                    pointsListForTile.add(lasDot);
+                    if (normalizeOnDem(lasDot)) {
+                        pointsListForTile.add(lasDot);
+                    }
                 }
             } else {
 
@@ -171,24 +183,10 @@ class LasFileDataManager extends ALasDataManager {
                         continue;
                     }
 
-                    if (inDem != null) {
-                        // check geom instead of only envelope?
-                        if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                            continue;
-                        }
-                        double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
-                        if (JGTConstants.isNovalue(value)) {
-                            continue;
-                        }
-                        double height = lasDot.z - value;
-                        if (height > elevThreshold) {
-                            lasDot.groundElevation = height;
-                            pointsListForTile.add(lasDot);
-                        }
-                    } else {
-                        if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                            continue;
-                        }
+                    if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
+                        continue;
+                    }
+                    if (normalizeOnDem(lasDot)) {
                         pointsListForTile.add(lasDot);
                     }
                 }
@@ -199,6 +197,66 @@ class LasFileDataManager extends ALasDataManager {
         return pointsListForTile;
     }
 
+    /**
+     * Normalize the elevation of a point on the dem, if there is one.
+     * 
+     * <p>This is the same filter {@link #filterBatch(LasPointBatch, int, Envelope, PreparedGeometry, GridCoverage2D, double)}
+     * applies to the batches.</p>
+     * 
+     * @param lasDot the point, which gets its ground elevation set.
+     * @return <code>false</code> if the point is outside the dem or not higher than the threshold.
+     */
+    private boolean normalizeOnDem( LasRecord lasDot ) {
+        if (inDem == null) {
+            return true;
+        }
+        double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
+        if (JGTConstants.isNovalue(value)) {
+            return false;
+        }
+        double height = lasDot.z - value;
+        if (height > elevThreshold) {
+            lasDot.groundElevation = height;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized LasPointBatch getPointBatchInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+        // always scan from the first point
+        close();
+        open();
+
+        LasPointBatch batch = new LasPointBatch();
+        Envelope env = checkGeom.getEnvelopeInternal();
+        PreparedGeometry preparedGeometry = null;
+        if (!doOnlyEnvelope) {
+            preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
+        }
+        if (lasReader instanceof LasReaderMapped) {
+            LasReaderMapped mappedReader = (LasReaderMapped) lasReader;
+            long pointsCount = mappedReader.getPointsCount();
+            for( long from = 0; from < pointsCount; from += BATCH_CHUNK ) {
+                int first = batch.size();
+                mappedReader.readBatch(from, BATCH_CHUNK, batch);
+                filterBatch(batch, first, env, preparedGeometry, inDem, elevThreshold);
+            }
+        } else {
+            int first = 0;
+            while( lasReader.hasNextPoint() ) {
+                batch.add(lasReader.getNextPoint());
+                if (batch.size() - first == BATCH_CHUNK) {
+                    filterBatch(batch, first, env, preparedGeometry, inDem, elevThreshold);
+                    first = batch.size();
+                }
+            }
+            filterBatch(batch, first, env, preparedGeometry, inDem, elevThreshold);
+        }
+        close();
+        return batch;
+    }
+
     @Override
     public synchronized List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
             throws Exception {
@@ -18,9 +18,15 @@
 package org.jgrasstools.gears.io.las;
 
 import java.io.File;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -29,14 +35,17 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
-import org.geotools.util.WeakValueHashMap;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasReaderMapped;
 import org.jgrasstools.gears.io.las.index.OmsLasIndexReader;
 import org.jgrasstools.gears.io.las.index.LasIndexer;
 import org.jgrasstools.gears.io.las.index.strtree.STRtreeJGT;
+import org.jgrasstools.gears.libs.logging.JGTLogger;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
 import org.jgrasstools.gears.utils.CrsUtilities;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
@@ -50,22 +59,42 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.prep.PreparedGeometry;
 import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
-import com.vividsolutions.jts.index.strtree.AbstractSTRtree;
 import com.vividsolutions.jts.index.strtree.ItemBoundable;
 
 /**
  * A class that manages las folder data.
  * 
+ * <p>The point queries are safe to be used from several threads. The indexes
+ * are built once when they are loaded and are only read afterwards, while the
+ * las files are read through pools of readers (see {@link #setReaderPoolSize(int)}).
+ * Only the {@link #MAX_OPEN_FILES} most recently used las files are kept open.
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable {
-    private WeakValueHashMap<String, Pair> fileName2LasReaderMap;
-    private WeakValueHashMap<String, STRtreeJGT> fileName2IndexMap;
-    private List<String> fileName4LasReaderMapSupport;
-    // private int READERCACHE = 5;
+    /**
+     * The max number of las files kept open with their index and readers.
+     */
+    public static final int MAX_OPEN_FILES = 32;
+
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<String, LasFileEntry> fileName2EntryMap = new LinkedHashMap<String, LasFileEntry>(16, 0.75f,
+            true){
+        protected boolean removeEldestEntry( Map.Entry<String, LasFileEntry> eldest ) {
+            if (size() > MAX_OPEN_FILES) {
+                eldest.getValue().evict();
+                return true;
+            }
+            return false;
+        }
+    };
+    private final ConcurrentHashMap<String, FutureTask<LasFileEntry>> loadingFilesMap = //
+    new ConcurrentHashMap<String, FutureTask<LasFileEntry>>();
+    private final Set<String> missingIndexes = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger openReadersCount = new AtomicInteger();
     private File lasFolderIndexFile;
     private File lasFolder;
-    private STRtreeJGT mainLasFolderIndex;
+    private volatile STRtreeJGT mainLasFolderIndex;
     private GridCoverage2D inDem;
     private double elevThreshold;
 
@@ -103,15 +132,6 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         } else {
             throw new IllegalArgumentException("The Crs can't be null.");
         }
-        // indexMap = new LinkedHashMap<String, Pair>() {
-        // @Override
-        // protected boolean removeEldestEntry(Entry<String, Pair> eldest) {
-        // return size() > READERCACHE;
-        // }
-        // };
-        fileName2LasReaderMap = new WeakValueHashMap<String, Pair>();
-        fileName2IndexMap = new WeakValueHashMap<String, STRtreeJGT>();
-        fileName4LasReaderMapSupport = new ArrayList<String>();
     }
 
     @Override
@@ -125,8 +145,19 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
      * @throws Exception
      */
     @Override
-    public void open() throws Exception {
-        mainLasFolderIndex = OmsLasIndexReader.readIndex(lasFolderIndexFile.getAbsolutePath());
+    public synchronized void open() throws Exception {
+        if (mainLasFolderIndex == null) {
+            mainLasFolderIndex = readBuiltIndex(lasFolderIndexFile);
+        }
+    }
+
+    /**
+     * Read an index and build it, so that it is only read by the queries.
+     */
+    private static STRtreeJGT readBuiltIndex( File indexFile ) throws Exception {
+        STRtreeJGT index = OmsLasIndexReader.readIndex(indexFile.getAbsolutePath());
+        index.build();
+        return index;
     }
 
     /**
@@ -139,7 +170,7 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
      */
     @Override
     @SuppressWarnings("rawtypes")
-    public synchronized List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+    public List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
         checkOpen();
         ArrayList<LasRecord> pointsListForTile = new ArrayList<LasRecord>();
 
@@ -154,32 +185,43 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
             if (fileName instanceof String) {
                 String name = (String) fileName;
 
-                Pair pair = fileName2LasReaderMap.get(name);
-                if (pair == null) {
-                    File lasFile = new File(lasFolder, name);
-                    File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-
-                    if (lasIndexFile.exists()) {
-                        pair = getIndexPair(lasFile);
-                        if (pair != null) {
-                            fileName2LasReaderMap.put(name, pair);
-                            fileName4LasReaderMapSupport.add(name);
-                        }
-                    } else {
-                        continue;
-                    }
+                LasFileEntry entry = getFileEntry(name);
+                if (entry == null) {
+                    continue;
                 }
 
-                List addressesList = pair.strTree.query(env);
-                for( Object obj : addressesList ) {
-                    if (obj instanceof double[]) {
+                List addressesList = entry.index.query(env);
+                if (addressesList.isEmpty()) {
+                    continue;
+                }
+                ALasReader reader = entry.borrowReader();
+                try {
+                    LasReaderMapped mappedReader = null;
+                    if (reader instanceof LasReaderMapped) {
+                        mappedReader = (LasReaderMapped) reader;
+                    }
+                    for( Object obj : addressesList ) {
+                        if (!(obj instanceof double[])) {
+                            continue;
+                        }
                         double[] addresses = (double[]) obj;
                         long from = (long) addresses[0];
                         long to = (long) addresses[1];
                         for( long pointNum = from; pointNum < to; pointNum++ ) {
-                            LasRecord lasDot = pair.reader.getPointAt(pointNum);
-                            if (!doAccept(lasDot)) {
-                                continue;
+                            LasRecord lasDot;
+                            if (mappedReader != null) {
+                                // filter in place, records are created only for the kept points
+                                mappedReader.moveTo(pointNum);
+                                if (!env.contains(mappedReader.getX(), mappedReader.getY()) || !doAccept(mappedReader)) {
+                                    continue;
+                                }
+                                lasDot = new LasRecord();
+                                mappedReader.readRecord(lasDot);
+                            } else {
+                                lasDot = reader.getPointAt(pointNum);
+                                if (!doAccept(lasDot)) {
+                                    continue;
+                                }
                             }
                             if (inDem != null) {
                                 Coordinate c = new Coordinate(lasDot.x, lasDot.y);
@@ -209,15 +251,124 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
                                     pointsListForTile.add(lasDot);
                                 }
                             }
-
                         }
                     }
+                } finally {
+                    entry.releaseReader(reader);
                 }
             }
         }
         return pointsListForTile;
     }
 
+    @Override
+    @SuppressWarnings("rawtypes")
+    public LasPointBatch getPointBatchInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+        checkOpen();
+        LasPointBatch batch = new LasPointBatch();
+
+        Envelope env = checkGeom.getEnvelopeInternal();
+        PreparedGeometry preparedGeometry = null;
+        if (!doOnlyEnvelope) {
+            preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
+        }
+
+        List filesList = mainLasFolderIndex.query(env);
+        for( Object fileName : filesList ) {
+            if (fileName instanceof String) {
+                LasFileEntry entry = getFileEntry((String) fileName);
+                if (entry == null) {
+                    continue;
+                }
+                List addressesList = entry.index.query(env);
+                if (addressesList.isEmpty()) {
+                    continue;
+                }
+                ALasReader reader = entry.borrowReader();
+                try {
+                    for( Object obj : addressesList ) {
+                        if (obj instanceof double[]) {
+                            double[] addresses = (double[]) obj;
+                            long from = (long) addresses[0];
+                            long to = (long) addresses[1];
+                            int first = batch.size();
+                            if (reader instanceof LasReaderMapped) {
+                                ((LasReaderMapped) reader).readBatch(from, (int) (to - from), batch);
+                            } else {
+                                for( long pointNum = from; pointNum < to; pointNum++ ) {
+                                    batch.add(reader.getPointAt(pointNum));
+                                }
+                            }
+                            filterBatch(batch, first, env, preparedGeometry, inDem, elevThreshold);
+                        }
+                    }
+                } finally {
+                    entry.releaseReader(reader);
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Get the index and readers pool of a file of the folder, loading the index if necessary.
+     *
+     * @param name the name of the las file.
+     * @return the file entry or <code>null</code> if the file has no index.
+     * @throws Exception
+     */
+    private LasFileEntry getFileEntry( final String name ) throws Exception {
+        synchronized (fileName2EntryMap) {
+            LasFileEntry entry = fileName2EntryMap.get(name);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        if (missingIndexes.contains(name)) {
+            return null;
+        }
+
+        // files are loaded once, the threads that need the same file wait for it
+        FutureTask<LasFileEntry> loadTask = new FutureTask<LasFileEntry>(new Callable<LasFileEntry>(){
+            public LasFileEntry call() throws Exception {
+                return loadFileEntry(name);
+            }
+        });
+        FutureTask<LasFileEntry> runningTask = loadingFilesMap.putIfAbsent(name, loadTask);
+        if (runningTask == null) {
+            runningTask = loadTask;
+            try {
+                loadTask.run();
+            } finally {
+                loadingFilesMap.remove(name, loadTask);
+            }
+        }
+        return ThreadedRunnable.getResult(runningTask);
+    }
+
+    private LasFileEntry loadFileEntry( String name ) throws Exception {
+        synchronized (fileName2EntryMap) {
+            // it might have been loaded while this task was created
+            LasFileEntry entry = fileName2EntryMap.get(name);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        File lasFile = new File(lasFolder, name);
+        File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
+        if (!lasIndexFile.exists()) {
+            if (missingIndexes.add(name)) {
+                JGTLogger.logError(this, "Doesn't exist: " + lasIndexFile, null);
+            }
+            return null;
+        }
+        LasFileEntry entry = new LasFileEntry(lasFile, readBuiltIndex(lasIndexFile));
+        synchronized (fileName2EntryMap) {
+            fileName2EntryMap.put(name, entry);
+        }
+        return entry;
+    }
+
     /**
      * Retrieve all the trees envelopes that intersect the geometry.
      *
@@ -228,7 +379,7 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
      * @throws Exception
      */
     @Override
-    public synchronized List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
+    public List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
             throws Exception {
         checkOpen();
         ArrayList<Geometry> envelopeListForTile = new ArrayList<Geometry>();
@@ -243,17 +394,11 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         List< ? > filesList = mainLasFolderIndex.query(env);
         for( Object fileName : filesList ) {
             if (fileName instanceof String) {
-                String name = (String) fileName;
-                File lasFile = new File(lasFolder, name);
-                File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-
-                String absolutePath = lasIndexFile.getAbsolutePath();
-                STRtreeJGT lasIndex = fileName2IndexMap.get(absolutePath);
-                if (lasIndex == null) {
-                    lasIndex = OmsLasIndexReader.readIndex(absolutePath);
-                    fileName2IndexMap.put(absolutePath, lasIndex);
+                LasFileEntry entry = getFileEntry((String) fileName);
+                if (entry == null) {
+                    continue;
                 }
-                List< ? > queryBoundables = lasIndex.queryBoundables(env);
+                List< ? > queryBoundables = entry.index.queryBoundables(env);
                 for( Object object : queryBoundables ) {
                     if (object instanceof ItemBoundable) {
                         ItemBoundable itemBoundable = (ItemBoundable) object;
@@ -290,10 +435,7 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
     public synchronized ReferencedEnvelope getOverallEnvelope() throws Exception {
         if (referencedEnvelope2D == null) {
             checkOpen();
-            Class<AbstractSTRtree> class1 = AbstractSTRtree.class;
-            Field f1 = class1.getDeclaredField("itemBoundables");
-            f1.setAccessible(true);
-            ArrayList boundablesList = (ArrayList) f1.get(mainLasFolderIndex);
+            List boundablesList = mainLasFolderIndex.itemBoundables();
             Envelope env = null;
             for( Object item : boundablesList ) {
                 if (item instanceof ItemBoundable) {
@@ -305,7 +447,8 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
                     fileNamesList.add(name);
 
                     if (env == null) {
-                        env = envelope;
+                        // copy, the bounds are still used by the index
+                        env = new Envelope(envelope);
                     } else {
                         env.expandToInclude(envelope.getMinX(), envelope.getMinY());
                         env.expandToInclude(envelope.getMaxX(), envelope.getMaxY());
@@ -326,19 +469,18 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
     @Override
     public synchronized ReferencedEnvelope3D getEnvelope3D() throws Exception {
         if (referencedEnvelope3D == null) {
-            checkReadersMap();
-
-            for( String key : fileName4LasReaderMapSupport ) {
-                Pair pair = fileName2LasReaderMap.get(key);
-                if (pair == null) {
-                    File lasFile = new File(lasFolder, key);
-                    pair = getIndexPair(lasFile);
-                    if (pair == null) {
-                        System.err.println("Null reader pair: " + lasFile);
-                        continue;
-                    }
+            for( String name : getFileNames() ) {
+                LasFileEntry entry = getFileEntry(name);
+                if (entry == null) {
+                    continue;
+                }
+                ILasHeader header;
+                ALasReader reader = entry.borrowReader();
+                try {
+                    header = reader.getHeader();
+                } finally {
+                    entry.releaseReader(reader);
                 }
-                ILasHeader header = pair.reader.getHeader();
                 ReferencedEnvelope3D envelope = header.getDataEnvelope();
                 if (referencedEnvelope3D == null) {
                     referencedEnvelope3D = envelope;
@@ -380,59 +522,25 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
     }
 
     @SuppressWarnings("rawtypes")
-    private void checkReadersMap() throws Exception {
+    private List<String> getFileNames() throws Exception {
         checkOpen();
-        if (fileName2LasReaderMap.size() == 0) {
-            List filesList = mainLasFolderIndex.itemsTree();
-            for( Object fileName : filesList ) {
-                if (fileName instanceof String) {
-                    String name = (String) fileName;
-                    getReader(name);
-                } else if (fileName instanceof List) {
-                    List filesList2 = (List) fileName;
-                    for( Object fileName2 : filesList2 ) {
-                        if (fileName2 instanceof String) {
-                            String name2 = (String) fileName2;
-                            getReader(name2);
-                        }
+        List<String> names = new ArrayList<String>();
+        List filesList = mainLasFolderIndex.itemsTree();
+        for( Object fileName : filesList ) {
+            if (fileName instanceof String) {
+                names.add((String) fileName);
+            } else if (fileName instanceof List) {
+                List filesList2 = (List) fileName;
+                for( Object fileName2 : filesList2 ) {
+                    if (fileName2 instanceof String) {
+                        names.add((String) fileName2);
                     }
-                } else {
-                    throw new RuntimeException();
                 }
+            } else {
+                throw new RuntimeException();
             }
         }
-    }
-
-    private void getReader( String name ) throws Exception {
-        Pair pair = fileName2LasReaderMap.get(name);
-        if (pair == null) {
-            File lasFile = new File(lasFolder, name);
-            pair = getIndexPair(lasFile);
-            if (pair != null) {
-                fileName2LasReaderMap.put(name, pair);
-                fileName4LasReaderMapSupport.add(name);
-            }
-            // System.out.println("Added: " + lasIndexFile);
-            // } else {
-
-        }
-    }
-
-    private Pair getIndexPair( File lasFile ) throws Exception {
-        File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-        if (lasIndexFile.exists()) {
-            ALasReader reader = ALasReader.getReader(lasFile, crs);
-            reader.open();
-            reader.getHeader();
-            STRtreeJGT lasIndex = OmsLasIndexReader.readIndex(lasIndexFile.getAbsolutePath());
-            Pair pair = new Pair();
-            pair.reader = reader;
-            pair.strTree = lasIndex;
-            return pair;
-        } else {
-            System.err.println("Doesn't exist: " + lasIndexFile);
-        }
-        return null;
+        return names;
     }
 
     private void checkOpen() throws Exception {
@@ -441,30 +549,89 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         }
     }
 
+    /**
+     * @return the number of las readers currently open, idle or borrowed.
+     */
+    int getOpenReadersCount() {
+        return openReadersCount.get();
+    }
+
     @Override
     public void close() throws Exception {
-        for( String key : fileName4LasReaderMapSupport ) {
-            Pair pair = fileName2LasReaderMap.get(key);
-            if (pair != null)
-                pair.close();
+        synchronized (fileName2EntryMap) {
+            for( LasFileEntry entry : fileName2EntryMap.values() ) {
+                entry.evict();
+            }
+            fileName2EntryMap.clear();
         }
-        fileName4LasReaderMapSupport.clear();
-        fileName2LasReaderMap.clear();
-        fileName2LasReaderMap = null;
     }
 
-    private class Pair {
-        ALasReader reader;
-        STRtreeJGT strTree;
-        public void close() {
-            if (reader != null)
-                try {
-                    reader.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
+    /**
+     * The index of a las file and the pool of readers on it.
+     * 
+     * <p>Once evicted, the idle readers are closed and the borrowed ones are
+     * closed as they are released.
+     */
+    private class LasFileEntry {
+        final File lasFile;
+        final STRtreeJGT index;
+        private final List<ALasReader> idleReaders = new ArrayList<ALasReader>();
+        private int readersNum = 0;
+        private boolean evicted = false;
+
+        LasFileEntry( File lasFile, STRtreeJGT index ) {
+            this.lasFile = lasFile;
+            this.index = index;
+        }
+
+        /**
+         * Get a reader for exclusive use, waiting for one if the pool is exhausted.
+         */
+        synchronized ALasReader borrowReader() throws Exception {
+            while( true ) {
+                if (!idleReaders.isEmpty()) {
+                    return idleReaders.remove(idleReaders.size() - 1);
                 }
-            reader = null;
-            strTree = null;
+                if (evicted || readersNum < readerPoolSize) {
+                    ALasReader reader = createReader(lasFile);
+                    reader.open();
+                    reader.getHeader();
+                    readersNum++;
+                    openReadersCount.incrementAndGet();
+                    return reader;
+                }
+                wait();
+            }
+        }
+
+        synchronized void releaseReader( ALasReader reader ) {
+            if (evicted) {
+                readersNum--;
+                closeReader(reader);
+            } else {
+                idleReaders.add(reader);
+                notifyAll();
+            }
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            for( ALasReader reader : idleReaders ) {
+                readersNum--;
+                closeReader(reader);
+            }
+            idleReaders.clear();
+            // waiting threads open their own reader
+            notifyAll();
+        }
+
+        private void closeReader( ALasReader reader ) {
+            openReadersCount.decrementAndGet();
+            try {
+                reader.close();
+            } catch (Exception e) {
+                JGTLogger.logError(LasFolderIndexDataManager.this, "Could not close the reader of: " + lasFile, e);
+            }
         }
     }
 
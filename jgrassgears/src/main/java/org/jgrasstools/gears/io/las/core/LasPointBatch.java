@@ -0,0 +1,364 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of las points kept in columns of primitive arrays.
+ *
+ * <p>
+ * This is the columnar counterpart of a list of {@link LasRecord}s: the
+ * attribute of the point <code>i</code> is found at position <code>i</code> of
+ * the array of the attribute. Only the first {@link #size()} positions are valid.
+ * </p>
+ *
+ * <p>
+ * The gps time, color and ground elevation columns are created only once a point
+ * that has the information is added, so they can be <code>null</code>.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasPointBatch {
+    private static final short DEFAULT_COLOR = 100;
+
+    /**
+     * The x coordinates, with scale and offset already applied.
+     */
+    public double[] x;
+
+    /**
+     * The y coordinates, with scale and offset already applied.
+     */
+    public double[] y;
+
+    /**
+     * The z coordinates, with scale and offset already applied.
+     */
+    public double[] z;
+
+    /**
+     * The intensity values.
+     */
+    public short[] intensity;
+
+    /**
+     * The return numbers.
+     */
+    public byte[] returnNumber;
+
+    /**
+     * The number of returns of the pulse.
+     */
+    public byte[] numberOfReturns;
+
+    /**
+     * The classifications.
+     */
+    public byte[] classification;
+
+    /**
+     * The gps timestamps or <code>null</code>.
+     */
+    public double[] gpsTime;
+
+    /**
+     * The red color components or <code>null</code>.
+     */
+    public short[] red;
+
+    /**
+     * The green color components or <code>null</code>.
+     */
+    public short[] green;
+
+    /**
+     * The blue color components or <code>null</code>.
+     */
+    public short[] blue;
+
+    /**
+     * The ground elevations or <code>null</code>.
+     */
+    public double[] groundElevation;
+
+    private int size = 0;
+
+    public LasPointBatch() {
+        this(1024);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param initialCapacity the initial number of points the batch can hold.
+     */
+    public LasPointBatch( int initialCapacity ) {
+        int capacity = Math.max(1, initialCapacity);
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        intensity = new short[capacity];
+        returnNumber = new byte[capacity];
+        numberOfReturns = new byte[capacity];
+        classification = new byte[capacity];
+    }
+
+    /**
+     * @return the number of points in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of points the batch can hold without growing.
+     */
+    public int capacity() {
+        return x.length;
+    }
+
+    /**
+     * Remove all the points, keeping the allocated columns.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Make sure the batch can hold a given number of points.
+     *
+     * @param minCapacity the number of points.
+     */
+    public void ensureCapacity( int minCapacity ) {
+        if (minCapacity <= x.length) {
+            return;
+        }
+        int capacity = Math.max(minCapacity, x.length + (x.length >> 1));
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        intensity = Arrays.copyOf(intensity, capacity);
+        returnNumber = Arrays.copyOf(returnNumber, capacity);
+        numberOfReturns = Arrays.copyOf(numberOfReturns, capacity);
+        classification = Arrays.copyOf(classification, capacity);
+        if (gpsTime != null) {
+            int old = gpsTime.length;
+            gpsTime = Arrays.copyOf(gpsTime, capacity);
+            Arrays.fill(gpsTime, old, capacity, -1);
+        }
+        if (red != null) {
+            int old = red.length;
+            red = Arrays.copyOf(red, capacity);
+            green = Arrays.copyOf(green, capacity);
+            blue = Arrays.copyOf(blue, capacity);
+            Arrays.fill(red, old, capacity, DEFAULT_COLOR);
+            Arrays.fill(green, old, capacity, DEFAULT_COLOR);
+            Arrays.fill(blue, old, capacity, DEFAULT_COLOR);
+        }
+        if (groundElevation != null) {
+            int old = groundElevation.length;
+            groundElevation = Arrays.copyOf(groundElevation, capacity);
+            Arrays.fill(groundElevation, old, capacity, Double.NaN);
+        }
+    }
+
+    /**
+     * Append space for a number of points.
+     *
+     * <p>This is meant for readers that fill the columns directly. The gps time, color
+     * and ground elevation of the appended points are set to the defaults, since the
+     * space can have been used by points that were removed and a reader might not
+     * have the information to overwrite them.</p>
+     *
+     * @param count the number of points to append.
+     * @return the index of the first appended point.
+     */
+    public int grow( int count ) {
+        ensureCapacity(size + count);
+        int first = size;
+        size = size + count;
+        if (gpsTime != null) {
+            Arrays.fill(gpsTime, first, size, -1);
+        }
+        if (red != null) {
+            Arrays.fill(red, first, size, DEFAULT_COLOR);
+            Arrays.fill(green, first, size, DEFAULT_COLOR);
+            Arrays.fill(blue, first, size, DEFAULT_COLOR);
+        }
+        if (groundElevation != null) {
+            Arrays.fill(groundElevation, first, size, Double.NaN);
+        }
+        return first;
+    }
+
+    /**
+     * Make sure the gps time column exists.
+     */
+    public void enableGpsTime() {
+        if (gpsTime == null) {
+            gpsTime = new double[x.length];
+            Arrays.fill(gpsTime, -1);
+        }
+    }
+
+    /**
+     * Make sure the color columns exist.
+     */
+    public void enableColor() {
+        if (red == null) {
+            red = new short[x.length];
+            green = new short[x.length];
+            blue = new short[x.length];
+            Arrays.fill(red, DEFAULT_COLOR);
+            Arrays.fill(green, DEFAULT_COLOR);
+            Arrays.fill(blue, DEFAULT_COLOR);
+        }
+    }
+
+    /**
+     * Make sure the ground elevation column exists.
+     */
+    public void enableGroundElevation() {
+        if (groundElevation == null) {
+            groundElevation = new double[x.length];
+            Arrays.fill(groundElevation, Double.NaN);
+        }
+    }
+
+    /**
+     * Append a record to the batch.
+     *
+     * @param dot the record to add.
+     */
+    public void add( LasRecord dot ) {
+        int i = grow(1);
+        x[i] = dot.x;
+        y[i] = dot.y;
+        z[i] = dot.z;
+        intensity[i] = dot.intensity;
+        returnNumber[i] = (byte) dot.returnNumber;
+        numberOfReturns[i] = (byte) dot.numberOfReturns;
+        classification[i] = dot.classification;
+        if (dot.gpsTime != -1) {
+            enableGpsTime();
+        }
+        if (gpsTime != null) {
+            gpsTime[i] = dot.gpsTime;
+        }
+        if (dot.color != null
+                && (dot.color[0] != DEFAULT_COLOR || dot.color[1] != DEFAULT_COLOR || dot.color[2] != DEFAULT_COLOR)) {
+            enableColor();
+        }
+        if (red != null && dot.color != null) {
+            red[i] = dot.color[0];
+            green[i] = dot.color[1];
+            blue[i] = dot.color[2];
+        }
+        if (!Double.isNaN(dot.groundElevation)) {
+            enableGroundElevation();
+        }
+        if (groundElevation != null) {
+            groundElevation[i] = dot.groundElevation;
+        }
+    }
+
+    /**
+     * Keep only the points of a range that are flagged in a mask.
+     *
+     * <p>The points before the range are not touched, the ones that are kept
+     * are compacted in their original order.</p>
+     *
+     * @param from the first point of the range, which extends to the end of the batch.
+     * @param keep the mask for the points of the range, <code>keep[i - from]</code> for point <code>i</code>.
+     * @return the number of points kept in the range.
+     */
+    public int retain( int from, boolean[] keep ) {
+        int write = from;
+        for( int read = from; read < size; read++ ) {
+            if (!keep[read - from]) {
+                continue;
+            }
+            if (write != read) {
+                x[write] = x[read];
+                y[write] = y[read];
+                z[write] = z[read];
+                intensity[write] = intensity[read];
+                returnNumber[write] = returnNumber[read];
+                numberOfReturns[write] = numberOfReturns[read];
+                classification[write] = classification[read];
+                if (gpsTime != null)
+                    gpsTime[write] = gpsTime[read];
+                if (red != null) {
+                    red[write] = red[read];
+                    green[write] = green[read];
+                    blue[write] = blue[read];
+                }
+                if (groundElevation != null)
+                    groundElevation[write] = groundElevation[read];
+            }
+            write++;
+        }
+        size = write;
+        return write - from;
+    }
+
+    /**
+     * Create a record for a point of the batch.
+     *
+     * @param i the index of the point.
+     * @return the new record.
+     */
+    public LasRecord getRecord( int i ) {
+        LasRecord dot = new LasRecord();
+        dot.x = x[i];
+        dot.y = y[i];
+        dot.z = z[i];
+        dot.intensity = intensity[i];
+        dot.returnNumber = returnNumber[i];
+        dot.numberOfReturns = numberOfReturns[i];
+        dot.classification = classification[i];
+        if (gpsTime != null)
+            dot.gpsTime = gpsTime[i];
+        if (red != null) {
+            dot.color[0] = red[i];
+            dot.color[1] = green[i];
+            dot.color[2] = blue[i];
+        }
+        if (groundElevation != null)
+            dot.groundElevation = groundElevation[i];
+        return dot;
+    }
+
+    /**
+     * Convert the batch to a list of records.
+     *
+     * @return the list of records.
+     */
+    public List<LasRecord> toRecords() {
+        List<LasRecord> records = new ArrayList<LasRecord>(size);
+        for( int i = 0; i < size; i++ ) {
+            records.add(getRecord(i));
+        }
+        return records;
+    }
+
+}
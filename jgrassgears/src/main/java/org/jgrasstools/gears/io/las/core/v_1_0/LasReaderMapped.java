@@ -0,0 +1,545 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.core.v_1_0;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.jgrasstools.gears.io.las.core.ALasReader;
+import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.utils.CrsUtilities;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Las record reader for las spec 1.0 backed by a memory mapped file.
+ *
+ * <p>
+ * Next to the usual {@link ALasReader} methods, which create a {@link LasRecord}
+ * for every point read, this reader exposes a cursor over the points. Once the
+ * cursor is placed through {@link #moveToNext()} or {@link #moveTo(long)}, the
+ * attributes of the point are decoded in place from the mapped file, without
+ * creating any object:
+ * </p>
+ *
+ * <pre>
+ * while( reader.moveToNext() ) {
+ *     double x = reader.getX();
+ *     byte classification = reader.getClassification();
+ *     ...
+ * }
+ * </pre>
+ *
+ * <p>
+ * Blocks of points can also be decoded at once into primitive arrays through
+ * {@link #readColumns(long, int, double[], double[], double[], short[], byte[])} or
+ * {@link #readBatch(long, int, LasPointBatch)}.
+ * </p>
+ *
+ * <p>
+ * The point data are mapped in segments of less than 2GB each, so also files
+ * bigger than that are supported. The reader is not thread safe, since the
+ * cursor is part of its state.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasReaderMapped extends ALasReader {
+    private static final int HEADER_SIZE = 227;
+
+    private final File lasFile;
+    private CoordinateReferenceSystem crs;
+    private RandomAccessFile raf;
+    private FileChannel fc;
+    private boolean isOpen;
+
+    private LasHeader header;
+    private double xScale;
+    private double yScale;
+    private double zScale;
+    private double xOffset;
+    private double yOffset;
+    private double zOffset;
+    private long offset;
+    private int recordLength;
+    private int pointDataFormat;
+
+    /*
+     * the points available in the file, which can be less than
+     * the ones declared in the header for truncated files
+     */
+    private long pointsCount;
+    private MappedByteBuffer[] segments;
+    private int pointsPerSegment;
+
+    /*
+     * cursor state
+     */
+    private long nextPoint = 0;
+    private ByteBuffer cursorBuffer;
+    private int cursorPosition;
+
+    public LasReaderMapped( File lasFile, CoordinateReferenceSystem crs ) throws Exception {
+        this.lasFile = lasFile;
+        if (crs != null) {
+            this.crs = crs;
+        } else {
+            try {
+                this.crs = CrsUtilities.readProjectionFile(lasFile.getAbsolutePath(), "las");
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public File getLasFile() {
+        return lasFile;
+    }
+
+    /**
+     * Open the file if it isn't yet.
+     *
+     * <p>Used by the methods that can't throw checked exceptions, so problems
+     * reading the file are rethrown unchecked.</p>
+     */
+    private void checkOpen() {
+        if (!isOpen) {
+            try {
+                open();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public void open() throws Exception {
+        raf = new RandomAccessFile(lasFile, "r");
+        fc = raf.getChannel();
+
+        parseHeader();
+        mapPoints();
+        nextPoint = 0;
+        isOpen = true;
+    }
+
+    @Override
+    public void close() throws Exception {
+        segments = null;
+        cursorBuffer = null;
+        if (fc != null && fc.isOpen())
+            fc.close();
+        if (raf != null)
+            raf.close();
+        isOpen = false;
+    }
+
+    @Override
+    public void setOverrideGpsTimeType( int type ) {
+        getHeader();
+        header.gpsTimeType = type;
+    }
+
+    @Override
+    public ILasHeader getHeader() {
+        checkOpen();
+        return header;
+    }
+
+    private void parseHeader() throws IOException {
+        ByteBuffer hb = ByteBuffer.allocate(HEADER_SIZE);
+        hb.order(ByteOrder.LITTLE_ENDIAN);
+        while( hb.hasRemaining() ) {
+            if (fc.read(hb, hb.position()) < 0) {
+                throw new IOException("The las file header is truncated: " + lasFile);
+            }
+        }
+        hb.flip();
+
+        header = new LasHeader(crs);
+        header.signature = getString(hb, 0, 4);
+        header.fileSourceId = hb.getShort(4);
+        header.gpsTimeType = (hb.get(6) & 1) != 0 ? 1 : 0;
+        header.projectIdGuidData1 = hb.getInt(8);
+        header.projectIdGuidData2 = hb.getShort(12);
+        header.projectIdGuidData3 = hb.getShort(14);
+        header.projectIdGuidData4 = getString(hb, 16, 8);
+        header.versionMajor = hb.get(24);
+        header.versionMinor = hb.get(25);
+        header.systemIdentifier = getString(hb, 26, 32);
+        header.generatingSoftware = getString(hb, 58, 32);
+        header.dayOfYear = hb.getShort(90);
+        header.year = hb.getShort(92);
+        header.headerSize = hb.getShort(94);
+        header.offset = hb.getInt(96) & 0xFFFFFFFFL;
+        header.variableLengthRecordNum = hb.getInt(100);
+        header.pointDataFormat = hb.get(104);
+        header.recordLength = hb.getShort(105);
+        header.records = hb.getInt(107) & 0xFFFFFFFFL;
+        // skip the 20 bytes of number of points by return
+        header.xScale = hb.getDouble(131);
+        header.yScale = hb.getDouble(139);
+        header.zScale = hb.getDouble(147);
+        header.xOffset = hb.getDouble(155);
+        header.yOffset = hb.getDouble(163);
+        header.zOffset = hb.getDouble(171);
+        header.xMax = hb.getDouble(179);
+        header.xMin = hb.getDouble(187);
+        header.yMax = hb.getDouble(195);
+        header.yMin = hb.getDouble(203);
+        header.zMax = hb.getDouble(211);
+        header.zMin = hb.getDouble(219);
+
+        xScale = header.xScale;
+        yScale = header.yScale;
+        zScale = header.zScale;
+        xOffset = header.xOffset;
+        yOffset = header.yOffset;
+        zOffset = header.zOffset;
+        offset = header.offset;
+        recordLength = header.recordLength & 0xFFFF;
+        pointDataFormat = header.pointDataFormat;
+        if (recordLength < 20) {
+            throw new IOException("Unsupported las record length: " + recordLength);
+        }
+    }
+
+    private void mapPoints() throws IOException {
+        long availablePoints = (fc.size() - offset) / recordLength;
+        pointsCount = Math.max(0, Math.min(header.records, availablePoints));
+
+        pointsPerSegment = Integer.MAX_VALUE / recordLength;
+        int segmentsNum = (int) ((pointsCount + pointsPerSegment - 1) / pointsPerSegment);
+        segments = new MappedByteBuffer[segmentsNum];
+        for( int i = 0; i < segmentsNum; i++ ) {
+            long fromPoint = (long) i * pointsPerSegment;
+            long segmentPoints = Math.min(pointsPerSegment, pointsCount - fromPoint);
+            MappedByteBuffer segment = fc.map(MapMode.READ_ONLY, offset + fromPoint * recordLength, segmentPoints
+                    * recordLength);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments[i] = segment;
+        }
+    }
+
+    private static String getString( ByteBuffer bb, int position, int size ) {
+        byte[] bytesStr = new byte[size];
+        for( int i = 0; i < size; i++ ) {
+            bytesStr[i] = bb.get(position + i);
+        }
+        return new String(bytesStr);
+    }
+
+    /**
+     * @return the number of points that can be read from the file.
+     */
+    public long getPointsCount() {
+        checkOpen();
+        return pointsCount;
+    }
+
+    /**
+     * Move the cursor to the next point.
+     *
+     * @return <code>true</code> if the cursor has been moved, <code>false</code> if
+     *          there are no more points.
+     */
+    public boolean moveToNext() {
+        checkOpen();
+        if (nextPoint >= pointsCount) {
+            return false;
+        }
+        placeCursor(nextPoint);
+        nextPoint++;
+        return true;
+    }
+
+    /**
+     * Move the cursor to a given point.
+     *
+     * <p>The position starts with 0 at the first point position. A subsequent
+     * {@link #moveToNext()} will move to the point after this one.</p>
+     *
+     * @param pointNumber the number of the point.
+     */
+    public void moveTo( long pointNumber ) {
+        checkOpen();
+        if (pointNumber < 0 || pointNumber >= pointsCount) {
+            throw new IndexOutOfBoundsException("Point " + pointNumber + " is outside of the available " + pointsCount
+                    + " points.");
+        }
+        placeCursor(pointNumber);
+        nextPoint = pointNumber + 1;
+    }
+
+    private void placeCursor( long pointNumber ) {
+        cursorBuffer = segments[(int) (pointNumber / pointsPerSegment)];
+        cursorPosition = (int) (pointNumber % pointsPerSegment) * recordLength;
+    }
+
+    /**
+     * @return the x coordinate of the point at the cursor, with scale and offset applied.
+     */
+    public double getX() {
+        return cursorBuffer.getInt(cursorPosition) * xScale + xOffset;
+    }
+
+    /**
+     * @return the y coordinate of the point at the cursor, with scale and offset applied.
+     */
+    public double getY() {
+        return cursorBuffer.getInt(cursorPosition + 4) * yScale + yOffset;
+    }
+
+    /**
+     * @return the z coordinate of the point at the cursor, with scale and offset applied.
+     */
+    public double getZ() {
+        return cursorBuffer.getInt(cursorPosition + 8) * zScale + zOffset;
+    }
+
+    /**
+     * @return the intensity of the point at the cursor.
+     */
+    public short getIntensity() {
+        return cursorBuffer.getShort(cursorPosition + 12);
+    }
+
+    /**
+     * @return the return number of the point at the cursor.
+     */
+    public short getReturnNumber() {
+        return (short) (cursorBuffer.get(cursorPosition + 14) & 0x07);
+    }
+
+    /**
+     * @return the number of returns of the pulse of the point at the cursor.
+     */
+    public short getNumberOfReturns() {
+        return (short) ((cursorBuffer.get(cursorPosition + 14) >> 3) & 0x07);
+    }
+
+    /**
+     * @return the classification of the point at the cursor.
+     */
+    public byte getClassification() {
+        return cursorBuffer.get(cursorPosition + 15);
+    }
+
+    /**
+     * @return the gps time of the point at the cursor or -1 if the format has no time.
+     */
+    public double getGpsTime() {
+        if (pointDataFormat == 1 || pointDataFormat == 3) {
+            return cursorBuffer.getDouble(cursorPosition + 20);
+        }
+        return -1;
+    }
+
+    /**
+     * Get a color component of the point at the cursor.
+     *
+     * @param band the band, 0 for red, 1 for green and 2 for blue.
+     * @return the color component or -1 if the format has no color.
+     */
+    public short getColor( int band ) {
+        if (pointDataFormat == 2) {
+            return cursorBuffer.getShort(cursorPosition + 20 + band * 2);
+        } else if (pointDataFormat == 3) {
+            return cursorBuffer.getShort(cursorPosition + 28 + band * 2);
+        }
+        return -1;
+    }
+
+    /**
+     * Copy the point at the cursor into an existing record.
+     *
+     * <p>This allows to reuse a single record while reading many points.</p>
+     *
+     * @param dot the record to fill.
+     */
+    public void readRecord( LasRecord dot ) {
+        dot.x = getX();
+        dot.y = getY();
+        dot.z = getZ();
+        dot.intensity = getIntensity();
+        byte b = cursorBuffer.get(cursorPosition + 14);
+        dot.returnNumber = (short) (b & 0x07);
+        dot.numberOfReturns = (short) ((b >> 3) & 0x07);
+        dot.classification = getClassification();
+        if (pointDataFormat == 1 || pointDataFormat == 3) {
+            dot.gpsTime = getGpsTime();
+        }
+        if (pointDataFormat == 2 || pointDataFormat == 3) {
+            dot.color[0] = getColor(0);
+            dot.color[1] = getColor(1);
+            dot.color[2] = getColor(2);
+        }
+    }
+
+    /**
+     * Decode a block of points into primitive arrays.
+     *
+     * <p>Arrays that are passed as <code>null</code> are not read. The cursor is not moved.</p>
+     *
+     * @param fromPoint the first point to read.
+     * @param count the number of points to read.
+     * @param xs the array for the x coordinates or <code>null</code>.
+     * @param ys the array for the y coordinates or <code>null</code>.
+     * @param zs the array for the z coordinates or <code>null</code>.
+     * @param intensities the array for the intensities or <code>null</code>.
+     * @param classifications the array for the classifications or <code>null</code>.
+     * @return the number of points read, which is less than count at the end of the file.
+     */
+    public int readColumns( long fromPoint, int count, double[] xs, double[] ys, double[] zs, short[] intensities,
+            byte[] classifications ) {
+        checkOpen();
+        if (fromPoint < 0 || fromPoint >= pointsCount) {
+            return 0;
+        }
+        int toRead = (int) Math.min(count, pointsCount - fromPoint);
+        readColumns(fromPoint, toRead, xs, ys, zs, intensities, classifications, 0);
+        return toRead;
+    }
+
+    private void readColumns( long fromPoint, int toRead, double[] xs, double[] ys, double[] zs, short[] intensities,
+            byte[] classifications, int arrayOffset ) {
+        int read = 0;
+        while( read < toRead ) {
+            long point = fromPoint + read;
+            ByteBuffer segment = segments[(int) (point / pointsPerSegment)];
+            int indexInSegment = (int) (point % pointsPerSegment);
+            int inThisSegment = Math.min(toRead - read, pointsPerSegment - indexInSegment);
+            int position = indexInSegment * recordLength;
+            for( int i = arrayOffset + read; i < arrayOffset + read + inThisSegment; i++ ) {
+                if (xs != null)
+                    xs[i] = segment.getInt(position) * xScale + xOffset;
+                if (ys != null)
+                    ys[i] = segment.getInt(position + 4) * yScale + yOffset;
+                if (zs != null)
+                    zs[i] = segment.getInt(position + 8) * zScale + zOffset;
+                if (intensities != null)
+                    intensities[i] = segment.getShort(position + 12);
+                if (classifications != null)
+                    classifications[i] = segment.get(position + 15);
+                position += recordLength;
+            }
+            read += inThisSegment;
+        }
+    }
+
+    /**
+     * Decode a block of points appending all their attributes to a batch.
+     *
+     * <p>The cursor is not moved.</p>
+     *
+     * @param fromPoint the first point to read.
+     * @param count the number of points to read.
+     * @param batch the batch to append to.
+     * @return the number of points read, which is less than count at the end of the file.
+     */
+    public int readBatch( long fromPoint, int count, LasPointBatch batch ) {
+        checkOpen();
+        if (fromPoint < 0 || fromPoint >= pointsCount) {
+            return 0;
+        }
+        int toRead = (int) Math.min(count, pointsCount - fromPoint);
+        boolean hasGpsTime = pointDataFormat == 1 || pointDataFormat == 3;
+        boolean hasColor = pointDataFormat == 2 || pointDataFormat == 3;
+        int colorPosition = pointDataFormat == 3 ? 28 : 20;
+        if (hasGpsTime)
+            batch.enableGpsTime();
+        if (hasColor)
+            batch.enableColor();
+        int first = batch.grow(toRead);
+        readColumns(fromPoint, toRead, batch.x, batch.y, batch.z, batch.intensity, batch.classification, first);
+
+        for( int i = 0; i < toRead; i++ ) {
+            long point = fromPoint + i;
+            ByteBuffer segment = segments[(int) (point / pointsPerSegment)];
+            int position = (int) (point % pointsPerSegment) * recordLength;
+            int index = first + i;
+            byte b = segment.get(position + 14);
+            batch.returnNumber[index] = (byte) (b & 0x07);
+            batch.numberOfReturns[index] = (byte) ((b >> 3) & 0x07);
+            if (hasGpsTime)
+                batch.gpsTime[index] = segment.getDouble(position + 20);
+            if (hasColor) {
+                batch.red[index] = segment.getShort(position + colorPosition);
+                batch.green[index] = segment.getShort(position + colorPosition + 2);
+                batch.blue[index] = segment.getShort(position + colorPosition + 4);
+            }
+        }
+        return toRead;
+    }
+
+    @Override
+    public boolean hasNextPoint() throws IOException {
+        checkOpen();
+        return nextPoint < pointsCount;
+    }
+
+    @Override
+    public LasRecord getNextPoint() throws IOException {
+        if (!moveToNext()) {
+            return null;
+        }
+        LasRecord dot = new LasRecord();
+        readRecord(dot);
+        return dot;
+    }
+
+    @Override
+    public LasRecord getPointAtAddress( long address ) throws IOException {
+        return getPointAt((address - offset) / recordLength);
+    }
+
+    @Override
+    public LasRecord getPointAt( long pointNumber ) throws IOException {
+        moveTo(pointNumber);
+        LasRecord dot = new LasRecord();
+        readRecord(dot);
+        return dot;
+    }
+
+    @Override
+    public double[] readNextLasXYZAddress() throws IOException {
+        long address = offset + nextPoint * recordLength;
+        if (!moveToNext()) {
+            return null;
+        }
+        return new double[]{getX(), getY(), getZ(), address};
+    }
+
+    @Override
+    public void seek( long pointNumber ) throws IOException {
+        checkOpen();
+        nextPoint = pointNumber;
+    }
+
+}
@@ -58,6 +58,7 @@ import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ALasWriter;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
 import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasReaderMapped;
 import org.jgrasstools.gears.io.las.index.strtree.STRtreeJGT;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
@@ -118,6 +119,10 @@ public class LasIndexer extends JGTModel {
     @In
     public int pThreads = 1;
 
+    @Description("Read the las files through memory mapping, sorting point positions instead of point records.")
+    @In
+    public boolean doMappedReader = false;
+
     private CoordinateReferenceSystem crs;
     private ConcurrentLinkedQueue<Polygon> envelopesQueue;
 
@@ -260,7 +265,7 @@ public class LasIndexer extends JGTModel {
          */
         CoordinateList pointsList = new CoordinateList();
 
-        try (ALasReader reader = ALasReader.getReader(file, crs)) {
+        try (ALasReader reader = doMappedReader ? new LasReaderMapped(file, crs) : ALasReader.getReader(file, crs)) {
             reader.open();
             ILasHeader header = reader.getHeader();
             long recordsCount = header.getRecordsCount();
@@ -300,27 +305,72 @@ public class LasIndexer extends JGTModel {
             GridGeometry2D gridGeometry = CoverageUtilities.gridGeometryFromRegionValues(north, south, east, west, cols, rows,
                     reader.getHeader().getCrs());
 
-            List<LasRecord>[][] dotOnMatrix = new ArrayList[cols][rows];
+            List<LasRecord>[][] dotOnMatrix = null;
+            /*
+             * with the mapped reader only the point positions are sorted
+             * by cell (cell = col * rows + row), the records are read back
+             * while writing
+             */
+            LasReaderMapped mappedReader = null;
+            int[] cellStart = null;
+            int[] sortedPoints = null;
             if (!isMultiThreaded) {
                 pm.beginTask("Sorting points for " + name, (int) recordsCount);
             } else {
                 pm.message("Sorting points for " + name + "...");
             }
-            while( reader.hasNextPoint() ) {
-                LasRecord dot = reader.getNextPoint();
-                DirectPosition wPoint = new DirectPosition2D(dot.x, dot.y);
-                GridCoordinates2D gridCoord = gridGeometry.worldToGrid(wPoint);
-                int x = gridCoord.x;
-                int y = gridCoord.y;
-                if (dotOnMatrix[x][y] == null) {
-                    dotOnMatrix[x][y] = new ArrayList<>();
+            if (reader instanceof LasReaderMapped) {
+                mappedReader = (LasReaderMapped) reader;
+                long pointsCount = mappedReader.getPointsCount();
+                if (pointsCount > Integer.MAX_VALUE) {
+                    throw new ModelsIllegalargumentException("Too many points for the mapped reader in: " + name, this);
                 }
-                dotOnMatrix[x][y].add(dot);
-                if (doOverview) {
-                    pointsList.add(new Coordinate(dot.x, dot.y));
+                int[] pointCells = new int[(int) pointsCount];
+                cellStart = new int[cols * rows + 1];
+                DirectPosition2D wPoint = new DirectPosition2D();
+                int index = 0;
+                while( mappedReader.moveToNext() ) {
+                    double x = mappedReader.getX();
+                    double y = mappedReader.getY();
+                    wPoint.setLocation(x, y);
+                    GridCoordinates2D gridCoord = gridGeometry.worldToGrid(wPoint);
+                    int cell = gridCoord.x * rows + gridCoord.y;
+                    pointCells[index++] = cell;
+                    cellStart[cell + 1]++;
+                    if (doOverview) {
+                        pointsList.add(new Coordinate(x, y));
+                    }
+                    if (!isMultiThreaded)
+                        pm.worked(1);
+                }
+                for( int i = 0; i < cols * rows; i++ ) {
+                    cellStart[i + 1] += cellStart[i];
+                }
+                // stable counting sort, keeps the file order inside the cells
+                int[] fill = new int[cols * rows];
+                sortedPoints = new int[pointCells.length];
+                for( int i = 0; i < pointCells.length; i++ ) {
+                    int cell = pointCells[i];
+                    sortedPoints[cellStart[cell] + fill[cell]++] = i;
+                }
+            } else {
+                dotOnMatrix = new ArrayList[cols][rows];
+                while( reader.hasNextPoint() ) {
+                    LasRecord dot = reader.getNextPoint();
+                    DirectPosition wPoint = new DirectPosition2D(dot.x, dot.y);
+                    GridCoordinates2D gridCoord = gridGeometry.worldToGrid(wPoint);
+                    int x = gridCoord.x;
+                    int y = gridCoord.y;
+                    if (dotOnMatrix[x][y] == null) {
+                        dotOnMatrix[x][y] = new ArrayList<>();
+                    }
+                    dotOnMatrix[x][y].add(dot);
+                    if (doOverview) {
+                        pointsList.add(new Coordinate(dot.x, dot.y));
+                    }
+                    if (!isMultiThreaded)
+                        pm.worked(1);
                 }
-                if (!isMultiThreaded)
-                    pm.worked(1);
             }
             if (!isMultiThreaded)
                 pm.done();
@@ -340,11 +390,20 @@ public class LasIndexer extends JGTModel {
                     pm.message("Write and index new las...");
                 }
                 long pointCount = 0;
+                LasRecord mappedDot = new LasRecord();
                 for( int c = 0; c < cols; c++ ) {
                     for( int r = 0; r < rows; r++ ) {
-                        List<LasRecord> dotsList = dotOnMatrix[c][r];
-                        if (dotsList == null || dotsList.size() == 0) {
-                            continue;
+                        List<LasRecord> dotsList = null;
+                        int cell = c * rows + r;
+                        if (mappedReader != null) {
+                            if (cellStart[cell] == cellStart[cell + 1]) {
+                                continue;
+                            }
+                        } else {
+                            dotsList = dotOnMatrix[c][r];
+                            if (dotsList == null || dotsList.size() == 0) {
+                                continue;
+                            }
                         }
                         Coordinate coord = CoverageUtilities.coordinateFromColRow(c, r, gridGeometry);
                         Envelope env = new Envelope(coord);
@@ -354,12 +413,24 @@ public class LasIndexer extends JGTModel {
                         double avgIntensityValue = 0.0;
                         int count = 0;
 
-                        for( LasRecord dot : dotsList ) {
-                            writer.addPoint(dot);
-                            pointCount++;
-                            avgElevValue += dot.z;
-                            avgIntensityValue += dot.intensity;
-                            count++;
+                        if (mappedReader != null) {
+                            for( int i = cellStart[cell]; i < cellStart[cell + 1]; i++ ) {
+                                mappedReader.moveTo(sortedPoints[i]);
+                                mappedReader.readRecord(mappedDot);
+                                writer.addPoint(mappedDot);
+                                pointCount++;
+                                avgElevValue += mappedDot.z;
+                                avgIntensityValue += mappedDot.intensity;
+                                count++;
+                            }
+                        } else {
+                            for( LasRecord dot : dotsList ) {
+                                writer.addPoint(dot);
+                                pointCount++;
+                                avgElevValue += dot.z;
+                                avgIntensityValue += dot.intensity;
+                                count++;
+                            }
                         }
                         avgElevValue /= count;
                         avgIntensityValue /= count;
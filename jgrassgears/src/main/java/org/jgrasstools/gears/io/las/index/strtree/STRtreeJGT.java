@@ -251,6 +251,37 @@ public class STRtreeJGT extends AbstractSTRtree implements SpatialIndex, Seriali
         }
     }
 
+    /**
+     * Returns all the {@link com.vividsolutions.jts.index.strtree.ItemBoundable}s of the tree.
+     *
+     *  <p>Also builds the tree, if necessary.</p>
+     *
+     * @return the list of {@link com.vividsolutions.jts.index.strtree.ItemBoundable}s.
+     */
+    public List itemBoundables() {
+        build();
+        ArrayList matches = new ArrayList();
+        if (isEmpty()) {
+            return matches;
+        }
+        itemBoundables(root, matches);
+        return matches;
+    }
+
+    private void itemBoundables( AbstractNode node, List matches ) {
+        List childBoundables = node.getChildBoundables();
+        for( int i = 0; i < childBoundables.size(); i++ ) {
+            Boundable childBoundable = (Boundable) childBoundables.get(i);
+            if (childBoundable instanceof AbstractNode) {
+                itemBoundables((AbstractNode) childBoundable, matches);
+            } else if (childBoundable instanceof ItemBoundable) {
+                matches.add(childBoundable);
+            } else {
+                Assert.shouldNeverReachHere();
+            }
+        }
+    }
+
     /**
      * Returns the number of items in the tree.
      *
@@ -30,9 +30,16 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
@@ -47,7 +54,9 @@ import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.jgrasstools.dbs.compat.ASpatialDb;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasReaderMapped;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
@@ -61,8 +70,11 @@ import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
 import org.jgrasstools.gears.utils.math.NumericsUtilities;
 import org.opengis.coverage.PointOutsideCoverageException;
 import org.opengis.geometry.DirectPosition;
+import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.parameter.GeneralParameterValue;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform2D;
+import org.opengis.referencing.operation.TransformException;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
@@ -129,6 +141,18 @@ public class SpatialiteLasWriter extends JGTModel {
     @In
     public boolean doAvoidIndex = false;
 
+    @Description("Flag to read and aggregate several las files in parallel, while a single thread writes to the database.")
+    @In
+    public boolean doPipeline = false;
+
+    @Description("The number of threads to use to read and aggregate the las files in pipeline mode.")
+    @In
+    public int pThreads = 1;
+
+    @Description("The maximum number of points a thread aggregates at once in pipeline mode (a single cell can exceed it).")
+    @In
+    public int pBlockPoints = 2000000;
+
     private CoordinateReferenceSystem crs;
 
     @Description("Optional las list names to process only those (inside las folder).")
@@ -141,10 +165,20 @@ public class SpatialiteLasWriter extends JGTModel {
     private double ortoYRes;
 
     private ImageMosaicReader ortoReader;
+    private AbstractGridFormat ortoFormat;
+    private URL ortoUrl;
 
     public boolean doVerbose = true;
     private static final String INTERRUPTED_BY_USER = "Interrupted by user.";
 
+    /*
+     * pipeline mode: cells per queued chunk, cells per transaction, points per read
+     */
+    private static final int PIPELINE_CHUNK_CELLS = 10000;
+    private static final int PIPELINE_TRANSACTION_CELLS = 100000;
+    private static final int PIPELINE_READ_POINTS = 1000000;
+    private static final Object PIPELINE_END = new Object();
+
     @Execute
     public void process() throws Exception {
         checkNull(inFolder, inSpatialite);
@@ -164,9 +198,9 @@ public class SpatialiteLasWriter extends JGTModel {
         if (inOrtophoto != null) {
             File ortoFile = new File(inOrtophoto);
             if (ortoFile.exists()) {
-                URL imageMosaicUrl = ortoFile.toURI().toURL();
-                final AbstractGridFormat imageMosaicFormat = (AbstractGridFormat) GridFormatFinder.findFormat(imageMosaicUrl);
-                ortoReader = (ImageMosaicReader) imageMosaicFormat.getReader(imageMosaicUrl);
+                ortoUrl = ortoFile.toURI().toURL();
+                ortoFormat = (AbstractGridFormat) GridFormatFinder.findFormat(ortoUrl);
+                ortoReader = (ImageMosaicReader) ortoFormat.getReader(ortoUrl);
                 File propertiesFile = FileUtilities.substituteExtention(ortoFile, "properties");
                 HashMap<String, String> propertiesMap = FileUtilities.readFileToHashMap(propertiesFile.getAbsolutePath(), null,
                         false);
@@ -250,6 +284,7 @@ public class SpatialiteLasWriter extends JGTModel {
             for( LasSource lasSource : lasSources ) {
                 existingLasSourcesNames.add(lasSource.name);
             }
+            List<PipelineSource> pipelineSources = new ArrayList<>();
             for( File lasFile : filesList ) {
                 if (pm.isCanceled()) {
                     return;
@@ -267,25 +302,35 @@ public class SpatialiteLasWriter extends JGTModel {
                 }
                 Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(envelope);
 
-                GridCoverage2D ortoGC = null;
-                if (ortoReader != null) {
-                    double west = envelope.getMinX();
-                    double east = envelope.getMaxX();
-                    double south = envelope.getMinY();
-                    double north = envelope.getMaxY();
-                    GeneralParameterValue[] readGeneralParameterValues = CoverageUtilities
-                            .createGridGeometryGeneralParameter(ortoXRes, ortoYRes, north, south, east, west, crs);
-                    ortoGC = ortoReader.read(readGeneralParameterValues);
-                }
-
                 long id = LasSourcesTable.insertLasSource(spatialiteDb, srid, pLevels, pCellsize, pFactor, polygon, lasName,
                         envelope.getMinZ(), envelope.getMaxZ(), 0, 0);
-                processFile(spatialiteDb, lasFile, id, ortoGC);
+                if (doPipeline) {
+                    pipelineSources.add(new PipelineSource(lasFile, id));
+                } else {
+                    GridCoverage2D ortoGC = readOrtoCoverage(ortoReader, envelope);
+                    processFile(spatialiteDb, lasFile, id, ortoGC);
+                }
+            }
+            if (pipelineSources.size() > 0) {
+                processFilesPipelined(spatialiteDb, pipelineSources);
             }
 
         }
     }
 
+    private GridCoverage2D readOrtoCoverage( ImageMosaicReader reader, Envelope envelope ) throws Exception {
+        if (reader == null) {
+            return null;
+        }
+        double west = envelope.getMinX();
+        double east = envelope.getMaxX();
+        double south = envelope.getMinY();
+        double north = envelope.getMaxY();
+        GeneralParameterValue[] readGeneralParameterValues = CoverageUtilities.createGridGeometryGeneralParameter(ortoXRes,
+                ortoYRes, north, south, east, west, crs);
+        return reader.read(readGeneralParameterValues);
+    }
+
     @SuppressWarnings("unchecked")
     private void processFile( final ASpatialDb spatialiteDb, File file, long sourceID, GridCoverage2D ortoGC ) throws Exception {
         String name = file.getName();
@@ -381,26 +426,7 @@ public class SpatialiteLasWriter extends JGTModel {
 
                     if (dotsList == null || dotsList.size() == 0) {
                         if (doEmptyCells) {
-                            final LasCell lasCell = new LasCell();
-                            lasCell.polygon = polygon;
-                            lasCell.sourceId = sourceID;
-
-                            lasCell.pointsCount = 0;
-                            lasCell.avgElev = -9999.0;
-                            lasCell.minElev = -9999.0;
-                            lasCell.maxElev = -9999.0;
-                            lasCell.xyzs = new byte[0];
-                            lasCell.avgIntensity = (short) -999;
-                            lasCell.minIntensity = (short) -999;
-                            lasCell.maxIntensity = (short) -999;
-                            lasCell.intensitiesClassifications = new byte[0];
-                            lasCell.returns = new byte[0];
-                            lasCell.minGpsTime = -9999.0;
-                            lasCell.maxGpsTime = -9999.0;
-                            lasCell.gpsTimes = new byte[0];
-                            lasCell.colors = new byte[0];
-
-                            cellsList.add(lasCell);
+                            cellsList.add(createEmptyCell(polygon, sourceID));
                         }
                         continue;
                     }
@@ -565,6 +591,463 @@ public class SpatialiteLasWriter extends JGTModel {
 
     }
 
+    private LasCell createEmptyCell( Polygon polygon, long sourceID ) {
+        final LasCell lasCell = new LasCell();
+        lasCell.polygon = polygon;
+        lasCell.sourceId = sourceID;
+
+        lasCell.pointsCount = 0;
+        lasCell.avgElev = -9999.0;
+        lasCell.minElev = -9999.0;
+        lasCell.maxElev = -9999.0;
+        lasCell.xyzs = new byte[0];
+        lasCell.avgIntensity = (short) -999;
+        lasCell.minIntensity = (short) -999;
+        lasCell.maxIntensity = (short) -999;
+        lasCell.intensitiesClassifications = new byte[0];
+        lasCell.returns = new byte[0];
+        lasCell.minGpsTime = -9999.0;
+        lasCell.maxGpsTime = -9999.0;
+        lasCell.gpsTimes = new byte[0];
+        lasCell.colors = new byte[0];
+        return lasCell;
+    }
+
+    /**
+     * Ingest the files through a pipeline.
+     * 
+     * <p>{@link #pThreads} workers read one file each and aggregate its points
+     * into cells, which are passed in chunks through a bounded queue to a single
+     * writer thread. The writer inserts them in large transactions and creates the
+     * levels of a file once all its cells are in the database.</p>
+     * 
+     * <p>A file is not loaded whole: after a pass that counts the points of every cell,
+     * it is read again for each block of cells, so the memory used is bounded by the cell
+     * counts of the files being aggregated, by one block of points per worker (kept in
+     * columns, not as records) and by the capacity of the queue.</p>
+     * 
+     * <p>Every worker reads the orthophoto through its own reader. The first
+     * failure stops the remaining files and is rethrown.</p>
+     */
+    private void processFilesPipelined( final ASpatialDb spatialiteDb, List<PipelineSource> sources ) throws Exception {
+        int threads = Math.max(1, pThreads);
+        final BlockingQueue<Object> writeQueue = new ArrayBlockingQueue<Object>(2 * threads);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        Thread writerThread = new Thread(new Runnable(){
+            public void run() {
+                List<LasCell> pendingCells = new ArrayList<>();
+                while( true ) {
+                    Object item;
+                    try {
+                        item = writeQueue.take();
+                    } catch (InterruptedException e) {
+                        error.compareAndSet(null, e);
+                        return;
+                    }
+                    if (item == PIPELINE_END) {
+                        break;
+                    }
+                    if (error.get() != null) {
+                        // keep draining, so that the workers are never blocked
+                        continue;
+                    }
+                    try {
+                        if (item instanceof List) {
+                            @SuppressWarnings("unchecked")
+                            List<LasCell> cells = (List<LasCell>) item;
+                            pendingCells.addAll(cells);
+                            if (pendingCells.size() >= PIPELINE_TRANSACTION_CELLS) {
+                                LasCellsTable.insertLasCells(spatialiteDb, srid, pendingCells);
+                                pendingCells = new ArrayList<>();
+                            }
+                        } else {
+                            if (pendingCells.size() > 0) {
+                                LasCellsTable.insertLasCells(spatialiteDb, srid, pendingCells);
+                                pendingCells = new ArrayList<>();
+                            }
+                            ((Runnable) item).run();
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+                if (error.get() == null && pendingCells.size() > 0) {
+                    try {
+                        LasCellsTable.insertLasCells(spatialiteDb, srid, pendingCells);
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }
+        }, "spatialitelaswriter-writer");
+        writerThread.start();
+
+        pm.beginTask("Ingesting " + sources.size() + " las files with " + threads + " threads...", sources.size());
+        final BlockingQueue<ImageMosaicReader> idleOrtoReaders = new LinkedBlockingQueue<ImageMosaicReader>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for( final PipelineSource source : sources ) {
+                futures.add(executor.submit(new Callable<Object>(){
+                    public Object call() throws Exception {
+                        if (error.get() != null) {
+                            return null;
+                        }
+                        ImageMosaicReader reader = idleOrtoReaders.poll();
+                        if (reader == null && ortoFormat != null) {
+                            reader = (ImageMosaicReader) ortoFormat.getReader(ortoUrl);
+                        }
+                        try {
+                            aggregateFile(spatialiteDb, source, reader, writeQueue, error);
+                        } finally {
+                            if (reader != null) {
+                                idleOrtoReaders.offer(reader);
+                            }
+                        }
+                        pm.worked(1);
+                        return null;
+                    }
+                }));
+            }
+            // the workers skip their files once a failure is recorded, so this returns quickly
+            for( Future<Object> future : futures ) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    error.compareAndSet(null, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            error.compareAndSet(null, e);
+            executor.shutdownNow();
+        } finally {
+            executor.shutdown();
+            writeQueue.put(PIPELINE_END);
+            writerThread.join();
+            for( ImageMosaicReader reader : idleOrtoReaders ) {
+                reader.dispose();
+            }
+            pm.done();
+        }
+
+        Throwable t = error.get();
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Aggregate the points of a file into cells and queue them for writing.
+     * 
+     * <p>A first pass over the file counts the points of every cell. The cells are
+     * then taken in blocks of consecutive cells holding at most {@link #pBlockPoints}
+     * points (a single cell can exceed that), and for each block the file is read again,
+     * keeping only the points of the block.</p>
+     */
+    private void aggregateFile( final ASpatialDb spatialiteDb, PipelineSource source, ImageMosaicReader workerOrtoReader,
+            BlockingQueue<Object> writeQueue, AtomicReference<Throwable> error ) throws Exception {
+        File file = source.file;
+        final long sourceID = source.id;
+        String name = file.getName();
+        pm.message("Processing file: " + name);
+
+        long recordsCount;
+        ReferencedEnvelope3D envelope;
+        CoordinateReferenceSystem fileCrs;
+        try (ALasReader reader = ALasReader.getReader(file, crs)) {
+            reader.open();
+            ILasHeader header = reader.getHeader();
+            recordsCount = header.getRecordsCount();
+            envelope = header.getDataEnvelope();
+            fileCrs = header.getCrs();
+        }
+        if (recordsCount == 0) {
+            pm.errorMessage("No points found in: " + name);
+            return;
+        }
+
+        Envelope2D e = new Envelope2D(new ReferencedEnvelope(envelope));
+        final double north = e.getMaxY();
+        final double south = e.getMinY();
+        final double east = e.getMaxX();
+        final double west = e.getMinX();
+        double[] xRanges = NumericsUtilities.range2Bins(west, east, pCellsize, false);
+        double[] yRanges = NumericsUtilities.range2Bins(south, north, pCellsize, false);
+        int cols = xRanges.length - 1;
+        final int rows = yRanges.length - 1;
+        GridGeometry2D gridGeometry = CoverageUtilities.gridGeometryFromRegionValues(north, south, east, west, cols, rows,
+                fileCrs);
+        final PipelineGrid grid = new PipelineGrid(gridGeometry, cols, rows);
+        int cellsCount = cols * rows;
+
+        /*
+         * first pass: the number of points of every cell, in the column major
+         * order the cells are written
+         */
+        final int[] cellStart = new int[cellsCount + 1];
+        final short[] intensityRange = {Short.MAX_VALUE, -Short.MAX_VALUE};
+        LasPointBatch batch = new LasPointBatch((int) Math.min(recordsCount, PIPELINE_READ_POINTS));
+        long readCount = readInChunks(file, batch, new PipelineChunkHandler(){
+            public void handle( LasPointBatch chunk, int first ) throws Exception {
+                for( int i = first; i < chunk.size(); i++ ) {
+                    intensityRange[0] = (short) Math.min(intensityRange[0], chunk.intensity[i]);
+                    intensityRange[1] = (short) Math.max(intensityRange[1], chunk.intensity[i]);
+                    cellStart[grid.cell(chunk.x[i], chunk.y[i]) + 1]++;
+                }
+                chunk.clear();
+            }
+        });
+        if (readCount != recordsCount) {
+            throw new RuntimeException("Didn't read all the data...");
+        }
+        for( int i = 0; i < cellsCount; i++ ) {
+            cellStart[i + 1] += cellStart[i];
+        }
+
+        GridCoverage2D ortoGC = readOrtoCoverage(workerOrtoReader, envelope);
+        Point2D.Double pos = new Point2D.Double();
+        int[] ortoValues = new int[3];
+        final boolean[] keep = new boolean[PIPELINE_READ_POINTS];
+        List<LasCell> cellsList = new ArrayList<>();
+        int fromCell = 0;
+        while( fromCell < cellsCount ) {
+            int toCell = fromCell + 1;
+            while( toCell < cellsCount && cellStart[toCell + 1] - cellStart[fromCell] <= pBlockPoints ) {
+                toCell++;
+            }
+            final int blockFrom = fromCell;
+            final int blockTo = toCell;
+            int blockOffset = cellStart[blockFrom];
+            int blockPoints = cellStart[blockTo] - blockOffset;
+
+            int[] order = null;
+            batch.clear();
+            if (blockPoints > 0) {
+                readInChunks(file, batch, new PipelineChunkHandler(){
+                    public void handle( LasPointBatch chunk, int first ) throws Exception {
+                        for( int i = first; i < chunk.size(); i++ ) {
+                            int cell = grid.cell(chunk.x[i], chunk.y[i]);
+                            keep[i - first] = cell >= blockFrom && cell < blockTo;
+                        }
+                        chunk.retain(first, keep);
+                    }
+                });
+                if (batch.size() != blockPoints) {
+                    throw new RuntimeException("Didn't read all the data...");
+                }
+                // points without gps time or color get the same defaults the records have
+                batch.enableGpsTime();
+                batch.enableColor();
+
+                // counting sort of the points of the block by cell
+                order = new int[blockPoints];
+                int[] fill = new int[blockTo - blockFrom];
+                for( int i = 0; i < blockPoints; i++ ) {
+                    int cell = grid.cell(batch.x[i], batch.y[i]);
+                    order[cellStart[cell] - blockOffset + fill[cell - blockFrom]++] = i;
+                }
+            }
+
+            for( int cell = blockFrom; cell < blockTo; cell++ ) {
+                int c = cell / rows;
+                int r = cell % rows;
+                Coordinate coord = CoverageUtilities.coordinateFromColRow(c, r, gridGeometry);
+                Envelope env = new Envelope(coord);
+                env.expandBy(pCellsize / 2.0, pCellsize / 2.0);
+                Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(env);
+
+                if (cellStart[cell] == cellStart[cell + 1]) {
+                    if (doEmptyCells) {
+                        cellsList.add(createEmptyCell(polygon, sourceID));
+                    }
+                } else {
+                    cellsList.add(createCell(batch, order, cellStart[cell] - blockOffset, cellStart[cell + 1] - blockOffset,
+                            polygon, sourceID, ortoGC, pos, ortoValues));
+                }
+                if (cellsList.size() >= PIPELINE_CHUNK_CELLS) {
+                    writeQueue.put(cellsList);
+                    cellsList = new ArrayList<>();
+                }
+            }
+            if (pm.isCanceled()) {
+                throw new RuntimeException(INTERRUPTED_BY_USER);
+            }
+            if (error.get() != null) {
+                // another file failed, the run is stopping
+                return;
+            }
+            fromCell = toCell;
+        }
+        if (cellsList.size() > 0) {
+            writeQueue.put(cellsList);
+        }
+
+        final short minIntensity = intensityRange[0];
+        final short maxIntensity = intensityRange[1];
+        writeQueue.put(new Runnable(){
+            public void run() {
+                try {
+                    LasSourcesTable.updateMinMaxIntensity(spatialiteDb, sourceID, minIntensity, maxIntensity);
+                    for( int level = 1; level <= pLevels; level++ ) {
+                        LasLevelsTable.createTable(spatialiteDb, srid, level, doAvoidIndex);
+                        if (level == 1) {
+                            insertFirstLevel(spatialiteDb, sourceID, north, south, east, west, level);
+                        } else {
+                            insertLevel(spatialiteDb, sourceID, north, south, east, west, level);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stream the points of a file through a batch, {@link #PIPELINE_READ_POINTS} at a time.
+     * 
+     * <p>Every chunk is appended to the batch and passed to the handler, which
+     * can drop the points it doesn't need.</p>
+     * 
+     * @return the number of points read.
+     */
+    private long readInChunks( File file, LasPointBatch batch, PipelineChunkHandler handler ) throws Exception {
+        long readCount = 0;
+        try (ALasReader reader = file.getName().toLowerCase().endsWith(".las") ? new LasReaderMapped(file, crs) : ALasReader
+                .getReader(file, crs)) {
+            reader.open();
+            if (reader instanceof LasReaderMapped) {
+                LasReaderMapped mappedReader = (LasReaderMapped) reader;
+                int read;
+                while( (read = mappedReader.readBatch(readCount, PIPELINE_READ_POINTS, batch)) > 0 ) {
+                    readCount = readCount + read;
+                    handler.handle(batch, batch.size() - read);
+                    if (pm.isCanceled()) {
+                        throw new RuntimeException(INTERRUPTED_BY_USER);
+                    }
+                }
+            } else {
+                int first = batch.size();
+                while( reader.hasNextPoint() ) {
+                    batch.add(reader.getNextPoint());
+                    if (batch.size() - first == PIPELINE_READ_POINTS) {
+                        readCount = readCount + PIPELINE_READ_POINTS;
+                        handler.handle(batch, first);
+                        first = batch.size();
+                        if (pm.isCanceled()) {
+                            throw new RuntimeException(INTERRUPTED_BY_USER);
+                        }
+                    }
+                }
+                if (batch.size() > first) {
+                    readCount = readCount + batch.size() - first;
+                    handler.handle(batch, first);
+                }
+            }
+        }
+        return readCount;
+    }
+
+    /**
+     * Create the cell of the points <code>order[from]</code> to <code>order[to - 1]</code> of a batch.
+     */
+    private LasCell createCell( LasPointBatch batch, int[] order, int from, int to, Polygon polygon, long sourceID,
+            GridCoverage2D ortoGC, Point2D.Double pos, int[] ortoValues ) {
+        int pointCount = to - from;
+
+        double avgElev = 0.0;
+        double minElev = Double.POSITIVE_INFINITY;
+        double maxElev = Double.NEGATIVE_INFINITY;
+        byte[] position = new byte[8 * 3 * pointCount];
+        ByteBuffer positionBuffer = ByteBuffer.wrap(position);
+
+        double avgIntensity = 0.0;
+        short minIntensity = 30000;
+        short maxIntensity = -1;
+        byte[] intensClass = new byte[2 * 2 * pointCount];
+        ByteBuffer intensClassBuffer = ByteBuffer.wrap(intensClass);
+        byte[] returns = new byte[2 * 2 * pointCount];
+        ByteBuffer returnsBuffer = ByteBuffer.wrap(returns);
+        double minGpsTime = Double.POSITIVE_INFINITY;
+        double maxGpsTime = Double.NEGATIVE_INFINITY;
+        byte[] gpsTimes = new byte[8 * pointCount];
+        ByteBuffer gpsTimesBuffer = ByteBuffer.wrap(gpsTimes);
+        byte[] colors = new byte[2 * 3 * pointCount];
+        ByteBuffer colorsBuffer = ByteBuffer.wrap(colors);
+
+        for( int k = from; k < to; k++ ) {
+            int i = order[k];
+            double x = batch.x[i];
+            double y = batch.y[i];
+            double z = batch.z[i];
+            avgElev += z;
+            minElev = min(z, minElev);
+            maxElev = max(z, maxElev);
+            positionBuffer.putDouble(x);
+            positionBuffer.putDouble(y);
+            positionBuffer.putDouble(z);
+
+            short intensity = batch.intensity[i];
+            avgIntensity += intensity;
+            minIntensity = (short) min(intensity, minIntensity);
+            maxIntensity = (short) max(intensity, maxIntensity);
+            intensClassBuffer.putShort(intensity);
+            intensClassBuffer.putShort(batch.classification[i]);
+
+            returnsBuffer.putShort(batch.returnNumber[i]);
+            returnsBuffer.putShort(batch.numberOfReturns[i]);
+
+            double gpsTime = batch.gpsTime[i];
+            minGpsTime = min(gpsTime, minGpsTime);
+            maxGpsTime = max(gpsTime, maxGpsTime);
+            gpsTimesBuffer.putDouble(gpsTime);
+
+            if (ortoGC != null) {
+                pos.setLocation(x, y);
+                try {
+                    ortoGC.evaluate(pos, ortoValues);
+                    colorsBuffer.putShort((short) ortoValues[0]);
+                    colorsBuffer.putShort((short) ortoValues[1]);
+                    colorsBuffer.putShort((short) ortoValues[2]);
+                } catch (PointOutsideCoverageException poce) {
+                    // insert white
+                    colorsBuffer.putShort((short) 255);
+                    colorsBuffer.putShort((short) 255);
+                    colorsBuffer.putShort((short) 255);
+                }
+            } else {
+                colorsBuffer.putShort(batch.red[i]);
+                colorsBuffer.putShort(batch.green[i]);
+                colorsBuffer.putShort(batch.blue[i]);
+            }
+        }
+        avgElev /= pointCount;
+        avgIntensity /= pointCount;
+
+        final LasCell lasCell = new LasCell();
+        lasCell.polygon = polygon;
+        lasCell.sourceId = sourceID;
+
+        lasCell.pointsCount = pointCount;
+        lasCell.avgElev = avgElev;
+        lasCell.minElev = minElev;
+        lasCell.maxElev = maxElev;
+        lasCell.xyzs = position;
+        lasCell.avgIntensity = (short) Math.round(avgIntensity);
+        lasCell.minIntensity = minIntensity;
+        lasCell.maxIntensity = maxIntensity;
+        lasCell.intensitiesClassifications = intensClass;
+        lasCell.returns = returns;
+        lasCell.minGpsTime = minGpsTime;
+        lasCell.maxGpsTime = maxGpsTime;
+        lasCell.gpsTimes = gpsTimes;
+        lasCell.colors = colors;
+        return lasCell;
+    }
+
     private void insertFirstLevel( final ASpatialDb spatialiteDb, long sourceID, double north, double south, double east,
             double west, int level ) throws Exception, SQLException {
         List<LasLevel> levelsList = new ArrayList<>();
@@ -722,6 +1205,66 @@ public class SpatialiteLasWriter extends JGTModel {
 
     @Finalize
     public void close() throws Exception {
+        if (ortoReader != null) {
+            ortoReader.dispose();
+            ortoReader = null;
+        }
+    }
+
+    /**
+     * Receives the chunks of points read by {@link SpatialiteLasWriter#readInChunks(File, LasPointBatch, PipelineChunkHandler)}.
+     */
+    private static interface PipelineChunkHandler {
+        /**
+         * @param batch the batch the chunk was appended to.
+         * @param first the index of the first point of the chunk, which extends to the end of the batch.
+         */
+        void handle( LasPointBatch batch, int first ) throws Exception;
+    }
+
+    /**
+     * The cells of a file, numbered in column major order.
+     * 
+     * <p>The points are placed as {@link GridGeometry2D#worldToGrid(DirectPosition)} does
+     * in the sequential mode, without creating objects for every point.</p>
+     */
+    private static class PipelineGrid {
+        private final MathTransform2D crsToGrid;
+        private final int cols;
+        private final int rows;
+        private final Point2D.Double point = new Point2D.Double();
+
+        PipelineGrid( GridGeometry2D gridGeometry, int cols, int rows ) {
+            this.crsToGrid = gridGeometry.getCRSToGrid2D(PixelOrientation.UPPER_LEFT);
+            this.cols = cols;
+            this.rows = rows;
+        }
+
+        int cell( double x, double y ) throws TransformException {
+            point.setLocation(x, y);
+            crsToGrid.transform(point, point);
+            int col = (int) Math.floor(point.x);
+            if (col < 0)
+                col = 0;
+            if (col > cols - 1)
+                col = cols - 1;
+            int row = (int) Math.floor(point.y);
+            if (row < 0)
+                row = 0;
+            if (row > rows - 1)
+                row = rows - 1;
+            return col * rows + row;
+        }
+    }
+
+    private static class PipelineSource {
+        final File file;
+        final long id;
+
+        PipelineSource( File file, long id ) {
+            this.file = file;
+            this.id = id;
+        }
     }
 
 }
@@ -0,0 +1,302 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.libs.modules;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * Engine that precomputes the horizon angles of a dem for a set of azimuth sectors.
+ *
+ * <p>
+ * For every sector the dem is scanned with the same parallel rays that
+ * {@link ModelsEngine#calculateFactor(int, int, double[], double[], double[], java.awt.image.WritableRaster, double)}
+ * marches for a sun position. Along every ray the upper convex hull of the
+ * already visited profile is kept, so the horizon of a cell is found in
+ * amortized constant time. The sectors are spread across worker threads.
+ * </p>
+ *
+ * <p>
+ * Once computed, shading queries for any sun position are table lookups,
+ * interpolating linearly between the two nearest sectors.
+ * </p>
+ *
+ * <p>
+ * Azimuths are in radians, clockwise from north. Vectors are in the
+ * (column, row, up) frame used by {@link ModelsEngine}, so that north is
+ * toward the decreasing rows. The arrays are row major,
+ * <code>index = row * cols + col</code>.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class HorizonEngine {
+
+    /**
+     * The angle of cells that have no horizon in a sector.
+     */
+    public static final float NO_HORIZON = (float) (-Math.PI / 2.0);
+
+    private final double[] dem;
+    private final int cols;
+    private final int rows;
+    private final double res;
+    private final int sectors;
+    private float[][] horizons;
+    private int threads = 1;
+    private IJGTProgressMonitor pm = new DummyProgressMonitor();
+
+    /**
+     * Constructor.
+     *
+     * @param dem the elevations, row major. Novalue cells do not cast shadows and have no horizon.
+     * @param cols the columns of the dem.
+     * @param rows the rows of the dem.
+     * @param res the resolution of the dem.
+     * @param sectors the number of azimuth sectors.
+     */
+    public HorizonEngine( double[] dem, int cols, int rows, double res, int sectors ) {
+        if (dem.length != cols * rows) {
+            throw new IllegalArgumentException("The dem array needs to have cols * rows values.");
+        }
+        if (sectors < 1) {
+            throw new IllegalArgumentException("At least one sector is needed.");
+        }
+        this.dem = dem;
+        this.cols = cols;
+        this.rows = rows;
+        this.res = res;
+        this.sectors = sectors;
+    }
+
+    /**
+     * Set the number of worker threads to use.
+     *
+     * @param threads the number of threads.
+     */
+    public void setThreads( int threads ) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the progress monitor.
+     *
+     * @param pm the monitor.
+     */
+    public void setProgressMonitor( IJGTProgressMonitor pm ) {
+        if (pm != null)
+            this.pm = pm;
+    }
+
+    /**
+     * @return the number of azimuth sectors.
+     */
+    public int getSectors() {
+        return sectors;
+    }
+
+    /**
+     * @param sector the sector index.
+     * @return the azimuth of the sector.
+     */
+    public double getSectorAzimuth( int sector ) {
+        return 2.0 * Math.PI * sector / sectors;
+    }
+
+    /**
+     * Compute the horizons of all the sectors.
+     *
+     * @throws Exception
+     */
+    public void compute() throws Exception {
+        final float[][] sectorsHorizons = new float[sectors][];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for( int s = 0; s < sectors; s++ ) {
+            final int sector = s;
+            tasks.add(new Callable<Void>(){
+                public Void call() throws Exception {
+                    sectorsHorizons[sector] = computeSector(sector);
+                    worked();
+                    return null;
+                }
+            });
+        }
+
+        pm.beginTask("Calculating horizons...", sectors);
+        int poolSize = Math.min(threads, sectors);
+        if (poolSize == 1) {
+            for( Callable<Void> task : tasks ) {
+                task.call();
+            }
+        } else {
+            ThreadedRunnable.invokeAll(tasks, poolSize);
+        }
+        pm.done();
+        horizons = sectorsHorizons;
+    }
+
+    private synchronized void worked() {
+        pm.worked(1);
+    }
+
+    private float[] computeSector( int sector ) {
+        double azimuth = getSectorAzimuth(sector);
+        // the direction toward the sun and the marching step away from it
+        double sx = Math.sin(azimuth);
+        double sy = -Math.cos(azimuth);
+        double m = Math.max(Math.abs(sx), Math.abs(sy));
+        double ix = -sx / m;
+        double iy = -sy / m;
+        double stepLength = Math.sqrt(ix * ix + iy * iy) * res;
+
+        float[] horizon = new float[cols * rows];
+        Arrays.fill(horizon, NO_HORIZON);
+        int maxSteps = cols + rows + 1;
+        double[] hullS = new double[maxSteps];
+        double[] hullZ = new double[maxSteps];
+
+        int f_i = 1e6 * sx <= 0 ? 0 : cols - 1;
+        int f_j = 1e6 * sy <= 0 ? 0 : rows - 1;
+        for( int i = 0; i < cols; i++ ) {
+            scanRay(i, f_j, ix, iy, stepLength, horizon, hullS, hullZ);
+        }
+        for( int k = 0; k < rows; k++ ) {
+            scanRay(f_i, k, ix, iy, stepLength, horizon, hullS, hullZ);
+        }
+        return horizon;
+    }
+
+    /**
+     * March a ray away from the sun, keeping the upper convex hull of the
+     * profile already visited, which holds the horizon of the next cells.
+     */
+    private void scanRay( int i, int j, double ix, double iy, double stepLength, float[] horizon, double[] hullS,
+            double[] hullZ ) {
+        int hullSize = 0;
+        int n = 0;
+        int idx = i;
+        int jdy = j;
+        while( idx >= 0 && idx <= cols - 1 && jdy >= 0 && jdy <= rows - 1 ) {
+            int index = jdy * cols + idx;
+            double z = dem[index];
+            if (!isNovalue(z)) {
+                double s = n * stepLength;
+                // the hull points after the tangent from the current point are below the new hull
+                while( hullSize >= 2
+                        && (hullZ[hullSize - 2] - z) / (s - hullS[hullSize - 2]) >= (hullZ[hullSize - 1] - z)
+                                / (s - hullS[hullSize - 1]) ) {
+                    hullSize--;
+                }
+                if (hullSize > 0) {
+                    float angle = (float) Math.atan((hullZ[hullSize - 1] - z) / (s - hullS[hullSize - 1]));
+                    if (angle > horizon[index]) {
+                        horizon[index] = angle;
+                    }
+                }
+                hullS[hullSize] = s;
+                hullZ[hullSize] = z;
+                hullSize++;
+            }
+            n = n + 1;
+            idx = (int) Math.round(i + ix * n);
+            jdy = (int) Math.round(j + iy * n);
+        }
+    }
+
+    private void checkComputed() {
+        if (horizons == null) {
+            throw new IllegalStateException("The horizons need to be computed first.");
+        }
+    }
+
+    /**
+     * Get the horizon angle of a cell in a direction.
+     *
+     * @param col the column of the cell.
+     * @param row the row of the cell.
+     * @param azimuth the azimuth of the direction.
+     * @return the elevation angle of the horizon in radians or {@link #NO_HORIZON}.
+     */
+    public double getHorizonAngle( int col, int row, double azimuth ) {
+        checkComputed();
+        return getHorizonAngle(row * cols + col, azimuth);
+    }
+
+    private double getHorizonAngle( int index, double azimuth ) {
+        double position = azimuth / (2.0 * Math.PI) * sectors;
+        position = position - Math.floor(position / sectors) * sectors;
+        int s0 = (int) Math.floor(position);
+        double weight = position - s0;
+        s0 = s0 % sectors;
+        int s1 = (s0 + 1) % sectors;
+        return (1.0 - weight) * horizons[s0][index] + weight * horizons[s1][index];
+    }
+
+    /**
+     * Fill a shadow map for a sun position through the precomputed horizons.
+     *
+     * @param sunVector the unit vector toward the sun.
+     * @param shadowMap the array of size cols * rows to fill with 1 for the lit and 0 for the shadowed cells.
+     */
+    public void fillShadowMap( double[] sunVector, double[] shadowMap ) {
+        checkComputed();
+        double azimuth = Math.atan2(sunVector[0], -sunVector[1]);
+        double elevation = Math.asin(Math.max(-1.0, Math.min(1.0, sunVector[2])));
+
+        double position = azimuth / (2.0 * Math.PI) * sectors;
+        position = position - Math.floor(position / sectors) * sectors;
+        int s0 = (int) Math.floor(position);
+        double weight = position - s0;
+        s0 = s0 % sectors;
+        int s1 = (s0 + 1) % sectors;
+        float[] h0 = horizons[s0];
+        float[] h1 = horizons[s1];
+        for( int k = 0; k < shadowMap.length; k++ ) {
+            double horizon = (1.0 - weight) * h0[k] + weight * h1[k];
+            shadowMap[k] = elevation < horizon ? 0.0 : 1.0;
+        }
+    }
+
+    /**
+     * Get the sky view factor of a cell, the mean over the sectors of the
+     * squared cosine of the (non negative) horizon angle.
+     *
+     * @param col the column of the cell.
+     * @param row the row of the cell.
+     * @return the sky view factor, between 0 and 1.
+     */
+    public double getSkyViewFactor( int col, int row ) {
+        checkComputed();
+        int index = row * cols + col;
+        double sum = 0;
+        for( int s = 0; s < sectors; s++ ) {
+            double h = Math.max(0.0, horizons[s][index]);
+            double cos = Math.cos(h);
+            sum = sum + cos * cos;
+        }
+        return sum / sectors;
+    }
+
+}
@@ -17,23 +17,38 @@
  */
 package org.jgrasstools.gears.libs.modules;
 
-import static java.lang.Math.round;
+import static org.jgrasstools.gears.i18n.GearsMessages.JGTMODELIM_P_MAX_THREADS_DESCRIPTION;
 
 import java.awt.geom.Point2D;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferDouble;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
 import javax.media.jai.iterator.WritableRandomIter;
 
+import oms3.annotations.Description;
+import oms3.annotations.In;
+
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridEnvelope2D;
@@ -45,7 +60,6 @@ import org.geotools.gce.imagemosaic.ImageMosaicReader;
 import org.geotools.geometry.DirectPosition2D;
 import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.GeneralEnvelope;
-import org.geotools.geometry.jts.JTS;
 import org.jgrasstools.gears.io.rasterwriter.OmsRasterWriter;
 import org.jgrasstools.gears.io.vectorreader.OmsVectorReader;
 import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
@@ -58,14 +72,10 @@ import org.jgrasstools.gears.utils.features.FeatureUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
 import org.opengis.geometry.DirectPosition;
-import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.parameter.GeneralParameterValue;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.datum.PixelInCell;
-import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.operation.TransformException;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
@@ -73,10 +83,49 @@ public abstract class JGTModelIM extends JGTModel {
 
     private List<ImageMosaicReader> readers = new ArrayList<ImageMosaicReader>();
 
-    protected List<RandomIter> inRasterIterators = new ArrayList<RandomIter>();
-    protected List<GridCoverage2D> inRasters = new ArrayList<GridCoverage2D>();
-    protected List<WritableRandomIter> outRasters = new ArrayList<WritableRandomIter>();
-    protected List<GridCoverage2D> outGridCoverages = new ArrayList<GridCoverage2D>();
+    /*
+     * the tile in process is bound to the thread processing it, so that
+     * the deprecated lists below always give the data of the tile of the calling thread.
+     */
+    private final ThreadLocal<TileContext> currentTile = new ThreadLocal<TileContext>();
+
+    /**
+     * @deprecated use {@link TileContext#getInRasterIterators()} of the tile passed to
+     *             {@link #processCell(TileContext, int, int, int, int, int, int, int, int)}.
+     */
+
+    protected List<RandomIter> inRasterIterators = new TileBoundList<RandomIter>(){
+        protected List<RandomIter> list( TileContext tile ) {
+            return tile.inRasterIterators;
+        }
+    };
+    /**
+     * @deprecated use {@link TileContext#getInRasters()} of the tile passed to
+     *             {@link #processCell(TileContext, int, int, int, int, int, int, int, int)}.
+     */
+    protected List<GridCoverage2D> inRasters = new TileBoundList<GridCoverage2D>(){
+        protected List<GridCoverage2D> list( TileContext tile ) {
+            return tile.inRasters;
+        }
+    };
+    /**
+     * @deprecated use {@link TileContext#getOutRasters()} of the tile passed to
+     *             {@link #processCell(TileContext, int, int, int, int, int, int, int, int)}.
+     */
+    protected List<WritableRandomIter> outRasters = new TileBoundList<WritableRandomIter>(){
+        protected List<WritableRandomIter> list( TileContext tile ) {
+            return tile.outRasters;
+        }
+    };
+    /**
+     * @deprecated use {@link TileContext#getOutGridCoverages()} of the tile passed to
+     *             {@link #processCell(TileContext, int, int, int, int, int, int, int, int)}.
+     */
+    protected List<GridCoverage2D> outGridCoverages = new TileBoundList<GridCoverage2D>(){
+        protected List<GridCoverage2D> list( TileContext tile ) {
+            return tile.outGridCoverages;
+        }
+    };
     private List<File> outRasterFiles = new ArrayList<File>();
 
     protected String locationField;
@@ -89,7 +138,18 @@ public abstract class JGTModelIM extends JGTModel {
 
     protected int cellBuffer = 0;
 
+    /**
+     * The read grid geometry of the last tile, set only if tiles are processed sequentially.
+     * 
+     * @deprecated use {@link TileContext#getReadGridGeometry()} of the tile passed to
+     *             {@link #processCell(TileContext, int, int, int, int, int, int, int, int)}.
+     */
     protected GridGeometry2D readGridGeometry;
+
+    @Description(JGTMODELIM_P_MAX_THREADS_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     private boolean isSingleInX = true;
     private boolean isSingleInY = true;
 
@@ -183,76 +243,178 @@ public abstract class JGTModelIM extends JGTModel {
         return getGridCoverage(readerNum, envelope.getMaxY(), envelope.getMinY(), envelope.getMaxX(), envelope.getMinX());
     }
 
+    /**
+     * Process all the tiles of the mosaic, calling {@link #processCell(TileContext, int, int, int, int, int, int, int, int)}
+     * on every cell.
+     *
+     * <p>If {@link #pMaxThreads} is greater than 1, tiles are processed concurrently:
+     * <ul>
+     *  <li>a reader thread prefetches the next tiles into a bounded queue,</li>
+     *  <li>a bounded pool of workers does the cell processing,</li>
+     *  <li>a single writer thread dumps the finished tiles through a bounded write-behind queue.</li>
+     * </ul>
+     * The output rasters are recycled between tiles of the same size. In that case the
+     * implementation of processCell has to be thread safe.
+     *
+     * @throws Exception
+     */
     protected void processByTileCells() throws Exception {
-        int size = boundsGeometries.size();
-        int count = 0;
-        // pm.beginTask("Processing tiles...", size);
-        for( Geometry boundGeometry : boundsGeometries ) {
-            count++;
-            try {
-                pm.message("Processing tile " + boundGeometry.getUserData() + "(" + count + " of " + size + ")");
-                pm.message("\t\t->geom: " + boundGeometry.getEnvelopeInternal());
-                pm.message("\t\t->reading with cell buffer: " + cellBuffer);
-                pm.message("\t\t->reading with x/y resolution: " + xRes + "/" + yRes);
-                processGeometryByTileCell(count, boundGeometry);
-            } catch (Exception e) {
-                pm.errorMessage("Problems found for tile: " + boundGeometry.getUserData());
-                throw e;
+        int threads = Math.max(1, pMaxThreads);
+        if (threads == 1) {
+            int size = boundsGeometries.size();
+            int count = 0;
+            WritableRaster[] buffers = null;
+            for( Geometry boundGeometry : boundsGeometries ) {
+                count++;
+                try {
+                    pm.message("Processing tile " + boundGeometry.getUserData() + "(" + count + " of " + size + ")");
+                    pm.message("\t\t->geom: " + boundGeometry.getEnvelopeInternal());
+                    pm.message("\t\t->reading with cell buffer: " + cellBuffer);
+                    pm.message("\t\t->reading with x/y resolution: " + xRes + "/" + yRes);
+                    TileContext tile = readTile(count, boundGeometry);
+                    readGridGeometry = tile.readGridGeometry;
+                    processTile(tile, buffers);
+                    writeTile(tile);
+                    buffers = tile.outBuffers;
+                } catch (Exception e) {
+                    pm.errorMessage("Problems found for tile: " + boundGeometry.getUserData());
+                    throw e;
+                }
             }
-            // pm.worked(1);
+        } else {
+            processTilesConcurrently(threads);
         }
-        // pm.done();
-
     }
 
-    private void processGeometryByTileCell( int count, Geometry boundGeometry ) throws IOException, TransformException, Exception {
-        Envelope writeEnv = boundGeometry.getEnvelopeInternal();
+    private void processTilesConcurrently( final int threads ) throws Exception {
+        final int size = boundsGeometries.size();
+        final TileContext endMarker = new TileContext(-1, null);
+        final BlockingQueue<TileContext> readQueue = new ArrayBlockingQueue<TileContext>(threads);
+        final BlockingQueue<TileContext> writeQueue = new ArrayBlockingQueue<TileContext>(threads);
+        final BlockingQueue<WritableRaster[]> freeBuffers = new LinkedBlockingQueue<WritableRaster[]>();
+        // workers + queued for writing + being written
+        final Semaphore buffersAvailable = new Semaphore(2 * threads + 1);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+        pm.beginTask("Processing tiles...", size);
+        ExecutorService readerService = Executors.newSingleThreadExecutor();
+        ExecutorService workersService = Executors.newFixedThreadPool(threads);
+        ExecutorService writerService = Executors.newSingleThreadExecutor();
+        try {
+            readerService.submit(new Runnable(){
+                public void run() {
+                    try {
+                        int count = 0;
+                        for( Geometry boundGeometry : boundsGeometries ) {
+                            count++;
+                            if (error.get() != null) {
+                                break;
+                            }
+                            pm.message("Reading tile " + boundGeometry.getUserData() + "(" + count + " of " + size + ")");
+                            readQueue.put(readTile(count, boundGeometry));
+                        }
+                    } catch (Exception e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        try {
+                            for( int i = 0; i < threads; i++ ) {
+                                readQueue.put(endMarker);
+                            }
+                        } catch (InterruptedException e) {
+                            error.compareAndSet(null, e);
+                        }
+                    }
+                }
+            });
+
+            List<Future< ? >> workerFutures = new ArrayList<Future< ? >>();
+            for( int i = 0; i < threads; i++ ) {
+                workerFutures.add(workersService.submit(new Runnable(){
+                    public void run() {
+                        TileContext tile;
+                        try {
+                            while( (tile = readQueue.take()) != endMarker ) {
+                                if (error.get() != null) {
+                                    tile.freeIterators();
+                                    continue;
+                                }
+                                boolean queued = false;
+                                buffersAvailable.acquire();
+                                try {
+                                    processTile(tile, freeBuffers.poll());
+                                    writeQueue.put(tile);
+                                    queued = true;
+                                } catch (Exception e) {
+                                    pm.errorMessage("Problems found for tile: " + tile.boundGeometry.getUserData());
+                                    error.compareAndSet(null, e);
+                                } finally {
+                                    if (!queued) {
+                                        buffersAvailable.release();
+                                    }
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            error.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            }
 
-        double writeEast = writeEnv.getMaxX();
-        double writeWest = writeEnv.getMinX();
-        double writeNorth = writeEnv.getMaxY();
-        double writeSouth = writeEnv.getMinY();
-        int writeCols = (int) ((writeEast - writeWest) / xRes);
-        int writeRows = (int) ((writeNorth - writeSouth) / yRes);
+            Future< ? > writerFuture = writerService.submit(new Runnable(){
+                public void run() {
+                    TileContext tile;
+                    try {
+                        while( (tile = writeQueue.take()) != endMarker ) {
+                            try {
+                                if (error.get() == null) {
+                                    writeTile(tile);
+                                }
+                            } catch (Exception e) {
+                                pm.errorMessage("Problems writing tile: " + tile.boundGeometry.getUserData());
+                                error.compareAndSet(null, e);
+                            } finally {
+                                freeBuffers.offer(tile.outBuffers);
+                                buffersAvailable.release();
+                            }
+                            pm.worked(1);
+                        }
+                    } catch (InterruptedException e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
 
-        Envelope readEnv = new Envelope(writeEnv);
+            for( Future< ? > future : workerFutures ) {
+                future.get();
+            }
+            writeQueue.put(endMarker);
+            writerFuture.get();
+        } finally {
+            readerService.shutdownNow();
+            workersService.shutdownNow();
+            writerService.shutdownNow();
+            pm.done();
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Read the input data of a tile, including the cell buffer.
+     */
+    private TileContext readTile( int count, Geometry boundGeometry ) throws Exception {
+        TileContext tile = new TileContext(count, boundGeometry);
+
+        Envelope readEnv = new Envelope(boundGeometry.getEnvelopeInternal());
         readEnv.expandBy(cellBuffer * xRes, cellBuffer * yRes);
 
         double readEast = readEnv.getMaxX();
         double readWest = readEnv.getMinX();
         double readNorth = readEnv.getMaxY();
         double readSouth = readEnv.getMinY();
-        // int readCols = (int) ((readEast - readWest) / xRes);
-        // int readRows = (int) ((readNorth - readSouth) / yRes);
-
-        /*
-         * clear lists of in and out data local to the loop
-         */
-        outGridCoverages.clear();
-        inRasterIterators.clear();
-        inRasters.clear();
-        outRasters.clear();
-
-        GridGeometry2D writeGridGeometry = CoverageUtilities.gridGeometryFromRegionValues(writeNorth, writeSouth, writeEast,
-                writeWest, writeCols, writeRows, crs);
-
-        for( File outRasterFile : outRasterFiles ) {
-            File parentFile = outRasterFile.getParentFile();
-            if (parentFile != null && parentFile.exists()) {
-                WritableRaster outWR = CoverageUtilities.createDoubleWritableRaster(writeCols, writeRows, null, null,
-                        JGTConstants.doubleNovalue);
-                RegionMap writeParams = CoverageUtilities.gridGeometry2RegionParamsMap(writeGridGeometry);
-                GridCoverage2D writeGC = CoverageUtilities.buildCoverage(outRasterFile.getName(), outWR, writeParams, crs);
-                outGridCoverages.add(writeGC);
-                WritableRandomIter outDataIter = CoverageUtilities.getWritableRandomIterator(outWR);
-                outRasters.add(outDataIter);
-            } else {
-                outGridCoverages.add(null);
-                outRasters.add(null);
-            }
-        }
 
-        readGridGeometry = null;
         GeneralParameterValue[] readGeneralParameterValues = CoverageUtilities.createGridGeometryGeneralParameter(xRes, yRes,
                 readNorth, readSouth, readEast, readWest, crs);
 
@@ -260,12 +422,12 @@ public abstract class JGTModelIM extends JGTModel {
         for( ImageMosaicReader reader : readers ) {
             try {
                 GridCoverage2D readGC = reader.read(readGeneralParameterValues);
-                readGridGeometry = readGC.getGridGeometry();
+                tile.readGridGeometry = readGC.getGridGeometry();
                 // read raster at once, since a randomiter is way slower when wrapping borders
                 Raster readRaster = readGC.getRenderedImage().getData();
                 RandomIter readIter = RandomIterFactory.create(readRaster, null);
-                inRasterIterators.add(readIter);
-                inRasters.add(readGC);
+                tile.inRasterIterators.add(readIter);
+                tile.inRasters.add(readGC);
                 index++;
             } catch (Exception e) {
                 StringBuilder errSb = new StringBuilder();
@@ -274,23 +436,59 @@ public abstract class JGTModelIM extends JGTModel {
                 errSb.append("ERROR: with reader N." + index + ": " + Arrays.toString(reader.getGridCoverageNames()));
                 errSb.append("\nERROR: " + e.getLocalizedMessage());
                 pm.errorMessage(errSb.toString());
-                freeIterators();
-                // e.printStackTrace();
-                // return;
+                tile.freeIterators();
                 throw new IOException("Problems reading Mosaic!");
             }
         }
+        return tile;
+    }
+
+    /**
+     * Run the cell processing on a read tile.
+     *
+     * @param tile the tile to process.
+     * @param buffers output rasters to recycle, if they fit the tile size. Can be <code>null</code>.
+     */
+    private void processTile( TileContext tile, WritableRaster[] buffers ) throws Exception {
+        Envelope writeEnv = tile.boundGeometry.getEnvelopeInternal();
+
+        double writeEast = writeEnv.getMaxX();
+        double writeWest = writeEnv.getMinX();
+        double writeNorth = writeEnv.getMaxY();
+        double writeSouth = writeEnv.getMinY();
+        int writeCols = (int) ((writeEast - writeWest) / xRes);
+        int writeRows = (int) ((writeNorth - writeSouth) / yRes);
 
-        // Envelope allBoundsEnv = new Envelope(new Coordinate(llCorner[0], llCorner[1]), new
-        // Coordinate(urCorner[0], urCorner[1]));
-        // MathTransform crsToGrid = readGridGeometry.getCRSToGrid2D(PixelOrientation.LOWER_RIGHT);
-        //
-        // Envelope transformed = JTS.transform(allBoundsEnv, crsToGrid);
-        // int minX = (int) round(transformed.getMinX());
-        // int maxY = (int) round(transformed.getMaxY()); // y grid is inverse
-        // int maxX = (int) round(transformed.getMaxX());
-        // int minY = (int) round(transformed.getMinY());
+        GridGeometry2D writeGridGeometry = CoverageUtilities.gridGeometryFromRegionValues(writeNorth, writeSouth, writeEast,
+                writeWest, writeCols, writeRows, crs);
+        RegionMap writeParams = CoverageUtilities.gridGeometry2RegionParamsMap(writeGridGeometry);
+
+        tile.outBuffers = new WritableRaster[outRasterFiles.size()];
+        for( int i = 0; i < outRasterFiles.size(); i++ ) {
+            File outRasterFile = outRasterFiles.get(i);
+            File parentFile = outRasterFile.getParentFile();
+            if (parentFile != null && parentFile.exists()) {
+                WritableRaster outWR = null;
+                if (buffers != null && i < buffers.length && buffers[i] != null && buffers[i].getWidth() == writeCols
+                        && buffers[i].getHeight() == writeRows) {
+                    outWR = buffers[i];
+                    resetToNovalue(outWR);
+                } else {
+                    outWR = CoverageUtilities.createDoubleWritableRaster(writeCols, writeRows, null, null,
+                            JGTConstants.doubleNovalue);
+                }
+                tile.outBuffers[i] = outWR;
+                GridCoverage2D writeGC = CoverageUtilities.buildCoverage(outRasterFile.getName(), outWR, writeParams, crs);
+                tile.outGridCoverages.add(writeGC);
+                WritableRandomIter outDataIter = CoverageUtilities.getWritableRandomIterator(outWR);
+                tile.outRasters.add(outDataIter);
+            } else {
+                tile.outGridCoverages.add(null);
+                tile.outRasters.add(null);
+            }
+        }
 
+        GridGeometry2D readGridGeometry = tile.readGridGeometry;
         GridCoordinates2D llGrid = readGridGeometry.worldToGrid(new DirectPosition2D(llCorner[0], llCorner[1]));
         GridCoordinates2D urGrid = readGridGeometry.worldToGrid(new DirectPosition2D(urCorner[0], urCorner[1]));
         int minX = llGrid.x;
@@ -316,6 +514,7 @@ public abstract class JGTModelIM extends JGTModel {
             maxX = maxX + gridRange2D.x;
         }
 
+        currentTile.set(tile);
         try {
             final GridCoordinates2D gridCoordinates2D = new GridCoordinates2D();
             for( int writeCol = 0; writeCol < writeCols; writeCol++ ) {
@@ -332,24 +531,29 @@ public abstract class JGTModelIM extends JGTModel {
                         continue;
                     }
 
-                    processCell(readCol, readRow, writeCol, writeRow, readCols, readRows, writeCols, writeRows);
+                    processCell(tile, readCol, readRow, writeCol, writeRow, readCols, readRows, writeCols, writeRows);
                 }
             }
-
         } finally {
-            freeIterators();
+            currentTile.remove();
+            tile.freeIterators();
         }
+    }
 
+    /**
+     * Dump the processed output rasters of a tile.
+     */
+    private void writeTile( TileContext tile ) throws Exception {
         for( int i = 0; i < outRasterFiles.size(); i++ ) {
             File outputFile = outRasterFiles.get(i);
-            GridCoverage2D writeGC = outGridCoverages.get(i);
+            GridCoverage2D writeGC = tile.outGridCoverages.get(i);
             if (writeGC != null) {
                 File outParentFolder = outputFile.getParentFile();
                 if (outParentFolder == null || !outParentFolder.exists()) {
                     continue;
                 }
                 String outBaseName = FileUtilities.getNameWithoutExtention(outputFile);
-                File outTileFile = new File(outParentFolder, outBaseName + "_" + count + ".tiff");
+                File outTileFile = new File(outParentFolder, outBaseName + "_" + tile.count + ".tiff");
                 OmsRasterWriter writer = new OmsRasterWriter();
                 writer.pm = new DummyProgressMonitor();
                 writer.inRaster = writeGC;
@@ -357,20 +561,119 @@ public abstract class JGTModelIM extends JGTModel {
                 writer.process();
             }
         }
+        // the coverages are done, only the rasters are kept for reuse
+        tile.outGridCoverages.clear();
+        tile.inRasters.clear();
+    }
 
+    private static void resetToNovalue( WritableRaster raster ) {
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (dataBuffer instanceof DataBufferDouble && dataBuffer.getNumBanks() == 1) {
+            Arrays.fill(((DataBufferDouble) dataBuffer).getData(), JGTConstants.doubleNovalue);
+        } else {
+            int width = raster.getWidth();
+            int height = raster.getHeight();
+            for( int y = 0; y < height; y++ ) {
+                for( int x = 0; x < width; x++ ) {
+                    raster.setSample(x, y, 0, JGTConstants.doubleNovalue);
+                }
+            }
+        }
     }
 
-    private void freeIterators() {
-        for( RandomIter inRasterIterator : inRasterIterators ) {
-            if (inRasterIterator != null)
-                inRasterIterator.done();
+    /**
+     * The data of a single tile in process.
+     */
+    protected static class TileContext {
+        final int count;
+        final Geometry boundGeometry;
+        final List<RandomIter> inRasterIterators = new ArrayList<RandomIter>();
+        final List<GridCoverage2D> inRasters = new ArrayList<GridCoverage2D>();
+        final List<WritableRandomIter> outRasters = new ArrayList<WritableRandomIter>();
+        final List<GridCoverage2D> outGridCoverages = new ArrayList<GridCoverage2D>();
+        GridGeometry2D readGridGeometry;
+        WritableRaster[] outBuffers;
+
+        TileContext( int count, Geometry boundGeometry ) {
+            this.count = count;
+            this.boundGeometry = boundGeometry;
         }
-        for( RandomIter outRasterIterator : outRasters ) {
-            if (outRasterIterator != null)
-                outRasterIterator.done();
+
+        /**
+         * @return the iterators on the read input rasters, in the order of the sources.
+         */
+        public List<RandomIter> getInRasterIterators() {
+            return inRasterIterators;
+        }
+
+        /**
+         * @return the read input coverages, in the order of the sources.
+         */
+        public List<GridCoverage2D> getInRasters() {
+            return inRasters;
+        }
+
+        /**
+         * @return the iterators on the output rasters, in the order of the destinations.
+         */
+        public List<WritableRandomIter> getOutRasters() {
+            return outRasters;
+        }
+
+        /**
+         * @return the output coverages, in the order of the destinations.
+         */
+        public List<GridCoverage2D> getOutGridCoverages() {
+            return outGridCoverages;
+        }
+
+        /**
+         * @return the grid geometry of the read tile, including the cell buffer.
+         */
+        public GridGeometry2D getReadGridGeometry() {
+            return readGridGeometry;
+        }
+
+        void freeIterators() {
+            for( RandomIter inRasterIterator : inRasterIterators ) {
+                if (inRasterIterator != null)
+                    inRasterIterator.done();
+            }
+            for( RandomIter outRasterIterator : outRasters ) {
+                if (outRasterIterator != null)
+                    outRasterIterator.done();
+            }
+            inRasterIterators.clear();
+            outRasters.clear();
         }
     }
 
+    /**
+     * Read only list that delegates to the tile handled by the calling thread.
+     */
+    private abstract class TileBoundList<T> extends AbstractList<T> {
+        protected abstract List<T> list( TileContext tile );
+
+        private List<T> current() {
+            TileContext tile = currentTile.get();
+            if (tile == null) {
+                return Collections.emptyList();
+            }
+            return list(tile);
+        }
+
+        @Override
+        public T get( int index ) {
+            return current().get(index);
+        }
+
+        @Override
+        public int size() {
+            return current().size();
+        }
+    }
+
+
     protected void makeMosaic() throws Exception {
         for( int i = 0; i < outRasterFiles.size(); i++ ) {
             File outputFile = outRasterFiles.get(i);
@@ -416,8 +719,11 @@ public abstract class JGTModelIM extends JGTModel {
     /**
      * Process one cell.
      * 
-     * <p>This is used when {@link #processByTileCells()} is called.
+     * <p>This is used when {@link #processByTileCells()} is called. If {@link #pMaxThreads}
+     * is greater than 1, it is called concurrently on different tiles, so the implementation
+     * should only use the data of the passed tile.
      * 
+     * @param tile the tile in process.
      * @param readCol the column of the cell to read.
      * @param readRow  the row of the cell to read.
      * @param writeCol the column of the cell to write.
@@ -427,7 +733,17 @@ public abstract class JGTModelIM extends JGTModel {
      * @param writeCols the total columns of the current handled written tile.
      * @param writeRows the total rows of the current handled written tile.
      */
-    protected abstract void processCell( int readCol, int readRow, int writeCol, int writeRow, int readCols, int readRows,
-            int writeCols, int writeRows );
+    protected abstract void processCell( TileContext tile, int readCol, int readRow, int writeCol, int writeRow,
+            int readCols, int readRows, int writeCols, int writeRows );
+
+    /**
+     * Process one cell of the tile in process in the calling thread.
+     * 
+     * @deprecated use {@link #processCell(TileContext, int, int, int, int, int, int, int, int)}.
+     */
+    protected void processCell( int readCol, int readRow, int writeCol, int writeRow, int readCols, int readRows,
+            int writeCols, int writeRows ) {
+        processCell(currentTile.get(), readCol, readRow, writeCol, writeRow, readCols, readRows, writeCols, writeRows);
+    }
 
 }
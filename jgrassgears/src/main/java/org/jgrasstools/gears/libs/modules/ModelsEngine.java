@@ -33,6 +33,7 @@ import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.media.jai.iterator.RandomIter;
@@ -1166,6 +1167,48 @@ public class ModelsEngine {
         return summedMapWR;
     }
 
+    /**
+     * Calculates the sum of the values of a specified quantity from every point to the outlet.
+     *
+     * <p>This version drains the cells in topological order through the
+     * {@link TopologicalFlowAccumulator}, visiting every cell only once.</p>
+     *
+     * @param flowIter the map of flowdirections.
+     * @param mapToSumIter the map for which to sum downstream.
+     * @param width the width of the resulting map.
+     * @param height the height of the resulting map.
+     * @param upperThreshold the upper threshold, values above that are excluded.
+     * @param lowerThreshold the lower threshold, values below that are excluded.
+     * @param threads the number of threads to use.
+     * @param pm the monitor.
+     * @return The map of downstream summed values.
+     * @throws Exception
+     */
+    public static WritableRaster sumDownstream( RandomIter flowIter, RandomIter mapToSumIter, int width, int height,
+            Double upperThreshold, Double lowerThreshold, int threads, IJGTProgressMonitor pm ) throws Exception {
+        double uThres = Double.POSITIVE_INFINITY;
+        if (upperThreshold != null) {
+            uThres = upperThreshold;
+        }
+        double lThres = Double.NEGATIVE_INFINITY;
+        if (lowerThreshold != null) {
+            lThres = lowerThreshold;
+        }
+
+        double[] weights = TopologicalFlowAccumulator.toRowMajorArray(mapToSumIter, width, height);
+        for( int i = 0; i < weights.length; i++ ) {
+            if (!checkRange(weights[i], uThres, lThres)) {
+                weights[i] = doubleNovalue;
+            }
+        }
+
+        TopologicalFlowAccumulator accumulator = new TopologicalFlowAccumulator(flowIter, width, height);
+        accumulator.setThreads(threads);
+        accumulator.setProgressMonitor(pm);
+        double[] summed = accumulator.accumulate(weights);
+        return TopologicalFlowAccumulator.toRaster(summed, width, height);
+    }
+
     private static boolean checkRange( double value, double upper, double lower ) {
         if (value < upper && value > lower) {
             return true;
@@ -1325,6 +1368,64 @@ public class ModelsEngine {
         return tmpWR;
     }
 
+    /**
+     * Evaluate the shadow map into a row major array, as
+     * {@link #calculateFactor(int, int, double[], double[], double[], WritableRaster, double)}
+     * does, but without creating a new raster for every sun position.
+     *
+     * @param h
+     *            the height of the raster.
+     * @param w
+     *            the width of the raster.
+     * @param sunVector
+     * @param inverseSunVector
+     * @param normalSunVector
+     * @param dem
+     *            the elevation map, row major.
+     * @param dx
+     *            the resolution of the elevation map.
+     * @param shadowMap
+     *            the array of size w * h to fill with 1 for the lit and 0 for the shadowed cells.
+     */
+    public static void calculateFactor( int h, int w, double[] sunVector, double[] inverseSunVector,
+            double[] normalSunVector, double[] dem, double dx, double[] shadowMap ) {
+        int f_i = 1e6 * sunVector[0] <= 0 ? 0 : w - 1;
+        int f_j = 1e6 * sunVector[1] <= 0 ? 0 : h - 1;
+
+        Arrays.fill(shadowMap, 0, w * h, 1.0);
+        for( int i = 0; i < w; i++ ) {
+            shadow(i, f_j, w, h, shadowMap, dem, dx, normalSunVector, inverseSunVector);
+        }
+        for( int k = 0; k < h; k++ ) {
+            shadow(f_i, k, w, h, shadowMap, dem, dx, normalSunVector, inverseSunVector);
+        }
+    }
+
+    private static void shadow( int i, int j, int nCols, int nRows, double[] shadowMap, double[] dem, double res,
+            double[] normalSunVector, double[] inverseSunVector ) {
+        int n = 0;
+        double zcompare = -Double.MAX_VALUE;
+        double dx = 0;
+        double dy = 0;
+        int idx = i;
+        int jdy = j;
+        while( idx >= 0 && idx <= nCols - 1 && jdy >= 0 && jdy <= nRows - 1 ) {
+            int index = jdy * nCols + idx;
+            double zprojection = dx * res * normalSunVector[0] + dy * res * normalSunVector[1] + dem[index]
+                    * normalSunVector[2];
+            if ((zprojection < zcompare)) {
+                shadowMap[index] = 0;
+            } else {
+                zcompare = zprojection;
+            }
+            n = n + 1;
+            dy = (inverseSunVector[1] * n);
+            dx = (inverseSunVector[0] * n);
+            idx = (int) Math.round(i + dx);
+            jdy = (int) Math.round(j + dy);
+        }
+    }
+
     /**
      * Verify if the current station (i) is already into the arrays.
      *
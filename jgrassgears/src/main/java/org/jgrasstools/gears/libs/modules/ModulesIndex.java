@@ -0,0 +1,137 @@
+/*
+ * JGrass - Free Open Source Java GIS http://www.jgrass.org 
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Library General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option) any
+ * later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Library General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Library General Public License
+ * along with this library; if not, write to the Free Foundation, Inc., 59
+ * Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.jgrasstools.gears.libs.modules;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import oms3.annotations.Status;
+import oms3.util.ComponentIndex;
+import oms3.util.ComponentIndex.Component;
+import oms3.util.ComponentIndex.ComponentField;
+
+/**
+ * Loader of the modules registries from the component index written at build time.
+ * 
+ * <p>
+ * The index replaces the scan of the archives: the module classes are
+ * loaded without being initialized or instantiated, their fields are
+ * described by the index.
+ * </p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ * @see ComponentIndex
+ */
+public class ModulesIndex {
+
+    /**
+     * Fill the maps of a modules registry from the component index.
+     * 
+     * @param loader the classloader to read the index and the classes from.
+     * @param packagePrefix the package of the modules to collect.
+     * @param moduleName2Class the map of module names and classes to fill.
+     * @param moduleName2Fields the map of module names and fields to fill.
+     * @param classNames the list to add the module names to.
+     * @param fieldNames the list to add the distinct field names to.
+     * @return <code>false</code> if the index has no module in the package, in which
+     *          case the classpath needs to be scanned.
+     */
+    public static boolean gather( ClassLoader loader, String packagePrefix, LinkedHashMap<String, Class< ? >> moduleName2Class,
+            LinkedHashMap<String, List<ClassField>> moduleName2Fields, List<String> classNames, List<String> fieldNames ) {
+        List<Component> components;
+        try {
+            components = ComponentIndex.load(loader);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        boolean found = false;
+        for( Component component : components ) {
+            if (!component.className.startsWith(packagePrefix)) {
+                continue;
+            }
+            found = true;
+
+            String moduleName = component.getSimpleName();
+            Class< ? > moduleClass;
+            List<ClassField> tmpfields = new ArrayList<ClassField>();
+            try {
+                moduleClass = ComponentIndex.forName(component.className, loader);
+                if (component.status == null) {
+                    moduleName2Class.put(moduleName, moduleClass);
+                    System.out.println("Missing status: " + moduleClass.getCanonicalName());
+                    continue;
+                }
+                String statusString = getStatusString(component.status);
+                // the inputs first, then the outputs, as listed by ComponentAccess
+                List<ComponentField> fields = new ArrayList<ComponentField>();
+                for( ComponentField field : component.fields ) {
+                    if (field.in) {
+                        fields.add(field);
+                    }
+                }
+                for( ComponentField field : component.fields ) {
+                    if (!field.in) {
+                        fields.add(field);
+                    }
+                }
+                for( ComponentField field : fields ) {
+                    ClassField cf = new ClassField();
+                    cf.isIn = field.in;
+                    cf.isOut = !field.in;
+                    cf.fieldName = field.name;
+                    cf.fieldDescription = field.description == null ? field.name : field.description;
+                    cf.fieldClass = ComponentIndex.forName(field.type, loader);
+                    cf.parentClass = moduleClass;
+                    cf.parentClassStatus = statusString;
+                    tmpfields.add(cf);
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            moduleName2Class.put(moduleName, moduleClass);
+            classNames.add(moduleName);
+            for( ClassField cf : tmpfields ) {
+                if (!fieldNames.contains(cf.fieldName)) {
+                    fieldNames.add(cf.fieldName);
+                }
+            }
+            moduleName2Fields.put(moduleName, tmpfields);
+        }
+        return found;
+    }
+
+    private static String getStatusString( int status ) {
+        switch( status ) {
+        case Status.CERTIFIED:
+            return "CERTIFIED";
+        case Status.DRAFT:
+            return "DRAFT";
+        case Status.TESTED:
+            return "TESTED";
+        default:
+            return "UNKNOWN";
+        }
+    }
+
+}
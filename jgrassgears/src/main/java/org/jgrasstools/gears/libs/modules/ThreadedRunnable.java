@@ -17,9 +17,14 @@
  */
 package org.jgrasstools.gears.libs.modules;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
@@ -78,4 +83,66 @@ public class ThreadedRunnable<E> {
         if (pm != null)
             pm.worked(process);
     }
+
+    /**
+     * Run tasks on a pool of threads and wait for all of them.
+     * 
+     * <p>The pool is created for the call and shut down before returning.</p>
+     * 
+     * @param tasks the tasks to run.
+     * @param threads the maximum number of threads to use.
+     * @return the results of the tasks, in the order of the tasks.
+     * @throws Exception the exception of the first failed task, in the order of the tasks.
+     * @see #invokeAll(ExecutorService, List)
+     */
+    public static <T> List<T> invokeAll( List< ? extends Callable<T>> tasks, int threads ) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            return invokeAll(pool, tasks);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Run tasks on an executor and wait for all of them.
+     * 
+     * <p>If a task fails, its exception is rethrown as the task threw it, not wrapped.
+     * The executor is left open, so that it can be reused.</p>
+     * 
+     * @param executor the executor to use.
+     * @param tasks the tasks to run.
+     * @return the results of the tasks, in the order of the tasks.
+     * @throws Exception the exception of the first failed task, in the order of the tasks.
+     */
+    public static <T> List<T> invokeAll( ExecutorService executor, List< ? extends Callable<T>> tasks ) throws Exception {
+        List<Future<T>> futures = executor.invokeAll(tasks);
+        List<T> results = new ArrayList<T>(futures.size());
+        for( Future<T> future : futures ) {
+            results.add(getResult(future));
+        }
+        return results;
+    }
+
+    /**
+     * Wait for the result of a task.
+     * 
+     * @param future the task.
+     * @return the result of the task.
+     * @throws Exception the exception thrown by the task, not wrapped.
+     */
+    public static <T> T getResult( Future<T> future ) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
 }
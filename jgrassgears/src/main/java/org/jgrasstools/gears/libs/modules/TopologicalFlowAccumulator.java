@@ -0,0 +1,340 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.libs.modules;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.doubleNovalue;
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+import javax.media.jai.iterator.WritableRandomIter;
+
+import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+
+/**
+ * Accumulation engine that drains a D8 flow map in topological order.
+ *
+ * <p>
+ * Instead of walking downstream from every source cell, the in-degree
+ * (number of valid cells draining into a cell) is computed once. A cell
+ * is then resolved only after all its upstream cells have been resolved,
+ * so every cell is visited exactly once. The flow map is kept as a
+ * packed byte array (row major, <code>index = row * cols + col</code>) and
+ * the work is partitioned in row strips across worker threads.
+ * </p>
+ *
+ * <p>
+ * The accumulated value of a cell is its own weight plus the accumulated
+ * values of all the valid cells that drain into it. With unitary weights
+ * this is the total contributing area in number of pixels.
+ * </p>
+ *
+ * <p>
+ * Cells with novalue flow or novalue weight do not receive nor
+ * propagate anything and are set to novalue in the result. The
+ * outlet value ({@link FlowNode#OUTLET}) or any other value that is
+ * not a direction stops the propagation. Cells trapped in flow loops
+ * never get resolved and are left to novalue.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TopologicalFlowAccumulator {
+
+    private static final byte NOFLOW = 0;
+    private static final byte STOPFLOW = -1;
+
+    /**
+     * Column and row offsets of the directions, indexed by the exiting flow value.
+     */
+    private static final int[] DCOL = {0, 1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DROW = {0, 0, -1, -1, -1, 0, 1, 1, 1};
+
+    private final int cols;
+    private final int rows;
+    private final byte[] flow;
+    private int threads = 1;
+    private IJGTProgressMonitor pm = new DummyProgressMonitor();
+
+    /**
+     * Constructor.
+     *
+     * @param flowIter the iterator over the flowdirections map.
+     * @param cols the columns of the map.
+     * @param rows the rows of the map.
+     */
+    public TopologicalFlowAccumulator( RandomIter flowIter, int cols, int rows ) {
+        this.cols = cols;
+        this.rows = rows;
+        flow = new byte[cols * rows];
+        int index = 0;
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                double value = flowIter.getSampleDouble(c, r, 0);
+                if (isNovalue(value)) {
+                    flow[index++] = NOFLOW;
+                } else {
+                    int f = (int) value;
+                    if (f >= 1 && f <= 8) {
+                        flow[index++] = (byte) f;
+                    } else {
+                        flow[index++] = STOPFLOW;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the number of worker threads to use.
+     *
+     * @param threads the number of threads.
+     */
+    public void setThreads( int threads ) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the progress monitor.
+     *
+     * @param pm the monitor.
+     */
+    public void setProgressMonitor( IJGTProgressMonitor pm ) {
+        if (pm != null)
+            this.pm = pm;
+    }
+
+    /**
+     * Accumulates unitary weights on all valid cells, which gives the total contributing areas.
+     *
+     * @return the accumulated values in row major order.
+     * @throws Exception
+     */
+    public double[] accumulate() throws Exception {
+        return accumulate(null);
+    }
+
+    /**
+     * Accumulates the supplied weights downstream.
+     *
+     * @param weights the weights of the cells in row major order. Novalues
+     *              mark cells that are excluded from the accumulation. If
+     *              <code>null</code>, unitary weights are used.
+     * @return the accumulated values in row major order.
+     * @throws Exception
+     */
+    public double[] accumulate( final double[] weights ) throws Exception {
+        if (weights != null && weights.length != flow.length) {
+            throw new IllegalArgumentException("The weights array needs to have the size of the flow map.");
+        }
+        final double[] accumulated = new double[flow.length];
+        final AtomicIntegerArray inDegree = new AtomicIntegerArray(flow.length);
+
+        final int stripsNum = Math.min(rows, threads * 4);
+        final int stripRows = (int) Math.ceil(rows / (double) stripsNum);
+
+        pm.beginTask("Calculating in-degrees...", stripsNum);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for( int s = 0; s < stripsNum; s++ ) {
+            final int fromRow = s * stripRows;
+            final int toRow = Math.min(rows, fromRow + stripRows);
+            tasks.add(new Callable<Void>(){
+                public Void call() {
+                    for( int r = fromRow; r < toRow; r++ ) {
+                        for( int c = 0; c < cols; c++ ) {
+                            int index = r * cols + c;
+                            if (isValid(index, weights)) {
+                                inDegree.set(index, countEntering(c, r, weights));
+                            } else {
+                                inDegree.set(index, -1);
+                                accumulated[index] = doubleNovalue;
+                            }
+                        }
+                    }
+                    worked();
+                    return null;
+                }
+            });
+        }
+        ThreadedRunnable.invokeAll(tasks, threads);
+        pm.done();
+
+        pm.beginTask("Draining cells in topological order...", stripsNum);
+        tasks.clear();
+        for( int s = 0; s < stripsNum; s++ ) {
+            final int fromRow = s * stripRows;
+            final int toRow = Math.min(rows, fromRow + stripRows);
+            tasks.add(new Callable<Void>(){
+                public Void call() {
+                    for( int r = fromRow; r < toRow; r++ ) {
+                        for( int c = 0; c < cols; c++ ) {
+                            int index = r * cols + c;
+                            if (inDegree.compareAndSet(index, 0, -1)) {
+                                drainFrom(index, weights, accumulated, inDegree);
+                            }
+                        }
+                    }
+                    worked();
+                    return null;
+                }
+            });
+        }
+        ThreadedRunnable.invokeAll(tasks, threads);
+        pm.done();
+
+        /*
+         * cells that were never reached are part of loops
+         */
+        for( int i = 0; i < flow.length; i++ ) {
+            if (inDegree.get(i) > 0) {
+                accumulated[i] = doubleNovalue;
+            }
+        }
+        return accumulated;
+    }
+
+    /**
+     * Resolves a cell and walks downstream as long as the reached cells
+     * get all their upstream cells resolved.
+     */
+    private void drainFrom( int index, double[] weights, double[] accumulated, AtomicIntegerArray inDegree ) {
+        int current = index;
+        while( current >= 0 ) {
+            int col = current % cols;
+            int row = current / cols;
+            double value = weights == null ? 1.0 : weights[current];
+            for( int f = 1; f <= 8; f++ ) {
+                int upCol = col - DCOL[f];
+                int upRow = row - DROW[f];
+                if (upCol < 0 || upCol >= cols || upRow < 0 || upRow >= rows) {
+                    continue;
+                }
+                int upIndex = upRow * cols + upCol;
+                if (flow[upIndex] == f && isValid(upIndex, weights)) {
+                    value = value + accumulated[upIndex];
+                }
+            }
+            accumulated[current] = value;
+
+            int next = downstream(current, weights);
+            if (next >= 0 && inDegree.decrementAndGet(next) == 0 && inDegree.compareAndSet(next, 0, -1)) {
+                current = next;
+            } else {
+                current = -1;
+            }
+        }
+    }
+
+    /**
+     * Get the valid cell the supplied cell drains into.
+     *
+     * @return the index of the downstream cell or -1.
+     */
+    private int downstream( int index, double[] weights ) {
+        byte f = flow[index];
+        if (f < 1) {
+            return -1;
+        }
+        int col = index % cols + DCOL[f];
+        int row = index / cols + DROW[f];
+        if (col < 0 || col >= cols || row < 0 || row >= rows) {
+            return -1;
+        }
+        int next = row * cols + col;
+        if (!isValid(next, weights)) {
+            return -1;
+        }
+        return next;
+    }
+
+    private int countEntering( int col, int row, double[] weights ) {
+        int count = 0;
+        for( int f = 1; f <= 8; f++ ) {
+            int upCol = col - DCOL[f];
+            int upRow = row - DROW[f];
+            if (upCol < 0 || upCol >= cols || upRow < 0 || upRow >= rows) {
+                continue;
+            }
+            int upIndex = upRow * cols + upCol;
+            if (flow[upIndex] == f && isValid(upIndex, weights)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean isValid( int index, double[] weights ) {
+        if (flow[index] == NOFLOW) {
+            return false;
+        }
+        return weights == null || !isNovalue(weights[index]);
+    }
+
+    private synchronized void worked() {
+        pm.worked(1);
+    }
+
+    /**
+     * Reads a map into a row major array, as needed for the weights.
+     *
+     * @param iter the iterator over the map.
+     * @param cols the columns of the map.
+     * @param rows the rows of the map.
+     * @return the values in row major order.
+     */
+    public static double[] toRowMajorArray( RandomIter iter, int cols, int rows ) {
+        double[] values = new double[cols * rows];
+        int index = 0;
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                values[index++] = iter.getSampleDouble(c, r, 0);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Writes a row major array of accumulated values into a new raster.
+     *
+     * @param values the values to write.
+     * @param cols the columns of the map.
+     * @param rows the rows of the map.
+     * @return the raster.
+     */
+    public static WritableRaster toRaster( double[] values, int cols, int rows ) {
+        WritableRaster raster = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, doubleNovalue);
+        WritableRandomIter iter = RandomIterFactory.createWritable(raster, null);
+        int index = 0;
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                iter.setSample(c, r, 0, values[index++]);
+            }
+        }
+        iter.done();
+        return raster;
+    }
+
+}
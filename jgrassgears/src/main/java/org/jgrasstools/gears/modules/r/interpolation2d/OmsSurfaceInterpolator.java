@@ -34,15 +34,21 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_OU
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_P_BUFFER_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_P_MAX_THREADS_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_P_MODE_DESCRIPTION;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_P_NEIGHBOURS_DESCRIPTION;
 import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 import static org.jgrasstools.gears.libs.modules.Variables.IDW;
 import static org.jgrasstools.gears.libs.modules.Variables.TPS;
 
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
@@ -70,12 +76,15 @@ import org.geotools.data.simple.SimpleFeatureIterator;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
 import org.jgrasstools.gears.modules.r.interpolation2d.core.IDWInterpolator;
 import org.jgrasstools.gears.modules.r.interpolation2d.core.ISurfaceInterpolator;
+import org.jgrasstools.gears.modules.r.interpolation2d.core.PointsKdTree;
 import org.jgrasstools.gears.modules.r.interpolation2d.core.TPSInterpolator;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.jgrasstools.gears.utils.math.interpolation.NeighbourhoodsCache;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.geometry.DirectPosition;
@@ -123,6 +132,10 @@ public class OmsSurfaceInterpolator extends JGTModel {
     @In
     public double pBuffer = 4.0;
 
+    @Description(OMSSURFACEINTERPOLATOR_P_NEIGHBOURS_DESCRIPTION)
+    @In
+    public int pNeighbours = 0;
+
     @Description(OMSSURFACEINTERPOLATOR_P_MAX_THREADS_DESCRIPTION)
     @In
     public int pMaxThreads = 1;
@@ -137,6 +150,18 @@ public class OmsSurfaceInterpolator extends JGTModel {
 
     private GridGeometry2D gridGeometry;
 
+    private List<Coordinate> controlPoints;
+
+    /**
+     * The size of the square blocks of cells handed to the workers in neighbours mode.
+     */
+    private static final int TILE_SIZE = 64;
+
+    /**
+     * The number of solved neighbourhoods every worker keeps.
+     */
+    private static final int NEIGHBOURHOODS_CACHE_SIZE = 64;
+
     @Execute
     public void process() throws Exception {
         checkNull(inGrid);
@@ -147,6 +172,7 @@ public class OmsSurfaceInterpolator extends JGTModel {
         int rows = regionMap.getRows();
 
         coordinatesSpatialTree = new STRtree();
+        controlPoints = new ArrayList<Coordinate>();
         if (inVector != null) {
             checkNull(fCat);
             GeometryDescriptor geometryDescriptor = inVector.getSchema().getGeometryDescriptor();
@@ -167,6 +193,7 @@ public class OmsSurfaceInterpolator extends JGTModel {
 
                 Envelope env = new Envelope(coordinates[index]);
                 coordinatesSpatialTree.insert(env, coordinates[index]);
+                controlPoints.add(coordinates[index]);
 
                 pm.worked(1);
             }
@@ -185,6 +212,7 @@ public class OmsSurfaceInterpolator extends JGTModel {
                         coordinate.z = value;
                         Envelope env = new Envelope(coordinate);
                         coordinatesSpatialTree.insert(env, coordinate);
+                        controlPoints.add(coordinate);
                         count++;
                     }
                 }
@@ -205,6 +233,13 @@ public class OmsSurfaceInterpolator extends JGTModel {
                 JGTConstants.doubleNovalue);
         final WritableRandomIter interpolatedIter = RandomIterFactory.createWritable(interpolatedWR, null);
 
+        if (pNeighbours > 0) {
+            processTiles(cols, rows, interpolatedIter);
+            outRaster = CoverageUtilities.buildCoverage("interpolatedraster", interpolatedWR, regionMap,
+                    inGrid.getCoordinateReferenceSystem());
+            return;
+        }
+
         boolean doMultiThread = pMaxThreads > 1;
 
         ExecutorService fixedThreadPool = null;
@@ -213,18 +248,17 @@ public class OmsSurfaceInterpolator extends JGTModel {
 
         pm.beginTask("Performing interpolation...", rows);
 
-        final double[] eval = new double[1];
         for( int r = 0; r < rows; r++ ) {
             final int row = r;
             if (doMultiThread) {
                 Runnable runner = new Runnable(){
                     public void run() {
-                        processing(cols, coordinatesSpatialTree, interpolatedIter, eval, row);
+                        processing(cols, coordinatesSpatialTree, interpolatedIter, row);
                     }
                 };
                 fixedThreadPool.execute(runner);
             } else {
-                processing(cols, coordinatesSpatialTree, interpolatedIter, eval, row);
+                processing(cols, coordinatesSpatialTree, interpolatedIter, row);
             }
         }
 
@@ -243,8 +277,10 @@ public class OmsSurfaceInterpolator extends JGTModel {
                 inGrid.getCoordinateReferenceSystem());
 
     }
-    private void processing( final int cols, final STRtree tree, final WritableRandomIter interpolatedIter, final double[] eval,
-            final int row ) {
+
+    private void processing( final int cols, final STRtree tree, final WritableRandomIter interpolatedIter, final int row ) {
+        // the mask evaluation writes into it, one per row task
+        final double[] eval = new double[1];
         try {
             for( int c = 0; c < cols; c++ ) {
                 final DirectPosition gridToWorld = gridGeometry.gridToWorld(new GridCoordinates2D(c, row));
@@ -287,4 +323,161 @@ public class OmsSurfaceInterpolator extends JGTModel {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Interpolate the grid by blocks of cells, using the nearest control points of every cell.
+     * 
+     * <p>
+     * The blocks are taken by the workers one after the other. Close cells
+     * mostly have the same neighbours, so every worker keeps the last solved
+     * spline systems by neighbourhood and only solves again when the set of
+     * neighbours changes.
+     * </p>
+     */
+    private void processTiles( final int cols, final int rows, final WritableRandomIter interpolatedIter ) throws Exception {
+        int pointsNum = controlPoints.size();
+        double[] xs = new double[pointsNum];
+        double[] ys = new double[pointsNum];
+        for( int i = 0; i < pointsNum; i++ ) {
+            Coordinate coordinate = controlPoints.get(i);
+            xs[i] = coordinate.x;
+            ys[i] = coordinate.y;
+        }
+        PointsKdTree kdTree = new PointsKdTree(xs, ys);
+        Coordinate[] points = controlPoints.toArray(new Coordinate[pointsNum]);
+
+        int tileCols = (cols + TILE_SIZE - 1) / TILE_SIZE;
+        int tileRows = (rows + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesNum = tileCols * tileRows;
+        AtomicInteger nextTile = new AtomicInteger();
+        AtomicLong solved = new AtomicLong();
+
+        int threads = Math.max(1, Math.min(pMaxThreads, tilesNum));
+        List<TilesWorker> workers = new ArrayList<TilesWorker>();
+        for( int i = 0; i < threads; i++ ) {
+            workers.add(new TilesWorker(kdTree, points, cols, rows, tileCols, tilesNum, nextTile, solved, interpolatedIter));
+        }
+
+        pm.beginTask("Performing interpolation...", tilesNum);
+        if (threads == 1) {
+            workers.get(0).call();
+        } else {
+            ThreadedRunnable.invokeAll(workers, threads);
+        }
+        pm.done();
+        pm.message("Solved neighbourhoods: " + solved.get());
+    }
+
+    private synchronized void worked() {
+        pm.worked(1);
+    }
+
+    /**
+     * Interpolates blocks of cells until none is left.
+     * 
+     * <p>
+     * Every worker has its own search arrays and cache, the kd-tree and
+     * the control points are shared and only read.
+     * </p>
+     */
+    private class TilesWorker implements Callable<Void> {
+        private final PointsKdTree kdTree;
+        private final Coordinate[] points;
+        private final int cols;
+        private final int rows;
+        private final int tileCols;
+        private final int tilesNum;
+        private final AtomicInteger nextTile;
+        private final AtomicLong solved;
+        private final WritableRandomIter interpolatedIter;
+
+        private final int[] neighbours;
+        private final double[] distances2;
+        private final double[] eval = new double[1];
+        private final double[] tileValues = new double[TILE_SIZE * TILE_SIZE];
+        private final NeighbourhoodsCache<double[]> solvedSystems;
+
+        TilesWorker( PointsKdTree kdTree, Coordinate[] points, int cols, int rows, int tileCols, int tilesNum,
+                AtomicInteger nextTile, AtomicLong solved, WritableRandomIter interpolatedIter ) {
+            this.kdTree = kdTree;
+            this.points = points;
+            this.cols = cols;
+            this.rows = rows;
+            this.tileCols = tileCols;
+            this.tilesNum = tilesNum;
+            this.nextTile = nextTile;
+            this.solved = solved;
+            this.interpolatedIter = interpolatedIter;
+            neighbours = new int[pNeighbours];
+            distances2 = new double[pNeighbours];
+            solvedSystems = new NeighbourhoodsCache<double[]>(NEIGHBOURHOODS_CACHE_SIZE);
+        }
+
+        public Void call() throws Exception {
+            int tile;
+            while( (tile = nextTile.getAndIncrement()) < tilesNum ) {
+                int startCol = (tile % tileCols) * TILE_SIZE;
+                int startRow = (tile / tileCols) * TILE_SIZE;
+                int endCol = Math.min(startCol + TILE_SIZE, cols);
+                int endRow = Math.min(startRow + TILE_SIZE, rows);
+                int width = endCol - startCol;
+
+                for( int r = startRow; r < endRow; r++ ) {
+                    for( int c = startCol; c < endCol; c++ ) {
+                        tileValues[(r - startRow) * width + c - startCol] = interpolate(c, r);
+                    }
+                }
+                synchronized (interpolatedIter) {
+                    for( int r = startRow; r < endRow; r++ ) {
+                        for( int c = startCol; c < endCol; c++ ) {
+                            interpolatedIter.setSample(c, r, 0, tileValues[(r - startRow) * width + c - startCol]);
+                        }
+                    }
+                }
+                worked();
+            }
+            return null;
+        }
+
+        private double interpolate( int c, int r ) throws TransformException {
+            DirectPosition gridToWorld = gridGeometry.gridToWorld(new GridCoordinates2D(c, r));
+            if (inMask != null) {
+                inMask.evaluate(gridToWorld, eval);
+                if (isNovalue(eval[0])) {
+                    return JGTConstants.doubleNovalue;
+                }
+            }
+            double[] coord = gridToWorld.getCoordinate();
+            double x = coord[0];
+            double y = coord[1];
+
+            int count = kdTree.nearest(x, y, pNeighbours, pBuffer, neighbours, distances2);
+            // we need at least 3 points
+            if (count < 4) {
+                return JGTConstants.doubleNovalue;
+            }
+            // the same set of points, whatever the distance order, gives the same system
+            int[] sorted = Arrays.copyOf(neighbours, count);
+            Arrays.sort(sorted);
+            Coordinate[] neighbourPoints = new Coordinate[count];
+            for( int i = 0; i < count; i++ ) {
+                neighbourPoints[i] = points[sorted[i]];
+            }
+
+            if (!(interpolator instanceof TPSInterpolator)) {
+                return interpolator.getValue(neighbourPoints, new Coordinate(x, y));
+            }
+            TPSInterpolator tpsInterpolator = (TPSInterpolator) interpolator;
+            double[] coefficients = solvedSystems.get(sorted);
+            if (coefficients == null) {
+                coefficients = tpsInterpolator.getCoefficients(neighbourPoints);
+                if (coefficients == null) {
+                    return JGTConstants.doubleNovalue;
+                }
+                solvedSystems.put(sorted, coefficients);
+                solved.incrementAndGet();
+            }
+            return tpsInterpolator.getValue(neighbourPoints, coefficients, x, y);
+        }
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules.r.interpolation2d.core;
+
+/**
+ * A static 2D kd-tree over primitive coordinate arrays.
+ *
+ * <p>
+ * The tree is a permutation of the point indexes: the node of a range is
+ * its middle position, the points before it are on its lower side of the
+ * split axis, the ones after it on the upper side. Axes alternate with the
+ * depth, starting with x.
+ * </p>
+ *
+ * <p>
+ * Once built the tree is only read, so it can be queried by several
+ * threads at the same time, each with its own result arrays.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class PointsKdTree {
+
+    private final double[] x;
+    private final double[] y;
+    private final int[] tree;
+
+    /**
+     * Build the tree.
+     *
+     * @param x the x coordinates of the points.
+     * @param y the y coordinates of the points.
+     */
+    public PointsKdTree( double[] x, double[] y ) {
+        if (x.length != y.length) {
+            throw new IllegalArgumentException("The coordinate arrays need to have the same size.");
+        }
+        this.x = x;
+        this.y = y;
+        tree = new int[x.length];
+        for( int i = 0; i < tree.length; i++ ) {
+            tree[i] = i;
+        }
+        build(0, tree.length, true);
+    }
+
+    /**
+     * @return the number of points.
+     */
+    public int size() {
+        return tree.length;
+    }
+
+    private void build( int from, int to, boolean onX ) {
+        while( to - from > 1 ) {
+            int mid = (from + to) >>> 1;
+            select(from, to - 1, mid, onX ? x : y);
+            build(from, mid, !onX);
+            from = mid + 1;
+            onX = !onX;
+        }
+    }
+
+    /**
+     * Partially sort the range so that the position k holds its median.
+     */
+    private void select( int left, int right, int k, double[] axis ) {
+        while( right > left ) {
+            double pivot = axis[tree[(left + right) >>> 1]];
+            int i = left;
+            int j = right;
+            while( i <= j ) {
+                while( axis[tree[i]] < pivot ) {
+                    i++;
+                }
+                while( axis[tree[j]] > pivot ) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = tree[i];
+                    tree[i] = tree[j];
+                    tree[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Find the nearest points to a position.
+     *
+     * @param qx the x of the position.
+     * @param qy the y of the position.
+     * @param k the max number of points to find.
+     * @param maxDistance the max distance of the points, {@link Double#POSITIVE_INFINITY} for no limit.
+     * @param neighbours the array of size k for the indexes of the points found, in no particular order.
+     * @param distances2 the array of size k for the squared distances of the points found.
+     * @return the number of points found.
+     */
+    public int nearest( double qx, double qy, int k, double maxDistance, int[] neighbours, double[] distances2 ) {
+        if (k <= 0) {
+            return 0;
+        }
+        double maxDistance2 = maxDistance * maxDistance;
+        return search(0, tree.length, true, qx, qy, k, maxDistance2, neighbours, distances2, 0);
+    }
+
+    private int search( int from, int to, boolean onX, double qx, double qy, int k, double maxDistance2, int[] neighbours,
+            double[] distances2, int count ) {
+        if (to <= from) {
+            return count;
+        }
+        int mid = (from + to) >>> 1;
+        int point = tree[mid];
+        double dx = x[point] - qx;
+        double dy = y[point] - qy;
+        double d2 = dx * dx + dy * dy;
+        if (d2 <= maxDistance2) {
+            count = offer(point, d2, k, neighbours, distances2, count);
+        }
+
+        double diff = onX ? qx - x[point] : qy - y[point];
+        if (diff < 0) {
+            count = search(from, mid, !onX, qx, qy, k, maxDistance2, neighbours, distances2, count);
+            if (diff * diff <= worst(k, maxDistance2, distances2, count)) {
+                count = search(mid + 1, to, !onX, qx, qy, k, maxDistance2, neighbours, distances2, count);
+            }
+        } else {
+            count = search(mid + 1, to, !onX, qx, qy, k, maxDistance2, neighbours, distances2, count);
+            if (diff * diff <= worst(k, maxDistance2, distances2, count)) {
+                count = search(from, mid, !onX, qx, qy, k, maxDistance2, neighbours, distances2, count);
+            }
+        }
+        return count;
+    }
+
+    private double worst( int k, double maxDistance2, double[] distances2, int count ) {
+        if (count < k) {
+            return maxDistance2;
+        }
+        return distances2[0];
+    }
+
+    /**
+     * Add a point to the max-heap of the nearest points, ordered by distance.
+     */
+    private int offer( int point, double d2, int k, int[] neighbours, double[] distances2, int count ) {
+        if (count < k) {
+            // sift up
+            int i = count;
+            while( i > 0 ) {
+                int parent = (i - 1) >>> 1;
+                if (distances2[parent] >= d2) {
+                    break;
+                }
+                neighbours[i] = neighbours[parent];
+                distances2[i] = distances2[parent];
+                i = parent;
+            }
+            neighbours[i] = point;
+            distances2[i] = d2;
+            return count + 1;
+        }
+        if (d2 >= distances2[0]) {
+            return count;
+        }
+        // replace the farthest and sift down
+        int i = 0;
+        while( true ) {
+            int child = 2 * i + 1;
+            if (child >= k) {
+                break;
+            }
+            if (child + 1 < k && distances2[child + 1] > distances2[child]) {
+                child++;
+            }
+            if (distances2[child] <= d2) {
+                break;
+            }
+            neighbours[i] = neighbours[child];
+            distances2[i] = distances2[child];
+            i = child;
+        }
+        neighbours[i] = point;
+        distances2[i] = d2;
+        return count;
+    }
+
+}
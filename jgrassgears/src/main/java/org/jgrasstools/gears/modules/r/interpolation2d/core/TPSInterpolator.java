@@ -17,8 +17,8 @@
  */
 package org.jgrasstools.gears.modules.r.interpolation2d.core;
 
-import org.geotools.referencing.operation.matrix.GeneralMatrix;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.utils.math.matrixes.LinearSystem;
 
 import com.vividsolutions.jts.geom.Coordinate;
 
@@ -48,40 +48,66 @@ public class TPSInterpolator implements ISurfaceInterpolator {
     }
 
     public double getValue( Coordinate[] controlPoints, Coordinate interpolated ) {
-        int controlPointsNum = controlPoints.length;
-        GeneralMatrix v = null;
-        try {
-            v = makeMatrix(controlPoints);
-        } catch (Exception e) {
+        double[] coefficients = getCoefficients(controlPoints);
+        if (coefficients == null) {
             return JGTConstants.doubleNovalue;
         }
-        double a1 = v.getElement(v.getNumRow() - 3, 0);
-        double a2 = v.getElement(v.getNumRow() - 2, 0);
-        double a3 = v.getElement(v.getNumRow() - 1, 0);
-
-        double sum = 0;
-        for( int i = 0; i < controlPointsNum; i++ ) {
-            double dist = interpolated.distance(controlPoints[i]);
-            sum = sum + (v.getElement(i, 0) * functionU(dist));
-        }
-
-        double value = (a1 + (a2 * interpolated.x) + (a3 * interpolated.y) + sum);
+        double value = getValue(controlPoints, coefficients, interpolated.x, interpolated.y);
         interpolated.z = value;
         return value;
     }
 
-    private GeneralMatrix makeMatrix( Coordinate[] controlPoints ) {
+    /**
+     * Solve the spline system of a set of control points.
+     * 
+     * <p>The coefficients can be reused for all the positions that are
+     * interpolated from the same control points, see {@link #getValue(Coordinate[], double[], double, double)}.
+     * 
+     * @param controlPoints the control points, with the values as z.
+     * @return the n weights followed by the 3 affine coefficients or <code>null</code> if the system is singular.
+     */
+    public double[] getCoefficients( Coordinate[] controlPoints ) {
         int pointsNum = controlPoints.length;
-        GeneralMatrix L = new GeneralMatrix(pointsNum + 3, pointsNum + 3);
-
+        double[][] L = new double[pointsNum + 3][pointsNum + 3];
         fillKsubMatrix(controlPoints, L);
         fillPsubMatrix(controlPoints, L);
-        fillOsubMatrix(controlPoints, L);
-        L.invert();
-        GeneralMatrix V = fillVMatrix(0, controlPoints);
-        GeneralMatrix result = new GeneralMatrix(pointsNum + 3, 1);
-        result.mul(L, V);
-        return result;
+        double[] V = fillVMatrix(controlPoints);
+
+        double[] coefficients = new double[pointsNum + 3];
+        try {
+            LinearSystem system = new LinearSystem(L);
+            system.factorize();
+            system.solve(V, coefficients, null, null);
+        } catch (Exception e) {
+            return null;
+        }
+        return coefficients;
+    }
+
+    /**
+     * Evaluate the spline with already solved coefficients.
+     * 
+     * @param controlPoints the control points the coefficients were solved for.
+     * @param coefficients the coefficients from {@link #getCoefficients(Coordinate[])}.
+     * @param x the x of the position to interpolate.
+     * @param y the y of the position to interpolate.
+     * @return the interpolated value.
+     */
+    public double getValue( Coordinate[] controlPoints, double[] coefficients, double x, double y ) {
+        int controlPointsNum = controlPoints.length;
+        double a1 = coefficients[controlPointsNum];
+        double a2 = coefficients[controlPointsNum + 1];
+        double a3 = coefficients[controlPointsNum + 2];
+
+        double sum = 0;
+        for( int i = 0; i < controlPointsNum; i++ ) {
+            double dx = x - controlPoints[i].x;
+            double dy = y - controlPoints[i].y;
+            double dist = Math.sqrt(dx * dx + dy * dy);
+            sum = sum + (coefficients[i] * functionU(dist));
+        }
+
+        return (a1 + (a2 * x) + (a3 * y) + sum);
     }
 
     /**
@@ -116,69 +142,46 @@ public class TPSInterpolator implements ISurfaceInterpolator {
      * @param controlPoints 
      * @param L
      */
-    private void fillKsubMatrix( Coordinate[] controlPoints, GeneralMatrix L ) {
-        double alfa = 0;
+    private void fillKsubMatrix( Coordinate[] controlPoints, double[][] L ) {
         int controlPointsNum = controlPoints.length;
         for( int i = 0; i < controlPointsNum; i++ ) {
             for( int j = i + 1; j < controlPointsNum; j++ ) {
                 double u = calculateFunctionU(controlPoints[i], controlPoints[j]);
-                L.setElement(i, j, u);
-                L.setElement(j, i, u);
-                alfa = alfa + (u * 2); // same for upper and lower part
+                L[i][j] = u;
+                L[j][i] = u;
             }
         }
-
-        alfa = alfa / (controlPointsNum * controlPointsNum);
     }
 
     /**
-     * Fill L submatrix (<a href="http://elonen.iki.fi/code/tpsdemo/index.html"> see more here</a>)
+     * Fill P submatrix (<a href="http://elonen.iki.fi/code/tpsdemo/index.html"> see more here</a>).
+     * 
+     * <p>The diagonal and the O submatrix stay 0.
      */
-    private void fillPsubMatrix( Coordinate[] controlPoints, GeneralMatrix L ) {
+    private void fillPsubMatrix( Coordinate[] controlPoints, double[][] L ) {
         int controlPointsNum = controlPoints.length;
         for( int i = 0; i < controlPointsNum; i++ ) {
-            L.setElement(i, i, 0);
-
-            L.setElement(i, controlPointsNum + 0, 1);
-            L.setElement(i, controlPointsNum + 1, controlPoints[i].x);
-            L.setElement(i, controlPointsNum + 2, controlPoints[i].y);
+            L[i][controlPointsNum + 0] = 1;
+            L[i][controlPointsNum + 1] = controlPoints[i].x;
+            L[i][controlPointsNum + 2] = controlPoints[i].y;
 
-            L.setElement(controlPointsNum + 0, i, 1);
-            L.setElement(controlPointsNum + 1, i, controlPoints[i].x);
-            L.setElement(controlPointsNum + 2, i, controlPoints[i].y);
-        }
-    }
-
-    /**
-     * Fill O submatrix (<a href="http://elonen.iki.fi/code/tpsdemo/index.html"> see more here</a>)
-     */
-    private void fillOsubMatrix( Coordinate[] controlPoints, GeneralMatrix L ) {
-        int controlPointsNum = controlPoints.length;
-        for( int i = controlPointsNum; i < (controlPointsNum + 3); i++ ) {
-            for( int j = controlPointsNum; j < (controlPointsNum + 3); j++ ) {
-                L.setElement(i, j, 0);
-            }
+            L[controlPointsNum + 0][i] = 1;
+            L[controlPointsNum + 1][i] = controlPoints[i].x;
+            L[controlPointsNum + 2][i] = controlPoints[i].y;
         }
     }
 
     /**
      * Fill V matrix (matrix of target values).
      * 
-     * @param dim 0 for dx, 1 for dy.
      * @return V Matrix
      */
-    private GeneralMatrix fillVMatrix( int dim, Coordinate[] controlPoints ) {
+    private double[] fillVMatrix( Coordinate[] controlPoints ) {
         int controlPointsNum = controlPoints.length;
-        GeneralMatrix V = new GeneralMatrix(controlPointsNum + 3, 1);
-
+        double[] V = new double[controlPointsNum + 3];
         for( int i = 0; i < controlPointsNum; i++ ) {
-            V.setElement(i, 0, controlPoints[i].z);
+            V[i] = controlPoints[i].z;
         }
-
-        V.setElement(V.getNumRow() - 3, 0, 0);
-        V.setElement(V.getNumRow() - 2, 0, 0);
-        V.setElement(V.getNumRow() - 1, 0, 0);
-
         return V;
     }
 }
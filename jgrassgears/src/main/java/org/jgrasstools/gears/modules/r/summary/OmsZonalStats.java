@@ -59,7 +59,6 @@ import org.jgrasstools.gears.libs.exceptions.ModelsIOException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
-import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.features.FeatureUtilities;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
 import org.opengis.feature.simple.SimpleFeature;
@@ -99,6 +98,10 @@ public class OmsZonalStats extends JGTModel {
     @In
     public Double pTotalMean = null;
 
+    @Description("Max threads to use (default 1).")
+    @In
+    public int pMaxThreads = 1;
+
     @Description("The input polygons with the added stats values.")
     @Out
     public SimpleFeatureCollection outVector;
@@ -142,12 +145,14 @@ public class OmsZonalStats extends JGTModel {
         List<Geometry> geometriesList = FeatureUtilities.featureCollectionToGeometriesList(inVector, true, null);
 
         // pm.message("" + readEnvelope);
-        GridGeometry2D gridGeometry = inRaster.getGridGeometry();
-        RandomIter readIter = CoverageUtilities.getRandomIterator(inRaster);
         pm.beginTask("Processing polygons...", geometriesList.size());
-        for( Geometry geometry : geometriesList ) {
-            double[] polygonStats = polygonStats(geometry, gridGeometry, readIter, hasUserTotalMean, tm_usertm_tactivecells,
-                    pPercentageThres, pm);
+        ZonalStatsEngine engine = new ZonalStatsEngine(inRaster.getGridGeometry());
+        engine.setThreads(pMaxThreads);
+        double[][] stats = engine.zonalStats(geometriesList, inRaster.getRenderedImage(), hasUserTotalMean,
+                tm_usertm_tactivecells, pPercentageThres);
+        for( int i = 0; i < geometriesList.size(); i++ ) {
+            Geometry geometry = geometriesList.get(i);
+            double[] polygonStats = stats[i];
             if (polygonStats == null) {
                 continue;
             }
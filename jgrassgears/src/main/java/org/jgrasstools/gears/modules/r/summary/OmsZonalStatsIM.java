@@ -21,14 +21,11 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_AUTHORCONTACTS;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_AUTHORNAMES;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_LICENSE;
 
-import java.awt.image.Raster;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
-import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
-
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Execute;
@@ -41,7 +38,6 @@ import oms3.annotations.Out;
 import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
@@ -152,12 +148,14 @@ public class OmsZonalStatsIM extends JGTModelIM {
 
                 // pm.message("" + readEnvelope);
                 GridCoverage2D readGC = getGridCoverage(0, readEnvelope);
-                GridGeometry2D gridGeometry = readGC.getGridGeometry();
-                Raster readRaster = readGC.getRenderedImage().getData();
-                RandomIter readIter = RandomIterFactory.create(readRaster, null);
-                for( Geometry geometry : removeGeometriesQueue ) {
-                    double[] polygonStats = OmsZonalStats.polygonStats(geometry, gridGeometry, readIter, hasUserTotalMean,
-                            tm_usertm_tactivecells, pPercentageThres, pm);
+                List<Geometry> readGeometries = new ArrayList<Geometry>(removeGeometriesQueue);
+                ZonalStatsEngine engine = new ZonalStatsEngine(readGC.getGridGeometry());
+                engine.setThreads(pMaxThreads);
+                double[][] stats = engine.zonalStats(readGeometries, readGC.getRenderedImage(), hasUserTotalMean,
+                        tm_usertm_tactivecells, pPercentageThres);
+                for( int i = 0; i < readGeometries.size(); i++ ) {
+                    Geometry geometry = readGeometries.get(i);
+                    double[] polygonStats = stats[i];
                     if (polygonStats == null) {
                         continue;
                     }
@@ -203,8 +201,9 @@ public class OmsZonalStatsIM extends JGTModelIM {
         dispose();
     }
 
-    protected void processCell( int readCol, int readRow, int writeCol, int writeRow, int readCols, int readRows, int writeCols,
-            int writeRows ) {
+    @Override
+    protected void processCell( TileContext tile, int readCol, int readRow, int writeCol, int writeRow, int readCols,
+            int readRows, int writeCols, int writeRows ) {
         // not used in this case
     }
 }
@@ -0,0 +1,441 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules.r.summary;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.sqrt;
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.referencing.operation.matrix.XAffineTransform;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
+import org.opengis.metadata.spatial.PixelOrientation;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Zonal statistics of many polygons in a single pass over the raster.
+ *
+ * <p>The polygons are scan line rasterized inside their envelope into an int grid
+ * holding the index of the polygon (zone) of every cell. The cells are those of
+ * {@link OmsZonalStats#polygonStats(Geometry, GridGeometry2D, RandomIter, boolean, double[], double, org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor) polygonStats}:
+ * the row centers are intersected with the polygon rings and the cells in between
+ * the crossings are taken. Overlapping polygons go to further label grids, so that
+ * every polygon gets all its cells.
+ *
+ * <p>The statistics are then accumulated per zone reading every labelled cell once,
+ * the rows being split among the threads.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ZonalStatsEngine {
+
+    private static final int NO_ZONE = -1;
+
+    private final int minCol;
+    private final int minRow;
+    private final int cols;
+    private final int rows;
+    private final double west;
+    private final double north;
+    private final double xRes;
+    private final double yRes;
+    private int threads = 1;
+
+    /**
+     * Constructor.
+     *
+     * @param gridGeometry the grid geometry of the raster to process.
+     */
+    public ZonalStatsEngine( GridGeometry2D gridGeometry ) {
+        GridEnvelope2D gridRange = gridGeometry.getGridRange2D();
+        minCol = gridRange.x;
+        minRow = gridRange.y;
+        cols = gridRange.width;
+        rows = gridRange.height;
+        AffineTransform gridToCRS = (AffineTransform) gridGeometry.getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+        xRes = abs(XAffineTransform.getScaleX0(gridToCRS));
+        yRes = abs(XAffineTransform.getScaleY0(gridToCRS));
+        west = gridToCRS.getTranslateX();
+        north = gridToCRS.getTranslateY();
+    }
+
+    /**
+     * Constructor for a north up grid.
+     *
+     * @param minCol the grid x of the first column.
+     * @param minRow the grid y of the first row.
+     * @param cols the columns.
+     * @param rows the rows.
+     * @param west the west bound of grid column 0.
+     * @param north the north bound of grid row 0.
+     * @param xRes the x resolution.
+     * @param yRes the y resolution.
+     */
+    public ZonalStatsEngine( int minCol, int minRow, int cols, int rows, double west, double north, double xRes, double yRes ) {
+        this.minCol = minCol;
+        this.minRow = minRow;
+        this.cols = cols;
+        this.rows = rows;
+        this.west = west;
+        this.north = north;
+        this.xRes = xRes;
+        this.yRes = yRes;
+    }
+
+    /**
+     * @param threads the threads to use for rasterizing and reading.
+     */
+    public void setThreads( int threads ) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Calculate the stats of all the zones.
+     *
+     * @param zones the polygons.
+     * @param image the raster to read, in the grid of this engine.
+     * @param hasUserTotalMean if <code>true</code>, the mean absolute deviation from
+     *          the user total mean is calculated.
+     * @param tm_utm_tac the array holding totalMean, userTotalMean, totalActiveCells,
+     *          as for {@link OmsZonalStats#polygonStats(Geometry, GridGeometry2D, RandomIter, boolean, double[], double, org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor) polygonStats}.
+     * @param percentageThres the minimum percentage of active cells to have a valid stat.
+     * @return for every zone the stats in the order of
+     *          {@link OmsZonalStats#polygonStats(Geometry, GridGeometry2D, RandomIter, boolean, double[], double, org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor) polygonStats}
+     *          or <code>null</code>, if the zone has not enough active cells.
+     * @throws Exception
+     */
+    public double[][] zonalStats( final List<Geometry> zones, final RenderedImage image, final boolean hasUserTotalMean,
+            double[] tm_utm_tac, double percentageThres ) throws Exception {
+        final int zonesNum = zones.size();
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            // rasterize the polygons to spans of cells
+            List<Callable<int[]>> rasterizers = new ArrayList<Callable<int[]>>(zonesNum);
+            for( final Geometry zone : zones ) {
+                rasterizers.add(new Callable<int[]>(){
+                    public int[] call() throws Exception {
+                        return rasterize(zone);
+                    }
+                });
+            }
+            List<int[]> spans = run(executor, rasterizers);
+
+            // label the grids, overlapping zones go to the next grid
+            final List<int[]> labelGrids = new ArrayList<int[]>();
+            for( int z = 0; z < zonesNum; z++ ) {
+                int[] zoneSpans = spans.get(z);
+                int[] labels = null;
+                for( int[] labelGrid : labelGrids ) {
+                    if (isFree(labelGrid, zoneSpans)) {
+                        labels = labelGrid;
+                        break;
+                    }
+                }
+                if (labels == null) {
+                    labels = new int[cols * rows];
+                    Arrays.fill(labels, NO_ZONE);
+                    labelGrids.add(labels);
+                }
+                for( int i = 0; i < zoneSpans.length; i = i + 3 ) {
+                    int offset = (zoneSpans[i] - minRow) * cols - minCol;
+                    Arrays.fill(labels, offset + zoneSpans[i + 1], offset + zoneSpans[i + 2] + 1, z);
+                }
+            }
+
+            // accumulate on row bands
+            final double userTotalMean = tm_utm_tac[1];
+            int bands = Math.min(threads, rows);
+            List<Callable<ZoneAccumulator>> readers = new ArrayList<Callable<ZoneAccumulator>>(bands);
+            for( int b = 0; b < bands; b++ ) {
+                final int fromRow = b * rows / bands;
+                final int toRow = (b + 1) * rows / bands;
+                readers.add(new Callable<ZoneAccumulator>(){
+                    public ZoneAccumulator call() throws Exception {
+                        ZoneAccumulator accumulator = new ZoneAccumulator(zonesNum);
+                        RandomIter iter = RandomIterFactory.create(image, null);
+                        try {
+                            for( int[] labels : labelGrids ) {
+                                accumulator.read(labels, iter, fromRow, toRow, hasUserTotalMean, userTotalMean);
+                            }
+                        } finally {
+                            iter.done();
+                        }
+                        return accumulator;
+                    }
+                });
+            }
+            List<ZoneAccumulator> accumulators = run(executor, readers);
+            ZoneAccumulator all = accumulators.get(0);
+            for( int i = 1; i < accumulators.size(); i++ ) {
+                all.merge(accumulators.get(i));
+            }
+
+            double[][] result = new double[zonesNum][];
+            for( int z = 0; z < zonesNum; z++ ) {
+                int activeCellCount = all.count[z];
+                int passiveCellCount = all.passive[z];
+                if (!hasUserTotalMean) {
+                    tm_utm_tac[0] = tm_utm_tac[0] + all.sum[z];
+                    tm_utm_tac[2] = tm_utm_tac[2] + activeCellCount;
+                }
+                double ratio = 100.0 * activeCellCount / (activeCellCount + passiveCellCount);
+                if (ratio < percentageThres) {
+                    continue;
+                }
+                double mean = Double.NaN;
+                double var = Double.NaN;
+                if (activeCellCount > 0) {
+                    mean = all.sum[z] / activeCellCount;
+                    var = all.m2[z] / activeCellCount;
+                }
+                double sdev = sqrt(var);
+                if (hasUserTotalMean) {
+                    double meanAbsoluteDeviation = all.absDev[z] / activeCellCount;
+                    result[z] = new double[]{all.min[z], all.max[z], mean, var, sdev, meanAbsoluteDeviation, activeCellCount,
+                            passiveCellCount};
+                } else {
+                    result[z] = new double[]{all.min[z], all.max[z], mean, var, sdev, activeCellCount, passiveCellCount};
+                }
+            }
+            return result;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static <T> List<T> run( ExecutorService executor, List<Callable<T>> tasks ) throws Exception {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if (executor == null) {
+            for( Callable<T> task : tasks ) {
+                results.add(task.call());
+            }
+            return results;
+        }
+        return ThreadedRunnable.invokeAll(executor, tasks);
+    }
+
+    private boolean isFree( int[] labels, int[] spans ) {
+        for( int i = 0; i < spans.length; i = i + 3 ) {
+            int offset = (spans[i] - minRow) * cols - minCol;
+            for( int c = spans[i + 1]; c <= spans[i + 2]; c++ ) {
+                if (labels[offset + c] != NO_ZONE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scan line rasterization of a polygon inside its envelope.
+     *
+     * @param geometry the polygon.
+     * @return the spans of cells as triplets of grid row, first and last grid column.
+     */
+    int[] rasterize( Geometry geometry ) {
+        Envelope env = geometry.getEnvelopeInternal();
+        int fromRow = Math.max(minRow, (int) Math.floor((north - env.getMaxY()) / yRes - 0.5));
+        int toRow = Math.min(minRow + rows - 1, (int) Math.ceil((north - env.getMinY()) / yRes - 0.5));
+        if (env.isNull() || fromRow > toRow) {
+            return new int[0];
+        }
+        int bandRows = toRow - fromRow + 1;
+
+        List<Coordinate[]> rings = new ArrayList<Coordinate[]>();
+        for( int i = 0; i < geometry.getNumGeometries(); i++ ) {
+            Geometry geometryN = geometry.getGeometryN(i);
+            if (geometryN instanceof Polygon) {
+                Polygon polygon = (Polygon) geometryN;
+                rings.add(polygon.getExteriorRing().getCoordinates());
+                for( int h = 0; h < polygon.getNumInteriorRing(); h++ ) {
+                    LineString hole = polygon.getInteriorRingN(h);
+                    rings.add(hole.getCoordinates());
+                }
+            }
+        }
+
+        // crossings of the row centers with the rings, bucketed by row
+        int[] rowStarts = new int[bandRows + 1];
+        for( int pass = 0; pass < 2; pass++ ) {
+            double[] crossings = pass == 0 ? null : new double[rowStarts[bandRows]];
+            int[] filled = pass == 0 ? null : new int[bandRows];
+            for( Coordinate[] ring : rings ) {
+                for( int i = 0; i < ring.length - 1; i++ ) {
+                    double x1 = ring[i].x;
+                    double y1 = ring[i].y;
+                    double x2 = ring[i + 1].x;
+                    double y2 = ring[i + 1].y;
+                    if (y1 == y2) {
+                        continue;
+                    }
+                    double minY = Math.min(y1, y2);
+                    double maxY = Math.max(y1, y2);
+                    int r1 = Math.max(fromRow, (int) Math.floor((north - maxY) / yRes - 0.5));
+                    int r2 = Math.min(toRow, (int) Math.ceil((north - minY) / yRes - 0.5));
+                    for( int r = r1; r <= r2; r++ ) {
+                        double y = north - (r + 0.5) * yRes;
+                        if ((y1 <= y) == (y2 <= y)) {
+                            continue;
+                        }
+                        int index = r - fromRow;
+                        if (pass == 0) {
+                            rowStarts[index + 1]++;
+                        } else {
+                            crossings[rowStarts[index] + filled[index]++] = x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for( int r = 0; r < bandRows; r++ ) {
+                    rowStarts[r + 1] += rowStarts[r];
+                }
+                continue;
+            }
+
+            // the cells between the pairs of crossings
+            double firstCenter = west + (minCol + 0.5) * xRes;
+            double lastCenter = west + (minCol + cols - 0.5) * xRes;
+            double delta = xRes / 4.0;
+            int[] spans = new int[rowStarts[bandRows] / 2 * 3];
+            int spansNum = 0;
+            for( int r = 0; r < bandRows; r++ ) {
+                Arrays.sort(crossings, rowStarts[r], rowStarts[r + 1]);
+                for( int i = rowStarts[r]; i < rowStarts[r + 1] - 1; i = i + 2 ) {
+                    double start = Math.max(crossings[i], firstCenter);
+                    double end = Math.min(crossings[i + 1], lastCenter);
+                    if (start >= end) {
+                        continue;
+                    }
+                    double startX = start + delta;
+                    double endX = end - delta;
+                    if (startX > endX) {
+                        double tmp = startX;
+                        startX = endX;
+                        endX = tmp;
+                    }
+                    int startCol = Math.max(minCol, (int) Math.floor((startX - west) / xRes));
+                    int endCol = Math.min(minCol + cols - 1, (int) Math.floor((endX - west) / xRes));
+                    if (startCol > endCol) {
+                        continue;
+                    }
+                    spans[spansNum++] = fromRow + r;
+                    spans[spansNum++] = startCol;
+                    spans[spansNum++] = endCol;
+                }
+            }
+            return Arrays.copyOf(spans, spansNum);
+        }
+        return new int[0];
+    }
+
+    /**
+     * Per zone accumulation of the values of a band of rows.
+     */
+    private class ZoneAccumulator {
+        final int[] count;
+        final int[] passive;
+        final double[] min;
+        final double[] max;
+        final double[] sum;
+        final double[] mean;
+        final double[] m2;
+        final double[] absDev;
+
+        ZoneAccumulator( int zonesNum ) {
+            count = new int[zonesNum];
+            passive = new int[zonesNum];
+            min = new double[zonesNum];
+            max = new double[zonesNum];
+            sum = new double[zonesNum];
+            mean = new double[zonesNum];
+            m2 = new double[zonesNum];
+            absDev = new double[zonesNum];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        }
+
+        void read( int[] labels, RandomIter iter, int fromRow, int toRow, boolean hasUserTotalMean, double userTotalMean ) {
+            for( int r = fromRow; r < toRow; r++ ) {
+                int offset = r * cols;
+                for( int c = 0; c < cols; c++ ) {
+                    int z = labels[offset + c];
+                    if (z == NO_ZONE) {
+                        continue;
+                    }
+                    double v = iter.getSampleDouble(minCol + c, minRow + r, 0);
+                    if (isNovalue(v)) {
+                        passive[z]++;
+                        continue;
+                    }
+                    min[z] = Math.min(min[z], v);
+                    max[z] = Math.max(max[z], v);
+                    // running mean and squared deviations (Welford)
+                    sum[z] = sum[z] + v;
+                    int n = ++count[z];
+                    double d = v - mean[z];
+                    mean[z] = mean[z] + d / n;
+                    m2[z] = m2[z] + d * (v - mean[z]);
+                    if (hasUserTotalMean) {
+                        absDev[z] = absDev[z] + abs(v - userTotalMean);
+                    }
+                }
+            }
+        }
+
+        void merge( ZoneAccumulator other ) {
+            for( int z = 0; z < count.length; z++ ) {
+                passive[z] = passive[z] + other.passive[z];
+                int nb = other.count[z];
+                if (nb == 0) {
+                    continue;
+                }
+                int na = count[z];
+                int n = na + nb;
+                double d = other.mean[z] - mean[z];
+                mean[z] = mean[z] + d * nb / n;
+                m2[z] = m2[z] + other.m2[z] + d * d * ((double) na * nb / n);
+                count[z] = n;
+                min[z] = Math.min(min[z], other.min[z]);
+                max[z] = Math.max(max[z], other.max[z]);
+                sum[z] = sum[z] + other.sum[z];
+                absDev[z] = absDev[z] + other.absDev[z];
+            }
+        }
+    }
+}
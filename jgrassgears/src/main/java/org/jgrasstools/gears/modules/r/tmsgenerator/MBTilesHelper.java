@@ -181,14 +181,27 @@ public class MBTilesHelper implements AutoCloseable {
     }
 
     public synchronized void addTile(int x, int y, int z, BufferedImage image, String format) throws Exception {
-        addedTiles++;
-
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ImageIO.write(image, format, baos);
-        byte[] res = baos.toByteArray();
+        addTile(x, y, z, baos.toByteArray());
+    }
+
+    /**
+     * Add an already encoded tile to the database, replacing the existing one.
+     * 
+     * <p>The y is the TMS row of the tile, as in the mbtiles specification.</p>
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @param tileBytes the encoded image.
+     * @throws Exception
+     */
+    public synchronized void addTile(int x, int y, int z, byte[] tileBytes) throws Exception {
+        addedTiles++;
 
         StringBuilder sb = new StringBuilder();
-        sb.append("INSERT INTO " + TABLE_TILES + " ");
+        sb.append("INSERT OR REPLACE INTO " + TABLE_TILES + " ");
         sb.append("(");
         sb.append(COL_TILES_ZOOM_LEVEL);
         sb.append(",");
@@ -209,11 +222,22 @@ public class MBTilesHelper implements AutoCloseable {
         String query = sb.toString();
 
         try (PreparedStatement statement = connection.prepareStatement(query)) {
-            statement.setBytes(1, res);
+            statement.setBytes(1, tileBytes);
             statement.execute();
         }
 
-        if (addedTiles % 20 == 0) {
+        if (addedTiles % 20 == 0 && !connection.getAutoCommit()) {
+            connection.commit();
+        }
+    }
+
+    /**
+     * Commit the tiles added since the last commit.
+     * 
+     * @throws SQLException
+     */
+    public synchronized void commit() throws SQLException {
+        if (!connection.getAutoCommit()) {
             connection.commit();
         }
     }
@@ -228,19 +252,35 @@ public class MBTilesHelper implements AutoCloseable {
      * @throws Exception
      */
     public BufferedImage getTile(int x, int y, int z) throws Exception {
+        byte[] imageBytes = getTileBytes(x, y, z);
+        if (imageBytes != null) {
+            boolean orig = ImageIO.getUseCache();
+            ImageIO.setUseCache(false);
+            InputStream in = new ByteArrayInputStream(imageBytes);
+            BufferedImage bufferedImage = ImageIO.read(in);
+            ImageIO.setUseCache(orig);
+            return bufferedImage;
+        }
+        return null;
+    }
+
+    /**
+     * Get the encoded image of a Tile from the database.
+     * 
+     * @param x
+     * @param y
+     * @param z
+     * @return the image bytes or <code>null</code>, if the tile is not in the database.
+     * @throws Exception
+     */
+    public synchronized byte[] getTileBytes(int x, int y, int z) throws Exception {
         try (PreparedStatement statement = connection.prepareStatement(SELECTQUERY)) {
             statement.setInt(1, z);
             statement.setInt(2, x);
             statement.setInt(3, y);
             ResultSet resultSet = statement.executeQuery();
             if (resultSet.next()) {
-                byte[] imageBytes = resultSet.getBytes(1);
-                boolean orig = ImageIO.getUseCache();
-                ImageIO.setUseCache(false);
-                InputStream in = new ByteArrayInputStream(imageBytes);
-                BufferedImage bufferedImage = ImageIO.read(in);
-                ImageIO.setUseCache(orig);
-                return bufferedImage;
+                return resultSet.getBytes(1);
             }
         }
         return null;
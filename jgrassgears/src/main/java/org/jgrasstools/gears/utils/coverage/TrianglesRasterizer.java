@@ -0,0 +1,271 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.coverage;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.floor;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
+import org.jgrasstools.gears.utils.RegionMap;
+
+/**
+ * Rasterizer of 3d triangles (a tin) to a grid.
+ *
+ * <p>Every cell whose center falls inside a triangle (borders included) gets the
+ * elevation of the triangle plane in the center. Where triangles overlap, the
+ * highest elevation is kept. Cells not covered by any triangle are set to
+ * {@link JGTConstants#doubleNovalue}.
+ *
+ * <p>Each triangle is scanned once over the cells of its bounding rows. The rows of
+ * the grid are split into strips that are processed by different threads, every
+ * strip filling only its own rows.
+ *
+ * <p>The triangles are kept as plain coordinates, 9 doubles per triangle.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TrianglesRasterizer {
+
+    private final int cols;
+    private final int rows;
+    private final double west;
+    private final double north;
+    private final double xRes;
+    private final double yRes;
+
+    private double[] triangles = new double[9 * 1024];
+    private int trianglesNum = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param regionMap the region of the grid to create.
+     */
+    public TrianglesRasterizer( RegionMap regionMap ) {
+        this(regionMap.getCols(), regionMap.getRows(), regionMap.getWest(), regionMap.getNorth(), regionMap.getXres(),
+                regionMap.getYres());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cols the columns of the grid.
+     * @param rows the rows of the grid.
+     * @param west the west bound.
+     * @param north the north bound.
+     * @param xRes the x resolution.
+     * @param yRes the y resolution.
+     */
+    public TrianglesRasterizer( int cols, int rows, double west, double north, double xRes, double yRes ) {
+        this.cols = cols;
+        this.rows = rows;
+        this.west = west;
+        this.north = north;
+        this.xRes = xRes;
+        this.yRes = yRes;
+    }
+
+    /**
+     * Add a triangle to rasterize.
+     */
+    public void addTriangle( double x0, double y0, double z0, double x1, double y1, double z1, double x2, double y2, double z2 ) {
+        int index = trianglesNum * 9;
+        if (index + 9 > triangles.length) {
+            triangles = Arrays.copyOf(triangles, 2 * triangles.length);
+        }
+        triangles[index] = x0;
+        triangles[index + 1] = y0;
+        triangles[index + 2] = z0;
+        triangles[index + 3] = x1;
+        triangles[index + 4] = y1;
+        triangles[index + 5] = z1;
+        triangles[index + 6] = x2;
+        triangles[index + 7] = y2;
+        triangles[index + 8] = z2;
+        trianglesNum++;
+    }
+
+    /**
+     * @return the number of triangles added.
+     */
+    public int getTrianglesNum() {
+        return trianglesNum;
+    }
+
+    /**
+     * Rasterize the added triangles.
+     *
+     * @param threads the threads to use.
+     * @return the values of the grid, by rows.
+     * @throws Exception
+     */
+    public double[] rasterize( int threads ) throws Exception {
+        final double[] grid = new double[cols * rows];
+        Arrays.fill(grid, JGTConstants.doubleNovalue);
+        if (rows == 0 || cols == 0) {
+            return grid;
+        }
+
+        // a few strips per thread, to balance uneven triangle densities
+        int stripsNum = threads > 1 ? min(rows, threads * 4) : 1;
+        int[] stripOfRow = new int[rows];
+        final int[] stripStartRows = new int[stripsNum + 1];
+        for( int s = 0; s < stripsNum; s++ ) {
+            stripStartRows[s] = s * rows / stripsNum;
+            stripStartRows[s + 1] = (s + 1) * rows / stripsNum;
+            Arrays.fill(stripOfRow, stripStartRows[s], stripStartRows[s + 1], s);
+        }
+
+        // bucket the triangles by the strips they touch
+        final int[] bucketStarts = new int[stripsNum + 1];
+        int[] bucketed = null;
+        int[] filled = null;
+        for( int pass = 0; pass < 2; pass++ ) {
+            if (pass == 1) {
+                for( int s = 0; s < stripsNum; s++ ) {
+                    bucketStarts[s + 1] += bucketStarts[s];
+                }
+                bucketed = new int[bucketStarts[stripsNum]];
+                filled = new int[stripsNum];
+            }
+            for( int t = 0; t < trianglesNum; t++ ) {
+                int index = t * 9;
+                double minY = min(triangles[index + 1], min(triangles[index + 4], triangles[index + 7]));
+                double maxY = max(triangles[index + 1], max(triangles[index + 4], triangles[index + 7]));
+                int fromRow = max(0, firstRow(maxY));
+                int toRow = min(rows - 1, lastRow(minY));
+                if (fromRow > toRow) {
+                    continue;
+                }
+                for( int s = stripOfRow[fromRow]; s <= stripOfRow[toRow]; s++ ) {
+                    if (pass == 0) {
+                        bucketStarts[s + 1]++;
+                    } else {
+                        bucketed[bucketStarts[s] + filled[s]++] = t;
+                    }
+                }
+            }
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(stripsNum);
+        for( int s = 0; s < stripsNum; s++ ) {
+            final int strip = s;
+            final int[] stripTriangles = bucketed;
+            tasks.add(new Callable<Object>(){
+                public Object call() throws Exception {
+                    for( int i = bucketStarts[strip]; i < bucketStarts[strip + 1]; i++ ) {
+                        fillTriangle(stripTriangles[i] * 9, stripStartRows[strip], stripStartRows[strip + 1] - 1, grid);
+                    }
+                    return null;
+                }
+            });
+        }
+        if (stripsNum == 1) {
+            tasks.get(0).call();
+            return grid;
+        }
+        ThreadedRunnable.invokeAll(tasks, min(threads, stripsNum));
+        return grid;
+    }
+
+    /**
+     * The first row whose center is not north of y.
+     */
+    private int firstRow( double y ) {
+        return (int) ceil((north - y) / yRes - 0.5);
+    }
+
+    /**
+     * The last row whose center is not south of y.
+     */
+    private int lastRow( double y ) {
+        return (int) floor((north - y) / yRes - 0.5);
+    }
+
+    private void fillTriangle( int index, int stripFromRow, int stripToRow, double[] grid ) {
+        double x0 = triangles[index];
+        double y0 = triangles[index + 1];
+        double z0 = triangles[index + 2];
+        double x1 = triangles[index + 3];
+        double y1 = triangles[index + 4];
+        double z1 = triangles[index + 5];
+        double x2 = triangles[index + 6];
+        double y2 = triangles[index + 7];
+        double z2 = triangles[index + 8];
+
+        // the plane through the vertexes, as z = z0 + a * (x - x0) + b * (y - y0)
+        double det = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+        if (det == 0) {
+            return;
+        }
+        double a = ((z1 - z0) * (y2 - y0) - (z2 - z0) * (y1 - y0)) / det;
+        double b = ((x1 - x0) * (z2 - z0) - (x2 - x0) * (z1 - z0)) / det;
+
+        double minY = min(y0, min(y1, y2));
+        double maxY = max(y0, max(y1, y2));
+        int fromRow = max(stripFromRow, firstRow(maxY));
+        int toRow = min(stripToRow, lastRow(minY));
+        double[] xy = {x0, y0, x1, y1, x2, y2, x0, y0};
+        for( int r = fromRow; r <= toRow; r++ ) {
+            double y = north - (r + 0.5) * yRes;
+            // the x range of the triangle on the row center line
+            double minX = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            for( int e = 0; e < 6; e = e + 2 ) {
+                double ax = xy[e];
+                double ay = xy[e + 1];
+                double bx = xy[e + 2];
+                double by = xy[e + 3];
+                if (y < min(ay, by) || y > max(ay, by)) {
+                    continue;
+                }
+                if (ay == by) {
+                    minX = min(minX, min(ax, bx));
+                    maxX = max(maxX, max(ax, bx));
+                } else {
+                    double x = ax + (y - ay) * (bx - ax) / (by - ay);
+                    minX = min(minX, x);
+                    maxX = max(maxX, x);
+                }
+            }
+            if (minX > maxX) {
+                continue;
+            }
+            int fromCol = max(0, (int) ceil((minX - west) / xRes - 0.5));
+            int toCol = min(cols - 1, (int) floor((maxX - west) / xRes - 0.5));
+            int offset = r * cols;
+            for( int c = fromCol; c <= toCol; c++ ) {
+                double x = west + (c + 0.5) * xRes;
+                double z = z0 + a * (x - x0) + b * (y - y0);
+                double current = grid[offset + c];
+                if (JGTConstants.isNovalue(current) || z > current) {
+                    grid[offset + c] = z;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.math.interpolation;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of the systems solved for neighbourhoods of points.
+ *
+ * <p>Neighbouring interpolated points often have the same set of neighbours,
+ * which gives the same system to solve. The neighbourhoods are identified by
+ * the sorted indexes of their points.</p>
+ *
+ * <p>The cache is not thread safe, every worker is supposed to use its own.</p>
+ *
+ * @param <V> the type of the solved systems.
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class NeighbourhoodsCache<V> {
+
+    private final LinkedHashMap<NeighboursKey, V> solvedSystems;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize the number of neighbourhoods kept.
+     */
+    public NeighbourhoodsCache( final int maxSize ) {
+        solvedSystems = new LinkedHashMap<NeighboursKey, V>(16, 0.75f, true){
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry( Map.Entry<NeighboursKey, V> eldest ) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the system of a neighbourhood.
+     *
+     * @param indexes the sorted indexes of the points of the neighbourhood.
+     * @return the solved system or <code>null</code>, if it is not cached.
+     */
+    public V get( int[] indexes ) {
+        return solvedSystems.get(new NeighboursKey(indexes));
+    }
+
+    /**
+     * Add the system of a neighbourhood, evicting the least recently used one if the cache is full.
+     *
+     * @param indexes the sorted indexes of the points of the neighbourhood. The array
+     *          is kept, so it must not be modified afterwards.
+     * @param system the solved system.
+     */
+    public void put( int[] indexes, V system ) {
+        solvedSystems.put(new NeighboursKey(indexes), system);
+    }
+
+    /**
+     * @return the number of cached neighbourhoods.
+     */
+    public int size() {
+        return solvedSystems.size();
+    }
+
+    /**
+     * The sorted indexes of the points of a neighbourhood.
+     */
+    private static class NeighboursKey {
+        private final int[] indexes;
+        private final int hash;
+
+        NeighboursKey( int[] indexes ) {
+            this.indexes = indexes;
+            hash = Arrays.hashCode(indexes);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals( Object obj ) {
+            if (!(obj instanceof NeighboursKey)) {
+                return false;
+            }
+            return Arrays.equals(indexes, ((NeighboursKey) obj).indexes);
+        }
+    }
+}
@@ -129,6 +129,117 @@ public class LinearSystem extends SquareMatrix
         return x;
     }
 
+    /**
+     * Decompose the matrix now instead of on the first solve.
+     * Once decomposed, the solve methods only read LU and can be
+     * called by several threads at the same time.
+     * @throws matrix.MatrixException for a zero row or
+     *                                a singular matrix
+     */
+    public void factorize() throws MatrixException
+    {
+        decompose();
+    }
+
+    /**
+     * Solve Ax = b for x into an existing array, without allocating
+     * vectors.  The decomposition is reused for every right-hand side.
+     * @param b the right-hand-side values
+     * @param x the array for the solution, must not be b
+     * @param residuals a work array to improve the solution,
+     *                  null to not improve it
+     * @param correction a work array to improve the solution
+     * @throws matrix.MatrixException if an error occurred
+     */
+    public void solve(double b[], double x[], double residuals[],
+                      double correction[])
+        throws MatrixException
+    {
+        // Validate the sizes.
+        if (b.length != nRows || x.length != nRows) {
+            throw new MatrixException(
+                                MatrixException.INVALID_DIMENSIONS);
+        }
+
+        decompose();
+        substitute(b, x);
+
+        if (residuals == null) return;
+
+        // Find the largest x element.
+        double largestX = 0;
+        for (int r = 0; r < nRows; ++r) {
+            double absX = Math.abs(x[r]);
+            if (largestX < absX) largestX = absX;
+        }
+
+        // Is x already as good as possible?
+        if (largestX == 0) return;
+
+        // Iterate to improve x, as improve() does.
+        for (int iter = 0; iter < MAX_ITER; ++iter) {
+
+            // Compute residuals = b - Ax.
+            for (int r = 0; r < nRows; ++r) {
+                double dot   = 0;
+                double row[] = values[r];
+                for (int c = 0; c < nRows; ++c) {
+                    dot += row[c]*x[c];
+                }
+                residuals[r] = b[r] - dot;
+            }
+
+            // Solve Az = residuals for z.
+            substitute(residuals, correction);
+
+            // Set x = x + z.
+            // Find largest the largest difference.
+            double largestDiff = 0;
+            for (int r = 0; r < nRows; ++r) {
+                x[r] += correction[r];
+
+                double diff = Math.abs(correction[r]);
+                if (largestDiff < diff) largestDiff = diff;
+            }
+
+            // Is any further improvement possible?
+            if (largestDiff < largestX*TOLERANCE) return;
+        }
+
+        // Failed to converge because A is nearly singular.
+        throw new MatrixException(MatrixException.NO_CONVERGENCE);
+    }
+
+    /**
+     * Solve LUx = b for x by forward and back substitution in place.
+     * @param b the right-hand-side values
+     * @param x the array for the solution
+     */
+    private void substitute(double b[], double x[])
+    {
+        double lu[][] = LU.values;
+
+        // Solve Ly = b for y by forward substitution, y is kept in x.
+        for (int r = 0; r < nRows; ++r) {
+            double row[] = lu[permutation[r]];
+            double dot   = 0;
+            for (int c = 0; c < r; ++c) {
+                dot += row[c]*x[c];
+            }
+            x[r] = b[permutation[r]] - dot;
+        }
+
+        // Solve Ux = y for x by back substitution.
+        for (int r = nRows - 1; r >= 0; --r) {
+            double row[] = lu[permutation[r]];
+            double dot   = 0;
+            for (int c = r+1; c < nRows; ++c) {
+                dot += row[c]*x[c];
+            }
+            x[r] = (x[r] - dot)/row[r];
+        }
+    }
+
     /**
      * Compute the upper triangular matrix U and lower triangular
      * matrix L such that A = L*U.  Store L and U together in
@@ -27,6 +27,9 @@ public interface IPSFunction {
     /**
      * Evaluates the value of the fitting function and returns representing scalar.
      * 
+     * <p>If the {@link PSEngine} has an executor set, this is called concurrently
+     * for the particles of an iteration.
+     * 
      * @param iterationStep the iterationstep to monitor the process.
      * @param particleNum the particle number to monitor the process.
      * @param parameters the parameters to be used in the function.
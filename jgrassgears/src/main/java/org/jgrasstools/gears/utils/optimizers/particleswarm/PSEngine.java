@@ -17,10 +17,17 @@
  */
 package org.jgrasstools.gears.utils.optimizers.particleswarm;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
 import org.jgrasstools.gears.utils.math.NumericsUtilities;
 
 /**
@@ -29,6 +36,15 @@ import org.jgrasstools.gears.utils.math.NumericsUtilities;
  * <p>http://www.borgelt.net/psopt.html
  * <p>Biblio: http://ncra.ucd.ie/COMP30290/crc2006/Olapeju_Ayoola_03304281.pdf ?</p>
  * 
+ * <p>By default the particles are moved and evaluated one after the other, each one
+ * already following the global best found by the previous ones. If an 
+ * {@link #setExecutor(ExecutorService) executor} is set, all the particles of an 
+ * iteration are moved towards the global best of the previous iteration and then 
+ * evaluated concurrently. In that case the {@link IPSFunction} has to be thread safe.
+ * 
+ * <p>For expensive functions the evaluations can be 
+ * {@link #setEvaluationCache(int) cached} on the parameter values.
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class PSEngine {
@@ -47,6 +63,9 @@ public class PSEngine {
     private Random rand;
     private double[][] ranges;
     private String prefix;
+    private ExecutorService executor;
+    private Map<ParametersKey, Double> evaluationCache;
+    private Long seed;
 
     /**
      * Constructor.
@@ -84,6 +103,52 @@ public class PSEngine {
         this.ranges = ranges;
     }
 
+    /**
+     * Set the executor used to evaluate the particles of an iteration concurrently.
+     * 
+     * <p>The executor is not shut down by the engine.
+     * 
+     * @param executor the executor or <code>null</code> to evaluate the particles sequentially.
+     */
+    public void setExecutor( ExecutorService executor ) {
+        this.executor = executor;
+    }
+
+    /**
+     * Set the seed of the random numbers, for reproducible runs.
+     * 
+     * <p>The particles are then placed and moved with the random numbers of the engine.
+     * 
+     * @param seed the seed.
+     */
+    public void setSeed( long seed ) {
+        this.seed = seed;
+    }
+
+    /**
+     * Enable the cache of the evaluations, keyed on the parameter values.
+     * 
+     * <p>Only for functions that give the same value for the same parameters,
+     * since a cached value is not evaluated again.
+     * 
+     * @param maxSize the maximum number of evaluations kept, the least recently 
+     *          used are dropped. If <code>0</code>, the cache is disabled.
+     */
+    public void setEvaluationCache( final int maxSize ) {
+        if (maxSize <= 0) {
+            evaluationCache = null;
+            return;
+        }
+        evaluationCache = new LinkedHashMap<ParametersKey, Double>(16, 0.75f, true){
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<ParametersKey, Double> eldest ) {
+                return size() > maxSize;
+            }
+        };
+    }
+
     /**
      * Run the particle swarm engine.
      * @throws Exception 
@@ -138,14 +203,19 @@ public class PSEngine {
     }
 
     private void createSwarm() throws Exception {
-        rand = new Random();
+        rand = seed != null ? new Random(seed) : new Random();
         iterationStep = 0;
         globalBest = function.getInitialGlobalBest();
         swarm = new Particle[particlesNum];
+        double[][] locations = new double[particlesNum][];
+        for( int j = 0; j < swarm.length; j++ ) {
+            swarm[j] = seed != null ? new Particle(ranges, rand) : new Particle(ranges);
+            locations[j] = swarm[j].getInitialLocations();
+        }
+        double[] evaluations = evaluate(locations);
         for( int j = 0; j < swarm.length; j++ ) {
-            swarm[j] = new Particle(ranges);
-            double[] currentLocations = swarm[j].getInitialLocations();
-            double evaluated = function.evaluate(iterationStep, j, currentLocations, ranges);
+            double[] currentLocations = locations[j];
+            double evaluated = evaluations[j];
             swarm[j].setParticleBestFunction(evaluated);
             /* find globally best function value */
             if (function.isBetter(evaluated, globalBest)) {
@@ -174,6 +244,10 @@ public class PSEngine {
          */
         double w = initDecelerationFactor * Math.pow(iterationStep, -decayFactor);
         // System.out.println("W = " + w);
+        if (executor != null) {
+            updateSwarmConcurrently(w);
+            return;
+        }
         /* traverse the particles */
         for( int i = 0; i < swarm.length; i++ ) {
             Particle particle = this.swarm[i];
@@ -181,7 +255,7 @@ public class PSEngine {
                     rand.nextDouble(), globalBestLocations);
             double evaluated;
             if (currentLocations != null) {
-                evaluated = function.evaluate(iterationStep, i, currentLocations, ranges);
+                evaluated = evaluate(i, currentLocations);
             } else {
                 // parameters were outside, ignore and try next round with new position
                 continue;
@@ -201,6 +275,120 @@ public class PSEngine {
         }
     }
 
+    /**
+     * Move all the particles towards the global best of the previous iteration
+     * and evaluate them concurrently.
+     */
+    private void updateSwarmConcurrently( double w ) throws Exception {
+        double[][] locations = new double[swarm.length][];
+        for( int i = 0; i < swarm.length; i++ ) {
+            locations[i] = swarm[i].update(w, accelerationFactorLocal, rand.nextDouble(), accelerationFactorGlobal,
+                    rand.nextDouble(), globalBestLocations);
+        }
+        double[] evaluations = evaluate(locations);
+        // the bests are updated in particle order, the result does not depend on the threads
+        for( int i = 0; i < swarm.length; i++ ) {
+            double[] currentLocations = locations[i];
+            if (currentLocations == null) {
+                continue;
+            }
+            Particle particle = swarm[i];
+            double evaluated = evaluations[i];
+            if (function.isBetter(evaluated, particle.getParticleBestFunction())) {
+                particle.setParticleBestFunction(evaluated);
+                particle.setParticleLocalBeststoCurrent();
+            }
+            if (function.isBetter(evaluated, globalBest)) {
+                globalBest = evaluated;
+                for( int j = 0; j < currentLocations.length; j++ ) {
+                    globalBestLocations[j] = currentLocations[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluate the locations of the particles, concurrently if an executor is set.
+     * 
+     * @param locations the locations of every particle, <code>null</code> ones are skipped.
+     * @return the evaluations, NaN for the skipped particles.
+     */
+    private double[] evaluate( final double[][] locations ) throws Exception {
+        double[] evaluations = new double[locations.length];
+        Arrays.fill(evaluations, Double.NaN);
+        if (executor == null) {
+            for( int i = 0; i < locations.length; i++ ) {
+                if (locations[i] != null) {
+                    evaluations[i] = evaluate(i, locations[i]);
+                }
+            }
+            return evaluations;
+        }
+
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        for( int i = 0; i < locations.length; i++ ) {
+            if (locations[i] == null) {
+                continue;
+            }
+            final int particleNum = i;
+            tasks.add(new Callable<Double>(){
+                public Double call() throws Exception {
+                    return evaluate(particleNum, locations[particleNum]);
+                }
+            });
+            indexes.add(i);
+        }
+        List<Double> results = ThreadedRunnable.invokeAll(executor, tasks);
+        for( int i = 0; i < results.size(); i++ ) {
+            evaluations[indexes.get(i)] = results.get(i);
+        }
+        return evaluations;
+    }
+
+    private double evaluate( int particleNum, double[] locations ) throws Exception {
+        ParametersKey key = null;
+        if (evaluationCache != null) {
+            key = new ParametersKey(locations);
+            synchronized (evaluationCache) {
+                Double cached = evaluationCache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+        double evaluated = function.evaluate(iterationStep, particleNum, locations, ranges);
+        if (key != null) {
+            synchronized (evaluationCache) {
+                evaluationCache.put(key, evaluated);
+            }
+        }
+        return evaluated;
+    }
+
+    /**
+     * Parameter values used as key of the evaluation cache.
+     */
+    private static class ParametersKey {
+        private final double[] parameters;
+        private final int hash;
+
+        ParametersKey( double[] parameters ) {
+            this.parameters = parameters.clone();
+            this.hash = Arrays.hashCode(this.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            return obj instanceof ParametersKey && Arrays.equals(parameters, ((ParametersKey) obj).parameters);
+        }
+    }
+
     /**
      * Checks if the parameters are in the ranges.
      * 
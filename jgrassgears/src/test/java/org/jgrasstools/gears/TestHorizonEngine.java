@@ -0,0 +1,57 @@
+package org.jgrasstools.gears;
+
+import org.jgrasstools.gears.libs.modules.HorizonEngine;
+import org.jgrasstools.gears.libs.modules.ModelsEngine;
+import org.jgrasstools.gears.utils.HMTestCase;
+
+/**
+ * Test the {@link HorizonEngine}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestHorizonEngine extends HMTestCase {
+
+    public void testShadowsMatchRayMarching() throws Exception {
+        int cols = 60;
+        int rows = 40;
+        double res = 10;
+        double[] dem = new double[cols * rows];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                dem[r * cols + c] = 200 * Math.sin(c / 9.0) * Math.cos(r / 7.0) + (c * 7 + r * 3) % 5;
+            }
+        }
+
+        int sectors = 16;
+        HorizonEngine horizonEngine = new HorizonEngine(dem, cols, rows, res, sectors);
+        horizonEngine.setThreads(3);
+        horizonEngine.compute();
+
+        double[] tracedShadow = new double[cols * rows];
+        double[] lookupShadow = new double[cols * rows];
+        for( int s = 0; s < sectors; s++ ) {
+            double azimuth = horizonEngine.getSectorAzimuth(s);
+            for( double elevation : new double[]{0.1, 0.4, 0.8} ) {
+                double[] sunVector = new double[]{Math.sin(azimuth) * Math.cos(elevation),
+                        -Math.cos(azimuth) * Math.cos(elevation), Math.sin(elevation)};
+                ModelsEngine.calculateFactor(rows, cols, sunVector, ModelsEngine.calcInverseSunVector(sunVector),
+                        ModelsEngine.calcNormalSunVector(sunVector), dem, res, tracedShadow);
+                horizonEngine.fillShadowMap(sunVector, lookupShadow);
+                for( int i = 0; i < tracedShadow.length; i++ ) {
+                    assertEquals(tracedShadow[i], lookupShadow[i], 0.0);
+                }
+            }
+        }
+    }
+
+    public void testFlatSkyView() throws Exception {
+        int cols = 10;
+        int rows = 10;
+        double[] dem = new double[cols * rows];
+        HorizonEngine horizonEngine = new HorizonEngine(dem, cols, rows, 1, 8);
+        horizonEngine.compute();
+        assertEquals(1.0, horizonEngine.getSkyViewFactor(5, 5), 1E-9);
+        assertEquals(0.0, horizonEngine.getHorizonAngle(5, 5, 1.0), 1E-9);
+    }
+
+}
@@ -1,15 +1,20 @@
 package org.jgrasstools.gears;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import org.jgrasstools.gears.modules.r.interpolation2d.core.PointsKdTree;
+import org.jgrasstools.gears.modules.r.interpolation2d.core.TPSInterpolator;
 import org.jgrasstools.gears.utils.HMTestCase;
 import org.jgrasstools.gears.utils.math.interpolation.Interpolator;
 import org.jgrasstools.gears.utils.math.interpolation.LeastSquaresInterpolator;
 import org.jgrasstools.gears.utils.math.interpolation.LinearArrayInterpolator;
 import org.jgrasstools.gears.utils.math.interpolation.LinearListInterpolator;
 import org.jgrasstools.gears.utils.math.interpolation.PolynomialInterpolator;
+
+import com.vividsolutions.jts.geom.Coordinate;
 /**
  * Test interpolation.
  * 
@@ -139,4 +144,58 @@ public class TestInterpolators extends HMTestCase {
         assertEquals(0.31888318, interp.getA0(), 0.0001);
     }
 
+    public void testKdTreeNearest() throws Exception {
+        int n = 500;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for( int i = 0; i < n; i++ ) {
+            // duplicated positions included
+            xs[i] = (i * 37) % 101;
+            ys[i] = (i * 53) % 89;
+        }
+        PointsKdTree kdTree = new PointsKdTree(xs, ys);
+
+        int k = 12;
+        int[] neighbours = new int[k];
+        double[] distances2 = new double[k];
+        for( double qx = -10; qx < 110; qx = qx + 7.3 ) {
+            for( double qy = -10; qy < 100; qy = qy + 5.9 ) {
+                double maxDistance = 15;
+                int count = kdTree.nearest(qx, qy, k, maxDistance, neighbours, distances2);
+
+                double[] all = new double[n];
+                int inRange = 0;
+                for( int i = 0; i < n; i++ ) {
+                    double d2 = (xs[i] - qx) * (xs[i] - qx) + (ys[i] - qy) * (ys[i] - qy);
+                    if (d2 <= maxDistance * maxDistance) {
+                        all[inRange++] = d2;
+                    }
+                }
+                Arrays.sort(all, 0, inRange);
+                assertEquals(Math.min(k, inRange), count);
+
+                double[] found = Arrays.copyOf(distances2, count);
+                Arrays.sort(found);
+                for( int i = 0; i < count; i++ ) {
+                    assertEquals(all[i], found[i], DELTA);
+                }
+            }
+        }
+    }
+
+    public void testTpsCoefficientsReuse() throws Exception {
+        Coordinate[] controlPoints = new Coordinate[]{new Coordinate(0, 0, 1), new Coordinate(10, 0, 3),
+                new Coordinate(0, 10, 2), new Coordinate(10, 10, 7), new Coordinate(4, 6, 4)};
+        TPSInterpolator interpolator = new TPSInterpolator(20);
+        double[] coefficients = interpolator.getCoefficients(controlPoints);
+        assertNotNull(coefficients);
+
+        // the spline passes through the control points
+        for( Coordinate point : controlPoints ) {
+            assertEquals(point.z, interpolator.getValue(controlPoints, coefficients, point.x, point.y), 1E-6);
+        }
+        double value = interpolator.getValue(controlPoints, new Coordinate(3, 2));
+        assertEquals(value, interpolator.getValue(controlPoints, coefficients, 3, 2), DELTA);
+    }
+
 }
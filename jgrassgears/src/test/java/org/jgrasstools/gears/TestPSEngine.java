@@ -0,0 +1,134 @@
+package org.jgrasstools.gears;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.optimizers.particleswarm.IPSFunction;
+import org.jgrasstools.gears.utils.optimizers.particleswarm.PSEngine;
+
+/**
+ * Test the {@link PSEngine}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestPSEngine extends HMTestCase {
+
+    public void testConcurrentSwarm() throws Exception {
+        ParaboloidFunction function = new ParaboloidFunction();
+        PSEngine engine = new PSEngine(20, 200, 1.5, 1.5, 0.9, 0.2, function, "test");
+        engine.initializeRanges(new double[]{-5, 5}, new double[]{-5, 5});
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            engine.setExecutor(executor);
+            engine.setEvaluationCache(1000);
+            engine.run();
+        } finally {
+            executor.shutdown();
+        }
+
+        double[] solution = engine.getSolution();
+        assertEquals(1.0, solution[0], 0.05);
+        assertEquals(2.0, solution[1], 0.05);
+        assertEquals(function.optimization(solution), engine.getSolutionFittingValue(), 1E-12);
+        assertTrue(function.evaluations.get() > 20);
+    }
+
+    public void testSameSeedSameSwarm() throws Exception {
+        ParaboloidFunction function = new ParaboloidFunction();
+        PSEngine single = run(function, Executors.newSingleThreadExecutor(), 0);
+        int evaluations = function.evaluations.get();
+
+        // the thread count does not change the result
+        for( int threads : new int[]{2, 4} ) {
+            function = new ParaboloidFunction();
+            PSEngine concurrent = run(function, Executors.newFixedThreadPool(threads), 0);
+            assertTrue(Arrays.equals(single.getSolution(), concurrent.getSolution()));
+            assertEquals(single.getSolutionFittingValue(), concurrent.getSolutionFittingValue(), 0.0);
+            assertEquals(evaluations, function.evaluations.get());
+        }
+
+        // and the sequential run is reproducible too
+        function = new ParaboloidFunction();
+        PSEngine sequential = run(function, null, 0);
+        PSEngine again = run(new ParaboloidFunction(), null, 0);
+        assertTrue(Arrays.equals(sequential.getSolution(), again.getSolution()));
+        assertEquals(sequential.getSolutionFittingValue(), again.getSolutionFittingValue(), 0.0);
+    }
+
+    public void testCacheHitsSkipEvaluation() throws Exception {
+        ParaboloidFunction function = new ParaboloidFunction();
+        PSEngine uncached = run(function, Executors.newSingleThreadExecutor(), 0);
+        int evaluations = function.evaluations.get();
+        int distinct = new HashSet<List<Double>>(function.evaluated).size();
+        // the particle in the global best does not move in the first iteration
+        assertTrue(distinct < evaluations);
+
+        function = new ParaboloidFunction();
+        PSEngine cached = run(function, Executors.newSingleThreadExecutor(), evaluations);
+        // every location is evaluated once, the cached values give the same swarm
+        assertEquals(distinct, function.evaluations.get());
+        assertEquals(distinct, new HashSet<List<Double>>(function.evaluated).size());
+        assertTrue(Arrays.equals(uncached.getSolution(), cached.getSolution()));
+        assertEquals(uncached.getSolutionFittingValue(), cached.getSolutionFittingValue(), 0.0);
+    }
+
+    private PSEngine run( IPSFunction function, ExecutorService executor, int cacheSize ) throws Exception {
+        PSEngine engine = new PSEngine(10, 30, 1.5, 1.5, 0.9, 0.2, function, "test");
+        engine.initializeRanges(new double[]{-5, 5}, new double[]{-5, 5});
+        engine.setSeed(42);
+        engine.setEvaluationCache(cacheSize);
+        try {
+            engine.setExecutor(executor);
+            engine.run();
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        return engine;
+    }
+
+    private static class ParaboloidFunction implements IPSFunction {
+        private AtomicInteger evaluations = new AtomicInteger();
+        private List<List<Double>> evaluated = Collections.synchronizedList(new ArrayList<List<Double>>());
+
+        public double evaluate( int iterationStep, int particleNum, double[] parameters, double[]... ranges ) throws Exception {
+            evaluations.incrementAndGet();
+            evaluated.add(Arrays.asList(parameters[0], parameters[1]));
+            return optimization(parameters);
+        }
+
+        public double optimization( double... parameters ) {
+            double dx = parameters[0] - 1.0;
+            double dy = parameters[1] - 2.0;
+            return dx * dx + dy * dy;
+        }
+
+        public String optimizationDescription() {
+            return "paraboloid";
+        }
+
+        public boolean isBetter( double evaluatedValue, double consideredBest ) {
+            return evaluatedValue < consideredBest;
+        }
+
+        public boolean hasConverged( double globalBest, double[] globalBestLocations, double[] previousBestLocations ) {
+            return globalBest < 1E-8;
+        }
+
+        public double getInitialGlobalBest() {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        public String getPostInfoString() {
+            return null;
+        }
+    }
+}
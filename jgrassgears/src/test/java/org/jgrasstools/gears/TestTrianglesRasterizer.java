@@ -0,0 +1,39 @@
+package org.jgrasstools.gears;
+
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.coverage.TrianglesRasterizer;
+
+/**
+ * Test the {@link TrianglesRasterizer}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestTrianglesRasterizer extends HMTestCase {
+
+    public void testPlane() throws Exception {
+        // 10x8 cells of 1 unit, the plane z = x + 2y on the left half
+        TrianglesRasterizer rasterizer = new TrianglesRasterizer(10, 8, 0, 8, 1, 1);
+        rasterizer.addTriangle(0, 0, 0, 5, 0, 5, 5, 8, 21);
+        rasterizer.addTriangle(0, 0, 0, 5, 8, 21, 0, 8, 16);
+        // a lower triangle under the plane, it must not show
+        rasterizer.addTriangle(0, 0, -10, 5, 0, -10, 0, 8, -10);
+
+        for( int threads = 1; threads <= 4; threads++ ) {
+            double[] grid = rasterizer.rasterize(threads);
+            for( int r = 0; r < 8; r++ ) {
+                double y = 8 - (r + 0.5);
+                for( int c = 0; c < 10; c++ ) {
+                    double x = c + 0.5;
+                    double value = grid[r * 10 + c];
+                    if (x < 5) {
+                        assertEquals(x + 2 * y, value, DELTA);
+                    } else {
+                        assertTrue(JGTConstants.isNovalue(value));
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.jgrasstools.gears.io.las;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.index.LasIndexer;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Test the concurrent queries of a las folder with more files than the ones kept open.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestLasFolderIndexDataManager extends HMTestCase {
+
+    private static final int FILES_NUM = LasFolderIndexDataManager.MAX_OPEN_FILES + 8;
+    private static final int QUERIES_SPLIT = 4;
+    private static final int THREADS = 4;
+    private static final int READER_POOL_SIZE = 2;
+
+    private File folder;
+    private File indexFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = File.createTempFile("jgt-lasfolder", "");
+        folder.delete();
+        folder.mkdirs();
+
+        // the copies overlap, so that every query touches all of them
+        for( int i = 0; i < FILES_NUM; i++ ) {
+            for( String extension : new String[]{".las", ".prj"} ) {
+                URL url = this.getClass().getClassLoader().getResource("las/1.2-with-color" + extension);
+                FileUtilities.copyFile(new File(url.toURI()), new File(folder, "copy_" + i + extension));
+            }
+        }
+        LasIndexer indexer = new LasIndexer();
+        indexer.pm = pm;
+        indexer.inFolder = folder.getAbsolutePath();
+        indexer.pCellsize = 500;
+        indexer.process();
+        indexFile = new File(folder, LasIndexer.INDEX_LASFOLDER);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtilities.deleteFileOrDir(folder);
+    }
+
+    public void testConcurrentQueriesMatchSerialOnes() throws Exception {
+        List<Geometry> queries = new ArrayList<Geometry>();
+        List<List<LasRecord>> expected = new ArrayList<List<LasRecord>>();
+        try (LasFolderIndexDataManager dataManager = createDataManager()) {
+            ReferencedEnvelope bounds = dataManager.getOverallEnvelope();
+            double width = bounds.getWidth() / QUERIES_SPLIT;
+            double height = bounds.getHeight() / QUERIES_SPLIT;
+            for( int c = 0; c < QUERIES_SPLIT; c++ ) {
+                for( int r = 0; r < QUERIES_SPLIT; r++ ) {
+                    double x = bounds.getMinX() + c * width;
+                    double y = bounds.getMinY() + r * height;
+                    Envelope envelope = new Envelope(x, x + width, y, y + height);
+                    queries.add(GeometryUtilities.gf().toGeometry(envelope));
+                }
+            }
+            for( Geometry query : queries ) {
+                expected.add(dataManager.getPointsInGeometry(query, false));
+            }
+            // a single reader is kept for every open file
+            assertTrue(dataManager.getOpenReadersCount() <= LasFolderIndexDataManager.MAX_OPEN_FILES);
+        }
+
+        final LasFolderIndexDataManager dataManager = createDataManager();
+        try {
+            dataManager.setReaderPoolSize(READER_POOL_SIZE);
+            List<Callable<List<LasRecord>>> tasks = new ArrayList<Callable<List<LasRecord>>>();
+            // every query is run several times, so that the same files are queried concurrently
+            for( int i = 0; i < THREADS; i++ ) {
+                for( final Geometry query : queries ) {
+                    tasks.add(new Callable<List<LasRecord>>(){
+                        public List<LasRecord> call() throws Exception {
+                            return dataManager.getPointsInGeometry(query, false);
+                        }
+                    });
+                }
+            }
+            List<List<LasRecord>> results = ThreadedRunnable.invokeAll(tasks, THREADS);
+
+            int pointsCount = 0;
+            for( int i = 0; i < results.size(); i++ ) {
+                List<LasRecord> expectedPoints = expected.get(i % queries.size());
+                List<LasRecord> actualPoints = results.get(i);
+                assertEquals(expectedPoints.size(), actualPoints.size());
+                for( int j = 0; j < expectedPoints.size(); j++ ) {
+                    LasRecord expectedPoint = expectedPoints.get(j);
+                    LasRecord actualPoint = actualPoints.get(j);
+                    assertEquals(expectedPoint.x, actualPoint.x, DELTA);
+                    assertEquals(expectedPoint.y, actualPoint.y, DELTA);
+                    assertEquals(expectedPoint.z, actualPoint.z, DELTA);
+                    assertEquals(expectedPoint.intensity, actualPoint.intensity);
+                    assertEquals(expectedPoint.gpsTime, actualPoint.gpsTime, DELTA);
+                }
+                pointsCount += actualPoints.size();
+            }
+            // the points of all the copies, once per run
+            assertTrue(pointsCount > THREADS * FILES_NUM * 1000);
+
+            // the readers of the evicted files have been closed once released
+            int openReaders = dataManager.getOpenReadersCount();
+            assertTrue(openReaders > 0);
+            assertTrue(openReaders <= LasFolderIndexDataManager.MAX_OPEN_FILES * READER_POOL_SIZE);
+        } finally {
+            dataManager.close();
+        }
+        assertEquals(0, dataManager.getOpenReadersCount());
+    }
+
+    private LasFolderIndexDataManager createDataManager() throws Exception {
+        LasFolderIndexDataManager dataManager = (LasFolderIndexDataManager) ALasDataManager.getDataManager(indexFile, null,
+                0.0, null);
+        dataManager.open();
+        return dataManager;
+    }
+}
@@ -2,11 +2,14 @@ package org.jgrasstools.gears.modules;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.List;
 
+import org.jgrasstools.gears.io.disktree.DiskTreeReader;
+import org.jgrasstools.gears.io.disktree.DiskTreeWriter;
 import org.jgrasstools.gears.io.disktree.IDiskTree;
 import org.jgrasstools.gears.utils.HMTestCase;
 
@@ -151,6 +154,80 @@ public class TestDiskTreeIO extends HMTestCase {
 
     }
 
+    public void testDiskTreeDefaultVersion() throws Exception {
+        Geometry point = new WKTReader().read("POINT (130 120)");
+        File file = File.createTempFile("jgt-disktree", ".bin");
+        try {
+            DiskTreeWriter writer = new DiskTreeWriter(file.getAbsolutePath());
+            writer.writeGeometries(new Geometry[]{point});
+
+            DiskTreeReader reader = new DiskTreeReader(file.getAbsolutePath());
+            try {
+                // version 1 stays the default, readable by older readers
+                assertEquals(1, reader.getVersion());
+                List<Geometry> result = reader.queryGeometries(point.getEnvelopeInternal());
+                assertEquals(1, result.size());
+                assertTrue(result.get(0).equalsExact(point));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testDiskTreeVersions() throws Exception {
+        WKTReader r = new WKTReader();
+        Geometry pol = r.read("POLYGON ((210 350, 230 310, 290 350, 290 350, 210 350))");
+        pol.setUserData("pol");
+        Geometry line = r.read("LINESTRING (50 380 1, 90 210 2, 180 160 3, 240 40 4, 240 40 5)");
+        line.setUserData(new Integer(2));
+        Geometry point = r.read("POINT (130 120)");
+        point.setUserData(new Double(3.5));
+        Geometry[] geoms = {pol, line, point};
+
+        for( int version = 1; version <= 2; version++ ) {
+            File file = File.createTempFile("jgt-disktree", ".bin");
+            try {
+                DiskTreeWriter writer = new DiskTreeWriter(file.getAbsolutePath());
+                writer.setVersion(version);
+                writer.writeGeometries(geoms);
+
+                DiskTreeReader reader = new DiskTreeReader(file.getAbsolutePath());
+                try {
+                    assertEquals(version, reader.getVersion());
+
+                    List<Geometry> result = reader.queryGeometries(pol.getEnvelopeInternal());
+                    assertEquals(2, result.size());
+                    // geometries come in file order
+                    assertTrue(result.get(0).equalsExact(pol));
+                    assertEquals("pol", result.get(0).getUserData());
+                    assertTrue(result.get(1).equalsExact(line));
+                    assertEquals(new Integer(2), result.get(1).getUserData());
+                    assertEquals(3.0, result.get(1).getCoordinates()[2].z, DELTA);
+
+                    result = reader.queryGeometries(new Envelope(0, 1000, 0, 1000));
+                    assertEquals(3, result.size());
+                    assertEquals(new Double(3.5), result.get(2).getUserData());
+
+                    assertEquals(0, reader.queryGeometries(new Envelope(1000, 1001, 1000, 1001)).size());
+
+                    List queryAll = reader.readIndex().query(point.getEnvelopeInternal());
+                    assertEquals(2, queryAll.size());
+                    for( Object object : queryAll ) {
+                        long[] posSize = (long[]) object;
+                        Geometry geometry = reader.pickGeometry(posSize[0], posSize[1]);
+                        assertNotNull(geometry.getUserData());
+                    }
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
     private static byte[] serialize( Object obj ) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutputStream out = new ObjectOutputStream(bos);
@@ -19,13 +19,22 @@ package org.jgrasstools.gears.modules;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
+import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.jgrasstools.gears.io.las.ALasDataManager;
 import org.jgrasstools.gears.io.las.core.ALasWriter;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.io.las.core.liblas.LiblasHeader;
 import org.jgrasstools.gears.io.las.core.liblas.LiblasJNALibrary;
@@ -34,10 +43,19 @@ import org.jgrasstools.gears.io.las.core.liblas.LiblasWrapper;
 import org.jgrasstools.gears.io.las.core.liblas.LiblasWriter;
 import org.jgrasstools.gears.io.las.core.v_1_0.LasReaderBuffered;
 import org.jgrasstools.gears.io.las.core.v_1_0.LasReaderEachPoint;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasReaderMapped;
 import org.jgrasstools.gears.io.las.core.v_1_0.LasWriterBuffered;
 import org.jgrasstools.gears.io.las.core.v_1_0.LasWriterEachPoint;
 import org.jgrasstools.gears.io.las.utils.LasUtils;
+import org.jgrasstools.gears.utils.CrsUtilities;
 import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.RegionMap;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
 @SuppressWarnings("nls")
 public class TestLasIO extends HMTestCase {
 
@@ -120,6 +138,201 @@ public class TestLasIO extends HMTestCase {
 
     }
 
+    public void testLasMappedReader() throws Exception {
+        String[] names = {"las/1.0_0.las", "las/1.0_1.las", "las/1.1_0.las", "las/1.1_1.las", "las/1.2_0.las",
+                "las/1.2_1.las", "las/1.2_2.las", "las/1.2_3.las", "las/1.2-with-color.las"};
+        for( String name : names ) {
+            File lasFile = fileFromName(name);
+            try (LasReaderBuffered lasReaderBuffered = new LasReaderBuffered(lasFile, null);
+                    LasReaderMapped lasReaderMapped = new LasReaderMapped(lasFile, null);) {
+                lasReaderBuffered.open();
+                lasReaderMapped.open();
+                ILasHeader header = lasReaderBuffered.getHeader();
+                checkHeader(header, lasReaderMapped.getHeader());
+                assertEquals(header.getRecordsCount(), lasReaderMapped.getPointsCount());
+
+                int pointsCount = (int) lasReaderMapped.getPointsCount();
+                double[] xs = new double[pointsCount];
+                double[] zs = new double[pointsCount];
+                byte[] classifications = new byte[pointsCount];
+                int read = lasReaderMapped.readColumns(0, pointsCount + 10, xs, null, zs, null, classifications);
+                assertEquals(pointsCount, read);
+
+                LasRecord mappedDot = new LasRecord();
+                int count = 0;
+                while( lasReaderBuffered.hasNextPoint() ) {
+                    LasRecord lasDot = lasReaderBuffered.getNextPoint();
+                    assertTrue(lasReaderMapped.moveToNext());
+                    lasReaderMapped.readRecord(mappedDot);
+                    assertTrue(LasUtils.lasRecordEqual(lasDot, mappedDot));
+                    assertEquals(lasDot.x, xs[count], DELTA);
+                    assertEquals(lasDot.z, zs[count], DELTA);
+                    assertEquals(lasDot.classification, classifications[count]);
+                    count++;
+                }
+                assertFalse(lasReaderMapped.moveToNext());
+
+                LasRecord lastDot = lasReaderBuffered.getPointAt(count - 1);
+                assertTrue(LasUtils.lasRecordEqual(lastDot, lasReaderMapped.getPointAt(count - 1)));
+            }
+        }
+    }
+
+    public void testLasMappedReaderMissingFile() throws Exception {
+        LasReaderMapped lasReaderMapped = new LasReaderMapped(new File("missing_file.las"), null);
+        try {
+            lasReaderMapped.getPointsCount();
+            fail("Opening a missing file should not be swallowed.");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+    }
+
+    public void testLasPointBatch() throws Exception {
+        File lasFile = fileFromName("las/1.2-with-color.las");
+        try (LasReaderBuffered lasReaderBuffered = new LasReaderBuffered(lasFile, null);
+                LasReaderMapped lasReaderMapped = new LasReaderMapped(lasFile, null);) {
+            lasReaderBuffered.open();
+            lasReaderMapped.open();
+
+            LasPointBatch mappedBatch = new LasPointBatch(10);
+            long pointsCount = lasReaderMapped.getPointsCount();
+            for( long from = 0; from < pointsCount; from += 100 ) {
+                lasReaderMapped.readBatch(from, 100, mappedBatch);
+            }
+            assertEquals(pointsCount, mappedBatch.size());
+
+            LasPointBatch recordsBatch = new LasPointBatch(10);
+            int count = 0;
+            while( lasReaderBuffered.hasNextPoint() ) {
+                LasRecord lasDot = lasReaderBuffered.getNextPoint();
+                recordsBatch.add(lasDot);
+                assertTrue(LasUtils.lasRecordEqual(lasDot, mappedBatch.getRecord(count)));
+                assertTrue(LasUtils.lasRecordEqual(lasDot, recordsBatch.getRecord(count)));
+                count++;
+            }
+
+            // keep every other point after the first
+            boolean[] keep = new boolean[count - 1];
+            for( int i = 0; i < keep.length; i++ ) {
+                keep[i] = i % 2 == 0;
+            }
+            double thirdX = recordsBatch.x[3];
+            int kept = recordsBatch.retain(1, keep);
+            assertEquals(count / 2, kept);
+            assertEquals(kept + 1, recordsBatch.size());
+            assertEquals(thirdX, recordsBatch.x[2], DELTA);
+        }
+    }
+
+    public void testLasPointBatchMixedFormats() throws Exception {
+        // format 3 first, so that the gps time and color columns exist
+        String[] names = {"las/1.2-with-color.las", "las/1.2_0.las", "las/1.2_1.las", "las/1.2_2.las", "las/1.2_3.las"};
+        LasPointBatch batch = new LasPointBatch(10);
+        for( int pass = 0; pass < 2; pass++ ) {
+            List<LasRecord> expected = new ArrayList<LasRecord>();
+            for( String name : names ) {
+                File lasFile = fileFromName(name);
+                try (LasReaderBuffered lasReaderBuffered = new LasReaderBuffered(lasFile, null);
+                        LasReaderMapped lasReaderMapped = new LasReaderMapped(lasFile, null);) {
+                    lasReaderBuffered.open();
+                    while( lasReaderBuffered.hasNextPoint() ) {
+                        expected.add(lasReaderBuffered.getNextPoint());
+                    }
+                    lasReaderMapped.readBatch(0, (int) lasReaderMapped.getPointsCount(), batch);
+                }
+            }
+            assertEquals(expected.size(), batch.size());
+            for( int i = 0; i < expected.size(); i++ ) {
+                LasRecord expectedDot = expected.get(i);
+                LasRecord batchDot = batch.getRecord(i);
+                assertTrue(LasUtils.lasRecordEqual(expectedDot, batchDot));
+                assertEquals(expectedDot.gpsTime, batchDot.gpsTime, DELTA);
+                assertTrue(Arrays.equals(expectedDot.color, batchDot.color));
+            }
+
+            // the second pass reads into the slots left by the removed points
+            batch.retain(0, new boolean[batch.size()]);
+            assertEquals(0, batch.size());
+            names = new String[]{"las/1.2_0.las", "las/1.2_2.las", "las/1.2_1.las", "las/1.0_0.las"};
+        }
+    }
+
+    public void testDataManagerBatchFiltersAsRecords() throws Exception {
+        File lasFile = fileFromName("las/autzen.las");
+        CoordinateReferenceSystem crs = CrsUtilities.readProjectionFile(lasFile.getAbsolutePath(), "las");
+        ReferencedEnvelope3D dataEnvelope;
+        try (LasReaderMapped reader = new LasReaderMapped(lasFile, crs)) {
+            reader.open();
+            dataEnvelope = reader.getHeader().getDataEnvelope();
+        }
+
+        // a sloping dem that doesn't cover the eastern part of the data
+        int cols = 20;
+        int rows = 20;
+        double west = dataEnvelope.getMinX();
+        double east = west + dataEnvelope.getWidth() * 0.8;
+        double south = dataEnvelope.getMinY() - 10;
+        double north = dataEnvelope.getMaxY() + 10;
+        double[][] demData = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                demData[r][c] = 380 + 5 * c;
+            }
+        }
+        RegionMap demRegion = CoverageUtilities.makeRegionParamsMap(north, south, west, east, (east - west) / cols,
+                (north - south) / rows, cols, rows);
+        GridCoverage2D dem = CoverageUtilities.buildCoverage("dem", demData, demRegion, crs, true);
+
+        Envelope half = new Envelope(dataEnvelope.getMinX(), dataEnvelope.getMaxX(), dataEnvelope.getMinY(),
+                dataEnvelope.centre().y);
+        Geometry halfGeometry = GeometryUtilities.createPolygonFromEnvelope(half);
+        Envelope all = new Envelope(dataEnvelope.getMinX() - 1, dataEnvelope.getMaxX() + 1, dataEnvelope.getMinY() - 1,
+                dataEnvelope.getMaxY() + 1);
+        Geometry allGeometry = GeometryUtilities.createPolygonFromEnvelope(all);
+
+        try (ALasDataManager dataManager = ALasDataManager.getDataManager(lasFile, dem, 20.0, crs)) {
+            dataManager.open();
+            // the first query reads the file, the second one uses the points kept in memory
+            checkSamePoints(dataManager.getPointsInGeometry(halfGeometry, false),
+                    dataManager.getPointBatchInGeometry(halfGeometry, false));
+            checkSamePoints(dataManager.getPointsInGeometry(allGeometry, true),
+                    dataManager.getPointBatchInGeometry(allGeometry, true));
+        }
+        try (ALasDataManager dataManager = ALasDataManager.getDataManager(lasFile, dem, 20.0, crs)) {
+            dataManager.open();
+            // a first query covering all the data
+            List<LasRecord> points = dataManager.getPointsInGeometry(allGeometry, true);
+            assertTrue(points.size() > 0);
+            checkSamePoints(points, dataManager.getPointBatchInGeometry(allGeometry, true));
+        }
+    }
+
+    private void checkSamePoints( List<LasRecord> points, LasPointBatch batch ) {
+        Comparator<LasRecord> byPosition = new Comparator<LasRecord>(){
+            public int compare( LasRecord r1, LasRecord r2 ) {
+                int compare = Double.compare(r1.x, r2.x);
+                if (compare == 0)
+                    compare = Double.compare(r1.y, r2.y);
+                if (compare == 0)
+                    compare = Double.compare(r1.z, r2.z);
+                return compare;
+            }
+        };
+        List<LasRecord> batchPoints = batch.toRecords();
+        assertEquals(points.size(), batchPoints.size());
+        points = new ArrayList<LasRecord>(points);
+        Collections.sort(points, byPosition);
+        Collections.sort(batchPoints, byPosition);
+        for( int i = 0; i < points.size(); i++ ) {
+            LasRecord dot = points.get(i);
+            LasRecord batchDot = batchPoints.get(i);
+            assertTrue(LasUtils.lasRecordEqual(dot, batchDot));
+            assertFalse(Double.isNaN(dot.groundElevation));
+            assertEquals(dot.groundElevation, batchDot.groundElevation, DELTA);
+        }
+    }
+
     public void testLazReader() throws Exception {
         if (doNative) {
             String name = "las/1.2-with-color.laz";
@@ -0,0 +1,192 @@
+package org.jgrasstools.gears.modules;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.jgrasstools.dbs.compat.ASpatialDb;
+import org.jgrasstools.gears.io.las.spatialite.LasCell;
+import org.jgrasstools.gears.io.las.spatialite.LasCellsTable;
+import org.jgrasstools.gears.io.las.spatialite.LasLevel;
+import org.jgrasstools.gears.io.las.spatialite.LasLevelsTable;
+import org.jgrasstools.gears.io.las.spatialite.LasSource;
+import org.jgrasstools.gears.io.las.spatialite.LasSourcesTable;
+import org.jgrasstools.gears.io.las.spatialite.SpatialiteLasWriter;
+import org.jgrasstools.gears.spatialite.GTSpatialiteThreadsafeDb;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Test that the pipelined ingestion of las files gives the database of the sequential one.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestSpatialiteLasWriter extends HMTestCase {
+
+    private static final String[] LAS_FILES = {"autzen", "1.2-with-color"};
+    private static final int LEVELS = 2;
+
+    private File folder;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = File.createTempFile("jgt-lasfolder", "");
+        folder.delete();
+        folder.mkdirs();
+        for( String name : LAS_FILES ) {
+            for( String extension : new String[]{".las", ".prj"} ) {
+                URL url = this.getClass().getClassLoader().getResource("las/" + name + extension);
+                FileUtilities.copyFile(new File(url.toURI()), new File(folder, name + extension));
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtilities.deleteFileOrDir(folder);
+    }
+
+    public void testPipelineMatchesSequential() throws Exception {
+        File sequentialDb = new File(folder, "sequential.sqlite");
+        SpatialiteLasWriter sequential = createWriter(sequentialDb);
+        sequential.process();
+        sequential.close();
+
+        File pipelinedDb = new File(folder, "pipelined.sqlite");
+        SpatialiteLasWriter pipelined = createWriter(pipelinedDb);
+        pipelined.doPipeline = true;
+        pipelined.pThreads = 2;
+        // many blocks of cells for every file
+        pipelined.pBlockPoints = 100;
+        pipelined.process();
+        pipelined.close();
+
+        try (ASpatialDb expectedDb = new GTSpatialiteThreadsafeDb(); ASpatialDb actualDb = new GTSpatialiteThreadsafeDb()) {
+            expectedDb.open(sequentialDb.getAbsolutePath());
+            actualDb.open(pipelinedDb.getAbsolutePath());
+
+            HashMap<String, LasSource> expectedSources = sourcesByName(expectedDb);
+            HashMap<String, LasSource> actualSources = sourcesByName(actualDb);
+            assertEquals(LAS_FILES.length, expectedSources.size());
+            assertEquals(expectedSources.keySet(), actualSources.keySet());
+
+            Envelope bounds = new Envelope();
+            for( String name : LAS_FILES ) {
+                LasSource expectedSource = expectedSources.get(name);
+                LasSource actualSource = actualSources.get(name);
+                assertEquals(expectedSource.minIntens, actualSource.minIntens, 0.0);
+                assertEquals(expectedSource.maxIntens, actualSource.maxIntens, 0.0);
+                bounds.expandToInclude(expectedSource.polygon.getEnvelopeInternal());
+
+                List<LasCell> expectedCells = sortCells(LasCellsTable.getLasCellsBySource(expectedDb, expectedSource.id, true,
+                        true, true, true, true));
+                List<LasCell> actualCells = sortCells(LasCellsTable.getLasCellsBySource(actualDb, actualSource.id, true, true,
+                        true, true, true));
+                assertTrue(expectedCells.size() > 10);
+                assertEquals(expectedCells.size(), actualCells.size());
+                int pointsCount = 0;
+                for( int i = 0; i < expectedCells.size(); i++ ) {
+                    LasCell expected = expectedCells.get(i);
+                    LasCell actual = actualCells.get(i);
+                    String message = name + " cell " + centroid(expected.polygon);
+                    assertTrue(message, expected.polygon.equalsExact(actual.polygon, 1E-6));
+                    assertEquals(message, expected.pointsCount, actual.pointsCount);
+                    assertEquals(message, expected.avgElev, actual.avgElev, 1E-9);
+                    assertEquals(message, expected.minElev, actual.minElev, 0.0);
+                    assertEquals(message, expected.maxElev, actual.maxElev, 0.0);
+                    assertEquals(message, expected.avgIntensity, actual.avgIntensity);
+                    assertEquals(message, expected.minIntensity, actual.minIntensity);
+                    assertEquals(message, expected.maxIntensity, actual.maxIntensity);
+                    assertEquals(message, expected.minGpsTime, actual.minGpsTime, 0.0);
+                    assertEquals(message, expected.maxGpsTime, actual.maxGpsTime, 0.0);
+                    // the points are in the same order
+                    assertTrue(message, Arrays.equals(expected.xyzs, actual.xyzs));
+                    assertTrue(message, Arrays.equals(expected.intensitiesClassifications, actual.intensitiesClassifications));
+                    assertTrue(message, Arrays.equals(expected.returns, actual.returns));
+                    assertTrue(message, Arrays.equals(expected.gpsTimes, actual.gpsTimes));
+                    assertTrue(message, Arrays.equals(expected.colors, actual.colors));
+                    pointsCount += expected.pointsCount;
+                }
+                assertEquals(name.equals("autzen") ? 106 : 1065, pointsCount);
+            }
+
+            for( int level = 1; level <= LEVELS; level++ ) {
+                List<LasLevel> expectedLevels = sortLevels(LasLevelsTable.getLasLevels(expectedDb, level, bounds));
+                List<LasLevel> actualLevels = sortLevels(LasLevelsTable.getLasLevels(actualDb, level, bounds));
+                assertTrue(expectedLevels.size() > 0);
+                assertEquals(expectedLevels.size(), actualLevels.size());
+                for( int i = 0; i < expectedLevels.size(); i++ ) {
+                    LasLevel expected = expectedLevels.get(i);
+                    LasLevel actual = actualLevels.get(i);
+                    String message = "level " + level + " " + centroid(expected.polygon);
+                    assertTrue(message, expected.polygon.equalsExact(actual.polygon, 1E-6));
+                    assertEquals(message, expected.avgElev, actual.avgElev, 1E-9);
+                    assertEquals(message, expected.minElev, actual.minElev, 0.0);
+                    assertEquals(message, expected.maxElev, actual.maxElev, 0.0);
+                    assertEquals(message, expected.avgIntensity, actual.avgIntensity);
+                    assertEquals(message, expected.minIntensity, actual.minIntensity);
+                    assertEquals(message, expected.maxIntensity, actual.maxIntensity);
+                }
+            }
+        }
+    }
+
+    private SpatialiteLasWriter createWriter( File db ) {
+        SpatialiteLasWriter writer = new SpatialiteLasWriter();
+        writer.pm = pm;
+        writer.inFolder = folder.getAbsolutePath();
+        writer.inSpatialite = db.getAbsolutePath();
+        writer.inLasNames = new ArrayList<String>();
+        for( String name : LAS_FILES ) {
+            writer.inLasNames.add(name + ".las");
+        }
+        writer.pCellsize = 100;
+        writer.pLevels = LEVELS;
+        writer.doVerbose = false;
+        return writer;
+    }
+
+    private static HashMap<String, LasSource> sourcesByName( ASpatialDb db ) throws Exception {
+        HashMap<String, LasSource> sources = new HashMap<String, LasSource>();
+        for( LasSource source : LasSourcesTable.getLasSources(db) ) {
+            sources.put(source.name, source);
+        }
+        return sources;
+    }
+
+    private static List<LasCell> sortCells( List<LasCell> cells ) {
+        Collections.sort(cells, new Comparator<LasCell>(){
+            public int compare( LasCell c1, LasCell c2 ) {
+                return centroid(c1.polygon).compareTo(centroid(c2.polygon));
+            }
+        });
+        return cells;
+    }
+
+    private static List<LasLevel> sortLevels( List<LasLevel> levels ) {
+        Collections.sort(levels, new Comparator<LasLevel>(){
+            public int compare( LasLevel l1, LasLevel l2 ) {
+                int compare = Long.compare(l1.sourceId, l2.sourceId);
+                if (compare != 0) {
+                    return compare;
+                }
+                return centroid(l1.polygon).compareTo(centroid(l2.polygon));
+            }
+        });
+        return levels;
+    }
+
+    private static Coordinate centroid( Polygon polygon ) {
+        return polygon.getCentroid().getCoordinate();
+    }
+}
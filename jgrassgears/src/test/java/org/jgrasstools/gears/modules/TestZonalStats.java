@@ -17,13 +17,17 @@
  */
 package org.jgrasstools.gears.modules;
 
+import java.util.Arrays;
 import java.util.List;
 
+import javax.media.jai.iterator.RandomIter;
+
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.jgrasstools.gears.libs.modules.Variables;
 import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
 import org.jgrasstools.gears.modules.r.summary.OmsZonalStats;
+import org.jgrasstools.gears.modules.r.summary.ZonalStatsEngine;
 import org.jgrasstools.gears.utils.HMTestCase;
 import org.jgrasstools.gears.utils.HMTestMaps;
 import org.jgrasstools.gears.utils.RegionMap;
@@ -31,6 +35,9 @@ import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.features.FeatureUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
 /**
  * Test for the {@link OmsZonalStats}
  * 
@@ -81,4 +88,33 @@ public class TestZonalStats extends HMTestCase {
         assertEquals(17, invalidCells);
     }
 
+    @SuppressWarnings("nls")
+    public void testEngineAsPolygonStats() throws Exception {
+        WKTReader reader = new WKTReader();
+        List<Geometry> zones = Arrays.asList(//
+                reader.read("POLYGON ((1640660 5140010, 1640940 5139950, 1640700 5139790, 1640660 5140010))"), //
+                reader.read("POLYGON ((1640700 5139990, 1640930 5139990, 1640930 5139800, 1640700 5139800, 1640700 5139990), "
+                        + "(1640760 5139930, 1640870 5139930, 1640870 5139860, 1640760 5139860, 1640760 5139930))"), //
+                reader.read("POLYGON ((1640652 5140018, 1640798 5140018, 1640798 5139782, 1640652 5139782, 1640652 5140018))"));
+
+        double[] tm_utm_tac = new double[3];
+        ZonalStatsEngine engine = new ZonalStatsEngine(flowCoverage.getGridGeometry());
+        engine.setThreads(2);
+        double[][] stats = engine.zonalStats(zones, flowCoverage.getRenderedImage(), false, tm_utm_tac, 0);
+
+        double[] expected_tm_utm_tac = new double[3];
+        RandomIter iter = CoverageUtilities.getRandomIterator(flowCoverage);
+        for( int i = 0; i < zones.size(); i++ ) {
+            double[] expected = OmsZonalStats.polygonStats(zones.get(i), flowCoverage.getGridGeometry(), iter, false,
+                    expected_tm_utm_tac, 0, null);
+            assertEquals(expected.length, stats[i].length);
+            for( int j = 0; j < expected.length; j++ ) {
+                assertEquals(expected[j], stats[i][j], DELTA);
+            }
+        }
+        iter.done();
+        assertEquals(expected_tm_utm_tac[0], tm_utm_tac[0], DELTA);
+        assertEquals(expected_tm_utm_tac[2], tm_utm_tac[2], DELTA);
+    }
+
 }
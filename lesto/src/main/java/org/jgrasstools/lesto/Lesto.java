@@ -44,6 +44,7 @@ import oms3.annotations.Status;
 import oms3.annotations.UI;
 
 import org.jgrasstools.gears.libs.modules.ClassField;
+import org.jgrasstools.gears.libs.modules.ModulesIndex;
 import org.scannotation.AnnotationDB;
 import org.scannotation.ClasspathUrlFinder;
 
@@ -114,7 +115,30 @@ public class Lesto {
      */
     public String[] allClasses = null;
 
+    /**
+     * Fill the registry from the component index written at build time, if available.
+     * 
+     * @return <code>false</code> if the classpath needs to be scanned.
+     */
+    private boolean gatherFromIndex() {
+        List<String> classNames = new ArrayList<String>();
+        List<String> fieldNamesList = new ArrayList<String>();
+        if (!ModulesIndex.gather(Lesto.class.getClassLoader(), "org.jgrasstools.lesto", moduleName2Class, moduleName2Fields, classNames,
+                fieldNamesList)) {
+            return false;
+        }
+        Collections.sort(fieldNamesList);
+        allFields = (String[]) fieldNamesList.toArray(new String[fieldNamesList.size()]);
+        Collections.sort(classNames);
+        allClasses = (String[]) classNames.toArray(new String[classNames.size()]);
+        return true;
+    }
+
     private void gatherInformations() {
+        // an explicit url is scanned, otherwise the index avoids loading and instantiating all the modules
+        if (baseclassUrl == null && gatherFromIndex()) {
+            return;
+        }
 
         try {
             if (baseclassUrl == null) {
@@ -343,8 +343,9 @@ public class AdaptiveTinFilter extends JGTModel {
         final List<Coordinate> seedsList = new ArrayList<Coordinate>();
         try (ALasDataManager lasHandler = ALasDataManager.getDataManager(new File(inLas), null, 0,
                 inTemplateGC.getCoordinateReferenceSystem())) {
-            lasHandler.open();
             int defaultThreadsNum = getDefaultThreadsNum();
+            lasHandler.setReaderPoolSize(defaultThreadsNum);
+            lasHandler.open();
             pm.beginTask("Extracting seed points on " + secGridGeoms.size() + " tiles... (cores = " + defaultThreadsNum + ")",
                     secGridGeoms.size());
             ThreadedRunnable tRun = new ThreadedRunnable(defaultThreadsNum, null);
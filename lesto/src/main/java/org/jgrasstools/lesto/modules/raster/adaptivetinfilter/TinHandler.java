@@ -23,12 +23,16 @@ import static org.jgrasstools.gears.utils.geometry.GeometryUtilities.getLineWith
 import static org.jgrasstools.gears.utils.geometry.GeometryUtilities.getTriangleCentroid;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.DefaultFeatureCollection;
@@ -45,6 +49,7 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.vividsolutions.jts.algorithm.locate.SimplePointInAreaLocator;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateList;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -53,6 +58,12 @@ import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.index.strtree.STRtree;
 import com.vividsolutions.jts.triangulate.DelaunayTriangulationBuilder;
+import com.vividsolutions.jts.triangulate.IncrementalDelaunayTriangulator;
+import com.vividsolutions.jts.triangulate.quadedge.LocateFailureException;
+import com.vividsolutions.jts.triangulate.quadedge.QuadEdge;
+import com.vividsolutions.jts.triangulate.quadedge.QuadEdgeSubdivision;
+import com.vividsolutions.jts.triangulate.quadedge.TriangleVisitor;
+import com.vividsolutions.jts.triangulate.quadedge.Vertex;
 
 /**
  * A helper class for tin handling.
@@ -68,6 +79,11 @@ public class TinHandler {
      */
     private List<Coordinate> tinCoordinateList = new ArrayList<Coordinate>();
 
+    /**
+     * The same coordinates of the {@link #tinCoordinateList}, for fast lookup.
+     */
+    private Set<Coordinate> tinCoordinateSet = new HashSet<Coordinate>();
+
     /**
      * The list of coordinates that are left out as non ground points at each filtering.
      */
@@ -78,6 +94,24 @@ public class TinHandler {
      */
     private Geometry[] tinGeometries = null;
 
+    /**
+     * The delaunay triangulation of the {@link #tinCoordinateList}, updated by inserting
+     * the coordinates added since the last tin.
+     */
+    private QuadEdgeSubdivision subdivision;
+
+    private IncrementalDelaunayTriangulator triangulator;
+
+    /**
+     * The number of coordinates of the {@link #tinCoordinateList} already inserted in the triangulation.
+     */
+    private int insertedCoordinatesNum = 0;
+
+    /**
+     * The index in {@link #tinGeometries} of the triangle on the left of each triangle edge.
+     */
+    private Map<QuadEdge, Integer> triangleIndexes;
+
     private GeometryFactory gf = GeometryUtilities.gf();
 
     private final IJGTProgressMonitor pm;
@@ -96,8 +130,6 @@ public class TinHandler {
 
     private double calculatedDistanceThreshold;
 
-    private final ReadWriteLock monitor = new ReentrantReadWriteLock();
-
     private final Double maxEdgeLength;
     private double maxEdgeLengthThreshold;
 
@@ -136,16 +168,13 @@ public class TinHandler {
         generateTin(coordinateList);
         for( int i = 0; i < tinGeometries.length; i++ ) {
             Coordinate[] coordinates = tinGeometries[i].getCoordinates();
-            if (!tinCoordinateList.contains(coordinates[0])) {
-                tinCoordinateList.add(coordinates[0]);
-            }
-            if (!tinCoordinateList.contains(coordinates[1])) {
-                tinCoordinateList.add(coordinates[1]);
-            }
-            if (!tinCoordinateList.contains(coordinates[2])) {
-                tinCoordinateList.add(coordinates[2]);
+            for( int j = 0; j < 3; j++ ) {
+                if (tinCoordinateSet.add(coordinates[j])) {
+                    tinCoordinateList.add(coordinates[j]);
+                }
             }
         }
+        insertedCoordinatesNum = tinCoordinateList.size();
         didInitialize = true;
     }
 
@@ -317,7 +346,7 @@ public class TinHandler {
                         } else {
                             // add it to the next tin
                             synchronized (tinCoordinateList) {
-                                if (!tinCoordinateList.contains(c)) {
+                                if (tinCoordinateSet.add(c)) {
                                     tinCoordinateList.add(c);
                                     foundOne = true;
                                     angleSet.add(angle);
@@ -342,18 +371,12 @@ public class TinHandler {
         if (isFirstStatsCalculation) {
             throw new IllegalArgumentException("The first round needs to be filtered on all data.");
         }
-        pm.beginTask("Creating points indexes...", leftOverCoordinateList.size());
-        final STRtree leftOverCoordinatesTree = new STRtree(leftOverCoordinateList.size());
-        for( Coordinate c : leftOverCoordinateList ) {
-            leftOverCoordinatesTree.insert(new Envelope(c), c);
-        }
-        pm.done();
-
         if (maxEdgeLength != null) {
             maxEdgeLengthThreshold = maxEdgeLength;
         }
 
         Geometry[] triangles = getTriangles();
+        final List<Coordinate>[] leftOverInTriangles = locateInTriangles(leftOverCoordinateList);
         final ConcurrentSkipListSet<Double> angleSet = new ConcurrentSkipListSet<Double>();
         final ConcurrentSkipListSet<Double> distanceSet = new ConcurrentSkipListSet<Double>();
         final List<Coordinate> newTotalLeftOverCoordinateList = new ArrayList<Coordinate>();
@@ -362,12 +385,13 @@ public class TinHandler {
             ThreadedRunnable tRun = new ThreadedRunnable(threadsNum, null);
             for( int i = 0; i < triangles.length; i++ ) {
                 final Geometry triangle = triangles[i];
+                final List<Coordinate> triangleCoordinates = leftOverInTriangles[i];
                 tRun.executeRunnable(new Runnable(){
                     public void run() {
                         if (maxEdgeLength != null && triangle.getLength() < maxEdgeLengthThreshold * 3.0) {
                             return;
                         }
-                        List<Coordinate> leftOverList = runfilterOnLeftOverData(leftOverCoordinatesTree, angleSet, distanceSet,
+                        List<Coordinate> leftOverList = runfilterOnLeftOverData(triangleCoordinates, angleSet, distanceSet,
                                 triangle);
                         synchronized (newTotalLeftOverCoordinateList) {
                             newTotalLeftOverCoordinateList.addAll(leftOverList);
@@ -379,7 +403,7 @@ public class TinHandler {
         } else {
             for( int i = 0; i < triangles.length; i++ ) {
                 Geometry triangle = triangles[i];
-                List<Coordinate> leftOverList = runfilterOnLeftOverData(leftOverCoordinatesTree, angleSet, distanceSet, triangle);
+                List<Coordinate> leftOverList = runfilterOnLeftOverData(leftOverInTriangles[i], angleSet, distanceSet, triangle);
                 newTotalLeftOverCoordinateList.addAll(leftOverList);
             }
         }
@@ -418,30 +442,19 @@ public class TinHandler {
 
     }
 
-    @SuppressWarnings("rawtypes")
-    private List<Coordinate> runfilterOnLeftOverData( final STRtree leftOverCoordsTree,
+    private List<Coordinate> runfilterOnLeftOverData( final List<Coordinate> triangleCoordinates,
             final ConcurrentSkipListSet<Double> angleSet, final ConcurrentSkipListSet<Double> distanceSet, final Geometry triangle ) {
 
         List<Coordinate> newLeftOverCoordinateList = new ArrayList<Coordinate>();
         Coordinate[] tinCoords = triangle.getCoordinates();
         Coordinate triangleCentroid = getTriangleCentroid(tinCoords[0], tinCoords[1], tinCoords[2]);
 
-        // get left coords around triangle
-        List triangleCoordinates = null;
-        monitor.readLock().lock();
-        try {
-            triangleCoordinates = leftOverCoordsTree.query(triangle.getEnvelopeInternal());
-        } finally {
-            monitor.readLock().unlock();
-        }
-
         /*
          * now sort the points in the triangle in distance order
          * from the triangle centroid, nearest first
          */
         TreeSet<Coordinate> centroidNearestSet = new TreeSet<Coordinate>(new PointsToCoordinateComparator(triangleCentroid));
-        for( Object coordinateObj : triangleCoordinates ) {
-            Coordinate c = (Coordinate) coordinateObj;
+        for( Coordinate c : triangleCoordinates ) {
             if (c.equals(tinCoords[0]) || c.equals(tinCoords[1]) || c.equals(tinCoords[2])) {
                 // the seed point was reread
                 continue;
@@ -489,7 +502,7 @@ public class TinHandler {
                 } else {
                     // add it to the next tin
                     synchronized (tinCoordinateList) {
-                        if (!tinCoordinateList.contains(c)) {
+                        if (tinCoordinateSet.add(c)) {
                             tinCoordinateList.add(c);
                             foundOne = true;
                             angleSet.add(angle);
@@ -508,23 +521,18 @@ public class TinHandler {
         if (isFirstStatsCalculation) {
             throw new IllegalArgumentException("The first round needs to be filtered on all data.");
         }
-        pm.beginTask("Creating points indexes...", leftOverCoordinateList.size());
-        final STRtree leftOverCoordinatesTree = new STRtree(leftOverCoordinateList.size());
-        for( Coordinate c : leftOverCoordinateList ) {
-            leftOverCoordinatesTree.insert(new Envelope(c), c);
-        }
-        pm.done();
-
         final AtomicInteger removedCount = new AtomicInteger();
         Geometry[] triangles = getTriangles();
+        final List<Coordinate>[] leftOverInTriangles = locateInTriangles(leftOverCoordinateList);
         final List<Coordinate> newLeftOverCoordinateList = new ArrayList<Coordinate>();
         pm.beginTask("Final cleanup through triangle to point distance filter...", triangles.length);
         ThreadedRunnable tRun = new ThreadedRunnable(threadsNum, null);
         for( int i = 0; i < triangles.length; i++ ) {
             final Geometry triangle = triangles[i];
+            final List<Coordinate> triangleCoordinates = leftOverInTriangles[i];
             tRun.executeRunnable(new Runnable(){
                 public void run() {
-                    runFinalFilter(leftOverCoordinatesTree, newLeftOverCoordinateList, triangle, pFinalCleanupDist, removedCount);
+                    runFinalFilter(triangleCoordinates, newLeftOverCoordinateList, triangle, pFinalCleanupDist, removedCount);
                 }
             });
         }
@@ -537,27 +545,13 @@ public class TinHandler {
         leftOverCoordinateList.addAll(newLeftOverCoordinateList);
     }
 
-    private void runFinalFilter( final STRtree leftOverCoordsTree, List<Coordinate> newLeftOverCoordinateList,
+    private void runFinalFilter( final List<Coordinate> triangleCoordinates, List<Coordinate> newLeftOverCoordinateList,
             final Geometry triangle, double pFinalCleanupDist, AtomicInteger removedCount ) {
 
         Coordinate[] tinCoords = triangle.getCoordinates();
 
-        // get left coords around triangle
-        List triangleCoordinates = null;
-        monitor.readLock().lock();
-        try {
-            triangleCoordinates = leftOverCoordsTree.query(triangle.getEnvelopeInternal());
-        } finally {
-            monitor.readLock().unlock();
-        }
-
-        /*
-         * now sort the points in the triangle in distance order
-         * from the triangle centroid, nearest first
-         */
         int count = 0;
-        for( Object coordinateObj : triangleCoordinates ) {
-            Coordinate c = (Coordinate) coordinateObj;
+        for( Coordinate c : triangleCoordinates ) {
             int loc = SimplePointInAreaLocator.locate(c, triangle);
             if (loc == Location.INTERIOR) {
                 Coordinate c1 = new Coordinate(c.x, c.y, 1E6);
@@ -576,6 +570,12 @@ public class TinHandler {
         pm.worked(1);
     }
 
+    /**
+     * Invalidates the current tin triangles.
+     * 
+     * <p>At the next use the coordinates added to the {@link #tinCoordinateList} since
+     * the last tin are inserted in the triangulation.</p>
+     */
     public void resetTin() {
         tinGeometries = null;
     }
@@ -587,14 +587,132 @@ public class TinHandler {
      */
     private void generateTin( List<Coordinate> coordinateList ) {
         pm.beginTask("Generate tin...", -1);
-        DelaunayTriangulationBuilder b = new DelaunayTriangulationBuilder();
-        b.setSites(coordinateList);
-        Geometry tinTriangles = b.getTriangles(gf);
-        tinGeometries = new Geometry[tinTriangles.getNumGeometries()];
-        for( int i = 0; i < tinTriangles.getNumGeometries(); i++ ) {
-            tinGeometries[i] = tinTriangles.getGeometryN(i);
+        CoordinateList sites = DelaunayTriangulationBuilder.unique(coordinateList.toArray(new Coordinate[0]));
+        subdivision = new QuadEdgeSubdivision(DelaunayTriangulationBuilder.envelope(sites), 0.0);
+        triangulator = new IncrementalDelaunayTriangulator(subdivision);
+        triangulator.insertSites(DelaunayTriangulationBuilder.toVertices(sites));
+        extractTriangles();
+        pm.done();
+    }
+
+    /**
+     * Insert the coordinates added since the last tin in the triangulation. The internal tin
+     * geoms array is set from the result.
+     */
+    private void updateTin() {
+        List<Coordinate> newCoordinates = new ArrayList<Coordinate>(
+                tinCoordinateList.subList(insertedCoordinatesNum, tinCoordinateList.size()));
+        pm.beginTask("Update tin...", newCoordinates.size());
+        // near points one after the other keep the walk of the point location short
+        sortByGridCells(newCoordinates);
+        for( Coordinate coordinate : newCoordinates ) {
+            triangulator.insertSite(new Vertex(coordinate.x, coordinate.y, coordinate.z));
+            pm.worked(1);
+        }
+        insertedCoordinatesNum = tinCoordinateList.size();
+        extractTriangles();
+        pm.done();
+    }
+
+    private void extractTriangles() {
+        final List<Geometry> triangles = new ArrayList<Geometry>();
+        triangleIndexes = new HashMap<QuadEdge, Integer>();
+        subdivision.visitTriangles(new TriangleVisitor(){
+            public void visit( QuadEdge[] triEdges ) {
+                Integer index = triangles.size();
+                Coordinate[] coordinates = new Coordinate[4];
+                for( int i = 0; i < 3; i++ ) {
+                    coordinates[i] = triEdges[i].orig().getCoordinate();
+                    triangleIndexes.put(triEdges[i], index);
+                }
+                coordinates[3] = coordinates[0];
+                triangles.add(gf.createPolygon(gf.createLinearRing(coordinates), null));
+            }
+        }, false);
+        tinGeometries = triangles.toArray(new Geometry[triangles.size()]);
+    }
+
+    /**
+     * Groups coordinates by the tin triangle they fall in.
+     * 
+     * <p>The triangles are found by walking the triangulation from the last found
+     * triangle, so the coordinates are visited in the same grid cells order used to
+     * insert them in the tin, which keeps near coordinates in sequence. Coordinates
+     * outside of the tin are left out.</p>
+     * 
+     * @param coordinateList the coordinates to locate.
+     * @return the lists of coordinates, with the same index of the triangles in {@link #tinGeometries}.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Coordinate>[] locateInTriangles( List<Coordinate> coordinateList ) {
+        pm.beginTask("Locating points in the tin...", coordinateList.size());
+        List<Coordinate>[] coordinatesInTriangles = new List[tinGeometries.length];
+        for( int i = 0; i < coordinatesInTriangles.length; i++ ) {
+            coordinatesInTriangles[i] = new ArrayList<Coordinate>();
+        }
+        List<Coordinate> sortedCoordinates = new ArrayList<Coordinate>(coordinateList);
+        sortByGridCells(sortedCoordinates);
+        for( Coordinate c : sortedCoordinates ) {
+            try {
+                QuadEdge edge = subdivision.locate(c);
+                Integer index = edge != null ? triangleIndexes.get(edge) : null;
+                if (index != null) {
+                    coordinatesInTriangles[index].add(c);
+                }
+            } catch (LocateFailureException e) {
+                // outside of the triangulation
+            }
+            pm.worked(1);
         }
         pm.done();
+        return coordinatesInTriangles;
+    }
+
+    /**
+     * Sorts coordinates by the cells of a coarse grid over their envelope.
+     * 
+     * <p>The cells are visited row by row, alternating the direction of the rows, and
+     * hold about one coordinate each, so that consecutive coordinates are near also in y.
+     * A plain sort on x and y would instead jump across the whole envelope between
+     * coordinates with similar x.</p>
+     * 
+     * @param coordinates the coordinates to sort in place.
+     */
+    private static void sortByGridCells( List<Coordinate> coordinates ) {
+        if (coordinates.size() < 2) {
+            return;
+        }
+        Envelope envelope = new Envelope();
+        for( Coordinate coordinate : coordinates ) {
+            envelope.expandToInclude(coordinate);
+        }
+        final double minX = envelope.getMinX();
+        final double minY = envelope.getMinY();
+        double cellSize = Math.sqrt(envelope.getArea() / coordinates.size());
+        if (cellSize <= 0) {
+            // collinear coordinates
+            cellSize = Math.max(envelope.getWidth(), envelope.getHeight()) / coordinates.size();
+        }
+        if (cellSize <= 0) {
+            return;
+        }
+        final double cellSizeFinal = cellSize;
+        Collections.sort(coordinates, new Comparator<Coordinate>(){
+            public int compare( Coordinate c1, Coordinate c2 ) {
+                long row1 = (long) ((c1.y - minY) / cellSizeFinal);
+                long row2 = (long) ((c2.y - minY) / cellSizeFinal);
+                if (row1 != row2) {
+                    return row1 < row2 ? -1 : 1;
+                }
+                long col1 = (long) ((c1.x - minX) / cellSizeFinal);
+                long col2 = (long) ((c2.x - minX) / cellSizeFinal);
+                if (col1 != col2) {
+                    boolean isOddRow = row1 % 2 == 1;
+                    return (col1 < col2) != isOddRow ? -1 : 1;
+                }
+                return c1.compareTo(c2);
+            }
+        });
     }
 
     /**
@@ -635,7 +753,7 @@ public class TinHandler {
             throw new IllegalArgumentException("Not initialized properly. Did you call setStartCoordinates?");
         }
         if (tinGeometries == null) {
-            generateTin(tinCoordinateList);
+            updateTin();
         }
     }
 
@@ -23,6 +23,7 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_AUTHORNAMES;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_DRAFT;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_LICENSE;
 
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
@@ -48,7 +49,9 @@ import org.jgrasstools.gears.io.las.utils.LasUtils;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.coverage.TrianglesRasterizer;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -86,6 +89,10 @@ public class LasChmTriangulation extends JGTModel {
     @Out
     public List<Geometry> trianglesList;
 
+    @Description("The triangles rasterized on the grid of the dtm (only if the dtm is given).")
+    @Out
+    public GridCoverage2D outChm;
+
     @Execute
     public void process() throws Exception {
         checkNull(inLasFile);
@@ -113,6 +120,22 @@ public class LasChmTriangulation extends JGTModel {
             // pm.message("Created triangles: " + newNumTriangles);
         }
 
+        if (inDtm != null) {
+            pm.beginTask("Rasterizing triangles...", -1);
+            RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(inDtm);
+            TrianglesRasterizer rasterizer = new TrianglesRasterizer(regionMap);
+            for( Geometry triangle : trianglesList ) {
+                Coordinate[] c = triangle.getCoordinates();
+                rasterizer.addTriangle(c[0].x, c[0].y, c[0].z, c[1].x, c[1].y, c[1].z, c[2].x, c[2].y, c[2].z);
+            }
+            double[] chm = rasterizer.rasterize(getDefaultThreadsNum());
+            WritableRaster chmWR = CoverageUtilities.createDoubleWritableRaster(regionMap.getCols(), regionMap.getRows(), null,
+                    null, JGTConstants.doubleNovalue);
+            chmWR.setSamples(0, 0, regionMap.getCols(), regionMap.getRows(), 0, chm);
+            outChm = CoverageUtilities.buildCoverage("chm", chmWR, regionMap, crs);
+            pm.done();
+        }
+
     }
 
     public List<Geometry> blanket( List<LasRecord> lasPoints, boolean useGround, IJGTProgressMonitor pm ) {
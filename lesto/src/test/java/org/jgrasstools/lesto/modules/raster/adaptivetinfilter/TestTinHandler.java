@@ -0,0 +1,195 @@
+package org.jgrasstools.lesto.modules.raster.adaptivetinfilter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geometry.jts.ReferencedEnvelope3D;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.jgrasstools.gears.io.las.ALasDataManager;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
+import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.triangulate.DelaunayTriangulationBuilder;
+
+/**
+ * Test the incremental tin of the {@link TinHandler}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestTinHandler extends TestCase {
+
+    private static final double SIZE = 100.0;
+
+    private final GeometryFactory gf = GeometryUtilities.gf();
+
+    public void testIncrementalTinMatchesRebuild() throws Exception {
+        Random random = new Random(13);
+        final List<LasRecord> records = new ArrayList<LasRecord>();
+        for( int i = 0; i < 3000; i++ ) {
+            double x = 0.5 + random.nextDouble() * (SIZE - 1.0);
+            double y = 0.5 + random.nextDouble() * (SIZE - 1.0);
+            double z = groundElevation(x, y) + random.nextDouble() * 0.05;
+            if (i % 10 == 0) {
+                // vegetation
+                z += 2 + random.nextDouble() * 8;
+            }
+            LasRecord record = new LasRecord();
+            record.x = x;
+            record.y = y;
+            record.z = z;
+            records.add(record);
+        }
+
+        // the seeds contain all the points, so later points never change the tin hull
+        List<Coordinate> seeds = new ArrayList<Coordinate>();
+        seeds.add(new Coordinate(0, 0, groundElevation(0, 0)));
+        seeds.add(new Coordinate(SIZE, 0, groundElevation(SIZE, 0)));
+        seeds.add(new Coordinate(SIZE, SIZE, groundElevation(SIZE, SIZE)));
+        seeds.add(new Coordinate(0, SIZE, groundElevation(0, SIZE)));
+        seeds.add(new Coordinate(SIZE / 3, SIZE / 2, groundElevation(SIZE / 3, SIZE / 2)));
+
+        TinHandler tinHandler = new TinHandler(new DummyProgressMonitor(), DefaultGeographicCRS.WGS84, 20.0, 1.0, null, 1);
+        tinHandler.setStartCoordinates(seeds);
+        ALasDataManager lasHandler = new RecordsDataManager(records);
+        // first round calculates only the thresholds
+        tinHandler.filterOnAllData(lasHandler);
+        tinHandler.filterOnAllData(lasHandler);
+        tinHandler.resetTin();
+        checkTin(tinHandler);
+
+        for( int i = 0; i < 6; i++ ) {
+            int tinBefore = tinHandler.getCurrentGroundPointsNum();
+            tinHandler.filterOnLeftOverData();
+            tinHandler.resetTin();
+            checkTin(tinHandler);
+            if (tinHandler.getCurrentGroundPointsNum() == tinBefore) {
+                break;
+            }
+        }
+        assertTrue(tinHandler.getCurrentGroundPointsNum() > 2 * seeds.size());
+    }
+
+    private double groundElevation( double x, double y ) {
+        return 0.05 * x + 0.02 * y;
+    }
+
+    /**
+     * Compare the incrementally updated tin with one built from scratch on the same ground points.
+     */
+    private void checkTin( TinHandler tinHandler ) {
+        Geometry[] triangles = tinHandler.getTriangles();
+
+        List<Coordinate> groundCoordinates = new ArrayList<Coordinate>();
+        SimpleFeatureCollection tinPoints = tinHandler.toFeatureCollectionTinPoints();
+        SimpleFeatureIterator iterator = tinPoints.features();
+        try {
+            while( iterator.hasNext() ) {
+                SimpleFeature feature = iterator.next();
+                Point point = (Point) feature.getDefaultGeometry();
+                groundCoordinates.add(point.getCoordinate());
+            }
+        } finally {
+            iterator.close();
+        }
+        DelaunayTriangulationBuilder builder = new DelaunayTriangulationBuilder();
+        builder.setSites(groundCoordinates);
+        Geometry rebuiltTriangles = builder.getTriangles(gf);
+
+        Set<String> incrementalKeys = new HashSet<String>();
+        for( Geometry triangle : triangles ) {
+            incrementalKeys.add(triangleKey(triangle));
+        }
+        Set<String> rebuiltKeys = new HashSet<String>();
+        for( int i = 0; i < rebuiltTriangles.getNumGeometries(); i++ ) {
+            rebuiltKeys.add(triangleKey(rebuiltTriangles.getGeometryN(i)));
+        }
+        assertEquals(rebuiltTriangles.getNumGeometries(), triangles.length);
+        assertEquals(rebuiltKeys, incrementalKeys);
+    }
+
+    private String triangleKey( Geometry triangle ) {
+        Coordinate[] coordinates = triangle.getCoordinates();
+        Coordinate[] nodes = new Coordinate[]{coordinates[0], coordinates[1], coordinates[2]};
+        Arrays.sort(nodes);
+        StringBuilder sb = new StringBuilder();
+        for( Coordinate node : nodes ) {
+            sb.append(node.x).append(" ").append(node.y).append(";");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A data manager on a list of records in memory.
+     */
+    private class RecordsDataManager extends ALasDataManager {
+        private final List<LasRecord> records;
+
+        public RecordsDataManager( List<LasRecord> records ) {
+            this.records = records;
+        }
+
+        public File getFile() {
+            return null;
+        }
+
+        public void open() throws Exception {
+        }
+
+        public List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+            List<LasRecord> pointsInGeometry = new ArrayList<LasRecord>();
+            for( LasRecord record : records ) {
+                Point point = gf.createPoint(new Coordinate(record.x, record.y));
+                if (checkGeom.intersects(point)) {
+                    pointsInGeometry.add(record);
+                }
+            }
+            return pointsInGeometry;
+        }
+
+        public LasPointBatch getPointBatchInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
+                throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public ReferencedEnvelope getOverallEnvelope() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<ReferencedEnvelope> getEnvelopeList() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public ReferencedEnvelope3D getEnvelope3D() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public SimpleFeatureCollection getOverviewFeatures() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() throws Exception {
+        }
+    }
+}
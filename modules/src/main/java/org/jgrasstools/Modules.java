@@ -27,6 +27,7 @@ import oms3.annotations.UI;
 
 import org.jgrasstools.gears.JGrassGears;
 import org.jgrasstools.gears.libs.modules.ClassField;
+import org.jgrasstools.gears.libs.modules.ModulesIndex;
 import org.scannotation.AnnotationDB;
 import org.scannotation.ClasspathUrlFinder;
 
@@ -92,7 +93,30 @@ public class Modules {
      */
     public String[] allClasses = null;
 
+    /**
+     * Fill the registry from the component index written at build time, if available.
+     * 
+     * @return <code>false</code> if the classpath needs to be scanned.
+     */
+    private boolean gatherFromIndex() {
+        List<String> classNames = new ArrayList<String>();
+        List<String> fieldNamesList = new ArrayList<String>();
+        if (!ModulesIndex.gather(Modules.class.getClassLoader(), "org.jgrasstools.modules", moduleName2Class, moduleName2Fields, classNames,
+                fieldNamesList)) {
+            return false;
+        }
+        Collections.sort(fieldNamesList);
+        allFields = (String[]) fieldNamesList.toArray(new String[fieldNamesList.size()]);
+        Collections.sort(classNames);
+        allClasses = (String[]) classNames.toArray(new String[classNames.size()]);
+        return true;
+    }
+
     private void gatherInformations() {
+        // an explicit url is scanned, otherwise the index avoids loading and instantiating all the modules
+        if (baseclassUrl == null && gatherFromIndex()) {
+            return;
+        }
 
         try {
             if (baseclassUrl == null) {
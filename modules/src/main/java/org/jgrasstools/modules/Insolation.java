@@ -27,6 +27,8 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_NA
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_STATUS;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_inElev_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_outIns_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_pHorizonSectors_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_pMaxThreads_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_tEndDate_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_tStartDate_DESCRIPTION;
 import oms3.annotations.Author;
@@ -66,6 +68,14 @@ public class Insolation extends JGTModel {
     @In
     public String tEndDate = null;
 
+    @Description(OMSINSOLATION_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
+    @Description(OMSINSOLATION_pHorizonSectors_DESCRIPTION)
+    @In
+    public int pHorizonSectors = 0;
+
     @Description(OMSINSOLATION_outIns_DESCRIPTION)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -77,6 +87,8 @@ public class Insolation extends JGTModel {
         insolation.inElev = getRaster(inElev);
         insolation.tStartDate = tStartDate;
         insolation.tEndDate = tEndDate;
+        insolation.pMaxThreads = pMaxThreads;
+        insolation.pHorizonSectors = pHorizonSectors;
         insolation.pm = pm;
         insolation.doProcess = doProcess;
         insolation.doReset = doReset;
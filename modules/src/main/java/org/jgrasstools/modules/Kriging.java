@@ -38,6 +38,9 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_outDa
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_outGrid_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pA_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pIntegralscale_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMaxDistance_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMaxNeighbours_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMaxThreads_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMode_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pNug_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pS_DESCRIPTION;
@@ -150,6 +153,18 @@ public class Kriging extends JGTModel {
     @In
     public double pNug;
 
+    @Description(OMSKRIGING_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
+    @Description(OMSKRIGING_pMaxNeighbours_DESCRIPTION)
+    @In
+    public int pMaxNeighbours = 0;
+
+    @Description(OMSKRIGING_pMaxDistance_DESCRIPTION)
+    @In
+    public double pMaxDistance = 0;
+
     @Description(OMSKRIGING_outGrid_DESCRIPTION)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -204,6 +219,9 @@ public class Kriging extends JGTModel {
         kriging.pA = pA;
         kriging.pS = pS;
         kriging.pNug = pNug;
+        kriging.pMaxThreads = pMaxThreads;
+        kriging.pMaxNeighbours = pMaxNeighbours;
+        kriging.pMaxDistance = pMaxDistance;
         kriging.pm = pm;
         kriging.doProcess = doProcess;
         kriging.doReset = doReset;
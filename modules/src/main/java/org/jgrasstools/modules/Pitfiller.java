@@ -25,6 +25,8 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_LAB
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_LICENSE;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_STATUS;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_doEpsilon_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_doPriorityFlood_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_inElev_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_outPit_DESCRIPTION;
 import oms3.annotations.Author;
@@ -55,6 +57,14 @@ public class Pitfiller extends JGTModel {
     @In
     public String inElev;
 
+    @Description(OMSPITFILLER_doPriorityFlood_DESCRIPTION)
+    @In
+    public boolean doPriorityFlood = false;
+
+    @Description(OMSPITFILLER_doEpsilon_DESCRIPTION)
+    @In
+    public boolean doEpsilon = false;
+
     @Description(OMSPITFILLER_outPit_DESCRIPTION)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -64,6 +74,8 @@ public class Pitfiller extends JGTModel {
     public void process() throws Exception {
         OmsPitfiller pitfiller = new OmsPitfiller();
         pitfiller.inElev = getRaster(inElev);
+        pitfiller.doPriorityFlood = doPriorityFlood;
+        pitfiller.doEpsilon = doEpsilon;
         pitfiller.pm = pm;
         pitfiller.doProcess = doProcess;
         pitfiller.doReset = doReset;
@@ -27,6 +27,8 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_STATUS;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_inElev_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_outSky_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_pHorizonSectors_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_pMaxThreads_DESCRIPTION;
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Execute;
@@ -56,6 +58,14 @@ public class Skyview extends JGTModel {
     @In
     public String inElev = null;
 
+    @Description(OMSSKYVIEW_pHorizonSectors_DESCRIPTION)
+    @In
+    public int pHorizonSectors = 0;
+
+    @Description(OMSSKYVIEW_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSSKYVIEW_outSky_DESCRIPTION)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -65,6 +75,8 @@ public class Skyview extends JGTModel {
     public void process() throws Exception {
         OmsSkyview skyview = new OmsSkyview();
         skyview.inElev = getRaster(inElev);
+        skyview.pHorizonSectors = pHorizonSectors;
+        skyview.pMaxThreads = pMaxThreads;
         skyview.pm = pm;
         skyview.doProcess = doProcess;
         skyview.doReset = doReset;
@@ -25,10 +25,12 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_LICENSE;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_STATUS;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_doTopological_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_inFlow_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_inToSum_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_outSummed_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_pLowerThres_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_pMaxThreads_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSUMDOWNSTREAM_pUpperThres_DESCRIPTION;
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -72,6 +74,14 @@ public class SumDownStream extends JGTModel {
     @In
     public Double pLowerThres = null;
 
+    @Description(OMSSUMDOWNSTREAM_doTopological_DESCRIPTION)
+    @In
+    public boolean doTopological = false;
+
+    @Description(OMSSUMDOWNSTREAM_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSSUMDOWNSTREAM_outSummed_DESCRIPTION)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -84,6 +94,8 @@ public class SumDownStream extends JGTModel {
         sumdownstream.inToSum = getRaster(inToSum);
         sumdownstream.pUpperThres = pUpperThres;
         sumdownstream.pLowerThres = pLowerThres;
+        sumdownstream.doTopological = doTopological;
+        sumdownstream.pMaxThreads = pMaxThreads;
         sumdownstream.pm = pm;
         sumdownstream.doProcess = doProcess;
         sumdownstream.doReset = doReset;
@@ -33,6 +33,7 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_OU
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_P_BUFFER_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_P_MAX_THREADS_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_P_MODE_DESCRIPTION;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_P_NEIGHBOURS_DESCRIPTION;
 import static org.jgrasstools.gears.libs.modules.Variables.IDW;
 import static org.jgrasstools.gears.libs.modules.Variables.TPS;
 import oms3.annotations.Author;
@@ -91,6 +92,10 @@ public class SurfaceInterpolator extends JGTModel {
     @In
     public double pBuffer = 4.0;
 
+    @Description(OMSSURFACEINTERPOLATOR_P_NEIGHBOURS_DESCRIPTION)
+    @In
+    public int pNeighbours = 0;
+
     @Description(OMSSURFACEINTERPOLATOR_P_MAX_THREADS_DESCRIPTION)
     @In
     public int pMaxThreads = 1;
@@ -109,6 +114,7 @@ public class SurfaceInterpolator extends JGTModel {
         surfaceinterpolator.fCat = fCat;
         surfaceinterpolator.pMode = pMode;
         surfaceinterpolator.pBuffer = pBuffer;
+        surfaceinterpolator.pNeighbours = pNeighbours;
         surfaceinterpolator.pMaxThreads = pMaxThreads;
         surfaceinterpolator.pm = pm;
         surfaceinterpolator.doProcess = doProcess;
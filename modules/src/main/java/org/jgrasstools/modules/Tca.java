@@ -25,9 +25,11 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_LABEL;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_LICENSE;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_STATUS;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_doTopological_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_inFlow_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_outLoop_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_outTca_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_pMaxThreads_DESCRIPTION;
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Execute;
@@ -56,6 +58,14 @@ public class Tca extends JGTModel {
     @In
     public String inFlow = null;
 
+    @Description(OMSTCA_doTopological_DESCRIPTION)
+    @In
+    public boolean doTopological = false;
+
+    @Description(OMSTCA_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSTCA_outTca_DESCRIPTION)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -70,6 +80,8 @@ public class Tca extends JGTModel {
     public void process() throws Exception {
         OmsTca omstca = new OmsTca();
         omstca.inFlow = getRaster(inFlow);
+        omstca.doTopological = doTopological;
+        omstca.pMaxThreads = pMaxThreads;
         omstca.pm = pm;
         omstca.doProcess = doProcess;
         omstca.doReset = doReset;
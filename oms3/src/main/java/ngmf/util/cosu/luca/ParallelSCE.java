@@ -0,0 +1,440 @@
+package ngmf.util.cosu.luca;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import oms3.dsl.cosu.Step;
+
+/**
+ * SCE-UA evolving the complexes of a shuffling loop concurrently.
+ *
+ * <p>
+ * The algorithm is the one of {@link SCE}, but the complexes are independent
+ * between two shuffles, so they are evolved as separate tasks, as are the
+ * points of the initial population. Every model run takes one of the given
+ * execution handles, so every handle must own an isolated model instance
+ * and output folder, and the number of handles is the number of concurrent
+ * model runs.
+ * </p>
+ *
+ * <p>
+ * All the random numbers come from the seed: the initial population is drawn
+ * from it, every complex evolves with its own generator seeded from it, and
+ * the model runs left are split evenly among the complexes at each shuffle.
+ * The result does not depend on the number of handles or on the order in
+ * which the runs finish, the same seed gives the same calibration.
+ * </p>
+ *
+ * @author od
+ */
+public class ParallelSCE {
+
+    double[] initialParameterSet;
+    double[] lowerBound;
+    double[] upperBound;
+    int numOfParams;
+    int initNumOfComplexes;
+    int numOfPointsInComplex;
+    int numOfPointsInSubComplex;
+    int numOfEvolutionSteps;
+    int minNumOfComplexes;
+    int maxNumOfTrials;
+    int numOfShufflingLoops;
+    double percentage;
+    boolean paramConvergenceSATISFIED;
+    boolean maximize;
+
+    // the population, sorted after every shuffle
+    double[][] pointsX;
+    double[] objFuncValueOfX;
+    double objFuncValueOfWorstPoint;
+    double[] stdDevOfPopulation;
+    double normalizedGeometricMean;
+    double[] bound;
+    int currentNumOfComplexes;
+    int totalNumOfPoints;
+    double[] initialPoint;
+    double[] bestCriterion = new double[10];
+    int NLOOP = 0;
+    int icall = 0;
+    //
+    final ExecutionHandle executionHandle;
+    final Step stepData;
+    final Step.Data data;
+    final Random random;
+    final BlockingQueue<Runner> runners;
+    final int threads;
+
+    PrintStream out = System.out;
+
+    /**
+     * Create the driver.
+     *
+     * @param executionHandle the handle the best parameters are written to.
+     * @param executionHandles the handles running the model, one per
+     *      concurrent model run, each with its own model instance.
+     * @param stepData the calibration step.
+     * @param data the step data of the round, the best point is stored in it.
+     * @param seed the seed of all the random numbers.
+     */
+    public ParallelSCE(ExecutionHandle executionHandle, ExecutionHandle[] executionHandles, Step stepData, Step.Data data, long seed) {
+        if (executionHandles.length == 0) {
+            throw new IllegalArgumentException("No execution handle.");
+        }
+        this.executionHandle = executionHandle;
+        this.stepData = stepData;
+        this.data = data;
+        this.random = new Random(seed);
+        this.threads = executionHandles.length;
+
+        // every handle runs with its own copy of the parameters
+        runners = new ArrayBlockingQueue<Runner>(threads);
+        for (ExecutionHandle handle : executionHandles) {
+            runners.add(new Runner(handle, data.copy()));
+        }
+
+        numOfParams = data.getParamValues().length;
+        initNumOfComplexes = stepData.getInitComplexes();
+        numOfPointsInComplex = stepData.getPointsPerComplex();
+        numOfPointsInSubComplex = stepData.getPointsPerSubcomplex();
+        numOfEvolutionSteps = stepData.getEvolutions();
+        minNumOfComplexes = stepData.getMinComplexes();
+        maxNumOfTrials = stepData.getMaxExec();
+        numOfShufflingLoops = stepData.getShufflingLoops();
+        percentage = stepData.getOfPercentage();
+        maximize = stepData.maximizeObjectiveFunctionValue();
+        upperBound = data.getUpperBound();
+        lowerBound = data.getLowerBound();
+        initialParameterSet = data.getParamValues();
+
+        stdDevOfPopulation = new double[numOfParams];
+        bound = new double[numOfParams];
+        initialPoint = new double[numOfParams];
+    }
+
+    public void setOut(PrintStream out) {
+        this.out = out;
+    }
+
+    public void run() throws Exception {
+        currentNumOfComplexes = initNumOfComplexes;
+        totalNumOfPoints = initNumOfComplexes * numOfPointsInComplex;
+
+        for (int j = 0; j < numOfParams; j++) {
+            bound[j] = upperBound[j] - lowerBound[j];
+            initialPoint[j] = initialParameterSet[j];
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            double objFuncValue = execute(initialPoint.clone());
+
+            out.println("\n Initial OF value : " + objFuncValue);
+            out.print(" Initial Parameterset : ");
+            for (int j = 0; j < initialParameterSet.length; j++) {
+                out.print(" " + initialParameterSet[j]);
+            }
+            out.println();
+
+            if (maxNumOfTrials <= 1) {
+                out.println("Due to max model execution of 1, no optimization was done. "
+                        + "The only thing that was done is the calculation of objective function for initial values.");
+                return;
+            }
+
+            out.println(" SCE generating data points on " + threads + " threads ....");
+            totalNumOfPoints = Math.min(totalNumOfPoints, maxNumOfTrials);
+            pointsX = new double[totalNumOfPoints][numOfParams];
+            objFuncValueOfX = new double[totalNumOfPoints];
+            pointsX[0] = initialPoint.clone();
+            objFuncValueOfX[0] = objFuncValue;
+            data.setObjFuncValueOfBestPoint(objFuncValue);
+
+            List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+            for (int i = 1; i < totalNumOfPoints; i++) {
+                for (int j = 0; j < numOfParams; j++) {
+                    pointsX[i][j] = lowerBound[j] + bound[j] * random.nextDouble();
+                }
+                final double[] point = pointsX[i].clone();
+                tasks.add(new Callable<Double>() {
+
+                    @Override
+                    public Double call() throws Exception {
+                        return execute(point);
+                    }
+                });
+            }
+            List<Future<Double>> values = executor.invokeAll(tasks);
+            for (int i = 1; i < totalNumOfPoints; i++) {
+                objFuncValueOfX[i] = get(values.get(i - 1));
+            }
+
+            shuffled();
+            out.print("\n Results of the initial SCE research:");
+            for (int j = 0; j < numOfParams; j++) {
+                out.print(" " + pointsX[0][j]);
+            }
+            out.println();
+
+            int outputType;
+            if (icall >= maxNumOfTrials) {
+                outputType = 1;
+            } else if (paramConvergenceSATISFIED) {
+                outputType = 3;
+            } else {
+                outputType = mainLoop(executor);
+            }
+
+            double[] bestPoint = data.getBestParamDataArray();
+            data.setParamValues(bestPoint);
+            executionHandle.writeParameterFile(data);
+
+            String output = "";
+            out.println("\n **************************************************");
+            if (outputType == 1) {
+                output = " Optimization terminated, limit "
+                        + "on the maximum number of trials, " + maxNumOfTrials + ", was exceeded.\n"
+                        + " Search was stopped in shuffling loop. " + NLOOP;
+            } else if (outputType == 2) {
+                output = " Optimization terminated, OF value "
+                        + "has not changed " + percentage + "% in " + numOfShufflingLoops
+                        + " shuffling loops.";
+            } else if (outputType == 3) {
+                double normalizedGeometricMean2 = normalizedGeometricMean * 100;
+                output = " Optimization terminated, population has "
+                        + "converged into " + normalizedGeometricMean2 + "% of the feasible space.";
+            }
+            out.println(output);
+            out.println(" **************************************************");
+            out.print(" Final parameter estimates:");
+            for (int j = 0; j < numOfParams; j++) {
+                out.print(" " + bestPoint[j]);
+                initialParameterSet[j] = bestPoint[j];
+            }
+            out.println();
+            out.println(" Final OF value: " + data.getObjFuncValueOfBestPoint());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int mainLoop(ExecutorService executor) throws Exception {
+        out.println(" SCE shuffling ....");
+        int outputType;
+        while (true) {
+            NLOOP++;
+            // the runs left, split in fixed shares so that the
+            // outcome does not depend on which complex is faster.
+            int left = maxNumOfTrials - icall;
+            List<Complex> complexes = new ArrayList<Complex>();
+            for (int igs = 0; igs < currentNumOfComplexes; igs++) {
+                int budget = left / currentNumOfComplexes + (igs < left % currentNumOfComplexes ? 1 : 0);
+                complexes.add(new Complex(igs, budget, random.nextLong()));
+            }
+            List<Future<Complex>> evolved = executor.invokeAll(complexes);
+            for (Future<Complex> f : evolved) {
+                get(f).store();
+            }
+
+            shuffled();
+
+            if (icall >= maxNumOfTrials) {
+                outputType = 1;
+                break;
+            }
+
+            int lastIndex = bestCriterion.length - 1;
+            bestCriterion[lastIndex] = data.getObjFuncValueOfBestPoint();
+            if (NLOOP > numOfShufflingLoops) {
+                if (NLOOP >= bestCriterion.length) {
+                    int idx = lastIndex - numOfShufflingLoops;
+                    if (idx < 0) {
+                        idx = 0;
+                    }
+                    double denomi = Math.abs(bestCriterion[idx] + bestCriterion[lastIndex]) / 2;
+                    double timeou = Math.abs(bestCriterion[idx] - bestCriterion[lastIndex]) / denomi;
+                    if (timeou < percentage) {
+                        outputType = 2;
+                        break;
+                    }
+                }
+            }
+            for (int l = 0; l < lastIndex; l++) {
+                bestCriterion[l] = bestCriterion[l + 1];
+            }
+            if (paramConvergenceSATISFIED) {
+                outputType = 3;
+                break;
+            }
+            if (currentNumOfComplexes > minNumOfComplexes) {
+                int lastNumOfComplexes = currentNumOfComplexes;
+                currentNumOfComplexes -= 1;
+                totalNumOfPoints = currentNumOfComplexes * numOfPointsInComplex;
+                double[][] newPoints = new double[totalNumOfPoints][];
+                double[] newValues = new double[totalNumOfPoints];
+                SCE.comp(pointsX, objFuncValueOfX, lastNumOfComplexes, newPoints, newValues, currentNumOfComplexes);
+                pointsX = newPoints;
+                objFuncValueOfX = newValues;
+            }
+        }
+        return outputType;
+    }
+
+    /**
+     * Sort the population and update the best point and the statistics.
+     */
+    private void shuffled() {
+        SCE.sort_duan(pointsX, objFuncValueOfX, maximize);
+        data.setBestParamData(pointsX[0], objFuncValueOfX[0]);
+        objFuncValueOfWorstPoint = objFuncValueOfX[totalNumOfPoints - 1];
+        normalizedGeometricMean = SCE.parstt(pointsX, totalNumOfPoints, bound, stdDevOfPopulation);
+        paramConvergenceSATISFIED = normalizedGeometricMean <= SCE.PEPS;
+    }
+
+    /**
+     * Run the model on a point with a free handle.
+     */
+    double execute(double[] point) throws Exception {
+        Runner r = runners.take();
+        try {
+            r.data.setParamValues(point);
+            r.handle.execute(r.data);
+            double of = stepData.calculateObjectiveFunctionValue(r.handle);
+            executed(of);
+            return of;
+        } finally {
+            runners.put(r);
+        }
+    }
+
+    private synchronized void executed(double of) {
+        icall++;
+        out.print("\n    " + icall + ": " + of + " [" + data.getObjFuncValueOfBestPoint() + "/" + objFuncValueOfWorstPoint + "]"
+                + " c:" + currentNumOfComplexes);
+    }
+
+    private static <T> T get(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException E) {
+            if (E.getCause() instanceof Exception) {
+                throw (Exception) E.getCause();
+            }
+            throw E;
+        }
+    }
+
+    /**
+     * A model execution handle with the step data it runs.
+     */
+    static class Runner {
+
+        final ExecutionHandle handle;
+        final Step.Data data;
+
+        Runner(ExecutionHandle handle, Step.Data data) {
+            this.handle = handle;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The evolution of one complex during a shuffling loop, with its
+     * own random numbers and share of model runs.
+     */
+    class Complex extends SCE.Simplex implements Callable<Complex> {
+
+        final int igs;
+        final int budget;
+        int used = 0;
+        double[][] pointsInComplex = new double[numOfPointsInComplex][];
+        double[] objFuncValuesOfComplex = new double[numOfPointsInComplex];
+        int[] indicesOfSimplex = new int[numOfPointsInSubComplex];
+
+        Complex(int igs, int budget, long seed) {
+            super(ParallelSCE.this.lowerBound, ParallelSCE.this.upperBound, ParallelSCE.this.bound,
+                    ParallelSCE.this.stdDevOfPopulation, ParallelSCE.this.numOfPointsInSubComplex,
+                    ParallelSCE.this.maximize, new Random(seed), ParallelSCE.this.out);
+            this.igs = igs;
+            this.budget = budget;
+            for (int k1 = 0; k1 < numOfPointsInComplex; k1++) {
+                int k2 = k1 * currentNumOfComplexes + igs;
+                pointsInComplex[k1] = pointsX[k2].clone();
+                objFuncValuesOfComplex[k1] = objFuncValueOfX[k2];
+            }
+        }
+
+        @Override
+        public Complex call() throws Exception {
+            for (int loop = 0; loop < numOfEvolutionSteps && used < budget; loop++) {
+                if (numOfPointsInSubComplex == numOfPointsInComplex) {
+                    for (int k = 0; k < numOfPointsInSubComplex; k++) {
+                        indicesOfSimplex[k] = k;
+                    }
+                } else {
+                    // triangular distribution, favouring the best points
+                    for (int k = 0; k < numOfPointsInSubComplex; k++) {
+                        boolean again = true;
+                        int lpos = -1;
+                        while (again) {
+                            again = false;
+                            lpos = (int) (numOfPointsInComplex + 0.5
+                                    - Math.sqrt(Math.pow((numOfPointsInComplex + 0.5), 2)
+                                    - numOfPointsInComplex * (numOfPointsInComplex + 1) * random.nextDouble()));
+                            for (int k1 = 0; k1 < k; k1++) {
+                                if (lpos == indicesOfSimplex[k1]) {
+                                    again = true;
+                                    break;
+                                }
+                            }
+                        }
+                        indicesOfSimplex[k] = lpos;
+                    }
+                    Arrays.sort(indicesOfSimplex);
+                }
+                for (int k = 0; k < numOfPointsInSubComplex; k++) {
+                    pointsInSimplex[k] = pointsInComplex[indicesOfSimplex[k]].clone();
+                    objFuncValuesOfSimplex[k] = objFuncValuesOfComplex[indicesOfSimplex[k]];
+                }
+                cce();
+                for (int k = 0; k < numOfPointsInSubComplex; k++) {
+                    pointsInComplex[indicesOfSimplex[k]] = pointsInSimplex[k];
+                    objFuncValuesOfComplex[indicesOfSimplex[k]] = objFuncValuesOfSimplex[k];
+                }
+                SCE.sort_duan(pointsInComplex, objFuncValuesOfComplex, maximize);
+            }
+            return this;
+        }
+
+        /**
+         * Put the evolved points back into the population.
+         */
+        void store() {
+            for (int k1 = 0; k1 < numOfPointsInComplex; k1++) {
+                int k2 = k1 * currentNumOfComplexes + igs;
+                pointsX[k2] = pointsInComplex[k1];
+                objFuncValueOfX[k2] = objFuncValuesOfComplex[k1];
+            }
+        }
+
+        @Override
+        double execute(double[] point) throws Exception {
+            used++;
+            return ParallelSCE.this.execute(point.clone());
+        }
+
+        @Override
+        boolean isExhausted() {
+            return used >= budget;
+        }
+    }
+}
@@ -65,6 +65,27 @@ public class ParameterData {
 
     }
 
+    /** A copy with the same state, bounds and offset included, that
+     * shares no array with this parameter. */
+    public ParameterData copy() {
+        ParameterData p = new ParameterData(name);
+        p.calibrationType = calibrationType;
+        p.data = data == null ? null : data.clone();
+        p.lowerBound = lowerBound;
+        p.upperBound = upperBound;
+        p.originalLowerBound = originalLowerBound;
+        p.originalUpperBound = originalUpperBound;
+        p.hasBounds = hasBounds;
+        p.min = min;
+        p.max = max;
+        p.offset = offset;
+        p.proportional_dev = proportional_dev == null ? null : proportional_dev.clone();
+        p.calibrationFlag = calibrationFlag == null ? null : calibrationFlag.clone();
+        p.calibrationDataSize = calibrationDataSize;
+        p.mean = mean;
+        return p;
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////
     // Methods to simply set each field or get each field
     ////////////////////////////////////////////////////////////////////////////////////
@@ -3,6 +3,7 @@ package ngmf.util.cosu.luca;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Random;
 import java.util.Vector;
 import oms3.dsl.cosu.Step;
 
@@ -51,10 +52,8 @@ public class SCE {
     double[][] pointsInComplex;
     //FUNCTION VALUES OF CX(.,.)
     double[] objFuncValuesOfComplex;
-    //COORDINATES OF POINTS IN THE CURRENT SIMPLEX
-    double[][] pointsInSimplex;
-    //FUNCTION VALUES OF S(.,.)
-    double[] objFuncValuesOfSimplex;
+    //THE CURRENT SIMPLEX AND ITS FUNCTION VALUES
+    Simplex simplex;
     //WORST POINT AT CURRENT SHUFFLING LOOP
     double[] worstPoint;
     //FUNCTION VALUE OF WORSTX(.)
@@ -124,8 +123,6 @@ public class SCE {
         pointsInComplex = new double[numOfPointsInComplex][numOfParams];
         objFuncValuesOfComplex = new double[numOfPointsInComplex];
 
-        pointsInSimplex = new double[numOfPointsInSubComplex][numOfParams];
-        objFuncValuesOfSimplex = new double[numOfPointsInSubComplex];
         worstPoint = new double[numOfParams];
 
         stdDevOfPopulation = new double[numOfParams];
@@ -148,6 +145,19 @@ public class SCE {
             bound[j] = upperBound[j] - lowerBound[j];
             initialPoint[j] = initialParameterSet[j];
         }
+        simplex = new Simplex(lowerBound, upperBound, bound, stdDevOfPopulation, numOfPointsInSubComplex,
+                stepData.maximizeObjectiveFunctionValue(), new Random(), out) {
+
+            @Override
+            double execute(double[] point) throws Exception {
+                return SCE.this.execute(point);
+            }
+
+            @Override
+            boolean isExhausted() {
+                return icall >= maxNumOfTrials;
+            }
+        };
 
         objFuncValue = execute(initialPoint); // write initialPoint in the 'newPARAMS' file, executes runMMS and SRobjfun()
 
@@ -203,7 +213,7 @@ public class SCE {
 //            out.println("size of pointsX = " + totalNumOfPoints + " (max size is " + pointsX.length + ")" +
 //                    ", max size of objFuncValueOfX = " + objFuncValueOfX.length);
 
-            sort_duan(pointsX, objFuncValueOfX);
+            sort_duan(pointsX, objFuncValueOfX, stepData.maximizeObjectiveFunctionValue());
 
             // set the best point and its objective function value
             data.setBestParamData(pointsX[0], objFuncValueOfX[0]);
@@ -323,18 +333,18 @@ public class SCE {
 
                     for (int k = 0; k < numOfPointsInSubComplex; k++) {
                         for (int j = 0; j < numOfParams; j++) {
-                            pointsInSimplex[k][j] = pointsInComplex[indicesOfSimplex[k]][j];
+                            simplex.pointsInSimplex[k][j] = pointsInComplex[indicesOfSimplex[k]][j];
                         }
-                        objFuncValuesOfSimplex[k] = objFuncValuesOfComplex[indicesOfSimplex[k]];
+                        simplex.objFuncValuesOfSimplex[k] = objFuncValuesOfComplex[indicesOfSimplex[k]];
                     }
-                    cce();
+                    simplex.cce();
                     for (int k = 0; k < numOfPointsInSubComplex; k++) {
                         for (int j = 0; j < numOfParams; j++) {
-                            pointsInComplex[indicesOfSimplex[k]][j] = pointsInSimplex[k][j];
+                            pointsInComplex[indicesOfSimplex[k]][j] = simplex.pointsInSimplex[k][j];
                         }
-                        objFuncValuesOfComplex[indicesOfSimplex[k]] = objFuncValuesOfSimplex[k];
+                        objFuncValuesOfComplex[indicesOfSimplex[k]] = simplex.objFuncValuesOfSimplex[k];
                     }
-                    sort_duan(pointsInComplex, objFuncValuesOfComplex);
+                    sort_duan(pointsInComplex, objFuncValuesOfComplex, stepData.maximizeObjectiveFunctionValue());
                     if (icall >= maxNumOfTrials) {
                         break;
                     }
@@ -351,7 +361,7 @@ public class SCE {
                 }
             } // end of for loop with IGS
 
-            sort_duan(pointsX, objFuncValueOfX);
+            sort_duan(pointsX, objFuncValueOfX, stepData.maximizeObjectiveFunctionValue());
             // set the best point and its objective function value
             data.setBestParamData(pointsX[0], objFuncValueOfX[0]);
             for (int j = 0; j < numOfParams; j++) {
@@ -432,71 +442,59 @@ public class SCE {
         return of;
     }
 
-    void sort_duan(double[][] x, double[] y) {
+    /* sorts the points x by their objective function values y, the best point first.
+     *  Also used by ParallelSCE. */
+    static void sort_duan(double[][] x, double[] y, boolean maximize) {
         Vector<Integer> indices = new Vector<Integer>();
         for (int i = 0; i < x.length; i++) {
-            indices.add(new Integer(i));
+            indices.add(i);
         }
-        if (!stepData.maximizeObjectiveFunctionValue()) {
-            Sorter sorter = new Sorter(y, Sorter.ASCENDING);
-            Collections.sort(indices, sorter);
-            Arrays.sort(y);
-        } else {
-            Sorter sorter = new Sorter(y, Sorter.DESCENDING);
-            Collections.sort(indices, sorter);
-            // sort y[] in ascending order
-            Arrays.sort(y);
-            // reverse the order of y to be in descending order
-            double[] new_y = new double[y.length];
-            for (int i = 0; i < y.length; i++) {
-                new_y[i] = y[y.length - 1 - i];
-            }
-            for (int i = 0; i < y.length; i++) {
-                y[i] = new_y[i];
-            }
-        }
-        double[][] new_x = new double[x.length][x[0].length];
+        Collections.sort(indices, new Sorter(y, maximize ? Sorter.DESCENDING : Sorter.ASCENDING));
+        double[][] new_x = new double[x.length][];
+        double[] new_y = new double[y.length];
         for (int i = 0; i < new_x.length; i++) {
             new_x[i] = x[indices.get(i).intValue()];
+            new_y[i] = y[indices.get(i).intValue()];
         }
-        for (int i = 0; i < x.length; i++) {
-            x[i] = new_x[i];
-        }
+        System.arraycopy(new_x, 0, x, 0, x.length);
+        System.arraycopy(new_y, 0, y, 0, y.length);
     }
 
     void parstt() {
-        double[] xMax = new double[numOfParams];
-        double[] xMin = new double[numOfParams];
-        double[] xMean = new double[numOfParams];
+        normalizedGeometricMean = parstt(pointsX, totalNumOfPoints, bound, stdDevOfPopulation);
+        paramConvergenceSATISFIED = normalizedGeometricMean <= PEPS;
+    }
+
+    // minimum normalized geometric mean of the parameter ranges
+    static final double PEPS = Math.pow(10, -3);
+
+    /* fills stdDevOfPopulation with the standard deviations of the parameters of
+     *  the first totalNumOfPoints points, normalized by their bounds, and returns the
+     *  normalized geometric mean of the parameter ranges. Also used by ParallelSCE. */
+    static double parstt(double[][] pointsX, int totalNumOfPoints, double[] bound, double[] stdDevOfPopulation) {
+        int numOfParams = bound.length;
         double delta = Math.pow(10, -20);
-//        double delta = 10E-20;
-        double peps = Math.pow(10, -3); // minimum standard deviation
-//        double peps = 10E-3;              // minimum standard deviation
         double gSum = 0;
         for (int k = 0; k < numOfParams; k++) {
-            xMax[k] = Double.MIN_VALUE;
-            xMin[k] = Double.MAX_VALUE;
+            double xMax = -Double.MAX_VALUE;
+            double xMin = Double.MAX_VALUE;
             double xSum1 = 0;
             double xSum2 = 0;
             for (int i = 0; i < totalNumOfPoints; i++) {
-                xMax[k] = Math.max(pointsX[i][k], xMax[k]);
-                xMin[k] = Math.min(pointsX[i][k], xMin[k]);
+                xMax = Math.max(pointsX[i][k], xMax);
+                xMin = Math.min(pointsX[i][k], xMin);
                 xSum1 = xSum1 + pointsX[i][k];
                 xSum2 = xSum2 + pointsX[i][k] * pointsX[i][k];
             }
-            xMean[k] = xSum1 / (double) totalNumOfPoints;
-            stdDevOfPopulation[k] = xSum2 / (double) totalNumOfPoints - xMean[k] * xMean[k];
+            double xMean = xSum1 / (double) totalNumOfPoints;
+            stdDevOfPopulation[k] = xSum2 / (double) totalNumOfPoints - xMean * xMean;
             if (stdDevOfPopulation[k] <= delta) {
                 stdDevOfPopulation[k] = delta;
             }
             stdDevOfPopulation[k] = Math.sqrt(stdDevOfPopulation[k]) / bound[k];
-            gSum += Math.log(delta + (xMax[k] - xMin[k]) / bound[k]);
-        }
-        normalizedGeometricMean = Math.pow(Math.E, gSum / (double) numOfParams);
-        paramConvergenceSATISFIED = false;
-        if (normalizedGeometricMean <= peps) {
-            paramConvergenceSATISFIED = true;
+            gSum += Math.log(delta + (xMax - xMin) / bound[k]);
         }
+        return Math.pow(Math.E, gSum / (double) numOfParams);
     }
 
     /*  This method returns the normal distance of the best point. This method
@@ -512,173 +510,219 @@ public class SCE {
     }
 
     void comp() {
-        double[][] tempPoints = new double[totalNumOfPoints][numOfParams];
-        double[] tempObjFuncValues = new double[totalNumOfPoints];
+        double[][] newPoints = new double[totalNumOfPoints][];
+        double[] newValues = new double[totalNumOfPoints];
+        comp(pointsX, objFuncValueOfX, lastNumOfComplexes, newPoints, newValues, currentNumOfComplexes);
+        pointsX = newPoints;
+        objFuncValueOfX = newValues;
+    }
 
-        // copy selected elements in pointsX and objFuncValueOfX to tempPoints and tempObjFuncValues
+    /* copies the points of the first currentNumOfComplexes complexes of a population
+     *  of lastNumOfComplexes complexes into newPoints and newValues, which are sized
+     *  for the new population. Also used by ParallelSCE. */
+    static void comp(double[][] pointsX, double[] objFuncValueOfX, int lastNumOfComplexes, double[][] newPoints,
+            double[] newValues, int currentNumOfComplexes) {
+        int numOfPointsInComplex = newValues.length / currentNumOfComplexes;
         for (int igs = 0; igs < currentNumOfComplexes; igs++) {
             for (int ipg = 0; ipg < numOfPointsInComplex; ipg++) {
                 int k1 = ipg * lastNumOfComplexes + igs;
                 int k2 = ipg * currentNumOfComplexes + igs;
-                for (int i = 0; i < numOfParams; i++) {
-                    tempPoints[k2][i] = pointsX[k1][i];
-                }
-                tempObjFuncValues[k2] = objFuncValueOfX[k1];
+                newPoints[k2] = pointsX[k1];
+                newValues[k2] = objFuncValueOfX[k1];
             }
         }
-        // reinitialize pointsX and objFuncValueOfX with a correct size
-        pointsX = new double[totalNumOfPoints][numOfParams];
-        objFuncValueOfX = new double[totalNumOfPoints];
-        // copy elements of tempPointx and tempObjFuncValues back to pointsX and objFuncValueOfX
-        for (int j = 0; j < totalNumOfPoints; j++) {
-            for (int i = 0; i < numOfParams; i++) {
-                pointsX[j][i] = tempPoints[j][i];
-            }
-            objFuncValueOfX[j] = tempObjFuncValues[j];
-        }
     }
 
-    void cce() throws Exception {
-        double[] worstPointSimplex = new double[numOfParams]; // WO(.)
-        double[] centroid = new double[numOfParams]; //CE(.)
-        double[] newPoint = new double[numOfParams]; //SNEW(.)
-        double[] vector = new double[numOfParams]; //STEP(.)
-        double worstObjFuncValue; //FW
+    /* returns an array of the specified size, containing the elements of index
+     *  from 0 to size - 1 in source. */
+    double[] copy(double[] source, int size) {
+        double[] newArray = new double[size];
+        for (int i = 0; i < size; i++) {
+            newArray[i] = source[i];
+        }
+        return newArray;
+    }
 
-        for (int j = 0; j < numOfParams; j++) {
-            // pointsInSimplex[] is sorted based on the objective functions values,
-            // so the element in the last index is the worst point.
-            worstPointSimplex[j] = pointsInSimplex[numOfPointsInSubComplex - 1][j];
-            centroid[j] = 0;
-            // exclude the last point (worst point) in this loop
-            for (int i = 0; i < (numOfPointsInSubComplex - 1); i++) {
-                centroid[j] += pointsInSimplex[i][j];
+    /* returns an 2D array[rowSize][length of columns of source], containing
+     *  the elements from source[0][] to source[size-1][]. */
+    double[][] copy(double[][] source, int rowSize) {
+        double[][] newArray = new double[rowSize][source[0].length];
+        for (int i = 0; i < rowSize; i++) {
+            for (int j = 0; j < newArray[0].length; j++) {
+                newArray[i][j] = source[i][j];
             }
-            centroid[j] = centroid[j] / ((double) (numOfPointsInSubComplex - 1));
-            vector[j] = centroid[j] - worstPointSimplex[j];
         }
-        worstObjFuncValue = objFuncValuesOfSimplex[numOfPointsInSubComplex - 1];
-        for (int j = 0; j < numOfParams; j++) {
-            newPoint[j] = worstPointSimplex[j] + 2 * vector[j];
+        return newArray;
+    }
+
+    /**
+     * The competitive complex evolution (CCE) of a sub-complex, shared by
+     * {@link SCE} and the complexes of {@link ParallelSCE}. Subclasses run the
+     * model and tell when no more runs are allowed.
+     */
+    static abstract class Simplex {
+
+        //COORDINATES OF POINTS IN THE CURRENT SIMPLEX, SORTED FROM THE BEST
+        double[][] pointsInSimplex;
+        //FUNCTION VALUES OF S(.,.)
+        double[] objFuncValuesOfSimplex;
+
+        final double[] lowerBound;
+        final double[] upperBound;
+        final double[] bound;
+        final double[] stdDevOfPopulation;
+        final int numOfParams;
+        final int numOfPointsInSubComplex;
+        final boolean maximize;
+        final Random random;
+        final PrintStream out;
+
+        boolean calculateGASDEV = true; // if true, gasdev() generates two new values
+        double gasdevValue2; // the value gasdev() returns the next time
+
+        /* bound and stdDevOfPopulation are read at every evolution, so they can be
+         *  updated by the owner of the population. */
+        Simplex(double[] lowerBound, double[] upperBound, double[] bound, double[] stdDevOfPopulation,
+                int numOfPointsInSubComplex, boolean maximize, Random random, PrintStream out) {
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            this.bound = bound;
+            this.stdDevOfPopulation = stdDevOfPopulation;
+            this.numOfParams = bound.length;
+            this.numOfPointsInSubComplex = numOfPointsInSubComplex;
+            this.maximize = maximize;
+            this.random = random;
+            this.out = out;
+            pointsInSimplex = new double[numOfPointsInSubComplex][numOfParams];
+            objFuncValuesOfSimplex = new double[numOfPointsInSubComplex];
         }
-        boolean outOfBOUND = false;
-        for (int j = 0; j < numOfParams; j++) {
-            if ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j])) {
-                outOfBOUND = true;
-                break;
-            }
+
+        /* runs the model on a point and returns its objective function value. */
+        abstract double execute(double[] point) throws Exception;
+
+        /* returns true if no more model runs are allowed. */
+        abstract boolean isExhausted();
+
+        boolean isWorse(double of, double than) {
+            return maximize ? of < than : of > than;
         }
-        if (outOfBOUND) {
-            getNewPointAtRandom(newPoint);
+
+        boolean isNotBetter(double of, double than) {
+            return maximize ? of <= than : of >= than;
         }
-        double newObjFuncValue = execute(newPoint);
 
-        if ((stepData.maximizeObjectiveFunctionValue() && newObjFuncValue <= worstObjFuncValue) ||
-                (!stepData.maximizeObjectiveFunctionValue() && newObjFuncValue >= worstObjFuncValue)) {
-            if (icall >= maxNumOfTrials) {
-                return; //ICALL;
-            }
+        /* replaces the worst point of the simplex by its reflection, its contraction
+         *  or a random point, in this order. */
+        void cce() throws Exception {
+            double[] worstPointSimplex = new double[numOfParams]; // WO(.)
+            double[] centroid = new double[numOfParams]; //CE(.)
+            double[] newPoint = new double[numOfParams]; //SNEW(.)
+            double[] vector = new double[numOfParams]; //STEP(.)
+
             for (int j = 0; j < numOfParams; j++) {
-                newPoint[j] = worstPointSimplex[j] + 0.5 * vector[j];
+                // pointsInSimplex[] is sorted based on the objective functions values,
+                // so the element in the last index is the worst point.
+                worstPointSimplex[j] = pointsInSimplex[numOfPointsInSubComplex - 1][j];
+                // exclude the last point (worst point) in this loop
+                for (int i = 0; i < (numOfPointsInSubComplex - 1); i++) {
+                    centroid[j] += pointsInSimplex[i][j];
+                }
+                centroid[j] = centroid[j] / ((double) (numOfPointsInSubComplex - 1));
+                vector[j] = centroid[j] - worstPointSimplex[j];
             }
-            newObjFuncValue = execute(newPoint);
-            if ((stepData.maximizeObjectiveFunctionValue() && newObjFuncValue < worstObjFuncValue) ||
-                    (!stepData.maximizeObjectiveFunctionValue() && newObjFuncValue > worstObjFuncValue)) {
-                if (icall >= maxNumOfTrials) {
-                    return;
+            double worstObjFuncValue = objFuncValuesOfSimplex[numOfPointsInSubComplex - 1]; //FW
+
+            // reflection
+            boolean outOfBOUND = false;
+            for (int j = 0; j < numOfParams; j++) {
+                newPoint[j] = worstPointSimplex[j] + 2 * vector[j];
+                if ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j])) {
+                    outOfBOUND = true;
                 }
+            }
+            if (outOfBOUND) {
                 getNewPointAtRandom(newPoint);
-                newObjFuncValue = execute(newPoint);
-
-            }// end of the 2nd if ((newObjFuncValue > worstObjFuncValue) ... )
-        } // end of the 1st if ((newObjFuncValue > worstObjFuncValue) ... )
-
-        for (int j = 0; j < numOfParams; j++) {
-            pointsInSimplex[numOfPointsInSubComplex - 1][j] = newPoint[j];
-        }
-        objFuncValuesOfSimplex[numOfPointsInSubComplex - 1] = newObjFuncValue;
-    }
+            }
+            double newObjFuncValue = execute(newPoint);
 
-    /* a new point is assigned to newPoint based on stdDevOfPopulation[],
-     *  gasdev(), bound[], and etc.*/
-    void getNewPointAtRandom(double[] newPoint) {
-        for (int j = 0; j < numOfParams; j++) {
-            int nnn = 0;
-            do {
-                double R = gasdev();
-                newPoint[j] = pointsInSimplex[0][j] + stdDevOfPopulation[j] * R * bound[j];
-                nnn++;
-                if (nnn == 1001) {
-                    out.println("SCE: getNewPointAtRandom(): Having hard time generating a new point in a feasible region");
+            if (isNotBetter(newObjFuncValue, worstObjFuncValue)) {
+                if (isExhausted()) {
+                    return;
                 }
-                if (nnn > 1000) {
-                    newPoint[j] = lowerBound[j] + Math.abs(R) * (0.5 * bound[j]);
-                    if (nnn % 100 == 1) {
-                        out.print("Attempt " + nnn + ": new point = " + newPoint[j] +
-                                ", lower bound = " + lowerBound[j] + ", upper bound = " + upperBound[j]);
-                    }
-                    if ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j])) {
-                        out.println(" ---> out of bound");
-                    } else {
-                        out.println(" ---> in bound!!");
+                // contraction
+                for (int j = 0; j < numOfParams; j++) {
+                    newPoint[j] = worstPointSimplex[j] + 0.5 * vector[j];
+                }
+                newObjFuncValue = execute(newPoint);
+                if (isWorse(newObjFuncValue, worstObjFuncValue)) {
+                    if (isExhausted()) {
+                        return;
                     }
+                    // mutation
+                    getNewPointAtRandom(newPoint);
+                    newObjFuncValue = execute(newPoint);
                 }
-            } while ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j]));
-        }
-    }
-    //
-    boolean calculateGASDEV = true; // if true, gasdev() returns gasdevValue1
-    double gasdevValue1; // one of the two values generated in gasdev()
-    double gasdevValue2; // one of the two values generated in gasdev()
+            }
 
-    /* returns a normally distributed deviate with zero mean and unit variance,
-     *  using random number generator, as the source of uniform deviates.
-     */
-    double gasdev() {
-        double R, v1, v2;
-        if (calculateGASDEV) {
-            // if we don't have an extra deviate handy
-            do {
-                // pick two uniform numbers in the square extending from -1 to +1
-                // in each direction
-                v1 = 2 * Math.random() - 1;
-                v2 = 2 * Math.random() - 1;
-                // check if v1 and v2 are in the unit circle
-                R = v1 * v1 + v2 * v2;
-            } while (R >= 1); // if v1 and v2 are not in the unit circle
-
-            // make the Box-Muller transformation to get two normal deviates
-            double fac = Math.sqrt((-1) * ((2 * Math.log(R)) / R));
-            gasdevValue2 = v1 * fac; // one of the two normal deviates. gasdevValue2 is returned
-            // next time this function is called
-            gasdevValue1 = v2 * fac; // the other normal deviate, which will be returned at this time
-            calculateGASDEV = false;
-            return gasdevValue1;
-        } else {
-            calculateGASDEV = true;
-            return gasdevValue2;
+            for (int j = 0; j < numOfParams; j++) {
+                pointsInSimplex[numOfPointsInSubComplex - 1][j] = newPoint[j];
+            }
+            objFuncValuesOfSimplex[numOfPointsInSubComplex - 1] = newObjFuncValue;
         }
-    }
 
-    /* returns an array of the specified size, containing the elements of index
-     *  from 0 to size - 1 in source. */
-    double[] copy(double[] source, int size) {
-        double[] newArray = new double[size];
-        for (int i = 0; i < size; i++) {
-            newArray[i] = source[i];
+        /* a new point is assigned to newPoint based on stdDevOfPopulation[],
+         *  gasdev(), bound[], and etc.*/
+        void getNewPointAtRandom(double[] newPoint) {
+            for (int j = 0; j < numOfParams; j++) {
+                int nnn = 0;
+                do {
+                    double R = gasdev();
+                    newPoint[j] = pointsInSimplex[0][j] + stdDevOfPopulation[j] * R * bound[j];
+                    nnn++;
+                    if (nnn == 1001) {
+                        out.println("SCE: getNewPointAtRandom(): Having hard time generating a new point in a feasible region");
+                    }
+                    if (nnn > 1000) {
+                        newPoint[j] = lowerBound[j] + Math.abs(R) * (0.5 * bound[j]);
+                        if (nnn % 100 == 1) {
+                            out.print("Attempt " + nnn + ": new point = " + newPoint[j] +
+                                    ", lower bound = " + lowerBound[j] + ", upper bound = " + upperBound[j]);
+                        }
+                        if ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j])) {
+                            out.println(" ---> out of bound");
+                        } else {
+                            out.println(" ---> in bound!!");
+                        }
+                    }
+                } while ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j]));
+            }
         }
-        return newArray;
-    }
 
-    /* returns an 2D array[rowSize][length of columns of source], containing
-     *  the elements from source[0][] to source[size-1][]. */
-    double[][] copy(double[][] source, int rowSize) {
-        double[][] newArray = new double[rowSize][source[0].length];
-        for (int i = 0; i < rowSize; i++) {
-            for (int j = 0; j < newArray[0].length; j++) {
-                newArray[i][j] = source[i][j];
+        /* returns a normally distributed deviate with zero mean and unit variance,
+         *  using random as the source of uniform deviates.
+         */
+        double gasdev() {
+            if (calculateGASDEV) {
+                // if we don't have an extra deviate handy
+                double R, v1, v2;
+                do {
+                    // pick two uniform numbers in the square extending from -1 to +1
+                    // in each direction
+                    v1 = 2 * random.nextDouble() - 1;
+                    v2 = 2 * random.nextDouble() - 1;
+                    // check if v1 and v2 are in the unit circle
+                    R = v1 * v1 + v2 * v2;
+                } while (R >= 1); // if v1 and v2 are not in the unit circle
+
+                // make the Box-Muller transformation to get two normal deviates
+                double fac = Math.sqrt((-1) * ((2 * Math.log(R)) / R));
+                gasdevValue2 = v1 * fac; // returned next time this function is called
+                calculateGASDEV = false;
+                return v2 * fac;
+            } else {
+                calculateGASDEV = true;
+                return gasdevValue2;
             }
         }
-        return newArray;
     }
 }
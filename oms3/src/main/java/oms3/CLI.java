@@ -187,6 +187,21 @@ public class CLI {
     }
 
     public static void main( String[] args ) {
+        int code = run(args);
+        if (code != 0) {
+            System.exit(code);
+        }
+    }
+
+    /**
+     * Run the command line in this vm.
+     * 
+     * <p>Errors are printed to {@link System#err} as by {@link #main(String[])}.
+     * 
+     * @param args the command line arguments.
+     * @return the exit code, 0 if no error occurred.
+     */
+    public static int run( String[] args ) {
         String ll = "OFF";
         String cmd = null;
         String file = null;
@@ -200,12 +215,12 @@ public class CLI {
                     ll = args[++i];
                 } else {
                     usage();
-                    return;
+                    return 0;
                 }
             }
             if (file == null) {
                 usage();
-                return;
+                return 0;
             }
 
             try {
@@ -219,7 +234,7 @@ public class CLI {
 
             // ignore all
             if (isgroovy) {
-                return;
+                return 0;
             }
 
             if (cmd.equals("-r")) {
@@ -284,7 +299,8 @@ public class CLI {
                 // System.err.println(ce.getMessage());
                 // }
             }
-            System.exit(1);
+            return 1;
         }
+        return 0;
     }
 }
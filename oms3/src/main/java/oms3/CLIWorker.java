@@ -0,0 +1,243 @@
+/*
+ * $Id$
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * Long lived vm running {@link CLI} commands sent by a parent process.
+ *
+ * <p>
+ * The parent talks to the worker through its standard streams, one UTF-8
+ * line per message, the fields separated by a tab:
+ * <pre>
+ * parent -&gt; worker:  RUN  loglevel  file     run the file, as CLI -l loglevel -r file
+ *                    CANCEL                 interrupt the running command
+ * worker -&gt; parent:  READY                  the worker is started
+ *                    OUT  line              a line the command printed to System.out
+ *                    ERR  line              a line the command printed to System.err
+ *                    DONE  code             the command finished with the exit code
+ * </pre>
+ * One command runs at a time. The worker exits when its input is closed,
+ * so it does not survive its parent.
+ * </p>
+ *
+ * @author Olaf David
+ * @version $Id$
+ */
+public class CLIWorker {
+
+    public static final String RUN = "RUN";
+    public static final String CANCEL = "CANCEL";
+    public static final String READY = "READY";
+    public static final String OUT = "OUT";
+    public static final String ERR = "ERR";
+    public static final String DONE = "DONE";
+
+    // of the messages and of the command output, whatever the platform encoding.
+    static final String ENCODING = "UTF-8";
+
+    private final Writer channel;
+    private final LineOutput out = new LineOutput(OUT);
+    private final LineOutput err = new LineOutput(ERR);
+    private Thread running;
+
+    CLIWorker(Writer channel) {
+        this.channel = channel;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // the real stdout carries the messages, the command output is framed into it.
+        Writer channel = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), ENCODING);
+        CLIWorker worker = new CLIWorker(channel);
+        System.setOut(worker.outStream());
+        System.setErr(worker.errStream());
+        worker.send(READY, null);
+        worker.serve(new BufferedReader(new InputStreamReader(System.in, ENCODING)));
+        System.exit(0);
+    }
+
+    /**
+     * @return the stream sending what is printed as {@link #OUT} messages.
+     */
+    PrintStream outStream() throws UnsupportedEncodingException {
+        return new PrintStream(out, true, ENCODING);
+    }
+
+    /**
+     * @return the stream sending what is printed as {@link #ERR} messages.
+     */
+    PrintStream errStream() throws UnsupportedEncodingException {
+        return new PrintStream(err, true, ENCODING);
+    }
+
+    /**
+     * Handle the messages of the parent until its input is closed.
+     *
+     * @param in the messages of the parent.
+     * @throws IOException if the messages cannot be read or answered.
+     */
+    void serve(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] msg = line.split("\t", 3);
+            if (msg[0].equals(RUN) && msg.length == 3) {
+                start(msg[1], msg[2]);
+            } else if (msg[0].equals(CANCEL)) {
+                cancel();
+            }
+        }
+        // parent is gone.
+        cancel();
+    }
+
+    /**
+     * Run a command.
+     *
+     * @param ll the log level.
+     * @param file the file to run.
+     * @return the exit code.
+     */
+    int execute(String ll, String file) {
+        return CLI.run(new String[]{"-l", ll, "-r", file});
+    }
+
+    private synchronized void start(final String ll, final String file) throws IOException {
+        if (running != null) {
+            send(ERR, "Worker busy, the command was not run.");
+            send(DONE, "1");
+            return;
+        }
+        running = new Thread("oms3-worker") {
+
+            @Override
+            public void run() {
+                int code = 1;
+                try {
+                    code = execute(ll, file);
+                } finally {
+                    System.out.flush();
+                    System.err.flush();
+                    out.sendPartial();
+                    err.sendPartial();
+                    finished(code);
+                }
+            }
+        };
+        running.start();
+    }
+
+    private synchronized void finished(int code) {
+        running = null;
+        try {
+            send(DONE, Integer.toString(code));
+        } catch (IOException E) {
+            // parent is gone, the input loop ends.
+        }
+    }
+
+    private synchronized void cancel() {
+        if (running != null) {
+            running.interrupt();
+        }
+    }
+
+    void send(String kind, String text) throws IOException {
+        synchronized (channel) {
+            channel.write(kind);
+            if (text != null) {
+                channel.write('\t');
+                channel.write(text);
+            }
+            channel.write('\n');
+            channel.flush();
+        }
+    }
+
+    /**
+     * Output stream sending every line as a message.
+     */
+    class LineOutput extends OutputStream {
+
+        private final String kind;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineOutput(String kind) {
+            this.kind = kind;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (b == '\n') {
+                sendLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    line.write(b, start, i - start);
+                    sendLine();
+                    start = i + 1;
+                }
+            }
+            line.write(b, start, off + len - start);
+        }
+
+        /**
+         * Send what is left of the last line, at the end of a command.
+         */
+        synchronized void sendPartial() {
+            if (line.size() > 0) {
+                try {
+                    sendLine();
+                } catch (IOException E) {
+                    line.reset();
+                }
+            }
+        }
+
+        private void sendLine() throws IOException {
+            String s = line.toString(ENCODING);
+            if (s.endsWith("\r")) {
+                s = s.substring(0, s.length() - 1);
+            }
+            line.reset();
+            send(kind, s);
+        }
+    }
+}
@@ -89,7 +89,7 @@ public class ComponentAccess {
         this.ens = ens;
         
         Method execute = getMethodOfInterest(comp, Execute.class);
-        exec = Utils.reflective(comp, execute);
+        exec = Utils.invoker(comp, execute);
 //        exec = Utils.compiled(comp, execute);
         findAll(comp, ins, outs, ens);
     }
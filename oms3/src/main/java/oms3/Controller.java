@@ -24,11 +24,9 @@ package oms3;
 
 import java.lang.annotation.Annotation;
 import java.util.*;
-import java.util.concurrent.*;
-import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import oms3.util.Threads;
+import oms3.util.Scheduler;
 
 /** Execution Controller.
  *
@@ -288,6 +286,7 @@ class Controller {
         FieldContent data = from_access.getData();
         data.tagIn();
         data.tagOut();
+        data.tagFeedback();
 
         //      dataSet.add(data);
         to_access.setData(data);                       // connect the two
@@ -333,54 +332,16 @@ class Controller {
     }
     // something internal.
     ComponentException E;
-    static ExecutorService executor = Executors.newCachedThreadPool();
 
     static void reload() {
-        executor = Executors.newCachedThreadPool();
-        Threads.e = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1);
+        // nothing to reload, the shared scheduler is created on its next use.
+        // shutting it down here would break the simulations that are running.
     }
 
     public static void shutdown() {
-        executor.shutdown();
-        Threads.e.shutdown();
+        Scheduler.shutdownShared();
     }
 
-    static private class Latch {
-
-        private int count;
-        final Object lock = new Object();
-
-        void reload(int count) {
-            this.count = count;
-        }
-
-        void open() {
-            synchronized (lock) {
-                count = 0;
-                lock.notify();
-            }
-        }
-
-        void countDown() {
-            synchronized (lock) {
-                if (--count <= 0) {
-                    lock.notify();
-                }
-            }
-        }
-
-        void await() throws InterruptedException {
-            synchronized (lock) {
-                while (count > 0) {
-                    lock.wait();
-                }
-            }
-        }
-    }
-    Latch latch = new Latch();
-    Runnable[] rc;
-    final Object l = new Object();
-
     protected void internalExec() throws ComponentException {
         Collection<ComponentAccess> comps = oMap.values();
         if (comps.isEmpty()) {
@@ -398,63 +359,29 @@ class Controller {
             dataRef.invalidate();
         }
 
-//        final CountDownLatch latch = new CountDownLatch(comps.size());
-        latch.reload(comps.size());
         ens.fireStart(ca);
-        if (rc == null) {
-            rc = new Runnable[comps.size()];
-            int i = 0;
+        if (E == null) {
+            // a failing component cancels this run only, not the shared scheduler.
+            Scheduler.Execution execution = Scheduler.newSharedExecution();
             for (final ComponentAccess co : comps) {
-                rc[i++] = new Runnable() {
+                execution.submit(new Runnable() {
 
                     @Override
                     public void run() {
-                        try {
-                            co.exec();
-                            latch.countDown();
-                        } catch (ComponentException ce) {
-                            synchronized (l) {
-                                if (E == null) {
-                                    E = ce;
-                                }
-                            }
-                            latch.open();
-                            executor.shutdownNow();
-                        }
+                        co.exec();
                     }
-                };
+                });
             }
-        }
-        for (Runnable r : rc) {
-            if (E != null) {
-                break;
+            try {
+                execution.await();
+            } catch (ComponentException ce) {
+                E = ce;
+            } catch (Throwable T) {
+                E = new ComponentException(T, ca.getComponent());
+            }
+            if (log.isLoggable(Level.FINE)) {
+                log.fine(String.format("%s: %s", ca.getComponent().getClass().getName(), execution.getScheduler()));
             }
-            executor.execute(r);
-        }
-
-//        for (final ComponentAccess ca : comps) {
-//            executor.execute(new Runnable() {
-//
-//                @Override
-//                public void run() {
-//                    try {
-//                        ca.exec();
-//                    } catch (ComponentException ce) {
-//                        synchronized (E) {
-//                            if (E == null) {
-//                                E = ce;
-//                            }
-//                        }
-//                        executor.shutdownNow();
-//                    }
-//                    latch.countDown();
-//                }
-//            });
-//        }
-        try {
-            latch.await();
-        } catch (InterruptedException IE) {
-            // nothing to do here.
         }
 
         // some of the components left an
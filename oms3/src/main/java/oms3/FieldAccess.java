@@ -19,14 +19,15 @@ class FieldAccess implements Access {
     FieldContent data;
     private static final Logger log = Logger.getLogger("oms3.sim");
 
-//    Access access;
+    // method handle accessor, null for plain reflection.
+    final HandleAccessors.FieldHandle access;
     
     FieldAccess(Object target, Field field, Notification ens) {
         this.field = field;
         this.comp = target;
         this.ens = ens;
         field.setAccessible(true);   // just in case
-//        access = Utils.compiled(comp, field);
+        access = Utils.fieldHandle(comp, field);
     }
 
     // called on 'out' access.
@@ -72,7 +73,16 @@ class FieldAccess implements Access {
             }
             return;
         }
-        Object val = data.getValue();
+        Object val = data.getRawValue();
+        if (val instanceof HandleAccessors.FieldHandle) {
+            HandleAccessors.FieldHandle from = (HandleAccessors.FieldHandle) val;
+            if (!ens.shouldFire() && HandleAccessors.canPass(from, access)) {
+                // same primitive type, no boxing and no conversion.
+                access.pass(from);
+                return;
+            }
+            val = from.toObject();
+        }
         // fire only if there is a listener
         if (ens.shouldFire()) {
             DataflowEvent e = new DataflowEvent(ens.getController(), this, val);
@@ -90,7 +100,6 @@ class FieldAccess implements Access {
             val = Conversions.convert(val, field.getType());
         }
 
-//        access.pass((Access) val);
         setFieldValue(val);
     }
 
@@ -102,8 +111,13 @@ class FieldAccess implements Access {
      */
     @Override
     public void out() throws Exception {
+        if (data != null && HandleAccessors.isPrimitive(access) && !data.isFeedback() && !ens.shouldFire()) {
+            // the consumers read the field through its handle, the component
+            // does not run again before they are done.
+            data.setValue(access);
+            return;
+        }
         Object val = getFieldValue();
-//        Object val = access;
 
         if (ens.shouldFire()) {
             DataflowEvent e = new DataflowEvent(ens.getController(), this, val);
@@ -144,6 +158,9 @@ class FieldAccess implements Access {
      */
     @Override
     final public Object getFieldValue() throws Exception {
+        if (access != null) {
+            return access.toObject();
+        }
         return field.get(comp);
     }
 
@@ -155,6 +172,14 @@ class FieldAccess implements Access {
      */
     @Override
     final public void setFieldValue(Object o) throws Exception {
+        if (access != null) {
+            try {
+                access.set(o);
+                return;
+            } catch (ClassCastException | NullPointerException E) {
+                // widening conversion or illegal value, reflection handles or reports it.
+            }
+        }
         field.set(comp, o);
     }
 
@@ -23,6 +23,8 @@
 package oms3;
 
 import java.lang.reflect.Field;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Generic Data Object for exchange
@@ -76,6 +78,8 @@ public class FieldContent {
     //
     private Object value;
     private Object shadow; // for now
+    // feedback values are read in the next iteration, they are never field handles.
+    private boolean feedback;
 
     // Invalidate the value in between iterations.
     // invalidate only if the input can be generated again.
@@ -109,19 +113,62 @@ public class FieldContent {
     /** Get the value object. This call blocks the caller until
      *  a value is set (!=null).
      * 
-     * @return the value
+     * @return the value, the current value of the field
+     *      if a field handle was set.
      */
-    synchronized Object getValue() {
-        while (value == NULL) {
+    Object getValue() {
+        Object v = getRawValue();
+        if (v instanceof HandleAccessors.FieldHandle) {
+            return ((HandleAccessors.FieldHandle) v).toObject();
+        }
+        return v;
+    }
+
+    /** Get the value object as it was set, blocking as {@link #getValue()}.
+     * 
+     * @return the value or the field handle of the source.
+     */
+    Object getRawValue() {
+        if (ForkJoinTask.inForkJoinPool()) {
+            // let the scheduler start another thread while this one waits.
             try {
-                wait();
+                ForkJoinPool.managedBlock(valueBlocker);
             } catch (InterruptedException ex) {
                 throw new RuntimeException(ex);
             }
         }
-        return value;
+        synchronized (this) {
+            while (value == NULL) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            return value;
+        }
     }
 
+    private final ForkJoinPool.ManagedBlocker valueBlocker = new ForkJoinPool.ManagedBlocker() {
+
+        @Override
+        public boolean block() throws InterruptedException {
+            synchronized (FieldContent.this) {
+                while (value == NULL) {
+                    FieldContent.this.wait();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            synchronized (FieldContent.this) {
+                return value != NULL;
+            }
+        }
+    };
+
     /**
      * Unsynchronized getValue
      * 
@@ -147,6 +194,14 @@ public class FieldContent {
         access |= LEAF;
     }
 
+    void tagFeedback() {
+        feedback = true;
+    }
+
+    boolean isFeedback() {
+        return feedback;
+    }
+
     int access() {
         return access;
     }
@@ -0,0 +1,439 @@
+/*
+ * $Id$
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import oms3.gen.Access;
+import oms3.gen.MethodInvoker;
+import oms3.gen.ObjectAccess;
+import oms3.gen.booleanAccess;
+import oms3.gen.doubleAccess;
+import oms3.gen.intAccess;
+
+/**
+ * Method handle based access to component methods and fields.
+ *
+ * <p>
+ * The methods of public classes that are visible from the oms3 class loader
+ * are linked through {@link LambdaMetafactory}, so that invoking them is a
+ * plain interface call. Other methods and all the fields go through method
+ * handles that are adapted once to the exact types, the double, int and boolean
+ * fields are read and passed without boxing as {@link doubleAccess},
+ * {@link intAccess} and {@link booleanAccess}. This replaces the javac based
+ * accessors of {@link Utils}, without needing a runtime compiler.
+ * </p>
+ *
+ * @author Olaf David
+ * @version $Id$
+ */
+final class HandleAccessors {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final boolean AVAILABLE = checkAvailable();
+    // linked execute methods, they do not capture the target.
+    private static final Map<Method, Consumer<Object>> invokers = new ConcurrentHashMap<Method, Consumer<Object>>();
+
+    private HandleAccessors() {
+    }
+
+    /**
+     * A security manager or the vm can refuse to unreflect members
+     * or to spin the lambda classes, so both are tried once.
+     */
+    private static boolean checkAvailable() {
+        try {
+            Probe probe = new Probe();
+            link(Probe.class.getMethod("execute")).accept(probe);
+            doubleAccess value = (doubleAccess) access(probe, Probe.class.getField("value"));
+            return value.get() == 1.0;
+        } catch (Throwable T) {
+            return false;
+        }
+    }
+
+    public static final class Probe {
+
+        public double value;
+
+        public void execute() {
+            value = 1.0;
+        }
+    }
+
+    /**
+     * @return true if the method handles can be used in this vm.
+     */
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Create the invoker of a method without arguments.
+     *
+     * @param target the object to invoke the method on
+     * @param method the method
+     * @return the invoker, failures of the method are thrown as
+     *      {@link InvocationTargetException}, as by reflection.
+     * @throws Throwable if the method cannot be linked
+     */
+    static MethodInvoker invoker(Object target, Method method) throws Throwable {
+        if (isLinkable(method)) {
+            Consumer<Object> c = invokers.get(method);
+            if (c == null) {
+                c = link(method);
+                invokers.put(method, c);
+            }
+            return new LambdaInvoker(c, target);
+        }
+        method.setAccessible(true);
+        MethodHandle mh = LOOKUP.unreflect(method);
+        if (Modifier.isStatic(method.getModifiers())) {
+            mh = MethodHandles.dropArguments(mh, 0, Object.class);
+        }
+        return new HandleInvoker(mh.asType(MethodType.methodType(void.class, Object.class)), target);
+    }
+
+    /**
+     * Create the accessor of a field.
+     *
+     * @param target the object owning the field
+     * @param field the field
+     * @return the accessor, a {@link doubleAccess}, {@link intAccess},
+     *      {@link booleanAccess} or {@link ObjectAccess}.
+     * @throws IllegalAccessException if the field cannot be accessed
+     */
+    static FieldHandle access(Object target, Field field) throws IllegalAccessException {
+        field.setAccessible(true);
+        MethodHandle getter = LOOKUP.unreflectGetter(field);
+        MethodHandle setter = LOOKUP.unreflectSetter(field);
+        if (Modifier.isStatic(field.getModifiers())) {
+            getter = MethodHandles.dropArguments(getter, 0, Object.class);
+            setter = MethodHandles.dropArguments(setter, 0, Object.class);
+        }
+        Class<?> type = field.getType();
+        FieldHandle fh;
+        if (type == double.class) {
+            fh = new DoubleHandle(getter, setter);
+        } else if (type == int.class) {
+            fh = new IntHandle(getter, setter);
+        } else if (type == boolean.class) {
+            fh = new BooleanHandle(getter, setter);
+        } else {
+            fh = new ObjectHandle(getter, setter);
+        }
+        fh.setTarget(target);
+        return fh;
+    }
+
+    /**
+     * @return true if the field of the accessor is a double, int or boolean,
+     *      which {@link FieldHandle#pass(Access)} moves without boxing.
+     */
+    static boolean isPrimitive(FieldHandle access) {
+        return access != null && !(access instanceof ObjectHandle);
+    }
+
+    /**
+     * @return true if the value of <code>from</code> can be passed to
+     *      <code>to</code> without conversion.
+     */
+    static boolean canPass(FieldHandle from, FieldHandle to) {
+        return isPrimitive(to) && from.getClass() == to.getClass();
+    }
+
+    /**
+     * Lambdas are defined in the oms3 class loader, they can only call
+     * public methods of public classes that it can see.
+     */
+    private static boolean isLinkable(Method method) {
+        Class<?> c = method.getDeclaringClass();
+        if (Modifier.isStatic(method.getModifiers()) || !Modifier.isPublic(method.getModifiers())
+                || !Modifier.isPublic(c.getModifiers())) {
+            return false;
+        }
+        try {
+            return Class.forName(c.getName(), false, HandleAccessors.class.getClassLoader()) == c;
+        } catch (ClassNotFoundException E) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Consumer<Object> link(Method method) throws Throwable {
+        MethodHandle impl = LOOKUP.unreflect(method);
+        CallSite site = LambdaMetafactory.metafactory(LOOKUP, "accept",
+                MethodType.methodType(Consumer.class),
+                MethodType.methodType(void.class, Object.class),
+                impl,
+                MethodType.methodType(void.class, method.getDeclaringClass()));
+        return (Consumer<Object>) site.getTarget().invokeExact();
+    }
+
+    static RuntimeException rethrow(Throwable T) {
+        if (T instanceof RuntimeException) {
+            throw (RuntimeException) T;
+        }
+        if (T instanceof Error) {
+            throw (Error) T;
+        }
+        throw new RuntimeException(T);
+    }
+
+    private static final class LambdaInvoker implements MethodInvoker {
+
+        private final Consumer<Object> c;
+        private Object target;
+
+        LambdaInvoker(Consumer<Object> c, Object target) {
+            this.c = c;
+            this.target = target;
+        }
+
+        @Override
+        public void invoke() throws Exception {
+            try {
+                c.accept(target);
+            } catch (Throwable T) {
+                throw new InvocationTargetException(T);
+            }
+        }
+
+        @Override
+        public void setTarget(Object target) {
+            this.target = target;
+        }
+    }
+
+    private static final class HandleInvoker implements MethodInvoker {
+
+        private final MethodHandle mh;
+        private Object target;
+
+        HandleInvoker(MethodHandle mh, Object target) {
+            this.mh = mh;
+            this.target = target;
+        }
+
+        @Override
+        public void invoke() throws Exception {
+            try {
+                mh.invokeExact(target);
+            } catch (Throwable T) {
+                throw new InvocationTargetException(T);
+            }
+        }
+
+        @Override
+        public void setTarget(Object target) {
+            this.target = target;
+        }
+    }
+
+    /**
+     * Field accessor, with a boxed setter for the values coming
+     * from the data flow.
+     */
+    static abstract class FieldHandle implements Access {
+
+        private final MethodHandle setObject;
+        Object target;
+
+        FieldHandle(MethodHandle setter) {
+            setObject = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+
+        @Override
+        public void setTarget(Object o) {
+            target = o;
+        }
+
+        /**
+         * Set the field from a boxed value.
+         *
+         * @param value the value, of the field type or its wrapper.
+         * @throws ClassCastException if the value has another type
+         * @throws NullPointerException if the value is null and the field is primitive
+         */
+        void set(Object value) {
+            try {
+                setObject.invokeExact(target, value);
+            } catch (Throwable T) {
+                throw rethrow(T);
+            }
+        }
+    }
+
+    static final class DoubleHandle extends FieldHandle implements doubleAccess {
+
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        DoubleHandle(MethodHandle getter, MethodHandle setter) {
+            super(setter);
+            this.getter = getter.asType(MethodType.methodType(double.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, double.class));
+        }
+
+        @Override
+        public double get() {
+            try {
+                return (double) getter.invokeExact(target);
+            } catch (Throwable T) {
+                throw rethrow(T);
+            }
+        }
+
+        @Override
+        public Object toObject() {
+            return get();
+        }
+
+        @Override
+        public void pass(Access from) {
+            try {
+                setter.invokeExact(target, ((doubleAccess) from).get());
+            } catch (Throwable T) {
+                throw rethrow(T);
+            }
+        }
+    }
+
+    static final class IntHandle extends FieldHandle implements intAccess {
+
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        IntHandle(MethodHandle getter, MethodHandle setter) {
+            super(setter);
+            this.getter = getter.asType(MethodType.methodType(int.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, int.class));
+        }
+
+        @Override
+        public int get() {
+            try {
+                return (int) getter.invokeExact(target);
+            } catch (Throwable T) {
+                throw rethrow(T);
+            }
+        }
+
+        @Override
+        public Object toObject() {
+            return get();
+        }
+
+        @Override
+        public void pass(Access from) {
+            try {
+                setter.invokeExact(target, ((intAccess) from).get());
+            } catch (Throwable T) {
+                throw rethrow(T);
+            }
+        }
+    }
+
+    static final class BooleanHandle extends FieldHandle implements booleanAccess {
+
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        BooleanHandle(MethodHandle getter, MethodHandle setter) {
+            super(setter);
+            this.getter = getter.asType(MethodType.methodType(boolean.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+        }
+
+        @Override
+        public boolean get() {
+            try {
+                return (boolean) getter.invokeExact(target);
+            } catch (Throwable T) {
+                throw rethrow(T);
+            }
+        }
+
+        @Override
+        public Object toObject() {
+            return get();
+        }
+
+        @Override
+        public void pass(Access from) {
+            try {
+                setter.invokeExact(target, ((booleanAccess) from).get());
+            } catch (Throwable T) {
+                throw rethrow(T);
+            }
+        }
+    }
+
+    /**
+     * All the other fields, the other primitives are boxed.
+     */
+    static final class ObjectHandle extends FieldHandle implements ObjectAccess {
+
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        ObjectHandle(MethodHandle getter, MethodHandle setter) {
+            super(setter);
+            this.getter = getter.asType(MethodType.methodType(Object.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+
+        @Override
+        public Object get() {
+            try {
+                return (Object) getter.invokeExact(target);
+            } catch (Throwable T) {
+                throw rethrow(T);
+            }
+        }
+
+        @Override
+        public Object toObject() {
+            return get();
+        }
+
+        @Override
+        public void pass(Access from) {
+            try {
+                setter.invokeExact(target, ((ObjectAccess) from).get());
+            } catch (Throwable T) {
+                throw rethrow(T);
+            }
+        }
+    }
+}
@@ -37,6 +37,49 @@ public class Utils {
         System.out.println(getVersion());
     }
 
+    /**
+     * System property for the access to component methods and fields,
+     * <code>reflect</code> to use plain reflection instead of method handles.
+     */
+    public static final String ACCESS = "oms.access";
+
+    static final boolean useHandles = !"reflect".equals(System.getProperty(ACCESS))
+            && HandleAccessors.isAvailable();
+
+    /** Default invocation, through method handles when available.
+     *
+     * @param target
+     * @param method
+     * @return
+     */
+    static MethodInvoker invoker(Object target, Method method) {
+        if (useHandles) {
+            try {
+                return HandleAccessors.invoker(target, method);
+            } catch (Throwable T) {
+                // not linkable, use reflection.
+            }
+        }
+        return reflective(target, method);
+    }
+
+    /** Default field access, through method handles when available.
+     *
+     * @param target
+     * @param field
+     * @return the accessor or null to use reflection
+     */
+    static HandleAccessors.FieldHandle fieldHandle(Object target, Field field) {
+        if (useHandles) {
+            try {
+                return HandleAccessors.access(target, field);
+            } catch (Throwable T) {
+                // not accessible, use reflection.
+            }
+        }
+        return null;
+    }
+
     /** Reflective invocation
      *
      * @param target
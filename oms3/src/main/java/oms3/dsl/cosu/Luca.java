@@ -7,12 +7,14 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import ngmf.util.OutputStragegy;
 import ngmf.util.cosu.luca.ExecutionHandle;
+import ngmf.util.cosu.luca.ParallelSCE;
 import ngmf.util.cosu.luca.ParameterData;
 import ngmf.util.cosu.luca.SCE;
 import oms3.ComponentAccess;
@@ -35,6 +37,7 @@ public class Luca extends AbstractSimulation {
     //
     Date calib_start;           // Calibration start date
     int rounds = 1;             // number of rounds
+    int threads = 1;            // number of concurrent model runs
 
     @Override
     public Buildable create(Object name, Object value) {
@@ -47,6 +50,11 @@ public class Luca extends AbstractSimulation {
             if (rounds < 1) {
                 throw new ComponentException("Illegal 'rounds': " + rounds);
             }
+        } else if (name.equals("threads")) {
+            threads = (Integer) value;
+            if (threads < 1) {
+                throw new ComponentException("Illegal 'threads': " + threads);
+            }
         } else if (name.equals("calibration_start")) {
             calib_start = Conversions.convert(value, Date.class);
         } else {
@@ -77,13 +85,37 @@ public class Luca extends AbstractSimulation {
             step.init(exec, calib_start, endTime, rounds);
         }
 
+        ModelExecution[] workers = null;
+        if (threads > 1) {
+            if (!getOut().isEmpty()) {
+                throw new ComponentException("'output' is not supported with 'threads' > 1.");
+            }
+            // every concurrent run has its own parameter set and output folder.
+            workers = new ModelExecution[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new ModelExecution(new File(exec.lastFolder, "worker-" + (i + 1)),
+                        new HashMap<String, Object>(exec.getParameter()));
+            }
+        }
+
         for (int r = 0; r < rounds; r++) {
             for (int s = 0; s < steps.size(); s++) {
                 Step step = steps.get(s);
                 Data stepData = step.round()[r];
                 System.out.println("\n\n>>>>>>>>>>>>>>  Round [" + (r + 1) + "]  Step [" + step.getName() + "] <<<<<<<<<<<<<<");
-                SCE sce = new SCE(exec, step, stepData);
-                sce.run();
+                if (workers == null) {
+                    SCE sce = new SCE(exec, step, stepData);
+                    sce.run();
+                } else {
+                    // the seed is printed to be able to repeat the calibration.
+                    long seed = step.getSeed() != null ? step.getSeed() : System.nanoTime();
+                    System.out.println(" Seed: " + seed);
+                    for (ModelExecution w : workers) {
+                        w.getParameter().putAll(exec.getParameter());
+                    }
+                    ParallelSCE sce = new ParallelSCE(exec, workers, step, stepData, seed + r);
+                    sce.run();
+                }
                 exec.writeParameterCopy(step, r);
                 step.post(r, stepData);
                 Runtime.getRuntime().gc();
@@ -110,6 +142,12 @@ public class Luca extends AbstractSimulation {
             Logger.getLogger("oms3.model").setLevel(Level.WARNING);
         }
 
+        ModelExecution(File folder, Map<String, Object> parameter) {
+            lastFolder = folder;
+            lastFolder.mkdirs();
+            this.parameter = parameter;
+        }
+
         Map<String, Object> getParameter() {
             return parameter;
         }
@@ -126,7 +164,11 @@ public class Luca extends AbstractSimulation {
                 }
             }
 
-            Object comp = getModel().getComponent();
+            Object comp;
+            synchronized (getModel()) {
+                // the generated model classes are compiled one at a time.
+                comp = getModel().getComponent();
+            }
 
             writeParameterFile(step);
             log.config("Init ...");
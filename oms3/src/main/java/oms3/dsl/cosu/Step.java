@@ -38,6 +38,7 @@ public class Step implements Buildable {
     //
     int shufflingLoops = 5;
     double ofPercentage = 0.01;
+    Long seed;                  // random seed, fixed for reproducible calibrations
     //
     int number;
     List<ObjFunc> ofs = new ArrayList<ObjFunc>();
@@ -86,6 +87,13 @@ public class Step implements Buildable {
         return shufflingLoops;
     }
 
+    /**
+     * @return the random seed, or null if none was given.
+     */
+    public Long getSeed() {
+        return seed;
+    }
+
     @Override
     public Buildable create(Object name, Object value) {
         if (name.equals("max_exec")) {
@@ -119,6 +127,8 @@ public class Step implements Buildable {
             if (ofPercentage <= 0.0 || ofPercentage > 1.0) {
                 throw new IllegalArgumentException("of_percentage: " + ofPercentage);
             }
+        } else if (name.equals("seed")) {
+            seed = ((Number) value).longValue();
         } else if (name.equals("parameter")) {
             return params;
         } else if (name.equals("objfunc")) {
@@ -191,6 +201,34 @@ public class Step implements Buildable {
             bestOFPoint = 0.0;
             }
 
+        /**
+         * A copy with its own parameters, for a concurrent model run.
+         * It shares no array or parameter with this data.
+         * 
+         * @return the copy.
+         */
+        public Data copy() {
+            Data d = new Data();
+            d.round = round;
+            d.bestOFPoint = bestOFPoint;
+            d.upperBound = upperBound.clone();
+            d.lowerBound = lowerBound.clone();
+            d.paramValues = paramValues.clone();
+            d.paramData = copy(paramData);
+            if (bestParamData != null) {
+                d.bestParamData = copy(bestParamData);
+            }
+            return d;
+        }
+
+        private static ParameterData[] copy(ParameterData[] params) {
+            ParameterData[] copy = new ParameterData[params.length];
+            for (int i = 0; i < params.length; i++) {
+                copy[i] = params[i].copy();
+            }
+            return copy;
+        }
+
         public void setObjFuncValueOfBestPoint(double d) {
             bestOFPoint = d;
         }
@@ -345,7 +383,12 @@ public class Step implements Buildable {
     }
 
     public double calculateObjectiveFunctionValue(ExecutionHandle executionHandle) {
-        return ObjFunc.calculateObjectiveFunctionValue(ofs, calibStart, calibEnd, outFolder);
+        // concurrent runs write the simulated data into their own folder.
+        File simFolder = outFolder;
+        if (executionHandle instanceof ModelExecution) {
+            simFolder = ((ModelExecution) executionHandle).lastFolder;
+        }
+        return ObjFunc.calculateObjectiveFunctionValue(ofs, calibStart, calibEnd, outFolder, simFolder);
     }
 
 //    public static void main(String[] args) {
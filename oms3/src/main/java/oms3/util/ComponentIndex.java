@@ -0,0 +1,246 @@
+/*
+ * $Id$
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * The component index written at build time by {@link ComponentIndexProcessor}.
+ *
+ * <p>
+ * Every jar with components has a <code>META-INF/oms3/components.index</code>
+ * resource listing the classes with an <code>@Execute</code> method, their
+ * status and their <code>@In</code>/<code>@Out</code> fields with type and
+ * description. Reading it needs no class to be loaded, so the components can
+ * be listed without scanning the archives and without initializing them.
+ * </p>
+ *
+ * <p>
+ * The index is a UTF-8 text with one tab separated record per line:
+ * <pre>
+ * C  class  status
+ * I  field  type  description
+ * O  field  type  description
+ * </pre>
+ * the field records following their class record. Types are in the
+ * {@link Class#getName()} form, tabs, newlines and backslashes in the
+ * descriptions are escaped.
+ * </p>
+ *
+ * @author Olaf David
+ * @version $Id$
+ */
+public class ComponentIndex {
+
+    /**
+     * The name of the index resource.
+     */
+    public static final String RESOURCE = "META-INF/oms3/components.index";
+
+    static final String COMPONENT = "C";
+    static final String IN = "I";
+    static final String OUT = "O";
+
+    private ComponentIndex() {
+    }
+
+    /**
+     * An indexed component.
+     */
+    public static class Component {
+
+        /** the binary name of the class. */
+        public final String className;
+        /** the status value, null if the class has no <code>@Status</code>. */
+        public final Integer status;
+        /** the in and out fields, in the order of {@link Class#getFields()}. */
+        public final List<ComponentField> fields = new ArrayList<ComponentField>();
+
+        Component(String className, Integer status) {
+            this.className = className;
+            this.status = status;
+        }
+
+        /**
+         * @return the class name without package.
+         */
+        public String getSimpleName() {
+            return className.substring(className.lastIndexOf('.') + 1);
+        }
+    }
+
+    /**
+     * An indexed <code>@In</code> or <code>@Out</code> field.
+     */
+    public static class ComponentField {
+
+        public final String name;
+        /** the type in the {@link Class#getName()} form. */
+        public final String type;
+        /** the description, null if the field has no <code>@Description</code>. */
+        public final String description;
+        /** true for an <code>@In</code>, false for an <code>@Out</code> field. */
+        public final boolean in;
+
+        ComponentField(String name, String type, String description, boolean in) {
+            this.name = name;
+            this.type = type;
+            this.description = description;
+            this.in = in;
+        }
+    }
+
+    /**
+     * Read the indexes of all the jars of a class loader.
+     *
+     * @param loader the class loader.
+     * @return the components, empty if no index is found.
+     * @throws IOException if an index cannot be read.
+     */
+    public static List<Component> load(ClassLoader loader) throws IOException {
+        Enumeration<URL> urls = loader.getResources(RESOURCE);
+        if (!urls.hasMoreElements()) {
+            return Collections.emptyList();
+        }
+        List<Component> components = new ArrayList<Component>();
+        while (urls.hasMoreElements()) {
+            Reader r = new InputStreamReader(urls.nextElement().openStream(), "UTF-8");
+            try {
+                read(r, components);
+            } finally {
+                r.close();
+            }
+        }
+        return components;
+    }
+
+    static void read(Reader r, List<Component> components) throws IOException {
+        BufferedReader br = new BufferedReader(r);
+        Component current = null;
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] record = line.split("\t", -1);
+            if (record[0].equals(COMPONENT)) {
+                Integer status = record[2].isEmpty() ? null : Integer.valueOf(record[2]);
+                current = new Component(record[1], status);
+                components.add(current);
+            } else if (current != null && (record[0].equals(IN) || record[0].equals(OUT))) {
+                String description = record.length > 3 ? unescape(record[3]) : null;
+                current.fields.add(new ComponentField(record[1], record[2], description, record[0].equals(IN)));
+            }
+        }
+    }
+
+    /**
+     * Load a class of the index without initializing it.
+     *
+     * @param type the type in the {@link Class#getName()} form, primitives included.
+     * @param loader the class loader.
+     * @return the class.
+     * @throws ClassNotFoundException if the class cannot be found.
+     */
+    public static Class<?> forName(String type, ClassLoader loader) throws ClassNotFoundException {
+        if (type.equals("double")) {
+            return double.class;
+        } else if (type.equals("int")) {
+            return int.class;
+        } else if (type.equals("boolean")) {
+            return boolean.class;
+        } else if (type.equals("float")) {
+            return float.class;
+        } else if (type.equals("long")) {
+            return long.class;
+        } else if (type.equals("short")) {
+            return short.class;
+        } else if (type.equals("byte")) {
+            return byte.class;
+        } else if (type.equals("char")) {
+            return char.class;
+        }
+        return Class.forName(type, false, loader);
+    }
+
+    static String escape(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                default:
+                    b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                switch (n) {
+                    case 't':
+                        b.append('\t');
+                        break;
+                    case 'n':
+                        b.append('\n');
+                        break;
+                    case 'r':
+                        b.append('\r');
+                        break;
+                    default:
+                        b.append(n);
+                }
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+}
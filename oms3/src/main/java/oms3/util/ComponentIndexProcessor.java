@@ -0,0 +1,297 @@
+/*
+ * $Id$
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor writing the {@link ComponentIndex} of the
+ * components compiled with oms3 on the class path.
+ *
+ * <p>
+ * It is registered as a service, javac runs it without configuration.
+ * On incremental builds the index already in the output is merged,
+ * dropping the classes that were recompiled or removed.
+ * </p>
+ *
+ * @author Olaf David
+ * @version $Id$
+ */
+@SupportedAnnotationTypes("oms3.annotations.Execute")
+public class ComponentIndexProcessor extends AbstractProcessor {
+
+    private static final String IN = "oms3.annotations.In";
+    private static final String OUT = "oms3.annotations.Out";
+    private static final String STATUS = "oms3.annotations.Status";
+    private static final String DESCRIPTION = "oms3.annotations.Description";
+
+    // class name -> index records, sorted for reproducible builds
+    private final Map<String, String> components = new TreeMap<String, String>();
+    private final Set<String> compiled = new HashSet<String>();
+    private Map<String, String> previous;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        try {
+            if (previous == null) {
+                previous = readPrevious();
+            }
+            for (Element e : roundEnv.getRootElements()) {
+                if (e instanceof TypeElement) {
+                    compiled(e);
+                }
+            }
+            for (TypeElement annotation : annotations) {
+                for (Element e : roundEnv.getElementsAnnotatedWith(annotation)) {
+                    if (e.getKind() != ElementKind.METHOD || !(e.getEnclosingElement() instanceof TypeElement)) {
+                        continue;
+                    }
+                    TypeElement type = (TypeElement) e.getEnclosingElement();
+                    if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+                        continue;
+                    }
+                    String name = binaryName(type);
+                    components.put(name, records(type, name));
+                }
+            }
+            if (roundEnv.processingOver()) {
+                write();
+            }
+        } catch (Exception E) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Cannot write the component index: " + E);
+        }
+        // other processors may want @Execute too.
+        return false;
+    }
+
+    private void compiled(Element e) {
+        compiled.add(binaryName((TypeElement) e));
+        for (Element inner : e.getEnclosedElements()) {
+            if (inner instanceof TypeElement) {
+                compiled(inner);
+            }
+        }
+    }
+
+    private Map<String, String> readPrevious() {
+        Map<String, String> index = new TreeMap<String, String>();
+        try {
+            FileObject fo = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", ComponentIndex.RESOURCE);
+            Reader r = fo.openReader(true);
+            try {
+                List<ComponentIndex.Component> old = new ArrayList<ComponentIndex.Component>();
+                ComponentIndex.read(r, old);
+                for (ComponentIndex.Component c : old) {
+                    index.put(c.className, records(c));
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException E) {
+            // no previous index, full build.
+        } catch (IllegalArgumentException E) {
+            // not supported by the filer.
+        }
+        return index;
+    }
+
+    private void write() throws IOException {
+        for (Map.Entry<String, String> e : previous.entrySet()) {
+            String name = e.getKey();
+            if (components.containsKey(name) || compiled.contains(name)) {
+                continue;
+            }
+            // removed since the last build
+            if (processingEnv.getElementUtils().getTypeElement(name.replace('$', '.')) == null) {
+                continue;
+            }
+            components.put(name, e.getValue());
+        }
+        if (components.isEmpty() && previous.isEmpty()) {
+            return;
+        }
+        FileObject fo = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", ComponentIndex.RESOURCE);
+        Writer w = fo.openWriter();
+        try {
+            w.write("# oms3 component index, generated at build time\n");
+            for (String records : components.values()) {
+                w.write(records);
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    private String records(TypeElement type, String name) {
+        StringBuilder b = new StringBuilder();
+        AnnotationMirror status = annotation(type, STATUS);
+        b.append(ComponentIndex.COMPONENT).append('\t').append(name).append('\t');
+        if (status != null) {
+            b.append(value(status));
+        }
+        b.append('\n');
+
+        // same order as Class.getFields(): own fields, then the super classes.
+        Set<String> names = new HashSet<String>();
+        TypeElement t = type;
+        while (t != null) {
+            for (Element e : t.getEnclosedElements()) {
+                if (e.getKind() != ElementKind.FIELD || !e.getModifiers().contains(Modifier.PUBLIC)) {
+                    continue;
+                }
+                String field = e.getSimpleName().toString();
+                if (!names.add(field)) {
+                    continue;
+                }
+                AnnotationMirror description = annotation(e, DESCRIPTION);
+                String desc = description == null ? null : String.valueOf(value(description));
+                String fieldType = typeName(e.asType());
+                if (annotation(e, IN) != null) {
+                    field(b, ComponentIndex.IN, field, fieldType, desc);
+                }
+                if (annotation(e, OUT) != null) {
+                    field(b, ComponentIndex.OUT, field, fieldType, desc);
+                }
+            }
+            TypeMirror sup = t.getSuperclass();
+            t = sup.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) sup).asElement() : null;
+        }
+        return b.toString();
+    }
+
+    private static String records(ComponentIndex.Component c) {
+        StringBuilder b = new StringBuilder();
+        b.append(ComponentIndex.COMPONENT).append('\t').append(c.className).append('\t');
+        if (c.status != null) {
+            b.append(c.status);
+        }
+        b.append('\n');
+        for (ComponentIndex.ComponentField f : c.fields) {
+            field(b, f.in ? ComponentIndex.IN : ComponentIndex.OUT, f.name, f.type, f.description);
+        }
+        return b.toString();
+    }
+
+    private static void field(StringBuilder b, String kind, String name, String type, String description) {
+        b.append(kind).append('\t').append(name).append('\t').append(type);
+        if (description != null) {
+            b.append('\t').append(ComponentIndex.escape(description));
+        }
+        b.append('\n');
+    }
+
+    private static AnnotationMirror annotation(Element e, String name) {
+        for (AnnotationMirror m : e.getAnnotationMirrors()) {
+            if (((TypeElement) m.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private Object value(AnnotationMirror m) {
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values = processingEnv.getElementUtils().getElementValuesWithDefaults(m);
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : values.entrySet()) {
+            if (e.getKey().getSimpleName().contentEquals("value")) {
+                return e.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    private String binaryName(TypeElement type) {
+        return processingEnv.getElementUtils().getBinaryName(type).toString();
+    }
+
+    /**
+     * The erased type in the {@link Class#getName()} form.
+     */
+    private String typeName(TypeMirror t) {
+        t = processingEnv.getTypeUtils().erasure(t);
+        switch (t.getKind()) {
+            case ARRAY:
+                return "[" + descriptor(((ArrayType) t).getComponentType());
+            case DECLARED:
+                return binaryName((TypeElement) ((DeclaredType) t).asElement());
+            default:
+                return t.toString();
+        }
+    }
+
+    private String descriptor(TypeMirror t) {
+        switch (t.getKind()) {
+            case BOOLEAN:
+                return "Z";
+            case BYTE:
+                return "B";
+            case CHAR:
+                return "C";
+            case SHORT:
+                return "S";
+            case INT:
+                return "I";
+            case LONG:
+                return "J";
+            case FLOAT:
+                return "F";
+            case DOUBLE:
+                return "D";
+            case ARRAY:
+                return "[" + descriptor(((ArrayType) t).getComponentType());
+            default:
+                return "L" + typeName(t) + ";";
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * $Id$
+ *
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3.util;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Work-stealing scheduler for the execution of Compounds.
+ *
+ * <p>
+ * All the components of a Compound and the Compounds run by {@link Threads}
+ * share a {@link ForkJoinPool} with a bounded parallelism, by default the
+ * number of processors. It can be set with the system property
+ * <code>oms.scheduler.parallelism</code> or by installing a scheduler with
+ * {@link #setShared(Scheduler)}. More threads are only started while
+ * components are blocked waiting for their inputs.
+ * </p>
+ *
+ * <p>
+ * Every run is an {@link Execution}: a failing task cancels only the tasks
+ * of its own execution and its error is thrown by {@link Execution#await()},
+ * the pool stays usable for the next runs.
+ * </p>
+ *
+ * <p>
+ * A scheduler that is shut down takes no new executions, but its pool
+ * is only stopped once the running executions are done. So shutting down the
+ * shared scheduler never breaks simulations that are running concurrently,
+ * the next ones get a new shared scheduler.
+ * </p>
+ *
+ * @author Olaf David
+ * @version $Id$
+ */
+public class Scheduler {
+
+    /**
+     * System property for the parallelism of the shared scheduler.
+     */
+    public static final String PARALLELISM = "oms.scheduler.parallelism";
+
+    private static final Logger log = Logger.getLogger("oms3.sim");
+
+    private static Scheduler shared;
+
+    private final ForkJoinPool pool;
+    // executions not yet awaited, the pool is kept until they are done
+    private int executions;
+    private boolean closing;
+    // metrics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+
+    /**
+     * Create a scheduler.
+     *
+     * @param parallelism the number of threads that are running tasks at the same time.
+     */
+    public Scheduler(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism");
+        }
+        // async mode: tasks are taken in submission order, producers before consumers.
+        pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Get the shared scheduler, creating it if needed.
+     *
+     * @return the shared scheduler.
+     */
+    public static synchronized Scheduler shared() {
+        if (shared == null || shared.isShutdown()) {
+            int parallelism = Integer.getInteger(PARALLELISM, Runtime.getRuntime().availableProcessors());
+            shared = new Scheduler(Math.max(1, parallelism));
+        }
+        return shared;
+    }
+
+    /**
+     * Install a scheduler as shared one. The previous one is shut down.
+     *
+     * @param scheduler the new shared scheduler.
+     */
+    public static synchronized void setShared(Scheduler scheduler) {
+        if (shared != null && shared != scheduler) {
+            retire(shared);
+        }
+        shared = scheduler;
+    }
+
+    /**
+     * Shut down the shared scheduler, a new one is created on the next use.
+     * The running executions of the shared scheduler are completed.
+     */
+    public static synchronized void shutdownShared() {
+        if (shared != null) {
+            retire(shared);
+            shared = null;
+        }
+    }
+
+    /**
+     * Start a new execution on the shared scheduler.
+     *
+     * <p>Unlike <code>shared().newExecution()</code>, this can't race
+     * with {@link #shutdownShared()}.</p>
+     *
+     * @return the execution to submit the tasks of a run to.
+     */
+    public static synchronized Execution newSharedExecution() {
+        return shared().newExecution();
+    }
+
+    private static void retire(Scheduler scheduler) {
+        if (log.isLoggable(Level.INFO)) {
+            log.info("Retiring " + scheduler);
+        }
+        scheduler.shutdown();
+    }
+
+    /**
+     * Start a new execution. {@link Execution#await()} has to be called
+     * on it, so that the scheduler knows when it is done.
+     *
+     * @return the execution to submit the tasks of a run to.
+     * @throws RejectedExecutionException if the scheduler is shut down.
+     */
+    public synchronized Execution newExecution() {
+        if (closing) {
+            throw new RejectedExecutionException("The scheduler is shut down.");
+        }
+        executions++;
+        return new Execution();
+    }
+
+    private synchronized void executionDone() {
+        executions--;
+        if (closing && executions == 0) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Shut down the scheduler. New executions are refused, the running
+     * ones are completed before the pool is stopped.
+     */
+    public synchronized void shutdown() {
+        closing = true;
+        if (executions == 0) {
+            pool.shutdown();
+        }
+    }
+
+    public synchronized boolean isShutdown() {
+        return closing;
+    }
+
+    /**
+     * @return the number of executions that have not yet been awaited.
+     */
+    public synchronized int getRunningExecutions() {
+        return executions;
+    }
+
+    /**
+     * @return the target number of running threads.
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @return the number of threads in the pool, including the ones
+     *      started while others are blocked.
+     */
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    /**
+     * @return the number of threads that are running or blocked in a task.
+     */
+    public int getActiveThreads() {
+        return pool.getActiveThreadCount();
+    }
+
+    /**
+     * @return the number of tasks waiting to be run.
+     */
+    public long getQueueDepth() {
+        return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+    }
+
+    public long getSubmittedTasks() {
+        return submitted.get();
+    }
+
+    public long getCompletedTasks() {
+        return completed.get();
+    }
+
+    public long getFailedTasks() {
+        return failed.get();
+    }
+
+    /**
+     * @return the average time tasks waited in the queue before running, in milliseconds.
+     */
+    public double getAverageQueueMillis() {
+        long done = completed.get() + failed.get();
+        return done == 0 ? 0 : queueNanos.get() / 1E6 / done;
+    }
+
+    /**
+     * @return the maximum time a task waited in the queue before running, in milliseconds.
+     */
+    public double getMaxQueueMillis() {
+        return maxQueueNanos.get() / 1E6;
+    }
+
+    /**
+     * @return the average time tasks took to run, in milliseconds.
+     */
+    public double getAverageRunMillis() {
+        long done = completed.get() + failed.get();
+        return done == 0 ? 0 : runNanos.get() / 1E6 / done;
+    }
+
+    /**
+     * Reset the task counters and latencies.
+     */
+    public void resetMetrics() {
+        submitted.set(0);
+        completed.set(0);
+        failed.set(0);
+        queueNanos.set(0);
+        maxQueueNanos.set(0);
+        runNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "Scheduler[parallelism=" + getParallelism() + ", threads=" + getPoolSize() + ", active=" + getActiveThreads()
+                + ", queued=" + getQueueDepth() + ", submitted=" + getSubmittedTasks() + ", completed=" + getCompletedTasks()
+                + ", failed=" + getFailedTasks() + ", avgQueueMs=" + getAverageQueueMillis() + ", maxQueueMs="
+                + getMaxQueueMillis() + ", avgRunMs=" + getAverageRunMillis() + "]";
+    }
+
+    private void recordQueue(long nanos) {
+        queueNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxQueueNanos.get())) {
+            if (maxQueueNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * The tasks of a single run.
+     */
+    public class Execution {
+
+        private final AtomicInteger pending = new AtomicInteger();
+        private final Set<Thread> running = new HashSet<Thread>();
+        private volatile Throwable error;
+        private boolean awaited;
+        private final ForkJoinPool.ManagedBlocker done = new ForkJoinPool.ManagedBlocker() {
+
+            @Override
+            public boolean block() throws InterruptedException {
+                synchronized (this) {
+                    while (!isReleasable()) {
+                        wait();
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return pending.get() == 0;
+            }
+        };
+
+        Execution() {
+        }
+
+        /**
+         * Submit a task. Tasks submitted after a failure are skipped.
+         *
+         * @param task the task to run.
+         */
+        public void submit(final Runnable task) {
+            pending.incrementAndGet();
+            submitted.incrementAndGet();
+            final long queued = System.nanoTime();
+            try {
+                pool.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        long start = System.nanoTime();
+                        recordQueue(start - queued);
+                        Thread current = Thread.currentThread();
+                        try {
+                            boolean skip;
+                            synchronized (running) {
+                                skip = error != null;
+                                if (!skip) {
+                                    running.add(current);
+                                }
+                            }
+                            if (!skip) {
+                                try {
+                                    task.run();
+                                } finally {
+                                    synchronized (running) {
+                                        running.remove(current);
+                                        // don't leak a cancellation to the next task of the thread
+                                        Thread.interrupted();
+                                    }
+                                }
+                            }
+                            completed.incrementAndGet();
+                        } catch (Throwable T) {
+                            failed.incrementAndGet();
+                            fail(T);
+                        } finally {
+                            runNanos.addAndGet(System.nanoTime() - start);
+                            taskDone();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException E) {
+                fail(E);
+                taskDone();
+            }
+        }
+
+        private void taskDone() {
+            if (pending.decrementAndGet() == 0) {
+                synchronized (done) {
+                    done.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Cancel the execution, interrupting its running tasks.
+         *
+         * @param cause the reason, thrown by {@link #await()}.
+         */
+        public void fail(Throwable cause) {
+            synchronized (running) {
+                if (error == null) {
+                    error = cause;
+                }
+                for (Thread t : running) {
+                    t.interrupt();
+                }
+            }
+        }
+
+        /**
+         * Wait for all the submitted tasks to finish.
+         *
+         * @throws Exception the first error of the tasks, if any.
+         */
+        public void await() throws Exception {
+            try {
+                ForkJoinPool.managedBlock(done);
+            } catch (InterruptedException IE) {
+                fail(IE);
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    if (!awaited) {
+                        awaited = true;
+                        executionDone();
+                    }
+                }
+            }
+            Throwable T = error;
+            if (T instanceof Exception) {
+                throw (Exception) T;
+            } else if (T instanceof Error) {
+                throw (Error) T;
+            } else if (T != null) {
+                throw new RuntimeException(T);
+            }
+        }
+
+        /**
+         * @return the scheduler that runs the execution.
+         */
+        public Scheduler getScheduler() {
+            return Scheduler.this;
+        }
+
+        /**
+         * @return the first error of the execution or <code>null</code>.
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
+}
@@ -26,9 +26,6 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import oms3.Compound;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import oms3.ComponentAccess;
 import oms3.annotations.Finalize;
 import oms3.annotations.Initialize;
@@ -86,67 +83,69 @@ public class Threads {
         par_ief(t, Runtime.getRuntime().availableProcessors() + 1);
     }
 
-    public static ExecutorService e = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors() + 1);
-
     /**
-     * Runs a set of Compounds in parallel. there are always numproc + 1 threads active. 
-     * @param comp
-     * @param numproc
+     * Runs a set of Compounds in parallel on the shared {@link Scheduler},
+     * at most <code>numproc</code> of them at the same time.
+     * The first failure cancels the Compounds still to run and is thrown.
+     * 
+     * @param t the Compounds
+     * @param numproc must be &gt; 0
      * @throws java.lang.Exception
      */
      private static void par_ief(CompList<?> t, int numproc) throws Exception {
-        if (numproc < 1) {
-            throw new IllegalArgumentException("numproc");
-        }
-        final CountDownLatch latch = new CountDownLatch(t.list().size());
-//        final ExecutorService e = Executors.newFixedThreadPool(numproc);
-        for (final Compound c : t) {
-            e.submit(new Runnable() {
-
-                @Override
-                public void run() {
-                    try {
-                        ComponentAccess.callAnnotated(c, Initialize.class, true);
-                        c.execute();
-                        ComponentAccess.callAnnotated(c, Finalize.class, true);
-                    } catch (Throwable E) {
-                        e.shutdownNow();
-                    }
-                    latch.countDown();
-                }
-            });
-        }
-        latch.await();
-//        e.shutdown();
+        par(t, numproc, true);
     }
 
     public static void par_e(CompList<?> t) throws Exception {
         par_e(t, Runtime.getRuntime().availableProcessors() + 1);
     }
     
+    /**
+     * Runs a set of Compounds in parallel on the shared {@link Scheduler},
+     * at most <code>numproc</code> of them at the same time.
+     * The first failure cancels the Compounds still to run and is thrown.
+     * 
+     * @param t the Compounds
+     * @param numproc must be &gt; 0
+     * @throws java.lang.Exception
+     */
     public static void par_e(CompList<?> t, int numproc) throws Exception {
+        par(t, numproc, false);
+    }
+
+    private static void par(CompList<?> t, int numproc, final boolean ief) throws Exception {
         if (numproc < 1) {
             throw new IllegalArgumentException("numproc");
         }
-        final CountDownLatch latch = new CountDownLatch(t.list().size());
-//        final ExecutorService e = Executors.newFixedThreadPool(numproc);
-        for (final Compound c : t) {
-            e.execute(new Runnable() {
+        final Iterator<Compound> compounds = t.iterator();
+        int runners = Math.min(numproc, t.list().size());
+        final Scheduler.Execution execution = Scheduler.newSharedExecution();
+        // every runner executes the next Compound, until all are done
+        for (int i = 0; i < runners; i++) {
+            execution.submit(new Runnable() {
 
                 @Override
                 public void run() {
-                    try {
+                    while (execution.getError() == null) {
+                        Compound c;
+                        synchronized (compounds) {
+                            if (!compounds.hasNext()) {
+                                return;
+                            }
+                            c = compounds.next();
+                        }
+                        if (ief) {
+                            ComponentAccess.callAnnotated(c, Initialize.class, true);
+                        }
                         c.execute();
-                    } catch (Throwable E) {
-                        e.shutdownNow();
+                        if (ief) {
+                            ComponentAccess.callAnnotated(c, Finalize.class, true);
+                        }
                     }
-                    latch.countDown();
                 }
             });
         }
-        latch.await();
-//        e.shutdown();
+        execution.await();
     }
 
 //    public static final Iterable<Compound> it(final Iterator<Compound> i) {
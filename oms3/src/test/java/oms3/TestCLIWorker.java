@@ -0,0 +1,159 @@
+package oms3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the line protocol of the {@link CLIWorker}.
+ *
+ * @author Olaf David
+ */
+public class TestCLIWorker extends TestCase {
+
+    private StringWriter channel;
+    private CLIWorker worker;
+    private PrintWriter toWorker;
+    private Thread serving;
+    private PrintStream systemOut;
+    private PrintStream systemErr;
+    private final CountDownLatch waiting = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        channel = new StringWriter();
+        worker = new CLIWorker(channel) {
+
+            @Override
+            int execute(String ll, String file) {
+                if (file.equals("print")) {
+                    System.out.println("first line");
+                    System.out.print("\u00fcnicode \u00e8\r\n");
+                    System.err.println(ll);
+                    // left without newline
+                    System.out.print("partial");
+                    return 0;
+                } else if (file.equals("fail")) {
+                    System.err.println("failed");
+                    return 3;
+                } else if (file.equals("wait")) {
+                    waiting.countDown();
+                    try {
+                        Thread.sleep(60000);
+                        return 0;
+                    } catch (InterruptedException E) {
+                        System.err.println("cancelled");
+                        return 2;
+                    }
+                }
+                throw new IllegalArgumentException(file);
+            }
+        };
+        systemOut = System.out;
+        systemErr = System.err;
+        System.setOut(worker.outStream());
+        System.setErr(worker.errStream());
+
+        PipedWriter pipe = new PipedWriter();
+        final BufferedReader in = new BufferedReader(new PipedReader(pipe));
+        toWorker = new PrintWriter(pipe, true);
+        serving = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    worker.serve(in);
+                } catch (IOException E) {
+                    E.printStackTrace(systemErr);
+                }
+            }
+        };
+        serving.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        toWorker.close();
+        serving.join(10000);
+        System.setOut(systemOut);
+        System.setErr(systemErr);
+    }
+
+    public void testOutputIsFramed() throws Exception {
+        toWorker.println("RUN\tINFO\tprint");
+        awaitMessages(1);
+        assertEquals("OUT\tfirst line\n"
+                + "OUT\t\u00fcnicode \u00e8\n"
+                + "ERR\tINFO\n"
+                + "OUT\tpartial\n"
+                + "DONE\t0\n", channel.toString());
+    }
+
+    public void testExitCode() throws Exception {
+        toWorker.println("RUN\tOFF\tfail");
+        awaitMessages(1);
+        assertEquals("ERR\tfailed\nDONE\t3\n", channel.toString());
+
+        // the worker takes the next command
+        toWorker.println("RUN\tOFF\tprint");
+        awaitMessages(2);
+        assertTrue(channel.toString().endsWith("DONE\t0\n"));
+    }
+
+    public void testBusyAndCancel() throws Exception {
+        toWorker.println("RUN\tOFF\twait");
+        assertTrue(waiting.await(10, TimeUnit.SECONDS));
+
+        toWorker.println("RUN\tOFF\tprint");
+        awaitMessages(1);
+        assertEquals("ERR\tWorker busy, the command was not run.\nDONE\t1\n", channel.toString());
+
+        toWorker.println("CANCEL");
+        awaitMessages(2);
+        assertTrue(channel.toString().endsWith("ERR\tcancelled\nDONE\t2\n"));
+    }
+
+    public void testClosedInputCancels() throws Exception {
+        toWorker.println("RUN\tOFF\twait");
+        assertTrue(waiting.await(10, TimeUnit.SECONDS));
+
+        // the parent is gone
+        toWorker.close();
+        serving.join(10000);
+        assertFalse(serving.isAlive());
+        awaitMessages(1);
+        assertEquals("ERR\tcancelled\nDONE\t2\n", channel.toString());
+    }
+
+    /**
+     * Wait for a number of DONE messages.
+     */
+    private void awaitMessages(int done) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < end) {
+            String messages;
+            synchronized (channel) {
+                messages = channel.toString();
+            }
+            int count = 0;
+            int index = messages.indexOf("DONE\t");
+            while (index >= 0) {
+                count++;
+                index = messages.indexOf("DONE\t", index + 1);
+            }
+            if (count >= done) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("No answer from the worker: " + channel);
+    }
+}
@@ -0,0 +1,131 @@
+package oms3;
+
+import junit.framework.TestCase;
+import oms3.annotations.Execute;
+import oms3.annotations.In;
+import oms3.annotations.Out;
+
+/**
+ * Test the passing of field values between components.
+ *
+ * @author Olaf David
+ */
+public class TestFieldAccess extends TestCase {
+
+    public static class Source {
+
+        @In
+        public double scale = 1.0;
+
+        @Out
+        public double d;
+
+        @Out
+        public int i;
+
+        @Out
+        public boolean b;
+
+        @Out
+        public String s;
+
+        @Execute
+        public void execute() {
+            d = 1.5 * scale;
+            i = (int) (7 * scale);
+            b = scale > 1.0;
+            s = "value " + scale;
+        }
+    }
+
+    public static class Sink {
+
+        @In
+        public double d;
+
+        @In
+        public int i;
+
+        @In
+        public boolean b;
+
+        @In
+        public String s;
+
+        @Execute
+        public void execute() {
+        }
+    }
+
+    public void testPrimitivesArePassedThroughHandles() throws Exception {
+        Source source = new Source();
+        source.execute();
+        Sink sink = new Sink();
+        Notification ens = new Notification(null);
+
+        for (String name : new String[]{"d", "i", "b"}) {
+            FieldAccess out = new FieldAccess(source, Source.class.getField(name), ens);
+            FieldAccess in = new FieldAccess(sink, Sink.class.getField(name), ens);
+            assertNotNull(out.access);
+            in.setData(out.getData());
+            out.out();
+            // the handle of the source is passed, not a boxed value
+            assertSame(out.access, out.getData().getRawValue());
+            in.in();
+        }
+        assertEquals(1.5, sink.d, 0.0);
+        assertEquals(7, sink.i);
+        assertFalse(sink.b);
+
+        // other readers of the data still get the value
+        FieldAccess out = new FieldAccess(source, Source.class.getField("d"), ens);
+        out.getData();
+        out.out();
+        assertEquals(Double.valueOf(1.5), out.getData().getValue());
+    }
+
+    public void testObjectsAndFeedbackArePassedAsValues() throws Exception {
+        Source source = new Source();
+        source.execute();
+        Sink sink = new Sink();
+        Notification ens = new Notification(null);
+
+        FieldAccess out = new FieldAccess(source, Source.class.getField("s"), ens);
+        FieldAccess in = new FieldAccess(sink, Sink.class.getField("s"), ens);
+        in.setData(out.getData());
+        out.out();
+        assertEquals("value 1.0", out.getData().getRawValue());
+        in.in();
+        assertEquals("value 1.0", sink.s);
+
+        out = new FieldAccess(source, Source.class.getField("d"), ens);
+        in = new FieldAccess(sink, Sink.class.getField("d"), ens);
+        in.setData(out.getData());
+        out.getData().tagFeedback();
+        out.out();
+        assertEquals(Double.valueOf(1.5), out.getData().getRawValue());
+        in.in();
+        assertEquals(1.5, sink.d, 0.0);
+    }
+
+    public void testCompoundRoundTrip() throws Exception {
+        final Source source = new Source();
+        final Sink sink = new Sink();
+        Compound compound = new Compound() {
+            {
+                out2in(source, "d", sink, "d");
+                out2in(source, "i", sink, "i");
+                out2in(source, "b", sink, "b");
+                out2in(source, "s", sink, "s");
+            }
+        };
+        for (int step = 1; step <= 3; step++) {
+            source.scale = step;
+            compound.execute();
+            assertEquals(1.5 * step, sink.d, 0.0);
+            assertEquals(7 * step, sink.i);
+            assertEquals(step > 1, sink.b);
+            assertEquals("value " + (double) step, sink.s);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package oms3.dsl.cosu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import ngmf.util.cosu.luca.ExecutionHandle;
+import ngmf.util.cosu.luca.ParallelSCE;
+import ngmf.util.cosu.luca.ParameterData;
+
+/**
+ * Test the concurrent SCE calibration and the copies of the step data it runs with.
+ *
+ * @author od
+ */
+public class TestParallelSCE extends TestCase {
+
+    public void testDataCopyIsDeep() {
+        Step.Data data = createData();
+        data.setParamValues(new double[]{4.0, 1.5, -2.0});
+        data.setBestParamData(new double[]{4.0, 1.5, -2.0}, 0.5);
+
+        Step.Data copy = data.copy();
+        assertTrue(Arrays.equals(data.getParamValues(), copy.getParamValues()));
+        assertNotSame(data.getParamValues(), copy.getParamValues());
+        assertNotSame(data.getLowerBound(), copy.getLowerBound());
+        assertNotSame(data.getUpperBound(), copy.getUpperBound());
+        assertTrue(Arrays.equals(data.getLowerBound(), copy.getLowerBound()));
+        assertTrue(Arrays.equals(data.getUpperBound(), copy.getUpperBound()));
+        assertTrue(Arrays.equals(data.getBestParamDataArray(), copy.getBestParamDataArray()));
+        assertEquals(0.5, copy.getObjFuncValueOfBestPoint(), 0.0);
+        for (int i = 0; i < data.paramData.length; i++) {
+            assertNotSame(data.paramData[i], copy.paramData[i]);
+            assertNotSame(data.paramData[i].getDataValue(), copy.paramData[i].getDataValue());
+            assertNotSame(data.bestParamData[i], copy.bestParamData[i]);
+        }
+
+        // the same values give the same model parameters
+        double[] values = new double[]{2.5, -1.0, 3.0};
+        copy.setParamValues(values.clone());
+        Step.Data other = data.copy();
+        other.setParamValues(values.clone());
+        for (int i = 0; i < data.paramData.length; i++) {
+            assertTrue(Arrays.equals(other.paramData[i].getDataValue(), copy.paramData[i].getDataValue()));
+        }
+
+        // and the original is left as it was
+        assertTrue(Arrays.equals(new double[]{4.0, 1.5, -2.0}, data.getParamValues()));
+        assertTrue(Arrays.equals(new double[]{1.5, -2.0}, data.paramData[1].getDataValue()));
+        copy.setBestParamData(values);
+        assertTrue(Arrays.equals(new double[]{4.0, 1.5, -2.0}, data.getBestParamDataArray()));
+    }
+
+    public void testSameSeedSameCalibration() throws Exception {
+        double[] serial = calibrate(1, 7L);
+        // the thread count and the scheduling do not change the result
+        for (int threads : new int[]{1, 2, 4}) {
+            double[] parallel = calibrate(threads, 7L);
+            assertTrue(threads + " threads: " + Arrays.toString(parallel), Arrays.equals(serial, parallel));
+        }
+        // the function has its minimum in 1, 0.5, -2
+        assertTrue(serial[0] < 0.1);
+    }
+
+    /**
+     * @return the best objective function value, the number of model runs and the best parameters.
+     */
+    private double[] calibrate(int threads, long seed) throws Exception {
+        Step step = new Step(0) {
+
+            @Override
+            public double calculateObjectiveFunctionValue(ExecutionHandle executionHandle) {
+                return ((FunctionHandle) executionHandle).value;
+            }
+
+            @Override
+            public boolean maximizeObjectiveFunctionValue() {
+                return false;
+            }
+        };
+        step.create("max_exec", 400);
+        step.create("init_complexes", 3);
+        step.create("min_complexes", 2);
+        step.NumOfParams = 3;
+
+        Step.Data data = createData();
+        FunctionHandle[] handles = new FunctionHandle[threads];
+        int[] runs = new int[1];
+        for (int i = 0; i < threads; i++) {
+            handles[i] = new FunctionHandle(runs);
+        }
+        FunctionHandle main = new FunctionHandle(runs);
+
+        ParallelSCE sce = new ParallelSCE(main, handles, step, data, seed);
+        sce.setOut(new PrintStream(new ByteArrayOutputStream()));
+        sce.run();
+
+        double[] best = data.getBestParamDataArray();
+        double[] result = new double[best.length + 2];
+        result[0] = data.getObjFuncValueOfBestPoint();
+        result[1] = runs[0];
+        System.arraycopy(best, 0, result, 2, best.length);
+        assertTrue(Arrays.equals(best, main.written));
+        return result;
+    }
+
+    private Step.Data createData() {
+        ParameterData mean = new ParameterData("mean");
+        mean.set(new double[]{2.0, 3.0, 4.0}, 0.0, 10.0, ParameterData.MEAN, new boolean[]{true, true, true});
+        ParameterData individual = new ParameterData("individual");
+        individual.set(new double[]{1.0, 1.0}, -5.0, 5.0, ParameterData.INDIVIDUAL, new boolean[]{true, true});
+        Step.Data data = new Step.Data();
+        data.init(new ParameterData[]{mean, individual});
+        data.createBestParamData();
+        return data;
+    }
+
+    /**
+     * A model that is a function of its parameters.
+     */
+    private static class FunctionHandle implements ExecutionHandle {
+
+        private final int[] runs;
+        double value;
+        double[] written;
+
+        FunctionHandle(int[] runs) {
+            this.runs = runs;
+        }
+
+        @Override
+        public void execute(Step.Data stepData) throws Exception {
+            double[] x = stepData.getParamValues();
+            value = (x[0] - 1.0) * (x[0] - 1.0) + (x[1] - 0.5) * (x[1] - 0.5) + (x[2] + 2.0) * (x[2] + 2.0);
+            synchronized (runs) {
+                runs[0]++;
+            }
+        }
+
+        @Override
+        public void writeParameterFile(Step.Data stepData) throws Exception {
+            written = stepData.getParamValues().clone();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package oms3.util;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+import oms3.annotations.Execute;
+
+/**
+ * Test that the index written by the {@link ComponentIndexProcessor}
+ * is read back by {@link ComponentIndex} and matches the compiled classes.
+ *
+ * @author Olaf David
+ */
+public class TestComponentIndex extends TestCase {
+
+    private static final String BASE = "package idx;\n"
+            + "import oms3.annotations.*;\n"
+            + "public class Base {\n"
+            + "    @In @Description(\"inherited\")\n"
+            + "    public int pBase;\n"
+            + "}\n";
+
+    private static final String MODULE = "package idx;\n"
+            + "import java.util.List;\n"
+            + "import oms3.annotations.*;\n"
+            + "@Status(Status.CERTIFIED)\n"
+            + "public class Module extends Base {\n"
+            + "    static {\n"
+            + "        System.setProperty(\"idx.initialized\", \"true\");\n"
+            + "    }\n"
+            + "    @In @Description(\"a\\ttabbed\\nline \\\\ value\")\n"
+            + "    public double pValue;\n"
+            + "    @In\n"
+            + "    public double[][] inData;\n"
+            + "    @Out @Description(\"the list\")\n"
+            + "    public List<String> outList;\n"
+            + "    public String notAField;\n"
+            + "    @Execute\n"
+            + "    public void process() {\n"
+            + "    }\n"
+            + "    public static class Inner {\n"
+            + "        @Out\n"
+            + "        public boolean done;\n"
+            + "        @Execute\n"
+            + "        public void process() {\n"
+            + "        }\n"
+            + "    }\n"
+            + "}\n";
+
+    private static final String OTHER = "package idx;\n"
+            + "import oms3.annotations.*;\n"
+            + "public class Other {\n"
+            + "    @Out\n"
+            + "    public String outName;\n"
+            + "    @Execute\n"
+            + "    public void process() {\n"
+            + "    }\n"
+            + "}\n";
+
+    private File output;
+
+    @Override
+    protected void setUp() throws Exception {
+        output = File.createTempFile("oms3index", "");
+        output.delete();
+        output.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(output);
+    }
+
+    public void testIndexIsReadByTheLookup() throws Exception {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            // running on a jre
+            return;
+        }
+        compile(javac, "Base", BASE, "Module", MODULE);
+
+        URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL()}, getClass().getClassLoader());
+        try {
+            Map<String, ComponentIndex.Component> components = load(loader);
+            assertEquals(Arrays.asList("idx.Module", "idx.Module$Inner"), new ArrayList<String>(components.keySet()));
+
+            ComponentIndex.Component module = components.get("idx.Module");
+            assertEquals("Module", module.getSimpleName());
+            assertEquals(Integer.valueOf(oms3.annotations.Status.CERTIFIED), module.status);
+            assertNull(components.get("idx.Module$Inner").status);
+
+            Class<?> moduleClass = ComponentIndex.forName(module.className, loader);
+            assertNull("The index lookup must not initialize the classes.", System.getProperty("idx.initialized"));
+
+            // same fields and order as the runtime reflection
+            List<String> reflected = new ArrayList<String>();
+            for (Field f : moduleClass.getFields()) {
+                if (f.getAnnotation(oms3.annotations.In.class) != null || f.getAnnotation(oms3.annotations.Out.class) != null) {
+                    reflected.add(f.getName());
+                }
+            }
+            List<String> indexed = new ArrayList<String>();
+            for (ComponentIndex.ComponentField f : module.fields) {
+                indexed.add(f.name);
+                Field field = moduleClass.getField(f.name);
+                assertEquals(field.getType(), ComponentIndex.forName(f.type, loader));
+                assertEquals(field.getAnnotation(oms3.annotations.In.class) != null, f.in);
+                oms3.annotations.Description d = field.getAnnotation(oms3.annotations.Description.class);
+                assertEquals(d == null ? null : d.value(), f.description);
+            }
+            assertEquals(reflected, indexed);
+            assertEquals("a\ttabbed\nline \\ value", module.fields.get(0).description);
+
+            ComponentIndex.ComponentField done = components.get("idx.Module$Inner").fields.get(0);
+            assertEquals(boolean.class, ComponentIndex.forName(done.type, loader));
+            assertFalse(done.in);
+        } finally {
+            loader.close();
+        }
+    }
+
+    public void testIncrementalBuildKeepsTheIndex() throws Exception {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            return;
+        }
+        compile(javac, "Base", BASE, "Module", MODULE);
+        // only the new class is compiled, the others are on the class path
+        compile(javac, "Other", OTHER);
+
+        URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL()}, getClass().getClassLoader());
+        try {
+            Map<String, ComponentIndex.Component> components = load(loader);
+            assertEquals(Arrays.asList("idx.Module", "idx.Module$Inner", "idx.Other"),
+                    new ArrayList<String>(components.keySet()));
+            assertEquals(4, components.get("idx.Module").fields.size());
+            assertEquals(String.class, ComponentIndex.forName(components.get("idx.Other").fields.get(0).type, loader));
+        } finally {
+            loader.close();
+        }
+    }
+
+    private Map<String, ComponentIndex.Component> load(ClassLoader loader) throws Exception {
+        Map<String, ComponentIndex.Component> components = new TreeMap<String, ComponentIndex.Component>();
+        for (ComponentIndex.Component c : ComponentIndex.load(loader)) {
+            if (c.className.startsWith("idx.")) {
+                components.put(c.className, c);
+            }
+        }
+        return components;
+    }
+
+    private void compile(JavaCompiler javac, String... namesAndSources) throws Exception {
+        List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+        for (int i = 0; i < namesAndSources.length; i += 2) {
+            sources.add(new Source(namesAndSources[i], namesAndSources[i + 1]));
+        }
+        String oms3 = new File(Execute.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        String classpath = oms3 + File.pathSeparator + output.getPath();
+        List<String> options = Arrays.asList("-d", output.getPath(), "-classpath", classpath, "-processor",
+                ComponentIndexProcessor.class.getName());
+        StringWriter messages = new StringWriter();
+        Boolean ok = javac.getTask(messages, null, null, options, null, sources).call();
+        assertTrue(messages.toString(), ok);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+
+        private final String code;
+
+        Source(String name, String code) {
+            super(URI.create("string:///idx/" + name + ".java"), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+}
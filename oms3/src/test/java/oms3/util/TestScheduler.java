@@ -0,0 +1,192 @@
+package oms3.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import oms3.Compound;
+import oms3.annotations.Execute;
+
+/**
+ * Test the {@link Scheduler} and the parallel runs of {@link Threads}.
+ *
+ * @author Olaf David
+ */
+public class TestScheduler extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        Scheduler.shutdownShared();
+    }
+
+    public void testShutdownSharedKeepsRunningExecutions() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger done = new AtomicInteger();
+        Scheduler.Execution running = Scheduler.newSharedExecution();
+        Scheduler scheduler = running.getScheduler();
+        running.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException E) {
+                    throw new RuntimeException(E);
+                }
+                done.incrementAndGet();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        Scheduler.shutdownShared();
+        assertTrue(scheduler.isShutdown());
+        try {
+            scheduler.newExecution();
+            fail("A shut down scheduler takes no new executions.");
+        } catch (RejectedExecutionException E) {
+            // expected
+        }
+
+        // the running execution can still submit its tasks
+        running.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                done.incrementAndGet();
+            }
+        });
+
+        // the next run gets a new shared scheduler
+        Scheduler.Execution next = Scheduler.newSharedExecution();
+        assertNotSame(scheduler, next.getScheduler());
+        next.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                done.incrementAndGet();
+            }
+        });
+        next.await();
+
+        release.countDown();
+        running.await();
+        assertEquals(3, done.get());
+        assertEquals(0, scheduler.getRunningExecutions());
+    }
+
+    public void testFailureCancelsOnlyItsExecution() throws Exception {
+        Scheduler scheduler = new Scheduler(2);
+        try {
+            Scheduler.Execution failing = scheduler.newExecution();
+            failing.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            try {
+                failing.await();
+                fail("The failure of the task should be thrown.");
+            } catch (IllegalStateException E) {
+                assertEquals("failed", E.getMessage());
+            }
+
+            final AtomicInteger done = new AtomicInteger();
+            Scheduler.Execution next = scheduler.newExecution();
+            for (int i = 0; i < 10; i++) {
+                next.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        done.incrementAndGet();
+                    }
+                });
+            }
+            next.await();
+            assertEquals(10, done.get());
+            assertNull(next.getError());
+
+            assertEquals(11, scheduler.getSubmittedTasks());
+            assertEquals(10, scheduler.getCompletedTasks());
+            assertEquals(1, scheduler.getFailedTasks());
+            scheduler.resetMetrics();
+            assertEquals(0, scheduler.getSubmittedTasks());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testParallelismIsBoundedByNumproc() throws Exception {
+        Scheduler.setShared(new Scheduler(8));
+        for (int numproc = 1; numproc <= 3; numproc++) {
+            final AtomicInteger active = new AtomicInteger();
+            final AtomicInteger maxActive = new AtomicInteger();
+            final AtomicInteger executed = new AtomicInteger();
+            List<Integer> ids = new ArrayList<Integer>();
+            for (int i = 0; i < 12; i++) {
+                ids.add(i);
+            }
+            Threads.par_e(new Threads.CompList<Integer>(ids) {
+
+                @Override
+                public Compound create(Integer src) {
+                    return new Compound() {
+
+                        @Execute
+                        @Override
+                        public void execute() {
+                            int now = active.incrementAndGet();
+                            synchronized (maxActive) {
+                                maxActive.set(Math.max(maxActive.get(), now));
+                            }
+                            try {
+                                Thread.sleep(20);
+                            } catch (InterruptedException E) {
+                                throw new RuntimeException(E);
+                            }
+                            active.decrementAndGet();
+                            executed.incrementAndGet();
+                        }
+                    };
+                }
+            }, numproc);
+            assertEquals(12, executed.get());
+            assertTrue(maxActive.get() <= numproc);
+        }
+    }
+
+    public void testParallelFailureIsThrown() throws Exception {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 6; i++) {
+            ids.add(i);
+        }
+        try {
+            Threads.par_e(new Threads.CompList<Integer>(ids) {
+
+                @Override
+                public Compound create(final Integer src) {
+                    return new Compound() {
+
+                        @Execute
+                        @Override
+                        public void execute() {
+                            if (src == 3) {
+                                throw new IllegalArgumentException("compound " + src);
+                            }
+                        }
+                    };
+                }
+            }, 2);
+            fail("The failure of the compound should be thrown.");
+        } catch (IllegalArgumentException E) {
+            assertEquals("compound 3", E.getMessage());
+        }
+    }
+}
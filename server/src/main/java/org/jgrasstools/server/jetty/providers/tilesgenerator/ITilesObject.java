@@ -6,6 +6,7 @@ public interface ITilesObject {
     String X = "x";
     String Y = "y";
     String Z = "z";
+    String STATS = "stats";
 
     String getName();
 
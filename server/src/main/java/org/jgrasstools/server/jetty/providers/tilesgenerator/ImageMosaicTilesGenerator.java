@@ -22,8 +22,14 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
 
 import javax.imageio.ImageIO;
 
@@ -38,6 +44,7 @@ import org.geotools.renderer.lite.StreamingRenderer;
 import org.geotools.styling.RasterSymbolizer;
 import org.geotools.styling.SLD;
 import org.geotools.styling.Style;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
 import org.jgrasstools.gears.utils.CrsUtilities;
 import org.jgrasstools.gears.utils.SldUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
@@ -45,11 +52,16 @@ import org.jgrasstools.gears.utils.files.FileUtilities;
 /**
  * Tiles generator for imagemosaic files.
  * 
+ * <p>Tiles are rendered by a pool of renderers, so that requests for different
+ * tiles are served in parallel, and kept encoded in a {@link TilesCache}.
+ * Concurrent requests of the same tile wait for a single rendering.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
-public class ImageMosaicTilesGenerator implements ITilesGenerator {
+public class ImageMosaicTilesGenerator implements ITilesGenerator, AutoCloseable {
 
     private static final int TILESIZE = 256;
+    private static final long DEFAULT_MEMORY_CACHE_BYTES = 64L * 1024L * 1024L;
     private File cacheFolder;
     private String title;
     private boolean isVisible;
@@ -57,10 +69,32 @@ public class ImageMosaicTilesGenerator implements ITilesGenerator {
     private String url;
 
     private int tileSize = TILESIZE;
-    private GTRenderer renderer;
+    private BlockingQueue<GTRenderer> renderersPool;
+    private TilesCache tilesCache;
+    private final ConcurrentHashMap<Long, FutureTask<byte[]>> tilesInProgress = new ConcurrentHashMap<Long, FutureTask<byte[]>>();
 
     public ImageMosaicTilesGenerator( String title, File imsf, Integer tileSize, boolean isVisible, boolean isDefault )
             throws Exception {
+        this(title, imsf, tileSize, isVisible, isDefault, Runtime.getRuntime().availableProcessors(),
+                DEFAULT_MEMORY_CACHE_BYTES, false);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param title the title of the generator, if <code>null</code> the name of the mosaic is used.
+     * @param imsf the imagemosaic shapefile.
+     * @param tileSize the tile size, if <code>null</code> 256 is used.
+     * @param isVisible the visibility flag.
+     * @param isDefault the default flag.
+     * @param renderersCount the number of renderers, i.e. of tiles that can be rendered in parallel.
+     * @param memoryCacheBytes the maximum size of the tiles kept in memory.
+     * @param useMbtiles if <code>true</code>, tiles are cached on disk in an mbtiles database 
+     *          instead of a folder of images.
+     * @throws Exception
+     */
+    public ImageMosaicTilesGenerator( String title, File imsf, Integer tileSize, boolean isVisible, boolean isDefault,
+            int renderersCount, long memoryCacheBytes, boolean useMbtiles ) throws Exception {
         this.title = title;
         this.isVisible = isVisible;
         this.isDefault = isDefault;
@@ -70,26 +104,38 @@ public class ImageMosaicTilesGenerator implements ITilesGenerator {
         AbstractGridFormat format = GridFormatFinder.findFormat(imsf);
         AbstractGridCoverage2DReader coverageTilesReader = format.getReader(imsf);
 
-        MapContent mapContent = new MapContent();
-        try {
-            RasterSymbolizer sym = SldUtilities.sf.getDefaultRasterSymbolizer();
-            Style style = SLD.wrapSymbolizers(sym);
-            GridReaderLayer layer = new GridReaderLayer(coverageTilesReader, style);
-            mapContent.addLayer(layer);
-            mapContent.getViewport().setCoordinateReferenceSystem(CrsUtilities.WGS84);
-        } catch (Exception e) {
-            e.printStackTrace();
+        // the coverage reader is shared, every renderer has its own map content
+        renderersCount = Math.max(1, renderersCount);
+        renderersPool = new ArrayBlockingQueue<GTRenderer>(renderersCount);
+        for( int i = 0; i < renderersCount; i++ ) {
+            MapContent mapContent = new MapContent();
+            try {
+                RasterSymbolizer sym = SldUtilities.sf.getDefaultRasterSymbolizer();
+                Style style = SLD.wrapSymbolizers(sym);
+                GridReaderLayer layer = new GridReaderLayer(coverageTilesReader, style);
+                mapContent.addLayer(layer);
+                mapContent.getViewport().setCoordinateReferenceSystem(CrsUtilities.WGS84);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            GTRenderer renderer = new StreamingRenderer();
+            renderer.setMapContent(mapContent);
+            renderersPool.add(renderer);
         }
-        renderer = new StreamingRenderer();
-        renderer.setMapContent(mapContent);
 
         String fileName = FileUtilities.getNameWithoutExtention(imsf);
         if (title == null) {
             title = fileName;
         }
         File folder = imsf.getParentFile();
-        cacheFolder = new File(folder.getParentFile(), folder.getName() + "-tiles");
-        cacheFolder.mkdir();
+        if (useMbtiles) {
+            File mbtilesFile = new File(folder.getParentFile(), folder.getName() + "-tiles.mbtiles");
+            tilesCache = new TilesCache(memoryCacheBytes, null, mbtilesFile);
+        } else {
+            cacheFolder = new File(folder.getParentFile(), folder.getName() + "-tiles");
+            cacheFolder.mkdir();
+            tilesCache = new TilesCache(memoryCacheBytes, cacheFolder, null);
+        }
 
         url = "gettile?z={z}&x={x}&y={y}&id=" + title;
 
@@ -106,37 +152,84 @@ public class ImageMosaicTilesGenerator implements ITilesGenerator {
     }
 
     @Override
-    public void getTile( int xtile, int yTile, int zoom, OutputStream outputStream ) throws Exception {
-        File tileImageFolderFile = new File(cacheFolder, zoom + File.separator + xtile);
-        if (!tileImageFolderFile.exists()) {
-            tileImageFolderFile.mkdirs();
-        }
-        File imgFile = new File(tileImageFolderFile, yTile + ".png");
-        BufferedImage bImg;
-        if (!imgFile.exists()) {
-
-            Rectangle imageBounds = new Rectangle(0, 0, tileSize, tileSize);
-            BufferedImage image = new BufferedImage(imageBounds.width, imageBounds.height, BufferedImage.TYPE_INT_RGB);
-            Graphics2D gr = image.createGraphics();
-            gr.setPaint(Color.WHITE);
-            gr.fill(imageBounds);
-            gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-            double north = tile2lat(yTile, zoom);
-            double south = tile2lat(yTile + 1, zoom);
-            double west = tile2lon(xtile, zoom);
-            double east = tile2lon(xtile + 1, zoom);
-
-            synchronized (renderer) {
-                ReferencedEnvelope mapArea = new ReferencedEnvelope(west, east, south, north, CrsUtilities.WGS84);
-                renderer.paint(gr, imageBounds, mapArea);
+    public void getTile( final int xtile, final int yTile, final int zoom, OutputStream outputStream ) throws Exception {
+        byte[] tile = tilesCache.get(xtile, yTile, zoom);
+        if (tile == null) {
+            Long key = TilesCache.key(xtile, yTile, zoom);
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>(){
+                @Override
+                public byte[] call() throws Exception {
+                    // a rendering of the same tile might have finished since the cache was checked
+                    byte[] cachedTile = tilesCache.peek(xtile, yTile, zoom);
+                    if (cachedTile != null) {
+                        return cachedTile;
+                    }
+                    byte[] renderedTile = renderTile(xtile, yTile, zoom);
+                    tilesCache.put(xtile, yTile, zoom, renderedTile);
+                    return renderedTile;
+                }
+            });
+            FutureTask<byte[]> running = tilesInProgress.putIfAbsent(key, task);
+            if (running == null) {
+                running = task;
+                try {
+                    task.run();
+                } finally {
+                    tilesInProgress.remove(key);
+                }
             }
-            ImageIO.write(image, "png", imgFile);
-            bImg = image;
-        } else {
-            bImg = ImageIO.read(imgFile);
+            tile = ThreadedRunnable.getResult(running);
         }
-        ImageIO.write(bImg, "png", outputStream);
+        outputStream.write(tile);
+    }
+
+    /**
+     * Render a tile and encode it as png.
+     * 
+     * <p>Package visible, so that tests can count the renderings.</p>
+     */
+    byte[] renderTile( int xtile, int yTile, int zoom ) throws Exception {
+        Rectangle imageBounds = new Rectangle(0, 0, tileSize, tileSize);
+        BufferedImage image = new BufferedImage(imageBounds.width, imageBounds.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D gr = image.createGraphics();
+        gr.setPaint(Color.WHITE);
+        gr.fill(imageBounds);
+        gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        double north = tile2lat(yTile, zoom);
+        double south = tile2lat(yTile + 1, zoom);
+        double west = tile2lon(xtile, zoom);
+        double east = tile2lon(xtile + 1, zoom);
+
+        GTRenderer renderer = renderersPool.take();
+        try {
+            ReferencedEnvelope mapArea = new ReferencedEnvelope(west, east, south, north, CrsUtilities.WGS84);
+            renderer.paint(gr, imageBounds, mapArea);
+        } finally {
+            renderersPool.put(renderer);
+            gr.dispose();
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the cache of the generated tiles.
+     */
+    public TilesCache getTilesCache() {
+        return tilesCache;
+    }
+
+    /**
+     * Close the tiles cache, committing the tiles not yet written to disk.
+     * 
+     * @throws Exception
+     */
+    @Override
+    public void close() throws Exception {
+        tilesCache.close();
     }
 
     @Override
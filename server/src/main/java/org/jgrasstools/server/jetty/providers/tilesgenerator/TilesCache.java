@@ -0,0 +1,248 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.server.jetty.providers.tilesgenerator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jgrasstools.gears.modules.r.tmsgenerator.MBTilesHelper;
+
+/**
+ * Two level cache of encoded tiles.
+ *
+ * <p>
+ * The first level is an in memory LRU cache bounded by the total size of the
+ * tiles it holds. The second level is on disk, either a folder with a png per
+ * tile (<code>zoom/x/y.png</code>) or an mbtiles database. Tiles found on disk
+ * are promoted to the memory cache.
+ * </p>
+ *
+ * <p>
+ * Tiles are requested with the x/y/z of the google scheme. The png tiles are
+ * stored with the same x/y/z, while the rows are flipped to TMS for the mbtiles
+ * database, as its specification requires.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TilesCache implements AutoCloseable {
+
+    private final long maxMemoryBytes;
+    private long memoryBytes = 0;
+    private final LinkedHashMap<Long, byte[]> memoryCache = new LinkedHashMap<Long, byte[]>(256, 0.75f, true);
+
+    private final File tilesFolder;
+    private final MBTilesHelper mbtilesHelper;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param maxMemoryBytes the maximum size of the tiles kept in memory. If 0, no memory cache is used.
+     * @param tilesFolder the folder for the png tiles. Ignored if <code>mbtilesFile</code> is set.
+     * @param mbtilesFile the mbtiles database to use as disk cache, created if it doesn't exist. Can be <code>null</code>.
+     * @throws Exception
+     */
+    public TilesCache( long maxMemoryBytes, File tilesFolder, File mbtilesFile ) throws Exception {
+        this.maxMemoryBytes = maxMemoryBytes;
+        if (mbtilesFile != null) {
+            boolean existed = mbtilesFile.exists();
+            mbtilesHelper = new MBTilesHelper();
+            mbtilesHelper.open(mbtilesFile);
+            if (!existed) {
+                mbtilesHelper.createTables(true);
+                String name = mbtilesFile.getName();
+                mbtilesHelper.fillMetadata(85.05f, -85.05f, -180f, 180f, name, "png", 0, 22);
+            }
+            this.tilesFolder = null;
+        } else {
+            mbtilesHelper = null;
+            this.tilesFolder = tilesFolder;
+        }
+    }
+
+    /**
+     * Get a tile from the cache.
+     *
+     * @param x the x tile.
+     * @param y the y tile.
+     * @param z the zoom level.
+     * @return the encoded tile or <code>null</code>, if it is not cached.
+     * @throws Exception
+     */
+    public byte[] get( int x, int y, int z ) throws Exception {
+        return get(x, y, z, true);
+    }
+
+    /**
+     * Get a tile from the cache, without counting the request in the statistics.
+     *
+     * @param x the x tile.
+     * @param y the y tile.
+     * @param z the zoom level.
+     * @return the encoded tile or <code>null</code>, if it is not cached.
+     * @throws Exception
+     */
+    public byte[] peek( int x, int y, int z ) throws Exception {
+        return get(x, y, z, false);
+    }
+
+    private byte[] get( int x, int y, int z, boolean doCount ) throws Exception {
+        Long key = key(x, y, z);
+        synchronized (memoryCache) {
+            byte[] tile = memoryCache.get(key);
+            if (tile != null) {
+                if (doCount)
+                    memoryHits.incrementAndGet();
+                return tile;
+            }
+        }
+
+        byte[] tile = null;
+        if (mbtilesHelper != null) {
+            tile = mbtilesHelper.getTileBytes(x, tmsY(y, z), z);
+        } else if (tilesFolder != null) {
+            File tileFile = getTileFile(x, y, z);
+            if (tileFile.exists()) {
+                tile = Files.readAllBytes(tileFile.toPath());
+            }
+        }
+        if (tile != null) {
+            if (doCount)
+                diskHits.incrementAndGet();
+            putInMemory(key, tile);
+        } else if (doCount) {
+            misses.incrementAndGet();
+        }
+        return tile;
+    }
+
+    /**
+     * Add a new tile to the cache.
+     *
+     * @param x the x tile.
+     * @param y the y tile.
+     * @param z the zoom level.
+     * @param tile the encoded tile.
+     * @throws Exception
+     */
+    public void put( int x, int y, int z, byte[] tile ) throws Exception {
+        putInMemory(key(x, y, z), tile);
+        if (mbtilesHelper != null) {
+            mbtilesHelper.addTile(x, tmsY(y, z), z, tile);
+        } else if (tilesFolder != null) {
+            File tileFile = getTileFile(x, y, z);
+            File parentFile = tileFile.getParentFile();
+            if (!parentFile.exists()) {
+                parentFile.mkdirs();
+            }
+            // write aside and move, so that readers never see half written tiles
+            File tmpFile = File.createTempFile("tile", ".tmp", parentFile);
+            Files.write(tmpFile.toPath(), tile);
+            Files.move(tmpFile.toPath(), tileFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void putInMemory( Long key, byte[] tile ) {
+        if (tile.length > maxMemoryBytes) {
+            return;
+        }
+        synchronized (memoryCache) {
+            byte[] previous = memoryCache.put(key, tile);
+            if (previous != null) {
+                memoryBytes -= previous.length;
+            }
+            memoryBytes += tile.length;
+            Iterator<Entry<Long, byte[]>> iterator = memoryCache.entrySet().iterator();
+            while( memoryBytes > maxMemoryBytes && iterator.hasNext() ) {
+                Entry<Long, byte[]> eldest = iterator.next();
+                memoryBytes -= eldest.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private File getTileFile( int x, int y, int z ) {
+        return new File(tilesFolder, z + File.separator + x + File.separator + y + ".png");
+    }
+
+    /**
+     * Convert a google tile row to the TMS row used by mbtiles.
+     */
+    public static int tmsY( int y, int z ) {
+        return (1 << z) - 1 - y;
+    }
+
+    /**
+     * Create a unique key for a tile, valid up to zoom level 29.
+     */
+    public static long key( int x, int y, int z ) {
+        return ((long) z << 58) | ((long) x << 29) | y;
+    }
+
+    /**
+     * @return the number of requests served from memory.
+     */
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    /**
+     * @return the number of requests served from disk.
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * @return the number of requests that were not cached.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the size of the tiles held in memory.
+     */
+    public long getMemoryBytes() {
+        synchronized (memoryCache) {
+            return memoryBytes;
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (mbtilesHelper != null) {
+            mbtilesHelper.commit();
+            mbtilesHelper.close();
+        }
+        synchronized (memoryCache) {
+            memoryCache.clear();
+            memoryBytes = 0;
+        }
+    }
+
+}
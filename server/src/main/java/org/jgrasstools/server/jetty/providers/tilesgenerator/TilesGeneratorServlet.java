@@ -18,7 +18,9 @@
 package org.jgrasstools.server.jetty.providers.tilesgenerator;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,6 +36,9 @@ import org.jgrasstools.server.jetty.providers.IProvider;
 /**
  * Mapsforge tiles provider servlet.
  * 
+ * <p>A request with the <code>stats</code> parameter returns the cache
+ * hits and misses of the generators instead of a tile.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class TilesGeneratorServlet extends HttpServlet {
@@ -47,6 +52,10 @@ public class TilesGeneratorServlet extends HttpServlet {
     protected void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
         try {
             ServletContext servletContext = request.getServletContext();
+            if (request.getParameter(ITilesObject.STATS) != null) {
+                writeStats(servletContext, response);
+                return;
+            }
 
             int xTile = Integer.parseInt(request.getParameter(ITilesObject.X));
             int yTile = Integer.parseInt(request.getParameter(ITilesObject.Y));
@@ -66,4 +75,42 @@ public class TilesGeneratorServlet extends HttpServlet {
         }
     }
 
-}
\ No newline at end of file
+    @SuppressWarnings("unchecked")
+    @Override
+    public void destroy() {
+        HashMap<String, ITilesGenerator> tilesGenerators = (HashMap<String, ITilesGenerator>) getServletContext()
+                .getAttribute(IProvider.OFFLINE_TILESGENERATORS);
+        if (tilesGenerators != null) {
+            for( ITilesGenerator tilesGenerator : tilesGenerators.values() ) {
+                if (tilesGenerator instanceof AutoCloseable) {
+                    try {
+                        // commits the tiles still pending in the caches
+                        ((AutoCloseable) tilesGenerator).close();
+                    } catch (Exception e) {
+                        LOG.log(Level.SEVERE, "ERROR", e);
+                    }
+                }
+            }
+        }
+        super.destroy();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeStats( ServletContext servletContext, HttpServletResponse response ) throws IOException {
+        HashMap<String, ITilesGenerator> tilesGenerators = (HashMap<String, ITilesGenerator>) servletContext
+                .getAttribute(IProvider.OFFLINE_TILESGENERATORS);
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        if (tilesGenerators != null) {
+            for( Entry<String, ITilesGenerator> entry : tilesGenerators.entrySet() ) {
+                if (entry.getValue() instanceof ImageMosaicTilesGenerator) {
+                    TilesCache cache = ((ImageMosaicTilesGenerator) entry.getValue()).getTilesCache();
+                    writer.println(entry.getKey() + ": memoryHits=" + cache.getMemoryHits() + " diskHits=" + cache.getDiskHits()
+                            + " misses=" + cache.getMisses() + " memoryBytes=" + cache.getMemoryBytes());
+                }
+            }
+        }
+        writer.flush();
+    }
+
+}
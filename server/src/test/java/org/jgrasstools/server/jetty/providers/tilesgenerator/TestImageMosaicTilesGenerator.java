@@ -0,0 +1,164 @@
+package org.jgrasstools.server.jetty.providers.tilesgenerator;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.io.rasterwriter.OmsRasterWriter;
+import org.jgrasstools.gears.modules.r.imagemosaic.OmsImageMosaicCreator;
+import org.jgrasstools.gears.utils.CrsUtilities;
+import org.jgrasstools.gears.utils.RegionMap;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+
+/**
+ * Test the rendering and caching of the image mosaic tiles.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestImageMosaicTilesGenerator extends TestCase {
+
+    private static final int ZOOM = 10;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private File folder;
+    private File mosaicFile;
+    private int xTile;
+    private int yTile;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = File.createTempFile("jgt-mosaictiles", "");
+        folder.delete();
+        folder.mkdirs();
+
+        File mosaicFolder = new File(folder, "mosaic");
+        mosaicFolder.mkdirs();
+        int cols = 20;
+        int rows = 10;
+        double[][] data = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                data[r][c] = r * cols + c;
+            }
+        }
+        RegionMap region = CoverageUtilities.makeRegionParamsMap(46.5, 46.0, 11.0, 12.0, 0.05, 0.05, cols, rows);
+        GridCoverage2D coverage = CoverageUtilities.buildCoverage("mosaic", data, region, CrsUtilities.WGS84, true);
+        OmsRasterWriter.writeRaster(new File(mosaicFolder, "mosaic.tiff").getAbsolutePath(), coverage);
+
+        OmsImageMosaicCreator mosaicCreator = new OmsImageMosaicCreator();
+        mosaicCreator.inFolder = mosaicFolder.getAbsolutePath();
+        mosaicCreator.process();
+        mosaicFile = new File(mosaicFolder, "mosaic.shp");
+
+        // the tile in the middle of the data
+        double lon = 11.5;
+        double lat = Math.toRadians(46.25);
+        xTile = (int) Math.floor((lon + 180.0) / 360.0 * (1 << ZOOM));
+        yTile = (int) Math.floor((1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2 * (1 << ZOOM));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtilities.deleteFileOrDir(folder);
+    }
+
+    public void testConcurrentRequestsRenderOnce() throws Exception {
+        final AtomicInteger renderings = new AtomicInteger();
+        final ImageMosaicTilesGenerator generator = new ImageMosaicTilesGenerator("test", mosaicFile, null, true, false, 2,
+                1024 * 1024, false){
+            @Override
+            byte[] renderTile( int x, int y, int z ) throws Exception {
+                renderings.incrementAndGet();
+                // keep the rendering going until the second request has missed the cache too
+                long start = System.currentTimeMillis();
+                while( getTilesCache().getMisses() < 2 && System.currentTimeMillis() - start < TIMEOUT_MILLIS ) {
+                    Thread.sleep(10);
+                }
+                return super.renderTile(x, y, z);
+            }
+        };
+        try {
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final ByteArrayOutputStream[] outputs = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+            Thread[] threads = new Thread[outputs.length];
+            for( int i = 0; i < threads.length; i++ ) {
+                final ByteArrayOutputStream output = outputs[i];
+                threads[i] = new Thread(new Runnable(){
+                    public void run() {
+                        try {
+                            generator.getTile(xTile, yTile, ZOOM, output);
+                        } catch (Throwable e) {
+                            error.compareAndSet(null, e);
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for( Thread thread : threads ) {
+                thread.join(TIMEOUT_MILLIS);
+            }
+            assertNull(error.get());
+
+            TilesCache tilesCache = generator.getTilesCache();
+            assertEquals(2, tilesCache.getMisses());
+            assertEquals(1, renderings.get());
+            byte[] tile = outputs[0].toByteArray();
+            assertTrue(Arrays.equals(tile, outputs[1].toByteArray()));
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(tile));
+            assertEquals(256, image.getWidth());
+            assertEquals(256, image.getHeight());
+
+            // now it is served from memory
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            generator.getTile(xTile, yTile, ZOOM, output);
+            assertTrue(Arrays.equals(tile, output.toByteArray()));
+            assertEquals(1, renderings.get());
+            assertEquals(1, tilesCache.getMemoryHits());
+            assertEquals(tile.length, tilesCache.getMemoryBytes());
+        } finally {
+            generator.close();
+        }
+    }
+
+    public void testTilesAreCachedOnDisk() throws Exception {
+        byte[] tile;
+        try (ImageMosaicTilesGenerator generator = new ImageMosaicTilesGenerator("test", mosaicFile, null, true, false, 1,
+                1024 * 1024, false)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            generator.getTile(xTile, yTile, ZOOM, output);
+            tile = output.toByteArray();
+        }
+        File tileFile = new File(folder, "mosaic-tiles" + File.separator + ZOOM + File.separator + xTile + File.separator
+                + yTile + ".png");
+        assertTrue(tileFile.exists());
+
+        // a new generator finds the tile of the previous one
+        final AtomicInteger renderings = new AtomicInteger();
+        try (ImageMosaicTilesGenerator generator = new ImageMosaicTilesGenerator("test", mosaicFile, null, true, false, 1,
+                1024 * 1024, false){
+            @Override
+            byte[] renderTile( int x, int y, int z ) throws Exception {
+                renderings.incrementAndGet();
+                return super.renderTile(x, y, z);
+            }
+        }) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            generator.getTile(xTile, yTile, ZOOM, output);
+            assertTrue(Arrays.equals(tile, output.toByteArray()));
+            assertEquals(0, renderings.get());
+            assertEquals(1, generator.getTilesCache().getDiskHits());
+            assertEquals(0, generator.getTilesCache().getMisses());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.jgrasstools.server.jetty.providers.tilesgenerator;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.jgrasstools.gears.modules.r.tmsgenerator.MBTilesHelper;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+
+/**
+ * Test the two level tiles cache.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestTilesCache extends TestCase {
+
+    private File folder;
+
+    @Override
+    protected void setUp() throws Exception {
+        folder = File.createTempFile("jgt-tilescache", "");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtilities.deleteFileOrDir(folder);
+    }
+
+    public void testKey() throws Exception {
+        Set<Long> keys = new HashSet<Long>();
+        int max = (1 << 29) - 1;
+        int[] values = {0, 1, 2, 1000, max};
+        for( int z : new int[]{0, 1, 18, 29} ) {
+            for( int x : values ) {
+                for( int y : values ) {
+                    assertTrue(x + "/" + y + "/" + z, keys.add(TilesCache.key(x, y, z)));
+                }
+            }
+        }
+        assertTrue(TilesCache.key(1, 2, 3) != TilesCache.key(2, 1, 3));
+        assertTrue(TilesCache.key(0, 0, 1) != TilesCache.key(0, 0, 0));
+    }
+
+    public void testTmsY() throws Exception {
+        assertEquals(0, TilesCache.tmsY(0, 0));
+        assertEquals(1, TilesCache.tmsY(0, 1));
+        assertEquals(0, TilesCache.tmsY(1, 1));
+        assertEquals(1023, TilesCache.tmsY(0, 10));
+        assertEquals(0, TilesCache.tmsY(1023, 10));
+        for( int y = 0; y < 256; y++ ) {
+            assertEquals(y, TilesCache.tmsY(TilesCache.tmsY(y, 8), 8));
+        }
+    }
+
+    public void testMemoryEviction() throws Exception {
+        try (TilesCache cache = new TilesCache(10, null, null)) {
+            byte[] tileA = {1, 1, 1, 1};
+            byte[] tileB = {2, 2, 2, 2};
+            byte[] tileC = {3, 3, 3, 3};
+            cache.put(0, 0, 1, tileA);
+            cache.put(1, 0, 1, tileB);
+            assertEquals(8, cache.getMemoryBytes());
+
+            // A becomes the most recently used, so B is the one evicted
+            assertTrue(Arrays.equals(tileA, cache.get(0, 0, 1)));
+            cache.put(0, 1, 1, tileC);
+            assertEquals(8, cache.getMemoryBytes());
+            assertNull(cache.get(1, 0, 1));
+            assertTrue(Arrays.equals(tileA, cache.get(0, 0, 1)));
+            assertTrue(Arrays.equals(tileC, cache.get(0, 1, 1)));
+
+            // a tile bigger than the whole cache is not kept
+            cache.put(1, 1, 1, new byte[11]);
+            assertEquals(8, cache.getMemoryBytes());
+            assertNull(cache.get(1, 1, 1));
+
+            // replacing a tile counts its new size only
+            cache.put(0, 0, 1, new byte[]{4, 4});
+            assertEquals(6, cache.getMemoryBytes());
+
+            assertEquals(3, cache.getMemoryHits());
+            assertEquals(0, cache.getDiskHits());
+            assertEquals(2, cache.getMisses());
+        }
+    }
+
+    public void testFolderCounters() throws Exception {
+        byte[] tile = {1, 2, 3};
+        try (TilesCache cache = new TilesCache(0, folder, null)) {
+            assertNull(cache.get(5, 6, 7));
+            cache.put(5, 6, 7, tile);
+            // no memory cache, so the tile is read from disk
+            assertTrue(Arrays.equals(tile, cache.get(5, 6, 7)));
+            assertEquals(0, cache.getMemoryBytes());
+            assertEquals(0, cache.getMemoryHits());
+            assertEquals(1, cache.getDiskHits());
+            assertEquals(1, cache.getMisses());
+        }
+        assertTrue(new File(folder, "7" + File.separator + "5" + File.separator + "6.png").exists());
+
+        try (TilesCache cache = new TilesCache(1024, folder, null)) {
+            // found on disk and promoted to memory
+            assertTrue(Arrays.equals(tile, cache.get(5, 6, 7)));
+            assertTrue(Arrays.equals(tile, cache.get(5, 6, 7)));
+            // peeks are not counted
+            assertNull(cache.peek(0, 0, 7));
+            assertTrue(Arrays.equals(tile, cache.peek(5, 6, 7)));
+            assertEquals(3, cache.getMemoryBytes());
+            assertEquals(1, cache.getMemoryHits());
+            assertEquals(1, cache.getDiskHits());
+            assertEquals(0, cache.getMisses());
+        }
+    }
+
+    public void testMbtilesRows() throws Exception {
+        File mbtilesFile = new File(folder, "tiles.mbtiles");
+        byte[] tile = {1, 2, 3};
+        try (TilesCache cache = new TilesCache(1024, null, mbtilesFile)) {
+            cache.put(5, 6, 7, tile);
+        }
+
+        // the rows are stored in the TMS scheme
+        MBTilesHelper mbtilesHelper = new MBTilesHelper();
+        mbtilesHelper.open(mbtilesFile);
+        try {
+            assertTrue(Arrays.equals(tile, mbtilesHelper.getTileBytes(5, TilesCache.tmsY(6, 7), 7)));
+            assertNull(mbtilesHelper.getTileBytes(5, 6, 7));
+        } finally {
+            mbtilesHelper.close();
+        }
+
+        try (TilesCache cache = new TilesCache(1024, null, mbtilesFile)) {
+            assertTrue(Arrays.equals(tile, cache.get(5, 6, 7)));
+            assertEquals(1, cache.getDiskHits());
+        }
+    }
+}